@@ -0,0 +1,133 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.collections;
+
+import org.neo4j.graphdb.PropertyContainer;
+
+/**
+ * Reads and writes properties which are written often, like sizes, counts
+ * and sums, as {@code {value, version}} in a {@code long[]}. The version is
+ * bumped on every write so a property never gets back a value it had
+ * earlier in the same transaction: the transaction state of the kernel
+ * looses a change made after a property was set back to such a value, and
+ * a read in the transaction returns the value from before.
+ */
+public final class VersionedProperties
+{
+	private VersionedProperties()
+	{
+	}
+
+	/**
+	 * Returns the value of a versioned property or {@code defaultValue} if
+	 * the property container doesn't have it.
+	 *
+	 * @param container the node or relationship with the property
+	 * @param key the key of the property
+	 * @param defaultValue the value returned if there is no property
+	 * @return the value of the property.
+	 */
+	public static long getLong( PropertyContainer container, String key,
+		long defaultValue )
+	{
+		long[] property = (long[]) container.getProperty( key, null );
+		return property != null ? property[0] : defaultValue;
+	}
+
+	/**
+	 * Sets the value of a versioned property, bumping its version.
+	 *
+	 * @param container the node or relationship with the property
+	 * @param key the key of the property
+	 * @param value the new value
+	 */
+	public static void setLong( PropertyContainer container, String key,
+		long value )
+	{
+		long[] property = (long[]) container.getProperty( key, null );
+		container.setProperty( key, new long[] { value,
+			property != null ? property[1] + 1 : 0 } );
+	}
+
+	/**
+	 * Adds {@code delta} to the value of an existing versioned property,
+	 * bumping its version.
+	 *
+	 * @param container the node or relationship with the property
+	 * @param key the key of the property
+	 * @param delta the value to add
+	 */
+	public static void addToLong( PropertyContainer container, String key,
+		long delta )
+	{
+		long[] property = (long[]) container.getProperty( key );
+		container.setProperty( key, new long[] { property[0] + delta,
+			property[1] + 1 } );
+	}
+	
+	/**
+	 * Returns the value of a versioned {@code double} property, kept as the
+	 * bits of the value, or {@code defaultValue} if the property container
+	 * doesn't have it.
+	 *
+	 * @param container the node or relationship with the property
+	 * @param key the key of the property
+	 * @param defaultValue the value returned if there is no property
+	 * @return the value of the property.
+	 */
+	public static double getDouble( PropertyContainer container, String key,
+		double defaultValue )
+	{
+		long[] property = (long[]) container.getProperty( key, null );
+		return property != null ? Double.longBitsToDouble( property[0] ) :
+			defaultValue;
+	}
+	
+	/**
+	 * Sets the value of a versioned {@code double} property, bumping its
+	 * version.
+	 *
+	 * @param container the node or relationship with the property
+	 * @param key the key of the property
+	 * @param value the new value
+	 */
+	public static void setDouble( PropertyContainer container, String key,
+		double value )
+	{
+		setLong( container, key, Double.doubleToLongBits( value ) );
+	}
+	
+	/**
+	 * Adds {@code delta} to the value of an existing versioned
+	 * {@code double} property, bumping its version.
+	 *
+	 * @param container the node or relationship with the property
+	 * @param key the key of the property
+	 * @param delta the value to add
+	 */
+	public static void addToDouble( PropertyContainer container, String key,
+		double delta )
+	{
+		long[] property = (long[]) container.getProperty( key );
+		container.setProperty( key, new long[] { Double.doubleToLongBits(
+			Double.longBitsToDouble( property[0] ) + delta ),
+			property[1] + 1 } );
+	}
+}
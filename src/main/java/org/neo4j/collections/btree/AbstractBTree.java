@@ -19,28 +19,65 @@
  */
 package org.neo4j.collections.btree;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
 
+import org.neo4j.collections.rtree.Listener;
+import org.neo4j.collections.rtree.NullListener;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.RelationshipType;
 import org.neo4j.graphdb.ReturnableEvaluator;
 import org.neo4j.graphdb.StopEvaluator;
+import org.neo4j.graphdb.Transaction;
 import org.neo4j.graphdb.TraversalPosition;
 import org.neo4j.graphdb.Traverser;
 import org.neo4j.graphdb.Traverser.Order;
+import org.neo4j.kernel.impl.transaction.LockType;
+import org.neo4j.kernel.impl.transaction.Locker;
 
 /**
  * A b-tree implementation on top of neo4j (using nodes/relationships 
  * and properties).
  * <p>
- * This implementation is not thread safe (yet).
+ * By default the implementation isn't thread safe. A b-tree created in
+ * concurrent mode can be written and read from many threads, each with its
+ * own transaction, as long as all instances working on the tree are in 
+ * concurrent mode:
+ * <ul>
+ * <li>Readers take no locks. They descend from the current root and use the
+ * separators around a tree node in its parent as its key range. A key 
+ * beyond the range means a concurrent split moved it, and the reader moves
+ * right. A key that has moved up, or a tree node that was merged away, 
+ * restarts the descent. An iteration over the entries looks up each entry
+ * this way, and reads its key and value right away.</li>
+ * <li>Writers latch, lock for as long as the write takes, the tree nodes 
+ * the write can change going down from the root, a latch on a tree node is 
+ * taken before the one on its parent is released. Once a tree node is safe,
+ * the write below it can't split it or have it borrow or merge, the latches
+ * above it are released. A remove of a key in an inner tree node keeps that
+ * tree node latched down to the leaf its successor is taken from, and one 
+ * that can borrow or merge also latches the siblings. The tree nodes the 
+ * write changes, the leaf and the parent and siblings of a split or merge, 
+ * are locked until the transaction ends, the other latches are released 
+ * when the write is done.</li>
+ * </ul>
+ * A writer never waits for a tree node while holding a latch, it releases
+ * its latches, waits and starts over, so writers in transactions making one
+ * change each don't deadlock. A transaction making several changes keeps 
+ * the tree nodes of the earlier ones locked and can deadlock with another 
+ * one like it. A tree written in concurrent mode keeps no sub tree counts, 
+ * they would have every writer lock the root, so {@link #size()}, 
+ * {@link #rank(long)} and {@link #select(long)} count entries instead.
  * 
  * This class isn't ready for general usage yet and use of it is discouraged.
- * 
- * The implementation isn't thread safe.
  */
 abstract public class AbstractBTree
 {
@@ -71,8 +108,20 @@ abstract public class AbstractBTree
 	
 	private GraphDatabaseService graphDb;
 	private TreeNode treeRoot;
+	// whether the write in progress keeps the sub tree counts
+	private boolean counting = true;
+	
+	// concurrent mode, the root is read from the tree holder every time
+	private final boolean concurrent;
+	private final Node treeHolder;
+	private final Locker locker;
 	
 	protected TreeNode getTreeRoot(){
+		if ( concurrent )
+		{
+			return new TreeNode( this, treeHolder.getSingleRelationship( 
+				RelTypes.TREE_ROOT, Direction.OUTGOING ).getEndNode() );
+		}
 		return treeRoot;
 	}
 	
@@ -85,14 +134,320 @@ abstract public class AbstractBTree
 	 * @param rootNode root node with incoming {@code TREE_ROOT} relationship.
 	 */
 	public AbstractBTree( GraphDatabaseService graphDb, Node rootNode )
+	{
+		this( graphDb, rootNode, false );
+	}
+	
+	/**
+	 * Creates a b-tree using {@code rootNode} as root, optionally in 
+	 * concurrent mode, see the class documentation. The root node must have
+	 * an incoming relationship of {@link RelTypes TREE_ROOT} else a runtime
+	 * exception will be thrown.
+	 * 
+	 * @param graphDb the embedded graph database instance
+	 * @param rootNode root node with incoming {@code TREE_ROOT} relationship.
+	 * @param concurrent {@code true} to lock for concurrent writers.
+	 */
+	public AbstractBTree( GraphDatabaseService graphDb, Node rootNode, 
+		boolean concurrent )
 	{
 		this.graphDb = graphDb;
 		this.treeRoot = new TreeNode( this, rootNode );
+		this.concurrent = concurrent;
+		if ( concurrent )
+		{
+			this.treeHolder = rootNode.getSingleRelationship( 
+				RelTypes.TREE_ROOT, Direction.INCOMING ).getStartNode();
+			this.locker = Locker.getInstance( graphDb );
+		}
+		else
+		{
+			this.treeHolder = null;
+			this.locker = null;
+		}
+	}
+	
+	/**
+	 * Returns {@code true} if this b-tree was created in concurrent mode.
+	 * 
+	 * @return {@code true} if this b-tree locks for concurrent writers.
+	 */
+	public boolean isConcurrent()
+	{
+		return concurrent;
+	}
+	
+	// write locks a node of the tree until the transaction ends, does 
+	// nothing unless in concurrent mode
+	void lock( Node node )
+	{
+		if ( concurrent )
+		{
+			locker.acquireLock( LockType.WRITE, node );
+		}
+	}
+	
+	// latches a node of the tree, a write lock released by releaseLatches
+	private void latch( Node node, List<Node> latches )
+	{
+		locker.acquireShortLock( LockType.WRITE, node );
+		latches.add( node );
+	}
+	
+	// latches a node of the tree while others are latched, instead of 
+	// waiting for it with them held it releases them, waits until the node 
+	// is free and returns false to have the write start over
+	private boolean tryLatch( Node node, List<Node> latches )
+	{
+		if ( locker.tryShortLock( LockType.WRITE, node ) )
+		{
+			latches.add( node );
+			return true;
+		}
+		releaseLatches( latches );
+		latch( node, latches );
+		releaseLatches( latches );
+		return false;
+	}
+	
+	void releaseLatches( List<Node> latches )
+	{
+		for ( Node node : latches )
+		{
+			locker.releaseShortLock( LockType.WRITE, node );
+		}
+		latches.clear();
+	}
+	
+	// concurrent mode, latches the tree nodes a write of key can change, see
+	// the class documentation, and returns the tree node to write from, the
+	// one holding key or else the leaf where it belongs, locked until the 
+	// transaction ends if the write changes it
+	TreeNode latchTreeNodesFor( long key, boolean adding, List<Node> latches )
+	{
+		while ( true )
+		{
+			try
+			{
+				TreeNode treeNode = tryLatchTreeNodesFor( key, adding, 
+					latches );
+				if ( treeNode != null )
+				{
+					return treeNode;
+				}
+			}
+			catch ( NotFoundException e )
+			{ // merged away, start over
+			}
+			releaseLatches( latches );
+		}
+	}
+	
+	// null if the write has to start over, the latches are released then
+	private TreeNode tryLatchTreeNodesFor( long key, boolean adding, 
+		List<Node> latches )
+	{
+		TreeNode top = getTreeRoot();
+		latch( top.getUnderlyingNode(), latches );
+		if ( !top.getUnderlyingNode().equals( 
+			getTreeRoot().getUnderlyingNode() ) )
+		{
+			// a split or merge of the root committed while waiting
+			return null;
+		}
+		// a tree node is read once latched, a write changing it has 
+		// committed then
+		List<TreeNode> chain = new ArrayList<TreeNode>();
+		chain.add( top );
+		TreeNode treeNode = top;
+		TreeNode holder = null;
+		while ( true )
+		{
+			TreeNode subTree;
+			if ( holder != null )
+			{
+				// down to the successor
+				subTree = treeNode.getSubTree( 0 );
+			}
+			else
+			{
+				KeyEntry entry = treeNode.getEntryInNode( key );
+				if ( entry != null )
+				{
+					holder = treeNode;
+					if ( adding || entry.isLeaf() )
+					{
+						break;
+					}
+					subTree = entry.getAfterSubTree();
+				}
+				else
+				{
+					subTree = treeNode.getSubTreeFor( key );
+				}
+			}
+			if ( subTree == null )
+			{
+				break;
+			}
+			if ( !tryLatch( subTree.getUnderlyingNode(), latches ) )
+			{
+				return null;
+			}
+			if ( isSafe( subTree, adding ) )
+			{
+				// the write changes nothing above it but the holder
+				releaseLatchesExcept( latches, subTree, holder );
+				chain.clear();
+			}
+			chain.add( subTree );
+			treeNode = subTree;
+		}
+		boolean changes = adding ? holder == null : holder != null;
+		if ( changes && !adding )
+		{
+			// the tree nodes below the top can borrow or merge
+			for ( TreeNode underfull : chain.subList( 1, chain.size() ) )
+			{
+				if ( !latchSiblings( underfull, latches ) )
+				{
+					return null;
+				}
+			}
+		}
+		TreeNode home = holder != null ? holder : treeNode;
+		if ( changes )
+		{
+			lock( home.getUnderlyingNode() );
+		}
+		return home;
+	}
+	
+	// latches the tree nodes a borrow or merge of treeNode can change, its
+	// siblings and the sub trees moved between them, all before the write 
+	// changes anything as the kernel locks the relationships next to the 
+	// ones changed, the one to a sub tree too
+	private boolean latchSiblings( TreeNode treeNode, List<Node> latches )
+	{
+		TreeNode leftSibling = treeNode.getLeftSibbling();
+		TreeNode rightSibling = treeNode.getRightSibbling();
+		if ( ( leftSibling != null && !tryLatch( 
+			leftSibling.getUnderlyingNode(), latches ) ) || 
+			( rightSibling != null && !tryLatch( 
+			rightSibling.getUnderlyingNode(), latches ) ) )
+		{
+			return false;
+		}
+		if ( treeNode.isLeafNode() )
+		{
+			return true;
+		}
+		List<TreeNode> subTrees = new ArrayList<TreeNode>();
+		subTrees.add( treeNode.getSubTree( 0 ) );
+		if ( leftSibling != null )
+		{
+			subTrees.add( leftSibling.getLastEntry().getAfterSubTree() );
+		}
+		if ( rightSibling != null )
+		{
+			subTrees.add( rightSibling.getSubTree( 0 ) );
+		}
+		for ( TreeNode subTree : subTrees )
+		{
+			if ( !tryLatch( subTree.getUnderlyingNode(), latches ) )
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	// true if a write below the tree node doesn't change anything above it,
+	// an add doesn't split it and a remove doesn't have it borrow or merge
+	private boolean isSafe( TreeNode treeNode, boolean adding )
+	{
+		int entryCount = treeNode.getEntryCount();
+		return adding ? entryCount < getOrder() - 1 : 
+			entryCount > getOrder() / 2;
+	}
+	
+	private void releaseLatchesExcept( List<Node> latches, TreeNode keep, 
+		TreeNode holder )
+	{
+		for ( Iterator<Node> itr = latches.iterator(); itr.hasNext(); )
+		{
+			Node node = itr.next();
+			if ( !node.equals( keep.getUnderlyingNode() ) && ( holder == null ||
+				!node.equals( holder.getUnderlyingNode() ) ) )
+			{
+				locker.releaseShortLock( LockType.WRITE, node );
+				itr.remove();
+			}
+		}
+	}
+	
+	// lock free descent to the tree node holding key or else the leaf where
+	// it belongs, moving right past separators of concurrent splits
+	TreeNode findTreeNode( long key )
+	{
+		while ( true )
+		{
+			try
+			{
+				TreeNode treeNode = getTreeRoot();
+				while ( treeNode != null )
+				{
+					int coverage = treeNode.getCoverage( key );
+					if ( coverage < 0 )
+					{
+						break;
+					}
+					if ( coverage > 0 )
+					{
+						treeNode = treeNode.getRightSibbling();
+						continue;
+					}
+					KeyEntry entry = treeNode.getFirstEntry();
+					TreeNode subTree = entry != null ? 
+						entry.getBeforeSubTree() : null;
+					while ( entry != null && entry.getKey() < key )
+					{
+						subTree = entry.getAfterSubTree();
+						entry = entry.getNextKey();
+					}
+					if ( subTree == null || 
+						( entry != null && entry.getKey() == key ) )
+					{
+						return treeNode;
+					}
+					treeNode = subTree;
+				}
+			}
+			catch ( NotFoundException e )
+			{ // merged away, start over
+			}
+			catch ( IllegalStateException e )
+			{ // how the kernel reports a relationship deleted while read
+			}
+		}
 	}
 	
 	void makeRoot( TreeNode newRoot )
 	{
-		Relationship rel = treeRoot.getUnderlyingNode().getSingleRelationship( 
+		if ( concurrent )
+		{
+			lock( treeHolder );
+		}
+		if ( !counting )
+		{
+			// a sub tree counted earlier doesn't make the tree counted
+			Node rootNode = newRoot.getUnderlyingNode();
+			if ( rootNode.hasProperty( TreeNode.SUBTREE_COUNT ) )
+			{
+				rootNode.removeProperty( TreeNode.SUBTREE_COUNT );
+			}
+		}
+		Relationship rel = getTreeRoot().getUnderlyingNode().getSingleRelationship( 
 			RelTypes.TREE_ROOT, Direction.INCOMING );
 		Node startNode = rel.getStartNode();
 		rel.delete();
@@ -106,24 +461,104 @@ abstract public class AbstractBTree
 	 */
 	public void delete()
 	{
-		Relationship rel = treeRoot.getUnderlyingNode().getSingleRelationship( 
+		TreeNode root = getTreeRoot();
+		Relationship rel = root.getUnderlyingNode().getSingleRelationship( 
 			RelTypes.TREE_ROOT, Direction.INCOMING );
-		treeRoot.delete();
+		root.delete();
 		rel.delete();
 	}
 	
 	/**
-	 * Deletes this b-tree using a commit interval.
+	 * Deletes this b-tree using a commit interval, see 
+	 * {@link #delete(int, Listener)}.
 	 * 
 	 * @param commitInterval number of entries to remove before a new 
 	 * transaction is started
 	 */
 	public void delete( int commitInterval )
 	{
-		Relationship rel = treeRoot.getUnderlyingNode().getSingleRelationship( 
-			RelTypes.TREE_ROOT, Direction.INCOMING );
-		treeRoot.delete( commitInterval, 0);
-		rel.delete();
+		delete( commitInterval, new NullListener() );
+	}
+	
+	/**
+	 * Deletes this b-tree in transactions of about {@code commitInterval} 
+	 * entries each. The tree nodes are deleted in post-order, children 
+	 * before their parent, keeping the path from the root to the tree node 
+	 * being deleted on a stack so memory use only grows with the depth of 
+	 * the tree. The tree root relationship is deleted last, a delete that 
+	 * was interrupted can be completed by calling this again. No enclosing 
+	 * transaction is needed.
+	 * 
+	 * @param commitInterval number of entries to remove before a new 
+	 * transaction is started
+	 * @param monitor notified with the number of removed entries.
+	 */
+	public void delete( int commitInterval, Listener monitor )
+	{
+		if ( commitInterval <= 0 )
+		{
+			throw new IllegalArgumentException( "Illegal commit interval " + 
+				commitInterval );
+		}
+		List<Long> path = new ArrayList<Long>();
+		Transaction tx = graphDb.beginTx();
+		try
+		{
+			TreeNode root = getTreeRoot();
+			path.add( root.getUnderlyingNode().getId() );
+			// trees from before sub tree counts give no total
+			monitor.begin( (int) Math.min( Integer.MAX_VALUE, 
+				root.getSubTreeCount() ) );
+			tx.success();
+		}
+		finally
+		{
+			tx.finish();
+		}
+		try
+		{
+			while ( deleteTreeNodes( path, commitInterval, monitor ) )
+			{
+				// next batch
+			}
+		}
+		finally
+		{
+			monitor.done();
+		}
+	}
+	
+	// deletes tree nodes in post-order from the top of path in one 
+	// transaction, returns true if there are more left
+	boolean deleteTreeNodes( List<Long> path, int commitInterval, 
+		Listener monitor )
+	{
+		Transaction tx = graphDb.beginTx();
+		try
+		{
+			int count = 0;
+			while ( !path.isEmpty() && count < commitInterval )
+			{
+				TreeNode treeNode = new TreeNode( this, graphDb.getNodeById( 
+					path.get( path.size() - 1 ) ) );
+				TreeNode subTree = treeNode.getFirstSubTree();
+				if ( subTree != null )
+				{
+					path.add( subTree.getUnderlyingNode().getId() );
+					continue;
+				}
+				int entries = treeNode.deleteWithoutSubTrees();
+				path.remove( path.size() - 1 );
+				monitor.worked( entries );
+				count += Math.max( 1, entries );
+			}
+			tx.success();
+			return !path.isEmpty();
+		}
+		finally
+		{
+			tx.finish();
+		}
 	}
 	
 	/**
@@ -132,9 +567,10 @@ abstract public class AbstractBTree
 	 */
 	public void validateTree()
 	{
+		TreeNode root = getTreeRoot();
 		long currentValue = Long.MIN_VALUE;
 		KeyEntry entry = null;
-		KeyEntry keyEntry = treeRoot.getFirstEntry();
+		KeyEntry keyEntry = root.getFirstEntry();
 		boolean hasSubTree = false;
 		int entryCount = 0;
 		while ( keyEntry != null )
@@ -172,6 +608,35 @@ abstract public class AbstractBTree
 			}
 			validateAllGreaterThan( subTree, currentValue );
 		}
+		if ( root.getUnderlyingNode().hasProperty( TreeNode.SUBTREE_COUNT ) )
+		{
+			validateSubTreeCount( root );
+		}
+	}
+	
+	// returns the number of entries in the sub tree
+	private long validateSubTreeCount( TreeNode treeNode )
+	{
+		long count = 0;
+		KeyEntry entry = treeNode.getFirstEntry();
+		if ( entry != null && entry.getBeforeSubTree() != null )
+		{
+			count += validateSubTreeCount( entry.getBeforeSubTree() );
+		}
+		while ( entry != null )
+		{
+			count++;
+			if ( entry.getAfterSubTree() != null )
+			{
+				count += validateSubTreeCount( entry.getAfterSubTree() );
+			}
+			entry = entry.getNextKey();
+		}
+		if ( count != treeNode.getSubTreeCount() )
+		{
+			throw new RuntimeException( "Sub tree count inconsistency" );
+		}
+		return count;
 	}
 	
 	private void validateAllLessThan( TreeNode treeNode, long value )
@@ -284,7 +749,29 @@ abstract public class AbstractBTree
 	 */
 	public KeyEntry getAsKeyEntry( long key )
 	{
-		return treeRoot.getEntry( key );
+		if ( concurrent )
+		{
+			while ( true )
+			{
+				try
+				{
+					TreeNode treeNode = findTreeNode( key );
+					KeyEntry entry = treeNode.getEntryInNode( key );
+					if ( entry != null || treeNode.getCoverage( key ) == 0 )
+					{
+						return entry;
+					}
+					// moved to another tree node meanwhile
+				}
+				catch ( NotFoundException e )
+				{ // merged away, start over
+				}
+				catch ( IllegalStateException e )
+				{ // how the kernel reports a relationship deleted while read
+				}
+			}
+		}
+		return getTreeRoot().getEntry( key );
 	}
 	
 	/**
@@ -296,7 +783,280 @@ abstract public class AbstractBTree
 	 */
 	public Object removeEntry( long key )
 	{
-		return treeRoot.removeEntry( key );
+		startWrite();
+		if ( !concurrent )
+		{
+			return getTreeRoot().removeEntry( key );
+		}
+		List<Node> latches = new ArrayList<Node>();
+		try
+		{
+			return latchTreeNodesFor( key, false, latches ).removeEntry( key );
+		}
+		finally
+		{
+			releaseLatches( latches );
+		}
+	}
+	
+	// decides if the write about to start keeps the sub tree counts, only
+	// a counted tree not in concurrent mode does, a counted tree written in
+	// concurrent mode has the count of its root removed
+	void startWrite()
+	{
+		if ( !concurrent )
+		{
+			counting = isCounted();
+			return;
+		}
+		counting = false;
+		Node rootNode = getTreeRoot().getUnderlyingNode();
+		if ( rootNode.hasProperty( TreeNode.SUBTREE_COUNT ) )
+		{
+			lock( rootNode );
+			if ( rootNode.hasProperty( TreeNode.SUBTREE_COUNT ) )
+			{
+				rootNode.removeProperty( TreeNode.SUBTREE_COUNT );
+			}
+		}
+	}
+	
+	boolean isCounting()
+	{
+		return counting;
+	}
+	
+	/**
+	 * Returns {@code true} if this b-tree keeps sub tree counts, which makes
+	 * {@link #size()}, {@link #rank(long)} and {@link #select(long)} read 
+	 * one tree node per level. A tree created before the sub tree counts 
+	 * were added has none until {@link #countSubTrees(int)} has been run on
+	 * it, an empty tree keeps them from the start. A tree written in 
+	 * concurrent mode has none.
+	 * 
+	 * @return {@code true} if this b-tree keeps sub tree counts.
+	 */
+	public boolean isCounted()
+	{
+		TreeNode root = getTreeRoot();
+		return root.getUnderlyingNode().hasProperty( TreeNode.SUBTREE_COUNT ) 
+			|| root.getFirstEntry() == null;
+	}
+	
+	/**
+	 * Counts the entries of every sub tree of this b-tree, so that a tree 
+	 * created before the sub tree counts were added keeps them from now on,
+	 * until it is written in concurrent mode. The tree nodes are counted in post-order, children before their 
+	 * parent, in transactions of {@code commitInterval} tree nodes each, 
+	 * and the root is counted last. No enclosing transaction is needed. The
+	 * tree must not be modified while counting, an interrupted count is 
+	 * started over by calling this again.
+	 * 
+	 * @param commitInterval number of tree nodes to count before a new 
+	 * transaction is started
+	 * @return the number of entries in this b-tree
+	 */
+	public long countSubTrees( int commitInterval )
+	{
+		if ( commitInterval <= 0 )
+		{
+			throw new IllegalArgumentException( "Illegal commit interval " + 
+				commitInterval );
+		}
+		// {tree node id, index of the next sub tree to count}
+		List<long[]> path = new ArrayList<long[]>();
+		Transaction tx = graphDb.beginTx();
+		try
+		{
+			path.add( new long[] { 
+				getTreeRoot().getUnderlyingNode().getId(), 0 } );
+			tx.success();
+		}
+		finally
+		{
+			tx.finish();
+		}
+		while ( countTreeNodes( path, commitInterval ) )
+		{
+			// next batch
+		}
+		tx = graphDb.beginTx();
+		try
+		{
+			long size = getTreeRoot().getSubTreeCount();
+			tx.success();
+			return size;
+		}
+		finally
+		{
+			tx.finish();
+		}
+	}
+	
+	// counts tree nodes in post-order from the top of path in one 
+	// transaction, returns true if there are more left
+	private boolean countTreeNodes( List<long[]> path, int commitInterval )
+	{
+		Transaction tx = graphDb.beginTx();
+		try
+		{
+			counting = true;
+			int count = 0;
+			while ( !path.isEmpty() && count < commitInterval )
+			{
+				long[] top = path.get( path.size() - 1 );
+				TreeNode treeNode = new TreeNode( this, 
+					graphDb.getNodeById( top[0] ) );
+				TreeNode subTree = treeNode.getSubTree( (int) top[1] );
+				if ( subTree != null )
+				{
+					top[1]++;
+					path.add( new long[] { 
+						subTree.getUnderlyingNode().getId(), 0 } );
+					continue;
+				}
+				treeNode.recount();
+				path.remove( path.size() - 1 );
+				count++;
+			}
+			tx.success();
+			return !path.isEmpty();
+		}
+		finally
+		{
+			tx.finish();
+		}
+	}
+	
+	/**
+	 * Returns the number of entries in this b-tree, read from the root. A 
+	 * tree without sub tree counts, see {@link #isCounted()}, has its 
+	 * entries counted instead.
+	 * 
+	 * @return the number of entries in this b-tree
+	 */
+	public long size()
+	{
+		if ( !isCounted() )
+		{
+			long size = 0;
+			for ( Iterator<KeyEntry> itr = entries().iterator(); 
+				itr.hasNext(); itr.next() )
+			{
+				size++;
+			}
+			return size;
+		}
+		return getTreeRoot().getSubTreeCount();
+	}
+	
+	/**
+	 * Returns the number of entries with a key less than {@code key}, which
+	 * is the index of the entry for {@code key} if it exist. Reads one tree
+	 * node per level, a tree without sub tree counts has the entries before
+	 * {@code key} counted instead.
+	 * 
+	 * @param key the key
+	 * @return the number of entries with a lower key
+	 */
+	public long rank( long key )
+	{
+		if ( !isCounted() )
+		{
+			long rank = 0;
+			for ( Iterator<KeyEntry> itr = entries( Long.MIN_VALUE, key ).
+				iterator(); itr.hasNext(); itr.next() )
+			{
+				rank++;
+			}
+			return rank;
+		}
+		long rank = 0;
+		TreeNode treeNode = getTreeRoot();
+		while ( treeNode != null )
+		{
+			KeyEntry entry = treeNode.getFirstEntry();
+			TreeNode subTree = entry != null ? entry.getBeforeSubTree() : null;
+			while ( entry != null && entry.getKey() < key )
+			{
+				rank += ( subTree != null ? subTree.getSubTreeCount() : 0 ) + 1;
+				subTree = entry.getAfterSubTree();
+				entry = entry.getNextKey();
+			}
+			if ( entry != null && entry.getKey() == key )
+			{
+				return rank + ( subTree != null ? 
+					subTree.getSubTreeCount() : 0 );
+			}
+			treeNode = subTree;
+		}
+		return rank;
+	}
+	
+	/**
+	 * Returns the entry at {@code index} in key order, the entry with 
+	 * {@code index} entries before it. Reads one tree node per level, a tree
+	 * without sub tree counts is iterated up to the entry instead.
+	 * 
+	 * @param index the index of the entry, {@code 0 <= index < size()}
+	 * @return the entry at {@code index}
+	 */
+	public KeyEntry select( long index )
+	{
+		if ( !isCounted() )
+		{
+			if ( index >= 0 )
+			{
+				long i = 0;
+				for ( KeyEntry entry : entries( Long.MIN_VALUE, 
+					Long.MAX_VALUE ) )
+				{
+					if ( i++ == index )
+					{
+						return entry;
+					}
+				}
+				KeyEntry last = getAsKeyEntry( Long.MAX_VALUE );
+				if ( last != null && i == index )
+				{
+					return last;
+				}
+			}
+			throw new IndexOutOfBoundsException( "Index " + index + 
+				", size " + size() );
+		}
+		TreeNode root = getTreeRoot();
+		if ( index < 0 || index >= root.getSubTreeCount() )
+		{
+			throw new IndexOutOfBoundsException( "Index " + index + 
+				", size " + root.getSubTreeCount() );
+		}
+		TreeNode treeNode = root;
+		while ( true )
+		{
+			KeyEntry entry = treeNode.getFirstEntry();
+			TreeNode subTree = entry.getBeforeSubTree();
+			while ( true )
+			{
+				long count = subTree != null ? subTree.getSubTreeCount() : 0;
+				if ( index < count )
+				{
+					break;
+				}
+				if ( entry == null )
+				{
+					throw new RuntimeException( "Sub tree count inconsistency" );
+				}
+				if ( index == count )
+				{
+					return entry;
+				}
+				index -= count + 1;
+				subTree = entry.getAfterSubTree();
+				entry = entry.getNextKey();
+			}
+			treeNode = subTree;
+		}
 	}
 	
 	int getOrder()
@@ -311,22 +1071,335 @@ abstract public class AbstractBTree
 	
 	/**
 	 * Returns all the entries in this b-tree. The iterable returned back is
-	 * a wrapped {@link Traverser}.
+	 * a wrapped {@link Traverser}, or in concurrent mode the entries in 
+	 * ascending key order as {@link #entries(long, long)} returns them.
 	 * 
 	 * @return an Iterable of all the entries in this b-tree
 	 */
 	public Iterable<KeyEntry> entries()
 	{
+		if ( concurrent )
+		{
+			return new Iterable<KeyEntry>()
+			{
+				public Iterator<KeyEntry> iterator()
+				{
+					return new ConcurrentEntryIterator( Long.MIN_VALUE, 
+						Long.MAX_VALUE, false );
+				}
+			};
+		}
 		EntryReturnableEvaluator entryEvaluator = 
 			new EntryReturnableEvaluator();
 		
-		Traverser trav = treeRoot.getUnderlyingNode().traverse( 
+		Traverser trav = getTreeRoot().getUnderlyingNode().traverse( 
 			Order.DEPTH_FIRST, StopEvaluator.END_OF_GRAPH, 
 			entryEvaluator, RelTypes.KEY_ENTRY, Direction.OUTGOING, 
 			RelTypes.SUB_TREE, Direction.OUTGOING );
 		return new EntryTraverser( trav, this, entryEvaluator );
 	}
 	
+	/**
+	 * Returns the entries with {@code fromInclusive <= key < toExclusive} 
+	 * in ascending key order. The entries are read lazily, the iteration 
+	 * descends once to the first entry of the range and then only reads the 
+	 * tree nodes which overlap the range. The tree must not be modified 
+	 * while iterating, unless it is in concurrent mode. Then each entry is 
+	 * looked up from the root like {@link #getAsKeyEntry(long)} does, and 
+	 * its key and value are read when it is returned. The iteration sees 
+	 * every key which is in the tree throughout it, and no key twice.
+	 * 
+	 * @param fromInclusive the lowest key of the range
+	 * @param toExclusive the key after the range
+	 * @return the entries in the range in ascending key order
+	 */
+	public Iterable<KeyEntry> entries( final long fromInclusive, 
+		final long toExclusive )
+	{
+		return new Iterable<KeyEntry>()
+		{
+			public Iterator<KeyEntry> iterator()
+			{
+				if ( concurrent )
+				{
+					return toExclusive > Long.MIN_VALUE ? 
+						new ConcurrentEntryIterator( fromInclusive, 
+							toExclusive - 1, false ) : 
+						Collections.<KeyEntry>emptyList().iterator();
+				}
+				return new EntryRangeIterator( getTreeRoot(), fromInclusive, 
+					toExclusive, false );
+			}
+		};
+	}
+	
+	/**
+	 * Like {@link #entries(long, long)} but the entries are returned in 
+	 * descending key order, starting with the highest key below 
+	 * {@code toExclusive}.
+	 * 
+	 * @param fromInclusive the lowest key of the range
+	 * @param toExclusive the key after the range
+	 * @return the entries in the range in descending key order
+	 */
+	public Iterable<KeyEntry> entriesDescending( final long fromInclusive, 
+		final long toExclusive )
+	{
+		return new Iterable<KeyEntry>()
+		{
+			public Iterator<KeyEntry> iterator()
+			{
+				if ( concurrent )
+				{
+					return toExclusive > Long.MIN_VALUE ? 
+						new ConcurrentEntryIterator( fromInclusive, 
+							toExclusive - 1, true ) : 
+						Collections.<KeyEntry>emptyList().iterator();
+				}
+				return new EntryRangeIterator( getTreeRoot(), fromInclusive, 
+					toExclusive, true );
+			}
+		};
+	}
+	
+	// lock free lookup of the entry with the lowest key at or above key, or
+	// descending the highest key at or below it, read once since a write can
+	// move it as soon as it has been found
+	KeyEntry findEntryNear( long key, boolean descending )
+	{
+		while ( true )
+		{
+			try
+			{
+				TreeNode treeNode = findTreeNode( key );
+				KeyEntry found = null;
+				KeyEntry entry = treeNode.getFirstEntry();
+				while ( entry != null && entry.getKey() < key )
+				{
+					found = entry;
+					entry = entry.getNextKey();
+				}
+				if ( !descending )
+				{
+					found = entry;
+				}
+				else if ( entry != null && entry.getKey() == key )
+				{
+					found = entry;
+				}
+				if ( found == null )
+				{
+					// beyond the keys of a leaf, the next one is the 
+					// separator on that side of it
+					found = descending ? treeNode.getLowSeparator() : 
+						treeNode.getHighSeparator();
+				}
+				KeyEntry readEntry = found != null ? found.readOnce() : null;
+				if ( treeNode.getCoverage( key ) == 0 && ( readEntry == null || 
+					( descending ? readEntry.getKey() <= key : 
+						readEntry.getKey() >= key ) ) )
+				{
+					return readEntry;
+				}
+				// split, borrowed from or merged away meanwhile
+			}
+			catch ( NotFoundException e )
+			{ // moved or merged away, start over
+			}
+			catch ( IllegalStateException e )
+			{ // how the kernel reports a relationship deleted while read
+			}
+		}
+	}
+	
+	// iterates over the entries from lowest to highest, both inclusive, for
+	// a tree in concurrent mode, looking each entry up from the root
+	private class ConcurrentEntryIterator implements Iterator<KeyEntry>
+	{
+		private final long lowest;
+		private final long highest;
+		private final boolean descending;
+		private KeyEntry nextEntry;
+		
+		ConcurrentEntryIterator( long lowest, long highest, 
+			boolean descending )
+		{
+			this.lowest = lowest;
+			this.highest = highest;
+			this.descending = descending;
+			setNextEntry( descending ? highest : lowest );
+		}
+		
+		private void setNextEntry( long key )
+		{
+			nextEntry = lowest <= highest ? findEntryNear( key, descending ) : 
+				null;
+			if ( nextEntry != null && ( nextEntry.getKey() < lowest || 
+				nextEntry.getKey() > highest ) )
+			{
+				nextEntry = null;
+			}
+		}
+		
+		public boolean hasNext()
+		{
+			return nextEntry != null;
+		}
+		
+		public KeyEntry next()
+		{
+			if ( nextEntry == null )
+			{
+				throw new NoSuchElementException();
+			}
+			KeyEntry entry = nextEntry;
+			long key = entry.getKey();
+			if ( descending ? key > lowest : key < highest )
+			{
+				setNextEntry( descending ? key - 1 : key + 1 );
+			}
+			else
+			{
+				nextEntry = null;
+			}
+			return entry;
+		}
+		
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+	}
+	
+	// in order walk keeping, for each level, the next entry to return once
+	// the sub trees in between are done, the top of the stack is the next
+	// entry to return
+	private static class EntryRangeIterator implements Iterator<KeyEntry>
+	{
+		private final long fromInclusive;
+		private final long toExclusive;
+		private final boolean descending;
+		private final LinkedList<KeyEntry> stack = new LinkedList<KeyEntry>();
+		
+		EntryRangeIterator( TreeNode root, long fromInclusive, 
+			long toExclusive, boolean descending )
+		{
+			this.fromInclusive = fromInclusive;
+			this.toExclusive = toExclusive;
+			this.descending = descending;
+			if ( descending )
+			{
+				seekDescending( root );
+			}
+			else
+			{
+				seek( root );
+			}
+		}
+		
+		private void seek( TreeNode treeNode )
+		{
+			while ( treeNode != null )
+			{
+				KeyEntry entry = treeNode.getFirstEntry();
+				KeyEntry last = null;
+				while ( entry != null && entry.getKey() < fromInclusive )
+				{
+					last = entry;
+					entry = entry.getNextKey();
+				}
+				if ( entry == null )
+				{
+					treeNode = last != null ? last.getAfterSubTree() : null;
+				}
+				else
+				{
+					stack.addFirst( entry );
+					treeNode = entry.getKey() > fromInclusive ? 
+						entry.getBeforeSubTree() : null;
+				}
+			}
+		}
+		
+		private void seekDescending( TreeNode treeNode )
+		{
+			while ( treeNode != null )
+			{
+				KeyEntry entry = treeNode.getFirstEntry();
+				KeyEntry last = null;
+				while ( entry != null && entry.getKey() < toExclusive )
+				{
+					last = entry;
+					entry = entry.getNextKey();
+				}
+				if ( last == null )
+				{
+					treeNode = entry != null ? entry.getBeforeSubTree() : null;
+				}
+				else
+				{
+					stack.addFirst( last );
+					treeNode = last.getAfterSubTree();
+				}
+			}
+		}
+		
+		public boolean hasNext()
+		{
+			if ( stack.isEmpty() )
+			{
+				return false;
+			}
+			long key = stack.getFirst().getKey();
+			return descending ? key >= fromInclusive : key < toExclusive;
+		}
+		
+		public KeyEntry next()
+		{
+			if ( !hasNext() )
+			{
+				throw new NoSuchElementException();
+			}
+			KeyEntry entry = stack.removeFirst();
+			if ( descending )
+			{
+				KeyEntry previous = entry.getPreviousKey();
+				if ( previous != null )
+				{
+					stack.addFirst( previous );
+				}
+				TreeNode subTree = entry.getBeforeSubTree();
+				while ( subTree != null )
+				{
+					KeyEntry last = subTree.getLastEntry();
+					stack.addFirst( last );
+					subTree = last.getAfterSubTree();
+				}
+			}
+			else
+			{
+				KeyEntry nextEntry = entry.getNextKey();
+				if ( nextEntry != null )
+				{
+					stack.addFirst( nextEntry );
+				}
+				TreeNode subTree = entry.getAfterSubTree();
+				while ( subTree != null )
+				{
+					KeyEntry first = subTree.getFirstEntry();
+					stack.addFirst( first );
+					subTree = first.getBeforeSubTree();
+				}
+			}
+			return entry;
+		}
+		
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+	}
+	
 	private static class EntryTraverser implements Iterable<KeyEntry>, 
 		Iterator<KeyEntry>
 	{
@@ -0,0 +1,903 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.collections.btree;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+
+/**
+ * The algorithms of a b+tree on top of neo4j where each tree node is a page:
+ * one node holding all its keys and the values of its entries or the ids of
+ * its child pages in a single property. The key type and how a page is
+ * stored are left to a {@link PageFormat}, see {@link PagedBTree} and
+ * {@link ByteArrayBTree}.
+ * <p>
+ * The pages are linked through the node ids in their properties only, not
+ * through relationships, and each leaf page knows the id of the next one.
+ * The supplied tree node keeps the order of the tree and the id of its root
+ * page, the root page stays the same for the life of the tree.
+ */
+abstract class AbstractPagedBTree<K, A>
+{
+	static final long NO_PAGE = -1;
+
+	private final GraphDatabaseService graphDb;
+	private final Node treeNode;
+	private final int order;
+	private final String orderKey;
+	private final String rootPageKey;
+	private final PageFormat<K, A> format;
+
+	// order is only used when the tree is created, the order and the root
+	// page id are kept in the orderKey and rootPageKey properties
+	AbstractPagedBTree( GraphDatabaseService graphDb, Node treeNode,
+		int order, String orderKey, String rootPageKey,
+		PageFormat<K, A> format )
+	{
+		if ( order < 4 )
+		{
+			throw new IllegalArgumentException( "Order " + order +
+				" less than 4" );
+		}
+		this.graphDb = graphDb;
+		this.treeNode = treeNode;
+		this.orderKey = orderKey;
+		this.rootPageKey = rootPageKey;
+		this.format = format;
+		if ( treeNode.hasProperty( orderKey ) )
+		{
+			this.order = (Integer) treeNode.getProperty( orderKey );
+		}
+		else
+		{
+			this.order = order;
+			treeNode.setProperty( orderKey, order );
+			Page<A> root = newPage( true, format.newKeys( 0 ), new long[0],
+				NO_PAGE );
+			treeNode.setProperty( rootPageKey, root.node.getId() );
+		}
+	}
+
+	/**
+	 * Returns the node keeping this tree.
+	 *
+	 * @return the node keeping this tree.
+	 */
+	public Node getUnderlyingNode()
+	{
+		return treeNode;
+	}
+
+	/**
+	 * Returns the maximum number of keys in a page of this tree.
+	 *
+	 * @return the order of this tree.
+	 */
+	public int getOrder()
+	{
+		return order;
+	}
+
+	GraphDatabaseService getGraphDb()
+	{
+		return graphDb;
+	}
+
+	/**
+	 * Deletes this tree, all its pages and the properties on the tree node.
+	 */
+	public void delete()
+	{
+		List<Long> pages = new ArrayList<Long>();
+		pages.add( (Long) treeNode.getProperty( rootPageKey ) );
+		while ( !pages.isEmpty() )
+		{
+			Page<A> page = readPage( graphDb.getNodeById(
+				pages.remove( pages.size() - 1 ) ) );
+			if ( !page.leaf )
+			{
+				for ( long child : page.values )
+				{
+					pages.add( child );
+				}
+			}
+			page.node.delete();
+		}
+		treeNode.removeProperty( rootPageKey );
+		treeNode.removeProperty( orderKey );
+	}
+
+	/**
+	 * Public for testing purpose. Validates this tree making sure it is
+	 * balanced and consistent.
+	 */
+	public void validateTree()
+	{
+		List<Page<A>> leaves = new ArrayList<Page<A>>();
+		validatePage( getRoot(), true, null, null, leaves );
+		for ( int i = 0; i < leaves.size(); i++ )
+		{
+			long expected = i + 1 < leaves.size() ?
+				leaves.get( i + 1 ).node.getId() : NO_PAGE;
+			if ( leaves.get( i ).next != expected )
+			{
+				throw new RuntimeException( "Leaf page link inconsistency" );
+			}
+		}
+	}
+
+	// returns the depth of the subtree
+	private int validatePage( Page<A> page, boolean root, K lowerInclusive,
+		K upperExclusive, List<Page<A>> leaves )
+	{
+		A keys = page.keys;
+		int keyCount = format.length( keys );
+		if ( !root && keyCount < order / 2 )
+		{
+			throw new RuntimeException( "To few entries" );
+		}
+		if ( keyCount > order )
+		{
+			throw new RuntimeException( "To many entries" );
+		}
+		for ( int i = 0; i < keyCount; i++ )
+		{
+			K key = format.get( keys, i );
+			if ( i > 0 && format.compare( key, format.get( keys, i - 1 ) ) <= 0 )
+			{
+				throw new RuntimeException( "Key entry ordering inconsistency" );
+			}
+			if ( ( lowerInclusive != null &&
+					format.compare( key, lowerInclusive ) < 0 ) ||
+				( upperExclusive != null &&
+					format.compare( key, upperExclusive ) >= 0 ) )
+			{
+				throw new RuntimeException( "Depth key inconsistency" );
+			}
+		}
+		if ( page.leaf )
+		{
+			if ( page.values.length != keyCount )
+			{
+				throw new RuntimeException( "Value count inconsistency" );
+			}
+			leaves.add( page );
+			return 1;
+		}
+		if ( page.values.length != keyCount + 1 )
+		{
+			throw new RuntimeException( "Child count inconsistency" );
+		}
+		int depth = -1;
+		for ( int i = 0; i < page.values.length; i++ )
+		{
+			int childDepth = validatePage( getChild( page, i ), false,
+				i > 0 ? format.get( keys, i - 1 ) : lowerInclusive,
+				i < keyCount ? format.get( keys, i ) : upperExclusive, leaves );
+			if ( depth != -1 && childDepth != depth )
+			{
+				throw new RuntimeException( "Leaf/no leaf inconsistency" );
+			}
+			depth = childDepth;
+		}
+		return depth + 1;
+	}
+
+	// returns the value of an existing entry, replaced if replace is set,
+	// or null if the entry was added
+	Long add( K key, long value, boolean replace )
+	{
+		List<Page<A>> path = new ArrayList<Page<A>>();
+		List<Integer> indexes = new ArrayList<Integer>();
+		Page<A> page = findLeaf( key, path, indexes );
+		int index = format.search( page.keys, key );
+		if ( index >= 0 )
+		{
+			long existing = page.values[index];
+			if ( replace )
+			{
+				page.values[index] = value;
+				write( page );
+			}
+			return existing;
+		}
+		index = -index - 1;
+		page.keys = insertKey( page.keys, index, key );
+		page.values = insert( page.values, index, value );
+		store( page, path, indexes );
+		return null;
+	}
+
+	// adds or replaces the entries of keys, sorted, the ones going to the
+	// same leaf page with one descent and one write of the page, returns
+	// the number of entries added
+	int putAll( A keys, long[] values )
+	{
+		int keyCount = format.length( keys );
+		if ( keyCount != values.length )
+		{
+			throw new IllegalArgumentException( keyCount + " keys but " +
+				values.length + " values" );
+		}
+		int added = 0;
+		int i = 0;
+		while ( i < keyCount )
+		{
+			List<Page<A>> path = new ArrayList<Page<A>>();
+			List<Integer> indexes = new ArrayList<Integer>();
+			Page<A> page = findLeaf( format.get( keys, i ), path, indexes );
+			K upperExclusive = upperBound( path, indexes );
+			// at most one key more than the page can hold, the split takes
+			// care of one
+			do
+			{
+				K key = format.get( keys, i );
+				if ( i > 0 && format.compare( key,
+					format.get( keys, i - 1 ) ) < 0 )
+				{
+					throw new IllegalArgumentException( "Key " + key +
+						" less than the key before it" );
+				}
+				int index = format.search( page.keys, key );
+				if ( index >= 0 )
+				{
+					page.values[index] = values[i];
+				}
+				else
+				{
+					index = -index - 1;
+					page.keys = insertKey( page.keys, index, key );
+					page.values = insert( page.values, index, values[i] );
+					added++;
+				}
+				i++;
+			}
+			while ( i < keyCount && format.length( page.keys ) <= order &&
+				( upperExclusive == null || format.compare(
+					format.get( keys, i ), upperExclusive ) < 0 ) );
+			store( page, path, indexes );
+		}
+		return added;
+	}
+
+	// the lowest key of the page after the leaf at the end of path, null
+	// for the last leaf
+	private K upperBound( List<Page<A>> path, List<Integer> indexes )
+	{
+		for ( int level = path.size() - 1; level >= 0; level-- )
+		{
+			int childIndex = indexes.get( level );
+			A keys = path.get( level ).keys;
+			if ( childIndex < format.length( keys ) )
+			{
+				return format.get( keys, childIndex );
+			}
+		}
+		return null;
+	}
+
+	// the value of an entry or null
+	Long find( K key )
+	{
+		Page<A> leaf = findLeaf( key, null, null );
+		int index = format.search( leaf.keys, key );
+		return index >= 0 ? leaf.values[index] : null;
+	}
+
+	// the value of the closest entry with a key lower or equal to key, or
+	// null
+	Long findClosestLower( K key )
+	{
+		List<Page<A>> path = new ArrayList<Page<A>>();
+		List<Integer> indexes = new ArrayList<Integer>();
+		Page<A> leaf = findLeaf( key, path, indexes );
+		int index = format.search( leaf.keys, key );
+		if ( index >= 0 )
+		{
+			return leaf.values[index];
+		}
+		index = -index - 1;
+		if ( index > 0 )
+		{
+			return leaf.values[index - 1];
+		}
+		// the last entry of the closest subtree to the left
+		for ( int level = path.size() - 1; level >= 0; level-- )
+		{
+			int childIndex = indexes.get( level );
+			if ( childIndex > 0 )
+			{
+				Page<A> page = getChild( path.get( level ), childIndex - 1 );
+				while ( !page.leaf )
+				{
+					page = getChild( page, page.values.length - 1 );
+				}
+				return page.values[page.values.length - 1];
+			}
+		}
+		return null;
+	}
+
+	// the value of the closest entry with a key higher or equal to key, or
+	// null
+	Long findClosestHigher( K key )
+	{
+		Page<A> leaf = findLeaf( key, null, null );
+		int index = format.search( leaf.keys, key );
+		if ( index < 0 )
+		{
+			index = -index - 1;
+		}
+		if ( index < format.length( leaf.keys ) )
+		{
+			return leaf.values[index];
+		}
+		Page<A> next = getNext( leaf );
+		return next != null ? next.values[0] : null;
+	}
+
+	// removes an entry and returns its value, null if there is none
+	Long remove( K key )
+	{
+		List<Page<A>> path = new ArrayList<Page<A>>();
+		List<Integer> indexes = new ArrayList<Integer>();
+		Page<A> page = findLeaf( key, path, indexes );
+		int index = format.search( page.keys, key );
+		if ( index < 0 )
+		{
+			return null;
+		}
+		long value = page.values[index];
+		page.keys = removeKey( page.keys, index );
+		page.values = remove( page.values, index );
+		int minKeys = order / 2;
+		while ( !path.isEmpty() && format.length( page.keys ) < minKeys )
+		{
+			Page<A> parent = path.remove( path.size() - 1 );
+			int childIndex = indexes.remove( indexes.size() - 1 );
+			Page<A> left = childIndex > 0 ?
+				getChild( parent, childIndex - 1 ) : null;
+			Page<A> right = childIndex < format.length( parent.keys ) ?
+				getChild( parent, childIndex + 1 ) : null;
+			if ( left != null && format.length( left.keys ) > minKeys )
+			{
+				borrowFromLeft( page, left, parent, childIndex );
+				write( parent );
+				return value;
+			}
+			if ( right != null && format.length( right.keys ) > minKeys )
+			{
+				borrowFromRight( page, right, parent, childIndex );
+				write( parent );
+				return value;
+			}
+			if ( left != null )
+			{
+				merge( left, page, parent, childIndex - 1 );
+			}
+			else
+			{
+				merge( page, right, parent, childIndex );
+			}
+			page = parent;
+		}
+		if ( path.isEmpty() && !page.leaf && format.length( page.keys ) == 0 )
+		{
+			// the root takes over the entries of its single child left
+			Page<A> child = getChild( page, 0 );
+			page.leaf = child.leaf;
+			page.keys = child.keys;
+			page.values = child.values;
+			page.next = NO_PAGE;
+			child.node.delete();
+		}
+		write( page );
+		return value;
+	}
+
+	// the entries with fromInclusive <= key < toExclusive, either bound
+	// null for none, read lazily in ascending or descending key order
+	Iterable<Map.Entry<K,Long>> entries( final K fromInclusive,
+		final K toExclusive, final boolean descending )
+	{
+		return new Iterable<Map.Entry<K,Long>>()
+		{
+			public Iterator<Map.Entry<K,Long>> iterator()
+			{
+				return descending ?
+					new DescendingEntryIterator( fromInclusive, toExclusive ) :
+					new EntryIterator( fromInclusive, toExclusive );
+			}
+		};
+	}
+
+	// writes a changed leaf page with at most one key too many, splitting it
+	// and the pages above it as needed
+	private void store( Page<A> page, List<Page<A>> path,
+		List<Integer> indexes )
+	{
+		while ( format.length( page.keys ) > order )
+		{
+			A keys = page.keys;
+			int keyCount = format.length( keys );
+			long[] values = page.values;
+			int middle = keyCount / 2;
+			K separator = format.get( keys, middle );
+			Page<A> right;
+			if ( page.leaf )
+			{
+				right = newPage( true, copyKeys( keys, middle, keyCount ),
+					Arrays.copyOfRange( values, middle, values.length ),
+					page.next );
+				page.next = right.node.getId();
+				page.keys = copyKeys( keys, 0, middle );
+				page.values = Arrays.copyOf( values, middle );
+			}
+			else
+			{
+				// the middle key moves up
+				right = newPage( false, copyKeys( keys, middle + 1,
+					keyCount ), Arrays.copyOfRange( values, middle + 1,
+						values.length ), NO_PAGE );
+				page.keys = copyKeys( keys, 0, middle );
+				page.values = Arrays.copyOf( values, middle + 1 );
+			}
+			if ( path.isEmpty() )
+			{
+				// the entries of the root move down to a new page
+				Page<A> left = newPage( page.leaf, page.keys, page.values,
+					page.next );
+				page.leaf = false;
+				page.keys = insertKey( format.newKeys( 0 ), 0, separator );
+				page.values = new long[] { left.node.getId(),
+					right.node.getId() };
+				page.next = NO_PAGE;
+				break;
+			}
+			write( page );
+			Page<A> parent = path.remove( path.size() - 1 );
+			int childIndex = indexes.remove( indexes.size() - 1 );
+			parent.keys = insertKey( parent.keys, childIndex, separator );
+			parent.values = insert( parent.values, childIndex + 1,
+				right.node.getId() );
+			page = parent;
+		}
+		write( page );
+	}
+
+	private void borrowFromLeft( Page<A> page, Page<A> left, Page<A> parent,
+		int childIndex )
+	{
+		int last = format.length( left.keys ) - 1;
+		if ( page.leaf )
+		{
+			page.keys = insertKey( page.keys, 0, format.get( left.keys, last ) );
+			page.values = insert( page.values, 0, left.values[last] );
+			left.values = remove( left.values, last );
+		}
+		else
+		{
+			page.keys = insertKey( page.keys, 0,
+				format.get( parent.keys, childIndex - 1 ) );
+			page.values = insert( page.values, 0, left.values[last + 1] );
+			left.values = remove( left.values, last + 1 );
+		}
+		format.set( parent.keys, childIndex - 1, format.get( left.keys, last ) );
+		left.keys = removeKey( left.keys, last );
+		write( page );
+		write( left );
+	}
+
+	private void borrowFromRight( Page<A> page, Page<A> right,
+		Page<A> parent, int childIndex )
+	{
+		if ( page.leaf )
+		{
+			page.keys = insertKey( page.keys, format.length( page.keys ),
+				format.get( right.keys, 0 ) );
+			page.values = insert( page.values, page.values.length,
+				right.values[0] );
+			right.keys = removeKey( right.keys, 0 );
+			right.values = remove( right.values, 0 );
+			format.set( parent.keys, childIndex, format.get( right.keys, 0 ) );
+		}
+		else
+		{
+			page.keys = insertKey( page.keys, format.length( page.keys ),
+				format.get( parent.keys, childIndex ) );
+			page.values = insert( page.values, page.values.length,
+				right.values[0] );
+			format.set( parent.keys, childIndex, format.get( right.keys, 0 ) );
+			right.keys = removeKey( right.keys, 0 );
+			right.values = remove( right.values, 0 );
+		}
+		write( page );
+		write( right );
+	}
+
+	// merges right into left, separated by the parent key at separatorIndex
+	private void merge( Page<A> left, Page<A> right, Page<A> parent,
+		int separatorIndex )
+	{
+		if ( left.leaf )
+		{
+			left.keys = concatKeys( left.keys, right.keys );
+			left.next = right.next;
+		}
+		else
+		{
+			left.keys = concatKeys( insertKey( left.keys,
+				format.length( left.keys ),
+				format.get( parent.keys, separatorIndex ) ), right.keys );
+		}
+		left.values = concat( left.values, right.values );
+		write( left );
+		right.node.delete();
+		parent.keys = removeKey( parent.keys, separatorIndex );
+		parent.values = remove( parent.values, separatorIndex + 1 );
+	}
+
+	// finds the leaf page for a key, recording the pages and child indexes
+	// on the way down if path and indexes are given
+	private Page<A> findLeaf( K key, List<Page<A>> path,
+		List<Integer> indexes )
+	{
+		Page<A> page = getRoot();
+		while ( !page.leaf )
+		{
+			int index = format.search( page.keys, key );
+			index = index >= 0 ? index + 1 : -index - 1;
+			if ( path != null )
+			{
+				path.add( page );
+				indexes.add( index );
+			}
+			page = getChild( page, index );
+		}
+		return page;
+	}
+
+	Node getRootNode()
+	{
+		return graphDb.getNodeById( (Long) treeNode.getProperty(
+			rootPageKey ) );
+	}
+
+	private Page<A> getRoot()
+	{
+		return readPage( getRootNode() );
+	}
+
+	private Page<A> readPage( Node node )
+	{
+		Page<A> page = new Page<A>( node );
+		format.read( page );
+		return page;
+	}
+
+	private Page<A> getChild( Page<A> page, int index )
+	{
+		return readPage( graphDb.getNodeById( page.values[index] ) );
+	}
+
+	private Page<A> getNext( Page<A> page )
+	{
+		return page.next != NO_PAGE ?
+			readPage( graphDb.getNodeById( page.next ) ) : null;
+	}
+
+	private Page<A> newPage( boolean leaf, A keys, long[] values, long next )
+	{
+		Page<A> page = new Page<A>( graphDb.createNode() );
+		page.leaf = leaf;
+		page.keys = keys;
+		page.values = values;
+		page.next = next;
+		write( page );
+		return page;
+	}
+
+	private void write( Page<A> page )
+	{
+		page.version++;
+		format.write( page );
+	}
+
+	private A insertKey( A keys, int index, K key )
+	{
+		int length = format.length( keys );
+		A result = format.newKeys( length + 1 );
+		System.arraycopy( keys, 0, result, 0, index );
+		format.set( result, index, key );
+		System.arraycopy( keys, index, result, index + 1, length - index );
+		return result;
+	}
+
+	private A removeKey( A keys, int index )
+	{
+		int length = format.length( keys );
+		A result = format.newKeys( length - 1 );
+		System.arraycopy( keys, 0, result, 0, index );
+		System.arraycopy( keys, index + 1, result, index, length - index - 1 );
+		return result;
+	}
+
+	private A copyKeys( A keys, int from, int to )
+	{
+		A result = format.newKeys( to - from );
+		System.arraycopy( keys, from, result, 0, to - from );
+		return result;
+	}
+
+	private A concatKeys( A first, A second )
+	{
+		int firstLength = format.length( first );
+		int secondLength = format.length( second );
+		A result = format.newKeys( firstLength + secondLength );
+		System.arraycopy( first, 0, result, 0, firstLength );
+		System.arraycopy( second, 0, result, firstLength, secondLength );
+		return result;
+	}
+
+	private static long[] insert( long[] array, int index, long value )
+	{
+		long[] result = new long[array.length + 1];
+		System.arraycopy( array, 0, result, 0, index );
+		result[index] = value;
+		System.arraycopy( array, index, result, index + 1,
+			array.length - index );
+		return result;
+	}
+
+	private static long[] remove( long[] array, int index )
+	{
+		long[] result = new long[array.length - 1];
+		System.arraycopy( array, 0, result, 0, index );
+		System.arraycopy( array, index + 1, result, index,
+			array.length - index - 1 );
+		return result;
+	}
+
+	private static long[] concat( long[] first, long[] second )
+	{
+		long[] result = Arrays.copyOf( first, first.length + second.length );
+		System.arraycopy( second, 0, result, first.length, second.length );
+		return result;
+	}
+
+	/**
+	 * A page read into memory, changes are stored with
+	 * {@link AbstractPagedBTree#write(Page)}. {@code values} holds the entry
+	 * values of a leaf page and the child page ids of other pages. The
+	 * version is bumped on every write for the reason given in
+	 * {@link org.neo4j.collections.VersionedProperties}.
+	 */
+	static class Page<A>
+	{
+		final Node node;
+		long version;
+		boolean leaf;
+		long next;
+		A keys;
+		long[] values;
+
+		Page( Node node )
+		{
+			this.node = node;
+		}
+	}
+
+	/**
+	 * Iterates the leaf pages from the one where {@code fromInclusive}
+	 * belongs, following the next page ids.
+	 */
+	private class EntryIterator implements Iterator<Map.Entry<K,Long>>
+	{
+		private final K toExclusive;
+		private Page<A> page;
+		private int index;
+		private Map.Entry<K,Long> next;
+
+		EntryIterator( K fromInclusive, K toExclusive )
+		{
+			this.toExclusive = toExclusive;
+			if ( fromInclusive == null )
+			{
+				page = getRoot();
+				while ( !page.leaf )
+				{
+					page = getChild( page, 0 );
+				}
+			}
+			else
+			{
+				page = findLeaf( fromInclusive, null, null );
+				index = format.search( page.keys, fromInclusive );
+				if ( index < 0 )
+				{
+					index = -index - 1;
+				}
+			}
+			next = fetch();
+		}
+
+		private Map.Entry<K,Long> fetch()
+		{
+			while ( page != null && index >= format.length( page.keys ) )
+			{
+				page = getNext( page );
+				index = 0;
+			}
+			if ( page == null )
+			{
+				return null;
+			}
+			K key = format.get( page.keys, index );
+			if ( toExclusive != null && format.compare( key, toExclusive ) >= 0 )
+			{
+				page = null;
+				return null;
+			}
+			Map.Entry<K,Long> entry = new AbstractMap.SimpleImmutableEntry<K,Long>(
+				key, page.values[index] );
+			index++;
+			return entry;
+		}
+
+		public boolean hasNext()
+		{
+			return next != null;
+		}
+
+		public Map.Entry<K,Long> next()
+		{
+			if ( next == null )
+			{
+				throw new NoSuchElementException();
+			}
+			Map.Entry<K,Long> result = next;
+			next = fetch();
+			return result;
+		}
+
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Iterates the leaf pages backwards from the one where the entry below
+	 * {@code toExclusive} belongs. The leaf pages only link forwards, so the
+	 * pages and child indexes on the path down are kept and the leaf page
+	 * before is found by going up to the closest page with a child to the
+	 * left and down its right most children.
+	 */
+	private class DescendingEntryIterator
+		implements Iterator<Map.Entry<K,Long>>
+	{
+		private final K fromInclusive;
+		private final List<Page<A>> path = new ArrayList<Page<A>>();
+		private final List<Integer> indexes = new ArrayList<Integer>();
+		private Page<A> page;
+		private int index;
+		private Map.Entry<K,Long> next;
+
+		DescendingEntryIterator( K fromInclusive, K toExclusive )
+		{
+			this.fromInclusive = fromInclusive;
+			if ( toExclusive == null )
+			{
+				descendToLast( getRoot() );
+			}
+			else
+			{
+				page = findLeaf( toExclusive, path, indexes );
+				index = format.search( page.keys, toExclusive );
+				index = ( index >= 0 ? index : -index - 1 ) - 1;
+			}
+			next = fetch();
+		}
+
+		private void descendToLast( Page<A> from )
+		{
+			page = from;
+			while ( !page.leaf )
+			{
+				int childIndex = page.values.length - 1;
+				path.add( page );
+				indexes.add( childIndex );
+				page = getChild( page, childIndex );
+			}
+			index = format.length( page.keys ) - 1;
+		}
+
+		private void moveToPreviousLeaf()
+		{
+			while ( !path.isEmpty() )
+			{
+				int level = path.size() - 1;
+				int childIndex = indexes.get( level );
+				if ( childIndex > 0 )
+				{
+					indexes.set( level, childIndex - 1 );
+					descendToLast( getChild( path.get( level ),
+						childIndex - 1 ) );
+					return;
+				}
+				path.remove( level );
+				indexes.remove( level );
+			}
+			page = null;
+		}
+
+		private Map.Entry<K,Long> fetch()
+		{
+			while ( page != null && index < 0 )
+			{
+				moveToPreviousLeaf();
+			}
+			if ( page == null )
+			{
+				return null;
+			}
+			K key = format.get( page.keys, index );
+			if ( fromInclusive != null &&
+				format.compare( key, fromInclusive ) < 0 )
+			{
+				page = null;
+				return null;
+			}
+			Map.Entry<K,Long> entry = new AbstractMap.SimpleImmutableEntry<K,Long>(
+				key, page.values[index] );
+			index--;
+			return entry;
+		}
+
+		public boolean hasNext()
+		{
+			return next != null;
+		}
+
+		public Map.Entry<K,Long> next()
+		{
+			if ( next == null )
+			{
+				throw new NoSuchElementException();
+			}
+			Map.Entry<K,Long> result = next;
+			next = fetch();
+			return result;
+		}
+
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+	}
+}
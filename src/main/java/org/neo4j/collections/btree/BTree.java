@@ -19,14 +19,19 @@
  */
 package org.neo4j.collections.btree;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.ReturnableEvaluator;
 import org.neo4j.graphdb.StopEvaluator;
+import org.neo4j.graphdb.Transaction;
 import org.neo4j.graphdb.TraversalPosition;
 import org.neo4j.graphdb.Traverser;
 import org.neo4j.graphdb.Traverser.Order;
@@ -35,11 +40,10 @@ import org.neo4j.graphdb.Traverser.Order;
  * A b-tree implementation on top of neo4j (using nodes/relationships 
  * and properties).
  * <p>
- * This implementation is not thread safe (yet).
+ * The implementation isn't thread safe unless created in concurrent mode, 
+ * see {@link AbstractBTree}.
  * 
  * This class isn't ready for general usage yet and use of it is discouraged.
- * 
- * The implementation isn't thread safe.
  */
 public class BTree extends AbstractBTree
 {
@@ -59,6 +63,21 @@ public class BTree extends AbstractBTree
 //		this.treeRoot = new TreeNode( this, rootNode );
 	}
 	
+	/**
+	 * Creates a b-tree using {@code rootNode} as root, optionally in
+	 * concurrent mode where readers take no locks and writers lock the tree
+	 * nodes they change, see {@link AbstractBTree}.
+	 * 
+	 * @param graphDb the embedded graph database instance
+	 * @param rootNode root node with incoming {@code TREE_ROOT} relationship.
+	 * @param concurrent {@code true} to lock for concurrent writers.
+	 */
+	public BTree( GraphDatabaseService graphDb, Node rootNode, 
+		boolean concurrent )
+	{
+		super( graphDb, rootNode, concurrent );
+	}
+	
 	
 	/**
 	 * Adds a entry to this b-tree. If key already exist a runtime exception
@@ -70,7 +89,7 @@ public class BTree extends AbstractBTree
 	 */
 	public KeyEntry addEntry( long key, Object value )
 	{
-		return getTreeRoot().addEntry( key, value );
+		return addEntry( key, value, false );
 	}
 	
 	/**
@@ -84,7 +103,32 @@ public class BTree extends AbstractBTree
 	 */
 	public KeyEntry addIfAbsent( long key, Object value )
 	{
-		return getTreeRoot().addEntry( key, value, true );
+		return addEntry( key, value, true );
+	}
+	
+	private KeyEntry addEntry( long key, Object value, boolean ignoreIfExist )
+	{
+		startWrite();
+		if ( !isConcurrent() )
+		{
+			KeyEntry entry = getTreeRoot().addEntry( key, value, 
+				ignoreIfExist );
+			if ( entry != null )
+			{
+				entry.getTreeNode().recountToRoot();
+			}
+			return entry;
+		}
+		List<Node> latches = new ArrayList<Node>();
+		try
+		{
+			return latchTreeNodesFor( key, true, latches ).addEntry( key, 
+				value, ignoreIfExist );
+		}
+		finally
+		{
+			releaseLatches( latches );
+		}
 	}
 	
 	/**
@@ -95,12 +139,34 @@ public class BTree extends AbstractBTree
 	 */
 	public Object getEntry( long key )
 	{
-		KeyEntry entry = getTreeRoot().getEntry( key );
-		if ( entry != null )
+		while ( true )
 		{
-			return entry.getValue();
+			try
+			{
+				KeyEntry entry = getAsKeyEntry( key );
+				if ( entry != null )
+				{
+					return entry.getValue();
+				}
+				return null;
+			}
+			catch ( NotFoundException e )
+			{
+				// moved by a concurrent writer after it was found
+				if ( !isConcurrent() )
+				{
+					throw e;
+				}
+			}
+			catch ( IllegalStateException e )
+			{
+				// how the kernel reports a relationship deleted while read
+				if ( !isConcurrent() )
+				{
+					throw e;
+				}
+			}
 		}
-		return null;
 	}
 	
 	/**
@@ -112,12 +178,26 @@ public class BTree extends AbstractBTree
 	 */
 	public Object getClosestLowerEntry( long key )
 	{
-		KeyEntry entry = getTreeRoot().getClosestLowerEntry( null, key );
-		if ( entry != null )
+		while ( true )
 		{
-			return entry.getValue();
+			try
+			{
+				KeyEntry entry = getTreeRoot().getClosestLowerEntry( null, key );
+				if ( entry != null )
+				{
+					return entry.getValue();
+				}
+				return null;
+			}
+			catch ( NotFoundException e )
+			{
+				// a tree node merged away by a concurrent writer
+				if ( !isConcurrent() )
+				{
+					throw e;
+				}
+			}
 		}
-		return null;
 	}
 	
 	/**
@@ -129,29 +209,90 @@ public class BTree extends AbstractBTree
 	 */
 	public Object getClosestHigherEntry( long key )
 	{
-		KeyEntry entry = getTreeRoot().getClosestHigherEntry( null, key );
-		if ( entry != null )
+		while ( true )
 		{
-			return entry.getValue();
+			try
+			{
+				KeyEntry entry = getTreeRoot().getClosestHigherEntry( null, key );
+				if ( entry != null )
+				{
+					return entry.getValue();
+				}
+				return null;
+			}
+			catch ( NotFoundException e )
+			{
+				// a tree node merged away by a concurrent writer
+				if ( !isConcurrent() )
+				{
+					throw e;
+				}
+			}
 		}
-		return null;
 	}
 	
-	/**
-	 * Removes a entry and returns the value of the entry. If entry doesn't 
-	 * exist {@code null} is returned.
-	 * 
-	 * @param key the key
-	 * @return value of removed entry
-	 */
-	public Object removeEntry( long key )
+	int getOrder()
 	{
-		return getTreeRoot().removeEntry( key );
+		return 9;
 	}
 	
-	int getOrder()
+	/**
+	 * Fills this empty b-tree from entries sorted by key, much faster than
+	 * adding them one by one. The tree nodes are filled bottom-up in key 
+	 * order, each to {@code fillFactor} of its capacity, and only the right
+	 * most tree nodes are rebalanced at the end. The work is split up in 
+	 * transactions of {@code commitInterval} entries, no enclosing 
+	 * transaction is needed. The tree is built next to the empty root and
+	 * only replaces it in the last transaction, so an interrupted load 
+	 * leaves this tree empty. Its tree nodes are deleted by the next call.
+	 * <p>
+	 * A key not greater than the previous one throws an
+	 * {@link IllegalArgumentException}, the tree then holds the entries
+	 * before it.
+	 * 
+	 * @param entries entries in ascending key order, the values have to be
+	 * valid neo4j properties
+	 * @param fillFactor how full each tree node gets, {@code 0 < fillFactor
+	 * <= 1}, rounded to what keeps the right most tree nodes balanced
+	 * @param commitInterval number of entries per transaction
+	 * @return the number of entries added
+	 */
+	public long bulkLoad( Iterator<? extends Map.Entry<Long,?>> entries, 
+		float fillFactor, int commitInterval )
 	{
-		return 9;
+		if ( !( fillFactor > 0 && fillFactor <= 1 ) )
+		{
+			throw new IllegalArgumentException( "Illegal fill factor " + 
+				fillFactor );
+		}
+		if ( commitInterval <= 0 )
+		{
+			throw new IllegalArgumentException( "Illegal commit interval " + 
+				commitInterval );
+		}
+		int maxEntries = getOrder() - 1;
+		// a full left sibling must be able to lend to the right most node
+		int minFill = 2 * ( getOrder() / 2 - 1 );
+		int fill = Math.max( minFill, 
+			Math.min( maxEntries, Math.round( fillFactor * maxEntries ) ) );
+		BulkLoader loader = new BulkLoader( this, fill, commitInterval );
+		loader.deleteInterrupted();
+		boolean empty;
+		Transaction tx = getGraphDb().beginTx();
+		try
+		{
+			empty = getTreeRoot().getFirstEntry() == null;
+			tx.success();
+		}
+		finally
+		{
+			tx.finish();
+		}
+		if ( !empty )
+		{
+			throw new IllegalStateException( "Tree not empty" );
+		}
+		return loader.load( entries );
 	}
 	
 	
@@ -0,0 +1,492 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.collections.btree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+
+/**
+ * Checks the integrity of a b-tree and gathers statistics about its shape.
+ * <p>
+ * Where {@link AbstractBTree#validateTree()} throws on the first problem
+ * the checker goes through the whole tree and reports every violation it
+ * finds. The upper levels are read in the calling thread until there are
+ * enough sub trees to keep the threads busy, each sub tree is then checked
+ * by a thread of its own in a transaction of its own. Only committed state
+ * is checked and no locks are taken, a tree written to while it is checked
+ * may show violations that are not there once the writers are done.
+ */
+public class BTreeChecker
+{
+	// sub trees handed out per thread, keeps threads busy on uneven trees
+	private static final int TASKS_PER_THREAD = 4;
+	
+	private final AbstractBTree bTree;
+	private final GraphDatabaseService graphDb;
+	private final int order;
+	
+	/**
+	 * Creates a checker for {@code bTree}.
+	 *
+	 * @param bTree the b-tree to check
+	 */
+	public BTreeChecker( AbstractBTree bTree )
+	{
+		this.bTree = bTree;
+		this.graphDb = bTree.getGraphDb();
+		this.order = bTree.getOrder();
+	}
+	
+	/**
+	 * Checks the b-tree using {@code threads} threads and returns the
+	 * violations found together with the shape of the tree.
+	 *
+	 * @param threads the number of threads checking sub trees
+	 * @return the result of the check
+	 */
+	public Report check( int threads )
+	{
+		if ( threads < 1 )
+		{
+			throw new IllegalArgumentException( "Threads " + threads +
+				" less than 1" );
+		}
+		ExecutorService executor = Executors.newFixedThreadPool( threads );
+		try
+		{
+			Report report = new Report( order );
+			Transaction tx = graphDb.beginTx();
+			try
+			{
+				UpperNode root = checkUpperLevels( executor, 
+					threads * TASKS_PER_THREAD, report );
+				resolve( root, report );
+				tx.success();
+			}
+			finally
+			{
+				tx.finish();
+			}
+			return report;
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+	
+	// reads the tree level by level until a level has enough tree nodes to
+	// hand out, the tree nodes of that level are checked by tasks
+	private UpperNode checkUpperLevels( ExecutorService executor,
+		int taskCount, Report report )
+	{
+		UpperNode root = new UpperNode( null );
+		List<Pending> level = new ArrayList<Pending>();
+		level.add( new Pending( bTree.getTreeRoot(), null, null, root ) );
+		int depth = 0;
+		while ( !level.isEmpty() )
+		{
+			if ( level.size() >= taskCount )
+			{
+				for ( Pending pending : level )
+				{
+					pending.parent.children.add( executor.submit(
+						new SubTreeCheck( pending, depth ) ) );
+				}
+				break;
+			}
+			List<Pending> nextLevel = new ArrayList<Pending>();
+			for ( Pending pending : level )
+			{
+				UpperNode upper = new UpperNode( pending.treeNode );
+				pending.parent.children.add( upper );
+				List<Pending> children = new ArrayList<Pending>();
+				try
+				{
+					upper.entries = checkTreeNode( pending, depth, depth == 0,
+						report, children );
+					for ( Pending child : children )
+					{
+						child.parent = upper;
+					}
+					nextLevel.addAll( children );
+				}
+				catch ( RuntimeException e )
+				{
+					report.addViolation( pending.treeNode, "Unreadable, " + e );
+					upper.counted = false;
+				}
+			}
+			level = nextLevel;
+			depth++;
+		}
+		return (UpperNode) root.children.get( 0 );
+	}
+	
+	// returns the number of entries in the sub tree, -1 if unknown
+	private long resolve( UpperNode upper, Report report )
+	{
+		long count = upper.counted ? upper.entries : -1;
+		for ( Object child : upper.children )
+		{
+			long childCount;
+			if ( child instanceof UpperNode )
+			{
+				childCount = resolve( (UpperNode) child, report );
+			}
+			else
+			{
+				Report subReport = getReport( child );
+				report.add( subReport );
+				childCount = subReport.subTreeEntries;
+			}
+			count = count >= 0 && childCount >= 0 ? count + childCount : -1;
+		}
+		if ( count >= 0 )
+		{
+			checkSubTreeCount( upper.treeNode, count, report );
+		}
+		return count;
+	}
+	
+	@SuppressWarnings( "unchecked" )
+	private Report getReport( Object future )
+	{
+		try
+		{
+			return ( (Future<Report>) future ).get();
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( e );
+		}
+		catch ( ExecutionException e )
+		{
+			throw new RuntimeException( e.getCause() );
+		}
+	}
+	
+	// returns the number of entries in the sub tree, -1 if the sub tree
+	// couldn't be counted
+	private long checkSubTree( Pending pending, int depth, Report report )
+	{
+		List<Pending> children = new ArrayList<Pending>();
+		long count;
+		try
+		{
+			count = checkTreeNode( pending, depth, false, report, children );
+		}
+		catch ( RuntimeException e )
+		{
+			report.addViolation( pending.treeNode, "Unreadable, " + e );
+			return -1;
+		}
+		for ( Pending child : children )
+		{
+			long childCount = checkSubTree( child, depth + 1, report );
+			count = count >= 0 && childCount >= 0 ? count + childCount : -1;
+		}
+		if ( count >= 0 )
+		{
+			checkSubTreeCount( pending.treeNode, count, report );
+		}
+		return count;
+	}
+	
+	private void checkSubTreeCount( TreeNode treeNode, long count,
+		Report report )
+	{
+		if ( treeNode.getUnderlyingNode().hasProperty( TreeNode.SUBTREE_COUNT )
+			&& treeNode.getSubTreeCount() != count )
+		{
+			report.addViolation( treeNode, "Sub tree count inconsistency, " +
+				treeNode.getSubTreeCount() + " stored but " + count +
+				" entries" );
+		}
+	}
+	
+	// checks the entries of one tree node against each other and the
+	// separators of its parent, adds its sub trees to children and returns
+	// the number of entries
+	private int checkTreeNode( Pending pending, int depth, boolean root,
+		Report report, List<Pending> children )
+	{
+		TreeNode treeNode = pending.treeNode;
+		Long previous = pending.lowExclusive;
+		int entryCount = 0;
+		int subTreeCount = 0;
+		KeyEntry entry = treeNode.getFirstEntry();
+		KeyEntry last = null;
+		while ( entry != null )
+		{
+			long key = entry.getKey();
+			if ( entryCount > 0 && key <= previous )
+			{
+				report.addViolation( treeNode,
+					"Key entry ordering inconsistency at key " + key );
+			}
+			else if ( ( entryCount == 0 && previous != null &&
+					key <= previous ) || ( pending.highExclusive != null &&
+					key >= pending.highExclusive ) )
+			{
+				report.addViolation( treeNode,
+					"Depth key inconsistency at key " + key );
+			}
+			TreeNode subTree = entry.getBeforeSubTree();
+			if ( subTree != null )
+			{
+				subTreeCount++;
+				children.add( new Pending( subTree, entryCount > 0 ?
+					previous : pending.lowExclusive, key, null ) );
+			}
+			previous = key;
+			entryCount++;
+			last = entry;
+			entry = entry.getNextKey();
+		}
+		if ( last != null && last.getAfterSubTree() != null )
+		{
+			subTreeCount++;
+			children.add( new Pending( last.getAfterSubTree(), previous,
+				pending.highExclusive, null ) );
+		}
+		if ( subTreeCount != 0 && subTreeCount != entryCount + 1 )
+		{
+			report.addViolation( treeNode, "Leaf/no leaf inconsistency, " +
+				subTreeCount + " sub trees for " + entryCount + " entries" );
+		}
+		if ( !root && entryCount < order / 2 - 1 )
+		{
+			report.addViolation( treeNode, "To few entries, " + entryCount );
+		}
+		if ( entryCount >= order )
+		{
+			report.addViolation( treeNode, "To many entries, " + entryCount );
+		}
+		report.addTreeNode( entryCount, subTreeCount == 0 ? depth : -1 );
+		return entryCount;
+	}
+	
+	/**
+	 * A tree node waiting to be checked with the keys of the separators
+	 * around it, {@code null} at the edges of the tree.
+	 */
+	private static class Pending
+	{
+		final TreeNode treeNode;
+		final Long lowExclusive;
+		final Long highExclusive;
+		UpperNode parent;
+		
+		Pending( TreeNode treeNode, Long lowExclusive, Long highExclusive,
+			UpperNode parent )
+		{
+			this.treeNode = treeNode;
+			this.lowExclusive = lowExclusive;
+			this.highExclusive = highExclusive;
+			this.parent = parent;
+		}
+	}
+	
+	/**
+	 * A tree node checked in the calling thread, its children are other
+	 * upper nodes or the futures of sub tree checks.
+	 */
+	private static class UpperNode
+	{
+		final TreeNode treeNode;
+		final List<Object> children = new ArrayList<Object>();
+		int entries;
+		boolean counted = true;
+		
+		UpperNode( TreeNode treeNode )
+		{
+			this.treeNode = treeNode;
+		}
+	}
+	
+	private class SubTreeCheck implements Callable<Report>
+	{
+		private final Pending pending;
+		private final int depth;
+		
+		SubTreeCheck( Pending pending, int depth )
+		{
+			this.pending = pending;
+			this.depth = depth;
+		}
+		
+		public Report call()
+		{
+			Report report = new Report( order );
+			Transaction tx = graphDb.beginTx();
+			try
+			{
+				report.subTreeEntries = checkSubTree( pending, depth, report );
+				tx.success();
+			}
+			finally
+			{
+				tx.finish();
+			}
+			return report;
+		}
+	}
+	
+	/**
+	 * The violations found by a check and the shape of the checked tree.
+	 */
+	public static class Report
+	{
+		private final List<String> violations = new ArrayList<String>();
+		private final long[] fillHistogram;
+		private long entryCount;
+		private long treeNodeCount;
+		private int minLeafDepth = Integer.MAX_VALUE;
+		private int maxLeafDepth = -1;
+		// entries of the sub tree of a task, -1 if it couldn't be counted
+		private long subTreeEntries;
+		
+		Report( int order )
+		{
+			this.fillHistogram = new long[order];
+		}
+		
+		void addViolation( TreeNode treeNode, String violation )
+		{
+			violations.add( "Tree node " + treeNode.getUnderlyingNode().getId()
+				+ ": " + violation );
+		}
+		
+		// leafDepth is -1 for tree nodes with sub trees
+		void addTreeNode( int entries, int leafDepth )
+		{
+			entryCount += entries;
+			treeNodeCount++;
+			fillHistogram[Math.min( entries, fillHistogram.length - 1 )]++;
+			if ( leafDepth >= 0 )
+			{
+				minLeafDepth = Math.min( minLeafDepth, leafDepth );
+				maxLeafDepth = Math.max( maxLeafDepth, leafDepth );
+			}
+		}
+		
+		void add( Report other )
+		{
+			violations.addAll( other.violations );
+			entryCount += other.entryCount;
+			treeNodeCount += other.treeNodeCount;
+			for ( int i = 0; i < fillHistogram.length; i++ )
+			{
+				fillHistogram[i] += other.fillHistogram[i];
+			}
+			minLeafDepth = Math.min( minLeafDepth, other.minLeafDepth );
+			maxLeafDepth = Math.max( maxLeafDepth, other.maxLeafDepth );
+		}
+		
+		/**
+		 * Returns {@code true} if no violations were found.
+		 *
+		 * @return {@code true} if the tree is consistent.
+		 */
+		public boolean isConsistent()
+		{
+			return getViolations().isEmpty();
+		}
+		
+		/**
+		 * Returns a description of every violation found, each starting with
+		 * the id of the node of the tree node it was found in.
+		 *
+		 * @return the violations found.
+		 */
+		public List<String> getViolations()
+		{
+			List<String> result = new ArrayList<String>( violations );
+			if ( minLeafDepth != maxLeafDepth )
+			{
+				result.add( "Leaf/no leaf inconsistency, leaves at depth " +
+					minLeafDepth + " to " + maxLeafDepth );
+			}
+			return Collections.unmodifiableList( result );
+		}
+		
+		/**
+		 * Returns the number of levels of the tree, 1 for a tree that is
+		 * just a root. If the leaves are at different depths the deepest
+		 * one counts.
+		 *
+		 * @return the depth of the tree.
+		 */
+		public int getDepth()
+		{
+			return maxLeafDepth + 1;
+		}
+		
+		/**
+		 * Returns the number of entries in the tree.
+		 *
+		 * @return the number of entries.
+		 */
+		public long getEntryCount()
+		{
+			return entryCount;
+		}
+		
+		/**
+		 * Returns the number of tree nodes in the tree.
+		 *
+		 * @return the number of tree nodes.
+		 */
+		public long getTreeNodeCount()
+		{
+			return treeNodeCount;
+		}
+		
+		/**
+		 * Returns the number of tree nodes by the number of entries they
+		 * have, tree nodes with to many entries are counted last.
+		 *
+		 * @return the fill histogram, indexed by number of entries.
+		 */
+		public long[] getFillHistogram()
+		{
+			return fillHistogram.clone();
+		}
+		
+		@Override
+		public String toString()
+		{
+			return "Report[entries=" + entryCount + ", treeNodes=" +
+				treeNodeCount + ", depth=" + getDepth() + ", violations=" +
+				getViolations().size() + "]";
+		}
+	}
+}
@@ -0,0 +1,314 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.collections.btree;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.neo4j.collections.btree.AbstractBTree.RelTypes;
+import org.neo4j.collections.rtree.NullListener;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+
+/**
+ * Fills an empty b-tree from entries sorted by key, see
+ * {@link BTree#bulkLoad(Iterator, float, int)}.
+ * <p>
+ * Each level of the tree has one open tree node which entries are appended
+ * to. When a tree node is filled the next entry moves up as separator to
+ * the level above and a new tree node is opened after it. The right most
+ * tree nodes are the only ones that can end up with to few entries, they
+ * borrow from their left siblings once all entries are added.
+ * <p>
+ * The tree is built detached from the b-tree, which keeps its empty root
+ * until the last transaction puts the new tree in its place. Until then the
+ * empty root holds the top tree node of the new tree, so that the tree
+ * nodes of a load that was interrupted are deleted by the next one.
+ */
+class BulkLoader
+{
+	// on the empty root while loading, the id of the top tree node loaded
+	static final String BULK_LOADING = "bulk_loading";
+
+	private final AbstractBTree bTree;
+	private final GraphDatabaseService graphDb;
+	private final int fill;
+	private final int commitInterval;
+	private final List<Level> levels = new ArrayList<Level>();
+
+	private Transaction tx;
+	private int txCount;
+
+	BulkLoader( AbstractBTree bTree, int fill, int commitInterval )
+	{
+		this.bTree = bTree;
+		this.graphDb = bTree.getGraphDb();
+		this.fill = fill;
+		this.commitInterval = commitInterval;
+	}
+
+	// deletes the tree nodes of an interrupted load, in transactions of
+	// commitInterval entries
+	void deleteInterrupted()
+	{
+		List<Long> path = new ArrayList<Long>();
+		Transaction tx = graphDb.beginTx();
+		try
+		{
+			Long topId = (Long) bTree.getTreeRoot().getUnderlyingNode().getProperty(
+				BULK_LOADING, null );
+			if ( topId != null )
+			{
+				path.add( topId );
+			}
+			tx.success();
+		}
+		finally
+		{
+			tx.finish();
+		}
+		if ( path.isEmpty() )
+		{
+			return;
+		}
+		while ( bTree.deleteTreeNodes( path, commitInterval,
+			new NullListener() ) )
+		{
+			// next batch
+		}
+		tx = graphDb.beginTx();
+		try
+		{
+			bTree.getTreeRoot().getUnderlyingNode().removeProperty(
+				BULK_LOADING );
+			tx.success();
+		}
+		finally
+		{
+			tx.finish();
+		}
+	}
+
+	// returns the number of entries added
+	long load( Iterator<? extends Map.Entry<Long,?>> entries )
+	{
+		long count = 0;
+		Long outOfOrderKey = null;
+		tx = graphDb.beginTx();
+		try
+		{
+			bTree.startWrite();
+			Node root = bTree.getTreeRoot().getUnderlyingNode();
+			Node leaf = graphDb.createNode();
+			root.setProperty( BULK_LOADING, leaf.getId() );
+			levels.add( new Level( leaf ) );
+			long lastKey = Long.MIN_VALUE;
+			while ( entries.hasNext() )
+			{
+				Map.Entry<Long,?> entry = entries.next();
+				long key = entry.getKey();
+				if ( count > 0 && key <= lastKey )
+				{
+					outOfOrderKey = key;
+					break;
+				}
+				add( 0, key, entry.getValue() );
+				lastKey = key;
+				count++;
+				if ( ++txCount >= commitInterval )
+				{
+					tx.success();
+					tx.finish();
+					tx = graphDb.beginTx();
+					txCount = 0;
+				}
+			}
+			fixRightEdge();
+			countRightEdge();
+			// the empty root is replaced
+			bTree.makeRoot( new TreeNode( bTree,
+				levels.get( levels.size() - 1 ).node ) );
+			root.delete();
+			tx.success();
+		}
+		finally
+		{
+			tx.finish();
+			tx = null;
+		}
+		if ( outOfOrderKey != null )
+		{
+			throw new IllegalArgumentException( "Key " + outOfOrderKey +
+				" not greater than the previous key, the " + count +
+				" entries before it were loaded" );
+		}
+		return count;
+	}
+
+	private void add( int depth, long key, Object value )
+	{
+		Level level = levels.get( depth );
+		if ( level.count < fill )
+		{
+			level.append( key, value );
+			return;
+		}
+		if ( depth + 1 == levels.size() )
+		{
+			Node parent = graphDb.createNode();
+			parent.createRelationshipTo( level.node, RelTypes.SUB_TREE );
+			levels.add( new Level( parent ) );
+			bTree.getTreeRoot().getUnderlyingNode().setProperty( BULK_LOADING,
+				parent.getId() );
+		}
+		// the filled tree node is closed, its parent is still open
+		levels.get( depth + 1 ).size += level.size;
+		new TreeNode( bTree, level.node ).setSubTreeCount( level.size );
+		add( depth + 1, key, value );
+		Node node = graphDb.createNode();
+		levels.get( depth + 1 ).last.createRelationshipTo( node,
+			RelTypes.SUB_TREE );
+		levels.set( depth, new Level( node ) );
+	}
+
+	// top down, the right most tree node of a level hangs off the last
+	// entry of the right most tree node of the level above and its left
+	// sibling is full
+	private void fixRightEdge()
+	{
+		int minEntries = bTree.getOrder() / 2 - 1;
+		for ( int depth = levels.size() - 2; depth >= 0; depth-- )
+		{
+			Level level = levels.get( depth );
+			if ( level.count < minEntries )
+			{
+				TreeNode parent = new TreeNode( bTree,
+					levels.get( depth + 1 ).node );
+				for ( int i = level.count; i < minEntries; i++ )
+				{
+					rotateRight( parent.getLastEntry() );
+				}
+				level.count = minEntries;
+			}
+		}
+	}
+
+	// bottom up, the open tree nodes and the left siblings they borrowed from
+	private void countRightEdge()
+	{
+		for ( int depth = 0; depth < levels.size(); depth++ )
+		{
+			if ( depth + 1 < levels.size() )
+			{
+				new TreeNode( bTree, levels.get( depth + 1 ).node ).
+					getLastEntry().getBeforeSubTree().recount();
+			}
+			new TreeNode( bTree, levels.get( depth ).node ).recount();
+		}
+	}
+
+	// moves the last entry of the left sub tree of separator up to the
+	// separator and the separator down first in the right sub tree
+	private void rotateRight( KeyEntry separator )
+	{
+		TreeNode left = separator.getBeforeSubTree();
+		TreeNode right = separator.getAfterSubTree();
+		KeyEntry moving = left.getLastEntry();
+
+		Node rightNode = right.getUnderlyingNode();
+		Node newSlot = graphDb.createNode();
+		KeyEntry first = right.getFirstEntry();
+		if ( first != null )
+		{
+			first.move( right, newSlot, first.getEndNode() );
+		}
+		moveSubTree( rightNode, newSlot );
+		KeyEntry entry = new KeyEntry( right, rightNode.createRelationshipTo(
+			newSlot, RelTypes.KEY_ENTRY ) );
+		copy( separator, entry );
+
+		Node movingEnd = moving.getEndNode();
+		moveSubTree( movingEnd, rightNode );
+		copy( moving, separator );
+		moving.getUnderlyingRelationship().delete();
+		movingEnd.delete();
+	}
+
+	private void moveSubTree( Node from, Node to )
+	{
+		Relationship subTreeRel = from.getSingleRelationship(
+			RelTypes.SUB_TREE, Direction.OUTGOING );
+		if ( subTreeRel != null )
+		{
+			Node subTree = subTreeRel.getEndNode();
+			subTreeRel.delete();
+			to.createRelationshipTo( subTree, RelTypes.SUB_TREE );
+		}
+	}
+
+	private void copy( KeyEntry from, KeyEntry to )
+	{
+		to.setKey( from.getKey() );
+		to.setValue( from.getValue() );
+		Object keyValue = from.getKeyValue();
+		if ( keyValue != null )
+		{
+			to.setKeyValue( keyValue );
+		}
+		else if ( to.getKeyValue() != null )
+		{
+			to.getUnderlyingRelationship().removeProperty(
+				KeyEntry.KEY_VALUE );
+		}
+	}
+
+	// the open tree node of a level
+	private class Level
+	{
+		final Node node;
+		Node last;
+		int count;
+		// entries of closed sub trees and of this tree node
+		long size;
+
+		Level( Node node )
+		{
+			this.node = node;
+			this.last = node;
+		}
+
+		void append( long key, Object value )
+		{
+			Node next = graphDb.createNode();
+			Relationship rel = last.createRelationshipTo( next,
+				RelTypes.KEY_ENTRY );
+			rel.setProperty( KeyEntry.KEY, key );
+			rel.setProperty( KeyEntry.VALUE, value );
+			last = next;
+			count++;
+			size++;
+		}
+	}
+}
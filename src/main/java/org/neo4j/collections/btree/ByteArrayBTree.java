@@ -0,0 +1,498 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.collections.btree;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+
+/**
+ * A b+tree implementation on top of neo4j keyed by {@code byte[]}, ordered
+ * lexicographically with the bytes compared unsigned. Strings in UTF-8,
+ * big endian numbers and composite keys of such parts keep their natural
+ * order, so they can be stored without hashing and scanned by range or by
+ * prefix.
+ * <p>
+ * The layout is the one of {@link PagedBTree}: each tree node is a page,
+ * one node holding all its keys and the values of its entries or the ids
+ * of its child pages, here in a single {@code byte[]} property. Values are
+ * {@code long}s, typically node ids. With prefix compression each key of a
+ * page is stored as the length of the prefix it shares with the key before
+ * it followed by the rest of the key, which keeps pages of long keys with
+ * common prefixes small.
+ * <p>
+ * All methods expect an enclosing transaction. The implementation isn't
+ * thread safe.
+ */
+public class ByteArrayBTree extends AbstractPagedBTree<byte[],byte[][]>
+{
+	/**
+	 * The order of a new tree unless given otherwise.
+	 */
+	public static final int DEFAULT_ORDER = 64;
+	
+	static final String ORDER = "bytes_page_order";
+	static final String PREFIX_COMPRESSION = "bytes_prefix_compression";
+	static final String ROOT_PAGE = "bytes_root_page";
+	static final String PAGE = "bytes_page";
+	
+	// the page property is {version, leaf, next page id, key count,
+	// values..., keys...}
+	private static final int HEADER_SIZE = 8 + 1 + 8 + 4;
+	
+	private final boolean prefixCompression;
+	
+	/**
+	 * Creates/loads a b+tree on {@code treeNode} with the default order and
+	 * prefix compression.
+	 *
+	 * @param graphDb the embedded graph database instance
+	 * @param treeNode the node keeping the tree.
+	 */
+	public ByteArrayBTree( GraphDatabaseService graphDb, Node treeNode )
+	{
+		this( graphDb, treeNode, DEFAULT_ORDER, true );
+	}
+	
+	/**
+	 * Creates/loads a b+tree on {@code treeNode}. The order is the maximum
+	 * number of keys in a page. The order and the prefix compression are only
+	 * used when the tree is created, an existing tree keeps the ones it was
+	 * created with.
+	 *
+	 * @param graphDb the embedded graph database instance
+	 * @param treeNode the node keeping the tree.
+	 * @param order the maximum number of keys in a page, at least 4.
+	 * @param prefixCompression {@code true} to store the keys of a page
+	 * without the prefix they share with the key before them.
+	 */
+	public ByteArrayBTree( GraphDatabaseService graphDb, Node treeNode,
+		int order, boolean prefixCompression )
+	{
+		super( graphDb, treeNode, order, ORDER, ROOT_PAGE, 
+			new BytesPageFormat( isPrefixCompressed( treeNode, 
+				prefixCompression ) ) );
+		this.prefixCompression = isPrefixCompressed( treeNode, 
+			prefixCompression );
+		if ( !treeNode.hasProperty( PREFIX_COMPRESSION ) )
+		{
+			treeNode.setProperty( PREFIX_COMPRESSION, prefixCompression );
+		}
+	}
+	
+	// the prefix compression of an existing tree, else the one given
+	private static boolean isPrefixCompressed( Node treeNode, 
+		boolean prefixCompression )
+	{
+		return (Boolean) treeNode.getProperty( PREFIX_COMPRESSION, 
+			prefixCompression );
+	}
+	
+	/**
+	 * Compares two keys lexicographically with the bytes as unsigned
+	 * values, a key is less than the keys it is a prefix of.
+	 *
+	 * @param key1 the first key
+	 * @param key2 the second key
+	 * @return negative, zero or positive as {@code key1} is less than, equal
+	 * to or greater than {@code key2}.
+	 */
+	public static int compare( byte[] key1, byte[] key2 )
+	{
+		int length = Math.min( key1.length, key2.length );
+		for ( int i = 0; i < length; i++ )
+		{
+			int diff = ( key1[i] & 0xff ) - ( key2[i] & 0xff );
+			if ( diff != 0 )
+			{
+				return diff;
+			}
+		}
+		return key1.length - key2.length;
+	}
+	
+	/**
+	 * Returns {@code true} if the keys of a page are stored without the
+	 * prefix they share with the key before them.
+	 *
+	 * @return {@code true} if this tree uses prefix compression.
+	 */
+	public boolean isPrefixCompressed()
+	{
+		return prefixCompression;
+	}
+	
+	/**
+	 * Adds an entry to this tree. If the key already exist a runtime
+	 * exception is thrown.
+	 *
+	 * @param key the key of the entry
+	 * @param value value of the entry
+	 */
+	public void addEntry( byte[] key, long value )
+	{
+		if ( add( key, value, false ) != null )
+		{
+			throw new RuntimeException( "Key " + Arrays.toString( key ) +
+				" already exist" );
+		}
+	}
+	
+	/**
+	 * Adds the entry to this tree unless the key already exist.
+	 *
+	 * @param key the key of the entry
+	 * @param value value of the entry
+	 * @return {@code true} if the entry was added, {@code false} if the key
+	 * already existed.
+	 */
+	public boolean addIfAbsent( byte[] key, long value )
+	{
+		return add( key, value, false ) == null;
+	}
+	
+	/**
+	 * Adds an entry to this tree or replaces the value of the entry with the
+	 * same key, with one descent.
+	 *
+	 * @param key the key of the entry
+	 * @param value value of the entry
+	 * @return the value replaced or {@code null} if the entry was added.
+	 */
+	public Long put( byte[] key, long value )
+	{
+		return add( key, value, true );
+	}
+	
+	// the key is copied as it may be kept in a page
+	@Override
+	Long add( byte[] key, long value, boolean replace )
+	{
+		checkKey( key );
+		return super.add( key.clone(), value, replace );
+	}
+	
+	/**
+	 * Returns the value of an entry or {@code null} if no such entry exist.
+	 *
+	 * @param key for the entry
+	 * @return value of the entry
+	 */
+	public Long getEntry( byte[] key )
+	{
+		checkKey( key );
+		return find( key );
+	}
+	
+	/**
+	 * Returns the closest entry value where {@code Entry.key <= key} or
+	 * {@code null} if no such entry exist.
+	 *
+	 * @param key the key
+	 * @return the value of the closest lower entry
+	 */
+	public Long getClosestLowerEntry( byte[] key )
+	{
+		checkKey( key );
+		return findClosestLower( key );
+	}
+	
+	/**
+	 * Returns the closest entry value where {@code Entry.key >= key} or
+	 * {@code null} if no such entry exist.
+	 *
+	 * @param key the key
+	 * @return the value of the closest higher entry
+	 */
+	public Long getClosestHigherEntry( byte[] key )
+	{
+		checkKey( key );
+		return findClosestHigher( key );
+	}
+	
+	/**
+	 * Returns the entries with {@code fromInclusive <= key < toExclusive} in
+	 * key order. The leaf pages are read as the iteration reaches them, the
+	 * first one found with one descent.
+	 *
+	 * @param fromInclusive the lowest key, or {@code null} for no lower bound
+	 * @param toExclusive the key to stop at, or {@code null} for no upper
+	 * bound
+	 * @return the entries in the range, keys mapped to values.
+	 */
+	public Iterable<Map.Entry<byte[],Long>> entries( byte[] fromInclusive,
+		byte[] toExclusive )
+	{
+		return entries( fromInclusive, toExclusive, false );
+	}
+	
+	/**
+	 * Like {@link #entries(byte[], byte[])} but the entries are returned in
+	 * descending key order, starting with the highest key below
+	 * {@code toExclusive}. The pages on the path down to it are kept, so
+	 * moving on to the leaf page before takes no new descent.
+	 *
+	 * @param fromInclusive the lowest key, or {@code null} for no lower bound
+	 * @param toExclusive the key to start below, or {@code null} for no upper
+	 * bound
+	 * @return the entries in the range in descending key order.
+	 */
+	public Iterable<Map.Entry<byte[],Long>> entriesDescending(
+		byte[] fromInclusive, byte[] toExclusive )
+	{
+		return entries( fromInclusive, toExclusive, true );
+	}
+	
+	/**
+	 * Returns the entries with keys starting with {@code prefix} in key
+	 * order, read lazily as {@link #entries(byte[], byte[])}.
+	 *
+	 * @param prefix the prefix of the keys
+	 * @return the entries with the prefix, keys mapped to values.
+	 */
+	public Iterable<Map.Entry<byte[],Long>> entriesWithPrefix( byte[] prefix )
+	{
+		checkKey( prefix );
+		return entries( prefix, prefixEnd( prefix ) );
+	}
+	
+	/**
+	 * Removes an entry and returns the value of the entry. If the entry
+	 * doesn't exist {@code null} is returned.
+	 *
+	 * @param key the key of the entry
+	 * @return value of removed entry
+	 */
+	public Long removeEntry( byte[] key )
+	{
+		checkKey( key );
+		return remove( key );
+	}
+	
+	/**
+	 * Deletes this tree, all its pages and the properties on the tree node.
+	 */
+	@Override
+	public void delete()
+	{
+		super.delete();
+		getUnderlyingNode().removeProperty( PREFIX_COMPRESSION );
+	}
+	
+	private static void checkKey( byte[] key )
+	{
+		if ( key == null )
+		{
+			throw new IllegalArgumentException( "Null key" );
+		}
+	}
+	
+	// the lowest key greater than all keys starting with prefix, null if
+	// there is none
+	private static byte[] prefixEnd( byte[] prefix )
+	{
+		for ( int i = prefix.length - 1; i >= 0; i-- )
+		{
+			if ( prefix[i] != (byte) 0xff )
+			{
+				byte[] end = Arrays.copyOf( prefix, i + 1 );
+				end[i]++;
+				return end;
+			}
+		}
+		return null;
+	}
+	
+	private static int sharedPrefix( byte[] key1, byte[] key2 )
+	{
+		int length = Math.min( key1.length, key2.length );
+		int i = 0;
+		while ( i < length && key1[i] == key2[i] )
+		{
+			i++;
+		}
+		return i;
+	}
+	
+	private static int varIntSize( int value )
+	{
+		int size = 1;
+		while ( ( value >>>= 7 ) != 0 )
+		{
+			size++;
+		}
+		return size;
+	}
+	
+	private static void putVarInt( ByteBuffer buffer, int value )
+	{
+		while ( ( value & ~0x7f ) != 0 )
+		{
+			buffer.put( (byte) ( ( value & 0x7f ) | 0x80 ) );
+			value >>>= 7;
+		}
+		buffer.put( (byte) value );
+	}
+	
+	private static int getVarInt( ByteBuffer buffer )
+	{
+		int value = 0;
+		int shift = 0;
+		byte b;
+		do
+		{
+			b = buffer.get();
+			value |= ( b & 0x7f ) << shift;
+			shift += 7;
+		}
+		while ( ( b & 0x80 ) != 0 );
+		return value;
+	}
+	
+	/**
+	 * The pages as {@code byte[]} properties, the keys of a page stored 
+	 * after the values and, with prefix compression, without the prefix 
+	 * they share with the key before them.
+	 */
+	private static class BytesPageFormat implements PageFormat<byte[],byte[][]>
+	{
+		private final boolean prefixCompression;
+		
+		BytesPageFormat( boolean prefixCompression )
+		{
+			this.prefixCompression = prefixCompression;
+		}
+		
+		public byte[][] newKeys( int length )
+		{
+			return new byte[length][];
+		}
+		
+		public int length( byte[][] keys )
+		{
+			return keys.length;
+		}
+		
+		public byte[] get( byte[][] keys, int index )
+		{
+			return keys[index];
+		}
+		
+		public void set( byte[][] keys, int index, byte[] key )
+		{
+			keys[index] = key;
+		}
+		
+		public int search( byte[][] keys, byte[] key )
+		{
+			int low = 0;
+			int high = keys.length - 1;
+			while ( low <= high )
+			{
+				int middle = ( low + high ) >>> 1;
+				int diff = ByteArrayBTree.compare( keys[middle], key );
+				if ( diff < 0 )
+				{
+					low = middle + 1;
+				}
+				else if ( diff > 0 )
+				{
+					high = middle - 1;
+				}
+				else
+				{
+					return middle;
+				}
+			}
+			return -( low + 1 );
+		}
+		
+		public int compare( byte[] key1, byte[] key2 )
+		{
+			return ByteArrayBTree.compare( key1, key2 );
+		}
+		
+		public void read( Page<byte[][]> page )
+		{
+			ByteBuffer buffer = ByteBuffer.wrap(
+				(byte[]) page.node.getProperty( PAGE ) );
+			page.version = buffer.getLong();
+			page.leaf = buffer.get() == 1;
+			page.next = buffer.getLong();
+			int keyCount = buffer.getInt();
+			page.values = new long[page.leaf ? keyCount : keyCount + 1];
+			for ( int i = 0; i < page.values.length; i++ )
+			{
+				page.values[i] = buffer.getLong();
+			}
+			page.keys = new byte[keyCount][];
+			byte[] previous = null;
+			for ( int i = 0; i < keyCount; i++ )
+			{
+				int shared = getVarInt( buffer );
+				int rest = getVarInt( buffer );
+				byte[] key = new byte[shared + rest];
+				if ( shared > 0 )
+				{
+					System.arraycopy( previous, 0, key, 0, shared );
+				}
+				buffer.get( key, shared, rest );
+				page.keys[i] = key;
+				previous = key;
+			}
+		}
+		
+		public void write( Page<byte[][]> page )
+		{
+			byte[][] keys = page.keys;
+			int[] shared = new int[keys.length];
+			int size = HEADER_SIZE + page.values.length * 8;
+			for ( int i = 0; i < keys.length; i++ )
+			{
+				if ( prefixCompression && i > 0 )
+				{
+					shared[i] = sharedPrefix( keys[i - 1], keys[i] );
+				}
+				int rest = keys[i].length - shared[i];
+				size += varIntSize( shared[i] ) + varIntSize( rest ) + rest;
+			}
+			ByteBuffer buffer = ByteBuffer.allocate( size );
+			buffer.putLong( page.version );
+			buffer.put( (byte) ( page.leaf ? 1 : 0 ) );
+			buffer.putLong( page.next );
+			buffer.putInt( keys.length );
+			for ( long value : page.values )
+			{
+				buffer.putLong( value );
+			}
+			for ( int i = 0; i < keys.length; i++ )
+			{
+				int rest = keys[i].length - shared[i];
+				putVarInt( buffer, shared[i] );
+				putVarInt( buffer, rest );
+				buffer.put( keys[i], shared[i], rest );
+			}
+			page.node.setProperty( PAGE, buffer.array() );
+		}
+	}
+}
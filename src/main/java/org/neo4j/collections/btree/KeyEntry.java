@@ -31,11 +31,22 @@ import org.neo4j.graphdb.Relationship;
 public class KeyEntry
 {
 	static final String KEY = "key";
-	static final String VALUE = "val";
-	static final String KEY_VALUE = "key_val";
+	/**
+	 * The property of a key entry relationship holding its value.
+	 */
+	public static final String VALUE = "val";
+	/**
+	 * The property of a key entry relationship holding its key value.
+	 */
+	public static final String KEY_VALUE = "key_val";
 	
 	private Relationship entryRelationship;
 	private TreeNode treeNode;
+	// set by readOnce, the key, value and key value read then
+	private boolean readOnce;
+	private long key;
+	private Object value;
+	private Object keyValue;
 	
 	KeyEntry( TreeNode treeNode, Relationship underlyingRelationship )
 	{
@@ -45,6 +56,21 @@ public class KeyEntry
 		this.entryRelationship = underlyingRelationship;
 	}
 	
+	// a copy with the key, value and key value read now, for a reader of a
+	// tree in concurrent mode, where a write can move the entry to another
+	// relationship at any time. The key is read again last, so a 
+	// NotFoundException means the entry moved while being read.
+	KeyEntry readOnce()
+	{
+		KeyEntry copy = new KeyEntry( treeNode, entryRelationship );
+		copy.key = (Long) entryRelationship.getProperty( KEY );
+		copy.value = entryRelationship.getProperty( VALUE, null );
+		copy.keyValue = entryRelationship.getProperty( KEY_VALUE, null );
+		entryRelationship.getProperty( KEY );
+		copy.readOnce = true;
+		return copy;
+	}
+	
 	Relationship getUnderlyingRelationship()
 	{
 		return entryRelationship;
@@ -114,12 +140,17 @@ public class KeyEntry
 	 */
 	public long getKey()
 	{
+		if ( readOnce )
+		{
+			return key;
+		}
 		return (Long) entryRelationship.getProperty( KEY );
 	}
 	
 	void setKey( long key )
 	{
 		entryRelationship.setProperty( KEY, key );
+		this.key = key;
 	}
 	
 	/**
@@ -130,6 +161,10 @@ public class KeyEntry
 	 */
 	public Object getValue()
 	{
+		if ( readOnce )
+		{
+			return value;
+		}
 		return entryRelationship.getProperty( VALUE );
 	}
 	
@@ -142,6 +177,7 @@ public class KeyEntry
 	public void setValue( Object value )
 	{
 		entryRelationship.setProperty( VALUE, value );
+		this.value = value;
 	}
 	
 	/**
@@ -155,6 +191,7 @@ public class KeyEntry
 	public void setKeyValue( Object keyValue )
 	{
 		entryRelationship.setProperty( KEY_VALUE, keyValue );
+		this.keyValue = keyValue;
 	}
 	
 	/**
@@ -165,6 +202,10 @@ public class KeyEntry
 	 */
 	public Object getKeyValue()
 	{
+		if ( readOnce )
+		{
+			return keyValue;
+		}
 		return entryRelationship.getProperty( KEY_VALUE, null );
 	}
 	
@@ -173,7 +214,7 @@ public class KeyEntry
 	 */
 	public void remove()
 	{
-		treeNode.removeEntry( this.getKey() );
+		getBTree().removeEntry( this.getKey() );
 	}
 	
 	@Override
@@ -0,0 +1,46 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.collections.btree;
+
+/**
+ * The key type of an {@link AbstractPagedBTree} and how its pages are
+ * stored. The keys of a page are kept in an array of type {@code A}, a
+ * {@code long[]} for {@code long} keys so they are never boxed.
+ */
+interface PageFormat<K, A>
+{
+	A newKeys( int length );
+
+	int length( A keys );
+
+	K get( A keys, int index );
+
+	void set( A keys, int index, K key );
+
+	// like Arrays.binarySearch
+	int search( A keys, K key );
+
+	int compare( K key1, K key2 );
+
+	// reads the page stored on its node into it
+	void read( AbstractPagedBTree.Page<A> page );
+
+	void write( AbstractPagedBTree.Page<A> page );
+}
@@ -0,0 +1,278 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.collections.btree;
+
+import java.util.Arrays;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+
+/**
+ * A b+tree implementation on top of neo4j where each tree node is a page:
+ * one node holding all its keys and, after them, the values of its entries
+ * or the ids of its child pages in a single {@code long[]} property. Pages
+ * are searched with binary search so a lookup reads one node per level, and
+ * the order is configurable so a tree of a large order is shallow.
+ * <p>
+ * Keys and values are {@code long}s, typically node ids. The pages are
+ * linked through the node ids in their properties only, not through
+ * relationships, and each leaf page knows the id of the next one. The
+ * supplied tree node keeps the order of the tree and the id of its root
+ * page, the root page stays the same for the life of the tree.
+ * <p>
+ * All methods expect an enclosing transaction. The implementation isn't
+ * thread safe.
+ */
+public class PagedBTree extends AbstractPagedBTree<Long,long[]>
+{
+	/**
+	 * The order of a new tree unless given otherwise.
+	 */
+	public static final int DEFAULT_ORDER = 128;
+	
+	static final String ORDER = "page_order";
+	static final String ROOT_PAGE = "root_page";
+	static final String PAGE = "page";
+	
+	// the page property is {version, leaf ? 1 : 0, next page id, keys..., 
+	// values...}
+	private static final int HEADER_SIZE = 3;
+	
+	/**
+	 * Creates/loads a b+tree on {@code treeNode} with the default order.
+	 * 
+	 * @param graphDb the embedded graph database instance
+	 * @param treeNode the node keeping the tree.
+	 */
+	public PagedBTree( GraphDatabaseService graphDb, Node treeNode )
+	{
+		this( graphDb, treeNode, DEFAULT_ORDER );
+	}
+	
+	/**
+	 * Creates/loads a b+tree on {@code treeNode}. The order is the maximum
+	 * number of keys in a page, it is only used when the tree is created,
+	 * an existing tree keeps the order it was created with.
+	 * 
+	 * @param graphDb the embedded graph database instance
+	 * @param treeNode the node keeping the tree.
+	 * @param order the maximum number of keys in a page, at least 4.
+	 */
+	public PagedBTree( GraphDatabaseService graphDb, Node treeNode, int order )
+	{
+		super( graphDb, treeNode, order, ORDER, ROOT_PAGE, new LongPageFormat() );
+	}
+	
+	/**
+	 * Adds an entry to this tree. If the key already exist a runtime
+	 * exception is thrown.
+	 * 
+	 * @param key the key of the entry
+	 * @param value value of the entry
+	 */
+	public void addEntry( long key, long value )
+	{
+		if ( add( key, value, false ) != null )
+		{
+			throw new RuntimeException( "Key " + key + " already exist" );
+		}
+	}
+	
+	/**
+	 * Adds the entry to this tree unless the key already exist.
+	 * 
+	 * @param key the key of the entry
+	 * @param value value of the entry
+	 * @return {@code true} if the entry was added, {@code false} if the key
+	 * already existed.
+	 */
+	public boolean addIfAbsent( long key, long value )
+	{
+		return add( key, value, false ) == null;
+	}
+	
+	/**
+	 * Adds an entry to this tree or replaces the value of the entry with the
+	 * same key, with one descent.
+	 * 
+	 * @param key the key of the entry
+	 * @param value value of the entry
+	 * @return the value replaced or {@code null} if the entry was added.
+	 */
+	public Long put( long key, long value )
+	{
+		return add( key, value, true );
+	}
+	
+	/**
+	 * Adds or replaces the entries of {@code keys} and {@code values}, 
+	 * sorted by key. The keys going to the same leaf page are put in it 
+	 * together, with one descent and one write of the page, so sorted keys
+	 * which are close to each other take far less than a descent each. Of
+	 * entries with the same key the last one is kept.
+	 * 
+	 * @param keys the keys in ascending order
+	 * @param values the values of the keys
+	 * @return the number of entries added, not counting replaced ones.
+	 */
+	public int putAll( long[] keys, long[] values )
+	{
+		return super.putAll( keys, values );
+	}
+	
+	/**
+	 * Returns the value of an entry or {@code null} if no such entry exist.
+	 * 
+	 * @param key for the entry
+	 * @return value of the entry
+	 */
+	public Long getEntry( long key )
+	{
+		return find( key );
+	}
+	
+	/**
+	 * Returns the value of an entry or {@code noValue} if no such entry
+	 * exist. The pages are searched as read from their property, without
+	 * copying out their keys and values or boxing the value.
+	 * 
+	 * @param key for the entry
+	 * @param noValue the value to return if there is no entry for the key
+	 * @return value of the entry or {@code noValue}
+	 */
+	public long getEntry( long key, long noValue )
+	{
+		long[] page = (long[]) getRootNode().getProperty( PAGE );
+		while ( page[1] != 1 )
+		{
+			int keyCount = ( page.length - HEADER_SIZE - 1 ) / 2;
+			int index = Arrays.binarySearch( page, HEADER_SIZE, 
+				HEADER_SIZE + keyCount, key );
+			index = index >= 0 ? index + 1 : -index - 1;
+			page = (long[]) getGraphDb().getNodeById( 
+				page[index + keyCount] ).getProperty( PAGE );
+		}
+		int keyCount = ( page.length - HEADER_SIZE ) / 2;
+		int index = Arrays.binarySearch( page, HEADER_SIZE, 
+			HEADER_SIZE + keyCount, key );
+		return index >= 0 ? page[index + keyCount] : noValue;
+	}
+	
+	/**
+	 * Returns the closest entry value where {@code Entry.key <= key} or
+	 * {@code null} if no such entry exist.
+	 * 
+	 * @param key the key
+	 * @return the value of the closest lower entry
+	 */
+	public Long getClosestLowerEntry( long key )
+	{
+		return findClosestLower( key );
+	}
+	
+	/**
+	 * Returns the closest entry value where {@code Entry.key >= key} or
+	 * {@code null} if no such entry exist.
+	 * 
+	 * @param key the key
+	 * @return the value of the closest higher entry
+	 */
+	public Long getClosestHigherEntry( long key )
+	{
+		return findClosestHigher( key );
+	}
+	
+	/**
+	 * Removes an entry and returns the value of the entry. If the entry
+	 * doesn't exist {@code null} is returned.
+	 * 
+	 * @param key the key of the entry
+	 * @return value of removed entry
+	 */
+	public Long removeEntry( long key )
+	{
+		return remove( key );
+	}
+	
+	/**
+	 * The pages as {@code long[]} properties, the keys of a page stored
+	 * before the values.
+	 */
+	private static class LongPageFormat implements PageFormat<Long,long[]>
+	{
+		public long[] newKeys( int length )
+		{
+			return new long[length];
+		}
+		
+		public int length( long[] keys )
+		{
+			return keys.length;
+		}
+		
+		public Long get( long[] keys, int index )
+		{
+			return keys[index];
+		}
+		
+		public void set( long[] keys, int index, Long key )
+		{
+			keys[index] = key;
+		}
+		
+		public int search( long[] keys, Long key )
+		{
+			return Arrays.binarySearch( keys, key );
+		}
+		
+		public int compare( Long key1, Long key2 )
+		{
+			return key1.compareTo( key2 );
+		}
+		
+		public void read( Page<long[]> page )
+		{
+			long[] property = (long[]) page.node.getProperty( PAGE );
+			page.version = property[0];
+			page.leaf = property[1] == 1;
+			page.next = property[2];
+			int keyCount = ( property.length - HEADER_SIZE - 
+				( page.leaf ? 0 : 1 ) ) / 2;
+			page.keys = Arrays.copyOfRange( property, HEADER_SIZE, 
+				HEADER_SIZE + keyCount );
+			page.values = Arrays.copyOfRange( property, HEADER_SIZE + keyCount, 
+				property.length );
+		}
+		
+		public void write( Page<long[]> page )
+		{
+			long[] property = new long[HEADER_SIZE + page.keys.length + 
+				page.values.length];
+			property[0] = page.version;
+			property[1] = page.leaf ? 1 : 0;
+			property[2] = page.next;
+			System.arraycopy( page.keys, 0, property, HEADER_SIZE, 
+				page.keys.length );
+			System.arraycopy( page.values, 0, property, HEADER_SIZE + 
+				page.keys.length, page.values.length );
+			page.node.setProperty( PAGE, property );
+		}
+	}
+}
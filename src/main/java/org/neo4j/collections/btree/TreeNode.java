@@ -19,17 +19,17 @@
  */
 package org.neo4j.collections.btree;
 
-import javax.transaction.Transaction;
-import javax.transaction.TransactionManager;
-
+import org.neo4j.collections.VersionedProperties;
 import org.neo4j.collections.btree.AbstractBTree.RelTypes;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
-import org.neo4j.kernel.AbstractGraphDatabase;
 
 class TreeNode
 {
+	// the number of entries in the sub tree, see VersionedProperties
+	static final String SUBTREE_COUNT = "subtree_count";
+	
 	private AbstractBTree bTree;
 	private Node treeNode;
 	
@@ -44,6 +44,97 @@ class TreeNode
 		return treeNode;
 	}
 	
+	/**
+	 * Returns the number of entries in this tree node and all its sub trees.
+	 */
+	long getSubTreeCount()
+	{
+		return VersionedProperties.getLong( treeNode, SUBTREE_COUNT, 0 );
+	}
+	
+	void setSubTreeCount( long count )
+	{
+		if ( !treeNode.hasProperty( SUBTREE_COUNT ) || 
+			getSubTreeCount() != count )
+		{
+			VersionedProperties.setLong( treeNode, SUBTREE_COUNT, count );
+		}
+	}
+	
+	// sets the sub tree count from the entries of this tree node and the
+	// counts of its sub trees, unless the tree keeps no counts
+	void recount()
+	{
+		if ( !bTree.isCounting() )
+		{
+			return;
+		}
+		long count = 0;
+		KeyEntry entry = getFirstEntry();
+		if ( entry != null )
+		{
+			TreeNode subTree = entry.getBeforeSubTree();
+			if ( subTree != null )
+			{
+				count += subTree.getSubTreeCount();
+			}
+		}
+		while ( entry != null )
+		{
+			count++;
+			TreeNode subTree = entry.getAfterSubTree();
+			if ( subTree != null )
+			{
+				count += subTree.getSubTreeCount();
+			}
+			entry = entry.getNextKey();
+		}
+		setSubTreeCount( count );
+	}
+	
+	void recountToRoot()
+	{
+		if ( !bTree.isCounting() )
+		{
+			return;
+		}
+		TreeNode node = this;
+		while ( node != null )
+		{
+			node.recount();
+			node = node.getParent();
+		}
+	}
+	
+	// the sub tree at index in key order, null if there is none
+	TreeNode getSubTree( int index )
+	{
+		KeyEntry entry = getFirstEntry();
+		if ( entry == null )
+		{
+			return null;
+		}
+		TreeNode subTree = entry.getBeforeSubTree();
+		for ( int i = 0; i < index && subTree != null; i++ )
+		{
+			subTree = entry != null ? entry.getAfterSubTree() : null;
+			entry = entry != null ? entry.getNextKey() : null;
+		}
+		return subTree;
+	}
+	
+	// in concurrent mode the parent, latched by the write, is locked until
+	// the transaction ends as it is changed
+	TreeNode getLockedParent()
+	{
+		TreeNode parent = getParent();
+		if ( parent != null )
+		{
+			bTree.lock( parent.getUnderlyingNode() );
+		}
+		return parent;
+	}
+	
 	TreeNode getParent()
 	{
 		Relationship toParentNode = treeNode.getSingleRelationship( 
@@ -118,32 +209,44 @@ class TreeNode
 		}
 	}
 	
-	int delete( int commitInterval, int count )
+	// the left most sub tree still connected to this tree node, null if 
+	// there is none
+	TreeNode getFirstSubTree()
 	{
-		if ( !isRoot() )
+		Relationship subTreeRel = treeNode.getSingleRelationship( 
+			RelTypes.SUB_TREE, Direction.OUTGOING );
+		KeyEntry entry = getFirstEntry();
+		while ( subTreeRel == null && entry != null )
 		{
-			disconnectFromParent();
-			count++;
+			subTreeRel = entry.getEndNode().getSingleRelationship( 
+				RelTypes.SUB_TREE, Direction.OUTGOING );
+			entry = entry.getNextKey();
 		}
-		KeyEntry entry = getFirstEntry();
-		if ( entry == null )
+		return subTreeRel != null ? 
+			new TreeNode( bTree, subTreeRel.getEndNode() ) : null;
+	}
+	
+	// deletes this tree node and the relationship to its parent or to the
+	// tree holder once all its sub trees are deleted, returns the number of
+	// entries deleted
+	int deleteWithoutSubTrees()
+	{
+		Relationship toParent = treeNode.getSingleRelationship( 
+			RelTypes.SUB_TREE, Direction.INCOMING );
+		if ( toParent == null )
 		{
-			getUnderlyingNode().delete();
-			return count++;
+			toParent = treeNode.getSingleRelationship( RelTypes.TREE_ROOT, 
+				Direction.INCOMING );
 		}
-		TreeNode subTree = entry.getBeforeSubTree();
-		if ( subTree != null )
+		if ( toParent != null )
 		{
-			subTree.delete( commitInterval, count );
+			toParent.delete();
 		}
-		Node lastNode = null;
+		int count = 0;
+		KeyEntry entry = getFirstEntry();
+		Node lastNode = treeNode;
 		while ( entry != null )
 		{
-			subTree = entry.getAfterSubTree();
-			if ( subTree != null )
-			{
-				subTree.delete( commitInterval, count );
-			}
 			KeyEntry nextEntry = entry.getNextKey();
 			lastNode = entry.getEndNode();
 			entry.getStartNode().delete();
@@ -151,29 +254,7 @@ class TreeNode
 			count++;
 			entry = nextEntry;
 		}
-		if ( lastNode != null )
-		{
-			lastNode.delete();
-			count++;
-		}
-		if ( count >= commitInterval )
-		{
-		    AbstractGraphDatabase graphDb = (AbstractGraphDatabase) bTree.getGraphDb();
-            try
-            {
-                Transaction tx = graphDb.getDependencyResolver().resolveDependency(TransactionManager.class).getTransaction();
-                if ( tx != null )
-                {
-                    tx.commit();
-                }
-            }
-            catch ( Exception e )
-            {
-                throw new RuntimeException( e );
-            }
-            graphDb.beginTx();
-			count = 0;
-		}
+		lastNode.delete();
 		return count;
 	}
 	
@@ -181,8 +262,9 @@ class TreeNode
 	{
 		Relationship keyEntryRel = treeNode.getSingleRelationship( 
 			RelTypes.KEY_ENTRY, Direction.OUTGOING );
-		assert treeNode.getSingleRelationship( RelTypes.KEY_ENTRY, 
-			Direction.INCOMING ) == null;
+		// a lock free reader can get here on a tree node merged away
+		assert bTree.isConcurrent() || treeNode.getSingleRelationship( 
+			RelTypes.KEY_ENTRY, Direction.INCOMING ) == null;
 		if ( keyEntryRel != null )
 		{
 			return new KeyEntry( this, keyEntryRel );
@@ -190,6 +272,109 @@ class TreeNode
 		return null;
 	}
 	
+	boolean isLeafNode()
+	{
+		KeyEntry entry = getFirstEntry();
+		return entry == null || entry.getBeforeSubTree() == null;
+	}
+	
+	// the entry for key if it is in this tree node, sub trees not searched
+	KeyEntry getEntryInNode( long key )
+	{
+		KeyEntry entry = getFirstEntry();
+		while ( entry != null && entry.getKey() < key )
+		{
+			entry = entry.getNextKey();
+		}
+		return entry != null && entry.getKey() == key ? entry : null;
+	}
+	
+	// the sub tree where key belongs, null in a leaf, key must not be in 
+	// this tree node
+	TreeNode getSubTreeFor( long key )
+	{
+		KeyEntry entry = getFirstEntry();
+		TreeNode subTree = entry != null ? entry.getBeforeSubTree() : null;
+		while ( entry != null && entry.getKey() < key )
+		{
+			subTree = entry.getAfterSubTree();
+			entry = entry.getNextKey();
+		}
+		return subTree;
+	}
+	
+	// compares key to the separators around this tree node in its parent,
+	// 0 if this tree node covers the key, 1 if the key is past the high 
+	// separator and -1 if it is lower or equal to a separator or this tree
+	// node is no longer in the tree
+	int getCoverage( long key )
+	{
+		Relationship toParent = treeNode.getSingleRelationship( 
+			RelTypes.SUB_TREE, Direction.INCOMING );
+		if ( toParent == null )
+		{
+			return isRoot() ? 0 : -1;
+		}
+		Node slot = toParent.getStartNode();
+		Relationship lowRel = slot.getSingleRelationship( RelTypes.KEY_ENTRY,
+			Direction.INCOMING );
+		if ( lowRel != null && key <= (Long) lowRel.getProperty( KeyEntry.KEY ) )
+		{
+			return -1;
+		}
+		Relationship highRel = slot.getSingleRelationship( RelTypes.KEY_ENTRY,
+			Direction.OUTGOING );
+		if ( highRel != null )
+		{
+			long highKey = (Long) highRel.getProperty( KeyEntry.KEY );
+			if ( key == highKey )
+			{
+				return -1;
+			}
+			if ( key > highKey )
+			{
+				return 1;
+			}
+		}
+		return 0;
+	}
+	
+	// the separator after this tree node, in its parent or for the last 
+	// child further up, null for the last tree node on its level or a tree
+	// node no longer in the tree
+	KeyEntry getHighSeparator()
+	{
+		return getSeparator( Direction.OUTGOING );
+	}
+	
+	// the separator before this tree node, see getHighSeparator
+	KeyEntry getLowSeparator()
+	{
+		return getSeparator( Direction.INCOMING );
+	}
+	
+	private KeyEntry getSeparator( Direction side )
+	{
+		TreeNode node = this;
+		while ( true )
+		{
+			Relationship toParent = node.treeNode.getSingleRelationship( 
+				RelTypes.SUB_TREE, Direction.INCOMING );
+			if ( toParent == null )
+			{
+				return null;
+			}
+			TreeNode parent = node.getParent();
+			Relationship separator = toParent.getStartNode().getSingleRelationship( 
+				RelTypes.KEY_ENTRY, side );
+			if ( separator != null )
+			{
+				return new KeyEntry( parent, separator );
+			}
+			node = parent;
+		}
+	}
+	
 	KeyEntry getLastEntry()
 	{
 		Relationship keyEntryRel = treeNode.getSingleRelationship( 
@@ -204,7 +389,7 @@ class TreeNode
 		return last;
 	}
 	
-	private int getEntryCount()
+	int getEntryCount()
 	{
 		int entryCount = 0;
 		KeyEntry entry = getFirstEntry();
@@ -356,7 +541,7 @@ class TreeNode
 	
 	private void moveMiddleUp()
 	{
-		TreeNode parent = getParent();
+		TreeNode parent = getLockedParent();
 		if ( parent == null )
 		{
 			assert isRoot();
@@ -386,6 +571,8 @@ class TreeNode
 			this.getUnderlyingNode(), RelTypes.SUB_TREE );
 		movedMiddleEntry.getEndNode().createRelationshipTo( 
 			newTreeToTheRight.getUnderlyingNode(), RelTypes.SUB_TREE );
+		this.recount();
+		newTreeToTheRight.recount();
 		int parentEntryCount = parent.getEntryCount();
 		if ( parentEntryCount == bTree.getOrder() )
 		{
@@ -579,6 +766,7 @@ class TreeNode
 			{
 				tryBorrowFromSibling();
 			}
+			recountToRoot();
 			return value;
 		}
 		else
@@ -591,6 +779,8 @@ class TreeNode
 				successor = successor.getBeforeSubTree().getFirstEntry();
 			}
 			TreeNode leafTree = successor.getTreeNode();
+			// latched in concurrent mode, locked as it is changed
+			bTree.lock( leafTree.getUnderlyingNode() );
 			KeyEntry next = successor.getNextKey();
 			next.move( leafTree, successor.getStartNode(), next.getEndNode() );
 			successor.move( this, entry.getStartNode(), entry.getEndNode() );
@@ -602,30 +792,38 @@ class TreeNode
 			{
 				leafTree.tryBorrowFromSibling();
 			}
+			leafTree.recountToRoot();
 			return value;
 		}
 	}
 	
+	// in concurrent mode the parent and the siblings are latched, only the
+	// sibling borrowed from or merged with is locked
 	private void tryBorrowFromSibling()
 	{
+		getLockedParent();
 		TreeNode leftSibling = getLeftSibbling();
 		TreeNode rightSibling = getRightSibbling();
 		if ( leftSibling != null && ( leftSibling.getEntryCount() > 
 			( bTree.getOrder() / 2 ) ) )
 		{
+			bTree.lock( leftSibling.getUnderlyingNode() );
 			borrowFromLeftSibling( leftSibling );
 		}
 		else if ( rightSibling != null && ( rightSibling.getEntryCount() > 
 			( bTree.getOrder() / 2 ) ) )
 		{
+			bTree.lock( rightSibling.getUnderlyingNode() );
 			borrowFromRightSibling( rightSibling );
 		}
 		else if ( leftSibling != null )
 		{
+			bTree.lock( leftSibling.getUnderlyingNode() );
 			mergeWithLeftSibling( leftSibling );
 		}
 		else if ( rightSibling != null )
 		{
+			bTree.lock( rightSibling.getUnderlyingNode() );
 			mergeWithRightSibling( rightSibling );
 		}
 		else
@@ -656,6 +854,8 @@ class TreeNode
 			entryToMoveDown.getEndNode() );
 		Node newStartNode = bTree.getGraphDb().createNode();
 		entryToMoveDown.move( this, newStartNode, treeNode );
+		// the old start node keeps its sub tree count, it is only read again
+		// after a recount if the node becomes a tree node again
 		Node parentToReAttachTo = disconnectFromParent();
 		treeNode = newStartNode;
 		connectToParent( parentToReAttachTo );
@@ -663,6 +863,8 @@ class TreeNode
 		{
 			subTree.connectToParent( newStartNode );
 		}
+		leftSibling.recount();
+		recount();
 	}
 	
 	private void borrowFromRightSibling( TreeNode rightSibling )
@@ -695,6 +897,8 @@ class TreeNode
 		{
 			subTree.connectToParent( newLastNode );
 		}
+		rightSibling.recount();
+		recount();
 	}
 	
 	private void mergeWithLeftSibling( TreeNode leftSibling )
@@ -732,6 +936,7 @@ class TreeNode
 		{
 			subTree.connectToParent( blankNode );
 		}
+		recount();
 		// validate parent
 		int entryCount = parentNode.getEntryCount();
 		if ( entryCount < bTree.getOrder() / 2 && !parentNode.isRoot() )
@@ -782,6 +987,7 @@ class TreeNode
 		{
 			subTree.connectToParent( blankNode );
 		}
+		recount();
 		// validate parent
 		int entryCount = parentNode.getEntryCount();
 		if ( entryCount < bTree.getOrder() / 2 && !parentNode.isRoot() )
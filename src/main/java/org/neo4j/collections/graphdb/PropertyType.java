@@ -19,7 +19,6 @@
  */
 package org.neo4j.collections.graphdb;
 
-import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -27,6 +26,7 @@ import org.neo4j.collections.graphdb.impl.ConnectorTypeImpl;
 import org.neo4j.collections.graphdb.impl.EdgeTypeImpl;
 import org.neo4j.collections.graphdb.impl.PropertyImpl;
 import org.neo4j.collections.graphdb.impl.VertexTypeImpl;
+import org.neo4j.collections.sortedtree.SortKeyComparator;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.PropertyContainer;
 
@@ -82,7 +82,7 @@ public abstract class PropertyType<T> extends EdgeTypeImpl{
 		return (PropertyType<?>)VertexTypeImpl.getByName(db, name);
 	}
 	
-	public static abstract class ComparablePropertyType<T> extends PropertyType<T> implements Comparator<org.neo4j.graphdb.Node>, PropertyComparator<T>{
+	public static abstract class ComparablePropertyType<T> extends PropertyType<T> implements SortKeyComparator<T>, PropertyComparator<T>{
 
 		ComparablePropertyType(DatabaseService db, Long id) {
 			super(db, id);
@@ -91,6 +91,11 @@ public abstract class PropertyType<T> extends EdgeTypeImpl{
 		public abstract int compare(Node node1, Node node2);
 		
 		public abstract int compare(T value, Node node);
+
+		@SuppressWarnings("unchecked")
+		public T getSortKey(Node node) {
+			return (T)node.getProperty(getName());
+		}
 	}
 
 	public static class BooleanArrayPropertyType extends PropertyType<Boolean[]>{
@@ -26,6 +26,9 @@ import java.util.Map;
 
 import org.neo4j.collections.graphdb.ReferenceNodes;
 import org.neo4j.collections.timeline.Timeline;
+import org.neo4j.collections.timeline.TimelineCursor;
+import org.neo4j.collections.timeline.TimelineIndexBuilder;
+import org.neo4j.collections.timeline.TimelinePage;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.index.Index;
@@ -39,6 +42,17 @@ public class TimelineNodeIndex implements Index<Node>
 
     public static final String TIMESTAMP = "timestamp";
     public static final String START_NODE_ID = "start_node_id";
+    /**
+     * Config key, {@code "true"} to get an indexed timeline. An existing
+     * timeline keeps the way it was created, see
+     * {@link #buildIndexInBackground(int)}.
+     */
+    public static final String INDEXED = "indexed";
+    /**
+     * Config key for the number of entries between index entries of an
+     * indexed timeline.
+     */
+    public static final String INDEX_TRIGGER_COUNT = "index_trigger_count";
     public static final String SERVICE_NAME = "graph-collections-timeline";
     public static final Map<String, String> CONFIG = Collections.unmodifiableMap(MapUtil.stringMap(
             IndexManager.PROVIDER, SERVICE_NAME));
@@ -51,7 +65,16 @@ public class TimelineNodeIndex implements Index<Node>
         this.indexName = indexName;
 //        Transaction tx = db.beginTx();
         Node underlyingNode = getOrCreateStartNode(db, config);
-        timeline = new Timeline( indexName, underlyingNode, false, db );
+        Boolean indexed = Timeline.isIndexed( underlyingNode );
+        if ( indexed == null )
+        {
+            indexed = Boolean.parseBoolean( config.get( INDEXED ) );
+        }
+        timeline = new Timeline( indexName, underlyingNode, indexed, db );
+        if ( config.containsKey( INDEX_TRIGGER_COUNT ) )
+        {
+            timeline.setIndexTriggerCount( Integer.parseInt( config.get( INDEX_TRIGGER_COUNT ) ) );
+        }
 //        tx.success();
 //        tx.finish();
     }
@@ -71,6 +94,27 @@ public class TimelineNodeIndex implements Index<Node>
         return timeline;
     }
 
+    /**
+     * Starts a daemon thread adding an index to the timeline of this index,
+     * or finishing an interrupted build. Nothing is done if the timeline
+     * already has a complete index. Writes through this index can go on
+     * meanwhile, but other {@link Timeline} instances on the same
+     * underlying node must not write to the timeline during the build,
+     * they still see it as non-indexed and their writes would not be
+     * counted in the index.
+     *
+     * @param commitInterval number of timeline entries per transaction.
+     * @return the started thread.
+     */
+    public Thread buildIndexInBackground( int commitInterval )
+    {
+        Thread builder = new Thread( new TimelineIndexBuilder( timeline, commitInterval ),
+                "Timeline index builder [" + indexName + "]" );
+        builder.setDaemon( true );
+        builder.start();
+        return builder;
+    }
+
     @Override
     public boolean isWriteable()
     {
@@ -114,10 +158,32 @@ public class TimelineNodeIndex implements Index<Node>
     @Override
     public IndexHits<Node> query( Object queryString )
     {
-        String query = (String)queryString;
-        Long from = Long.parseLong( query.substring( 1, query.indexOf( "TO" ) ).trim());
-        Long to = Long.parseLong( query.substring( query.indexOf( "TO" )+2,query.indexOf( "]" ) ).trim());
-        return new NodeIndexHits( toList(timeline.getAllNodesBetween( from, to )));
+        long[] range = parseRange( (String) queryString );
+        return new NodeIndexHits( toList(timeline.getAllNodesBetween( range[0], range[1] )));
+    }
+
+    /**
+     * Returns one page of the hits of a {@code "[from TO to]"} range query.
+     * The {@code resumeToken} is the {@link TimelineCursor} token of the
+     * previous page, or {@code null} for the first page.
+     *
+     * @param queryString the range query.
+     * @param resumeToken the token of the previous page or {@code null}.
+     * @param pageSize the maximum number of hits in the page.
+     * @return the page, with the cursor to resume from.
+     */
+    public TimelinePage queryPage( Object queryString, String resumeToken, int pageSize )
+    {
+        long[] range = parseRange( (String) queryString );
+        TimelineCursor cursor = resumeToken == null ? null : TimelineCursor.parse( resumeToken );
+        return timeline.getPage( range[0], range[1], cursor, pageSize );
+    }
+
+    private long[] parseRange( String query )
+    {
+        long from = Long.parseLong( query.substring( 1, query.indexOf( "TO" ) ).trim());
+        long to = Long.parseLong( query.substring( query.indexOf( "TO" )+2,query.indexOf( "]" ) ).trim());
+        return new long[] { from, to };
     }
 
     @Override
@@ -0,0 +1,351 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.collections.sortedtree;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.neo4j.collections.NodeCollection;
+import org.neo4j.collections.sortedtree.SortedTree.RelTypes;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+
+/**
+ * Fills an empty sorted tree from sorted nodes, see
+ * {@link SortedTree#bulkBuild(Iterator, int)}.
+ * <p>
+ * Each level of the tree has one open tree node which entries are appended
+ * to. When a tree node is full the next entry moves up as separator to the
+ * level above and a new tree node is opened after it. The right most tree
+ * nodes are the only ones that can end up with too few entries, they
+ * borrow from their full left siblings once all nodes are added.
+ * <p>
+ * The tree is built detached from the sorted tree, which keeps its empty
+ * root until the last transaction puts the new tree in its place. Until then
+ * the empty root holds the top tree node of the new tree, so that the tree
+ * nodes of a build that was interrupted are deleted by the next one.
+ */
+class BulkBuilder
+{
+	// on the empty root while building, the id of the top tree node built
+	static final String BULK_BUILDING = "bulk_building";
+
+	private final SortedTree bTree;
+	private final GraphDatabaseService graphDb;
+	// entries of a full tree node, one less than splits it
+	private final int fill;
+	private final int commitInterval;
+	private final List<Level> levels = new ArrayList<Level>();
+
+	private Transaction tx;
+	private int txCount;
+	// the last entry, wherever it moved up to, equal nodes are added to it
+	private NodeEntry lastEntry;
+
+	BulkBuilder( SortedTree bTree, int commitInterval )
+	{
+		this.bTree = bTree;
+		this.graphDb = bTree.getGraphDb();
+		this.fill = bTree.getOrder() - 1;
+		this.commitInterval = commitInterval;
+	}
+
+	// deletes the tree nodes of an interrupted build, in transactions of
+	// commitInterval entries
+	void deleteInterrupted()
+	{
+		List<Long> path = new ArrayList<Long>();
+		Transaction tx = graphDb.beginTx();
+		try
+		{
+			Long topId = (Long) bTree.getTreeRoot().getUnderlyingNode().getProperty(
+				BULK_BUILDING, null );
+			if ( topId != null )
+			{
+				path.add( topId );
+			}
+			tx.success();
+		}
+		finally
+		{
+			tx.finish();
+		}
+		if ( path.isEmpty() )
+		{
+			return;
+		}
+		while ( deleteTreeNodes( path ) )
+		{
+			// next batch
+		}
+		tx = graphDb.beginTx();
+		try
+		{
+			bTree.getTreeRoot().getUnderlyingNode().removeProperty(
+				BULK_BUILDING );
+			tx.success();
+		}
+		finally
+		{
+			tx.finish();
+		}
+	}
+
+	// deletes tree nodes in post-order from the top of path in one
+	// transaction, returns true if there are more left
+	private boolean deleteTreeNodes( List<Long> path )
+	{
+		Transaction tx = graphDb.beginTx();
+		try
+		{
+			int count = 0;
+			while ( !path.isEmpty() && count < commitInterval )
+			{
+				Node treeNode = graphDb.getNodeById(
+					path.get( path.size() - 1 ) );
+				Node subTree = getFirstSubTree( treeNode );
+				if ( subTree != null )
+				{
+					path.add( subTree.getId() );
+					continue;
+				}
+				count += Math.max( 1, deleteWithoutSubTrees( treeNode ) );
+				path.remove( path.size() - 1 );
+			}
+			tx.success();
+			return !path.isEmpty();
+		}
+		finally
+		{
+			tx.finish();
+		}
+	}
+
+	// the sub tree before the first entry, or after any later one, as the
+	// sub trees are deleted one by one
+	private Node getFirstSubTree( Node treeNode )
+	{
+		Node node = treeNode;
+		while ( node != null )
+		{
+			Relationship subTree = node.getSingleRelationship(
+				RelTypes.SUB_TREE, Direction.OUTGOING );
+			if ( subTree != null )
+			{
+				return subTree.getEndNode();
+			}
+			Relationship entry = node.getSingleRelationship(
+				RelTypes.KEY_ENTRY, Direction.OUTGOING );
+			node = entry != null ? entry.getEndNode() : null;
+		}
+		return null;
+	}
+
+	// deletes a tree node with its entries and their relationships to the
+	// nodes added, returns the number of entries
+	private int deleteWithoutSubTrees( Node treeNode )
+	{
+		Relationship toParent = treeNode.getSingleRelationship(
+			RelTypes.SUB_TREE, Direction.INCOMING );
+		if ( toParent != null )
+		{
+			toParent.delete();
+		}
+		int entries = 0;
+		Node node = treeNode;
+		while ( node != null )
+		{
+			for ( Relationship value : node.getRelationships(
+				NodeCollection.RelationshipTypes.VALUE, Direction.OUTGOING ) )
+			{
+				value.delete();
+			}
+			Relationship entry = node.getSingleRelationship(
+				RelTypes.KEY_ENTRY, Direction.OUTGOING );
+			Node next = null;
+			if ( entry != null )
+			{
+				next = entry.getEndNode();
+				entry.delete();
+				entries++;
+			}
+			node.delete();
+			node = next;
+		}
+		return entries;
+	}
+
+	// returns the number of nodes added
+	long build( Iterator<Node> sortedNodes )
+	{
+		long count = 0;
+		Node outOfOrderNode = null;
+		tx = graphDb.beginTx();
+		try
+		{
+			Node root = bTree.getTreeRoot().getUnderlyingNode();
+			Node leaf = graphDb.createNode();
+			root.setProperty( BULK_BUILDING, leaf.getId() );
+			levels.add( new Level( leaf ) );
+			Node previous = null;
+			Object previousKey = null;
+			while ( sortedNodes.hasNext() )
+			{
+				Node node = sortedNodes.next();
+				Object sortKey = bTree.keepsSortKeys() ?
+					bTree.getSortKey( node ) : null;
+				int result = 1;
+				if ( previous != null )
+				{
+					result = sortKey != null ?
+						TreeNode.compareSortKeys( sortKey, previousKey ) :
+						bTree.getComparator().compare( node, previous );
+				}
+				if ( result < 0 || ( result == 0 && bTree.isUniqueIndex() ) )
+				{
+					outOfOrderNode = node;
+					break;
+				}
+				if ( result == 0 )
+				{
+					lastEntry.addNode( node );
+				}
+				else
+				{
+					add( 0, sortKey, node );
+				}
+				previous = node;
+				previousKey = sortKey;
+				count++;
+				if ( ++txCount >= commitInterval )
+				{
+					tx.success();
+					tx.finish();
+					tx = graphDb.beginTx();
+					txCount = 0;
+				}
+			}
+			fixRightEdge();
+			// the empty root is replaced
+			bTree.makeRoot( new TreeNode( bTree,
+				levels.get( levels.size() - 1 ).node ) );
+			root.delete();
+			tx.success();
+		}
+		finally
+		{
+			tx.finish();
+			tx = null;
+		}
+		if ( outOfOrderNode != null )
+		{
+			throw new IllegalArgumentException( "Node " + outOfOrderNode +
+				" not sorted after the previous node, the " + count +
+				" nodes before it were added" );
+		}
+		return count;
+	}
+
+	private void add( int depth, Object sortKey, Node node )
+	{
+		Level level = levels.get( depth );
+		if ( level.count < fill )
+		{
+			level.append( sortKey, node );
+			return;
+		}
+		if ( depth + 1 == levels.size() )
+		{
+			Node parent = graphDb.createNode();
+			parent.createRelationshipTo( level.node, RelTypes.SUB_TREE );
+			levels.add( new Level( parent ) );
+			bTree.getTreeRoot().getUnderlyingNode().setProperty( BULK_BUILDING,
+				parent.getId() );
+		}
+		// the full tree node is closed, its parent is still open
+		new TreeNode( bTree, level.node ).storeSortKeys();
+		add( depth + 1, sortKey, node );
+		Node next = graphDb.createNode();
+		levels.get( depth + 1 ).last.createRelationshipTo( next,
+			RelTypes.SUB_TREE );
+		levels.set( depth, new Level( next ) );
+	}
+
+	// top down, the right most tree node of a level hangs off the last
+	// entry of the right most tree node of the level above and its left
+	// sibling is full, with an even order the sibling can lend one less
+	// than the minimum, which is as many as a split leaves
+	private void fixRightEdge()
+	{
+		int minEntries = bTree.getOrder() / 2;
+		int lendable = fill - minEntries;
+		for ( int depth = levels.size() - 1; depth >= 0; depth-- )
+		{
+			Level level = levels.get( depth );
+			TreeNode treeNode = new TreeNode( bTree, level.node );
+			if ( depth < levels.size() - 1 )
+			{
+				int borrow = Math.min( minEntries - level.count, lendable );
+				if ( borrow > 0 )
+				{
+					TreeNode leftSibling = treeNode.getLeftSibbling();
+					for ( int i = 0; i < borrow; i++ )
+					{
+						treeNode.borrowFromLeftSibling( leftSibling );
+					}
+				}
+			}
+			treeNode.storeSortKeys();
+		}
+	}
+
+	// the open tree node of a level
+	private class Level
+	{
+		final Node node;
+		Node last;
+		int count;
+
+		Level( Node node )
+		{
+			this.node = node;
+			this.last = node;
+		}
+
+		void append( Object sortKey, Node theNode )
+		{
+			Node next = graphDb.createNode();
+			NodeEntry entry = new NodeEntry( new TreeNode( bTree, node ),
+				last.createRelationshipTo( next, RelTypes.KEY_ENTRY ) );
+			if ( sortKey != null )
+			{
+				entry.setSortKey( sortKey );
+			}
+			entry.addNode( theNode );
+			lastEntry = entry;
+			last = next;
+			count++;
+		}
+	}
+}
@@ -31,6 +31,8 @@ import org.neo4j.graphdb.Relationship;
 class NodeEntry
 {
 	static final String NODE_ID = "node_id";
+	// the sort key of the entry, in a tree keeping sort keys
+	static final String SORT_KEY = "sort_key";
 
 	private Relationship entryRelationship;
 	private TreeNode treeNode;
@@ -184,6 +186,18 @@ class NodeEntry
 //            (Long) getUnderlyingRelationship().getProperty( NODE_ID ) ); 
     }
 
+	boolean containsNode( Node node )
+	{
+		for ( Node entryNode : getNodes() )
+		{
+			if ( entryNode.equals( node ) )
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
 	class RelationshipIterable implements Iterable<Relationship>{
 
 		@Override
@@ -209,6 +223,16 @@ class NodeEntry
     }
 
 
+	Object getSortKey()
+	{
+		return entryRelationship.getProperty( SORT_KEY, null );
+	}
+
+	void setSortKey( Object sortKey )
+	{
+		entryRelationship.setProperty( SORT_KEY, sortKey );
+	}
+
 	Node getStartNode()
 	{
 		return entryRelationship.getStartNode();
@@ -228,9 +252,14 @@ class NodeEntry
 			trls.add(new TempRelationship(rel));
 			rel.delete();
 		}
+		Object sortKey = getSortKey();
 		entryRelationship.delete();
 		entryRelationship = startNode.createRelationshipTo( endNode,
 			RelTypes.KEY_ENTRY );
+		if ( sortKey != null )
+		{
+			setSortKey( sortKey );
+		}
 		for(TempRelationship trl: trls){
 			Relationship rel = getEndNode().createRelationshipTo(trl.getEndNode(), NodeCollection.RelationshipTypes.VALUE);
 			for(String key: trl.getProperties().keySet()){
@@ -39,6 +39,28 @@ public class PropertySortedTree<T> extends SortedTree{
     public Iterable<Node> getWithValue(T val){
     	return getWithValue(val, propertyType);
     }
+
+    /**
+     * Returns the nodes with a value between two bounds in ascending order,
+     * read lazily after one descent of the tree.
+     *
+     * @param from the lower bound, {@code null} for none.
+     * @param fromInclusive {@code true} if the value {@code from} is included.
+     * @param to the upper bound, {@code null} for none.
+     * @param toInclusive {@code true} if the value {@code to} is included.
+     * @return the nodes with a value within the bounds.
+     */
+    public Iterable<Node> getRange(T from, boolean fromInclusive, T to, boolean toInclusive){
+    	return getRange(from, fromInclusive, to, toInclusive, propertyType, false);
+    }
+
+    /**
+     * Returns the nodes of {@link #getRange(Object, boolean, Object, boolean)}
+     * in descending order, starting at the upper bound.
+     */
+    public Iterable<Node> getRangeDescending(T from, boolean fromInclusive, T to, boolean toInclusive){
+    	return getRange(from, fromInclusive, to, toInclusive, propertyType, true);
+    }
     
 	public PropertySortedTree( GraphDatabaseService graphDb, ComparablePropertyType<T> propertyType,
                                boolean isUniqueIndex, String treeName ) {
@@ -46,4 +68,10 @@ public class PropertySortedTree<T> extends SortedTree{
 		this.propertyType = propertyType;
 	}
 
+	public PropertySortedTree( GraphDatabaseService graphDb, ComparablePropertyType<T> propertyType,
+                               boolean isUniqueIndex, String treeName, int order ) {
+		super(graphDb, propertyType, isUniqueIndex, treeName, order);
+		this.propertyType = propertyType;
+	}
+
 }
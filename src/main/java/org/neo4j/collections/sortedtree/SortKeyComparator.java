@@ -0,0 +1,48 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.collections.sortedtree;
+
+import java.util.Comparator;
+
+import org.neo4j.graphdb.Node;
+
+/**
+ * A {@link Comparator} of nodes which can tell the key a node is sorted by.
+ * A {@link SortedTree} created with such a comparator copies the sort key of
+ * each entry onto the tree, so finding a node or a value in a tree node is a
+ * binary search over keys kept on the tree node and never reads the nodes
+ * of the other entries.
+ * <p>
+ * Two nodes must compare as their sort keys do. The sort keys of a tree
+ * must all be of the same class, one of {@link String}, {@link Character}
+ * or the boxed primitive numbers, so they can be kept in an array property.
+ *
+ * @param <K> the type of the sort keys.
+ */
+public interface SortKeyComparator<K> extends Comparator<Node>
+{
+	/**
+	 * Returns the key {@code node} is sorted by.
+	 *
+	 * @param node the node.
+	 * @return the sort key of the node, not {@code null}.
+	 */
+	K getSortKey( Node node );
+}
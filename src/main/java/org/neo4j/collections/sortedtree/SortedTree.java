@@ -19,9 +19,11 @@
  */
 package org.neo4j.collections.sortedtree;
 
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 import org.neo4j.collections.NodeCollection;
 import org.neo4j.collections.graphdb.PropertyComparator;
@@ -34,6 +36,10 @@ import org.neo4j.graphdb.Transaction;
 
 /**
  * A sorted list of nodes (structured as a Btree in neo4j).
+ * <p>
+ * A tree created with a {@link SortKeyComparator} keeps the sort key of
+ * every entry on its tree nodes, so a lookup compares keys kept on the tree
+ * rather than reading the node of each entry it passes.
  */
 public class SortedTree implements NodeCollection//Iterable<Relationship>
 {
@@ -41,6 +47,13 @@ public class SortedTree implements NodeCollection//Iterable<Relationship>
 	public static final String TREE_NAME = "tree_name";
 	public static final String IS_UNIQUE_INDEX = "is_unique_index";
 	public static final String COMPARATOR_CLASS = "comparator_class";
+	public static final String KEEPS_SORT_KEYS = "keeps_sort_keys";
+	public static final String ORDER = "order";
+
+	/**
+	 * The order of a tree unless given otherwise.
+	 */
+	public static final int DEFAULT_ORDER = 25;
 
     public static enum RelTypes implements RelationshipType
 	{
@@ -55,6 +68,9 @@ public class SortedTree implements NodeCollection//Iterable<Relationship>
     private final Comparator<Node> nodeComparator;
     private final String treeName;
 	private final boolean isUniqueIndex;
+	// set if the sort keys are kept on the tree nodes
+	private final SortKeyComparator<?> sortKeyComparator;
+	private final int order;
 	private TreeNode treeRoot;
 
     /**
@@ -73,6 +89,9 @@ public class SortedTree implements NodeCollection//Iterable<Relationship>
             this.nodeComparator = (Comparator<Node>) Class.forName( comparatorClass ).newInstance();
             this.treeName = (String) rel.getProperty( TREE_NAME );
             this.isUniqueIndex = (Boolean) rel.getProperty( IS_UNIQUE_INDEX );
+            this.sortKeyComparator = (Boolean) rel.getProperty( KEEPS_SORT_KEYS, false ) ?
+                (SortKeyComparator<?>) nodeComparator : null;
+            this.order = (Integer) rel.getProperty( ORDER, DEFAULT_ORDER );
             this.treeRoot = new TreeNode( this, rel.getEndNode() );
         }
         catch ( Exception e )
@@ -85,18 +104,42 @@ public class SortedTree implements NodeCollection//Iterable<Relationship>
      * Create a new sorted tree within the graph database.
      * 
 	 * @param graphDb the {@link org.neo4j.graphdb.GraphDatabaseService} instance.
-     * @param nodeComparator the {@link java.util.Comparator} to use to sort the nodes.
+     * @param nodeComparator the {@link java.util.Comparator} to use to sort the nodes, if it is
+     * a {@link SortKeyComparator} the sort keys are kept on the tree.
      * @param isUniqueIndex determines if every entry in the tree needs to have a unique comparator value
      * @param treeName value set on both the TREE_ROOT and the KEY_VALUE relations.
      */
 	public SortedTree( GraphDatabaseService graphDb, Comparator<Node> nodeComparator, boolean isUniqueIndex,
                        String treeName )
 	{
+        this( graphDb, nodeComparator, isUniqueIndex, treeName, DEFAULT_ORDER );
+	}
+
+    /**
+     * Create a new sorted tree within the graph database with a given order,
+     * a tree node is split when it reaches {@code order} entries. The order is
+     * stored on the TREE_ROOT relation.
+     *
+	 * @param graphDb the {@link org.neo4j.graphdb.GraphDatabaseService} instance.
+     * @param nodeComparator the {@link java.util.Comparator} to use to sort the nodes, if it is
+     * a {@link SortKeyComparator} the sort keys are kept on the tree.
+     * @param isUniqueIndex determines if every entry in the tree needs to have a unique comparator value
+     * @param treeName value set on both the TREE_ROOT and the KEY_VALUE relations.
+     * @param order the number of entries at which a tree node is split, at least 5 so
+     * no tree node is emptied by a removal.
+     */
+	public SortedTree( GraphDatabaseService graphDb, Comparator<Node> nodeComparator, boolean isUniqueIndex,
+                       String treeName, int order )
+	{
 
         if (graphDb == null )
         {
             throw new IllegalArgumentException( "Graph Database must be provided when creating new SortedTree" );
         }
+        if ( order < 5 )
+        {
+            throw new IllegalArgumentException( "Illegal order " + order );
+        }
         this.baseNode = graphDb.createNode();
 
         Transaction tx = graphDb.beginTx();
@@ -110,10 +153,15 @@ public class SortedTree implements NodeCollection//Iterable<Relationship>
             treeRootRelationship.setProperty(  TREE_NAME, treeName );
             treeRootRelationship.setProperty( IS_UNIQUE_INDEX, isUniqueIndex );
             treeRootRelationship.setProperty( COMPARATOR_CLASS, nodeComparator.getClass().getName());
+            treeRootRelationship.setProperty( KEEPS_SORT_KEYS, nodeComparator instanceof SortKeyComparator );
+            treeRootRelationship.setProperty( ORDER, order );
 
             this.treeName = treeName;
     		this.isUniqueIndex = isUniqueIndex;
             this.nodeComparator = nodeComparator;
+            this.sortKeyComparator = nodeComparator instanceof SortKeyComparator ?
+                (SortKeyComparator<?>) nodeComparator : null;
+            this.order = order;
 
             tx.success();
         }
@@ -210,6 +258,30 @@ public class SortedTree implements NodeCollection//Iterable<Relationship>
     	return treeRoot.getWithValue(val, comp);
     }
 
+    /**
+     * Returns the nodes with a value between two bounds, found with one
+     * descent of the tree when iterated and read lazily from there on.
+     *
+     * @param from the lower bound, {@code null} for none.
+     * @param fromInclusive {@code true} if nodes equal to {@code from} are included.
+     * @param to the upper bound, {@code null} for none.
+     * @param toInclusive {@code true} if nodes equal to {@code to} are included.
+     * @param comp compares the bounds with the nodes of the tree.
+     * @param descending {@code true} to iterate from the upper bound down.
+     * @return the nodes within the bounds.
+     */
+    protected <T> Iterable<Node> getRange(final T from, final boolean fromInclusive,
+    		final T to, final boolean toInclusive, final PropertyComparator<T> comp,
+    		final boolean descending){
+    	return new Iterable<Node>(){
+    		@Override
+    		public Iterator<Node> iterator(){
+    			return new RangeIterator<T>(from, fromInclusive, to, toInclusive,
+    					comp, descending);
+    		}
+    	};
+    }
+
 
 	/**
 	 * Removes the node from this list.
@@ -223,9 +295,53 @@ public class SortedTree implements NodeCollection//Iterable<Relationship>
 		return treeRoot.removeEntry( node );
 	}
 
+	/**
+	 * Fills this empty tree from nodes in the order of its comparator, much
+	 * faster than adding them one by one. The tree nodes are packed full
+	 * bottom-up, and only the right most tree nodes are rebalanced at the end.
+	 * The work is split up in transactions of {@code commitInterval} nodes,
+	 * no enclosing transaction is needed. The tree is built next to the empty
+	 * root and only replaces it in the last transaction, so an interrupted
+	 * build leaves this tree empty. Its tree nodes are deleted by the next call.
+	 * <p>
+	 * A node sorted before the previous one, or equal to it in a unique
+	 * index, throws an {@link IllegalArgumentException}, the tree then holds
+	 * the nodes before it.
+	 *
+	 * @param sortedNodes the nodes in ascending order.
+	 * @param commitInterval number of nodes per transaction.
+	 * @return the number of nodes added.
+	 */
+	public long bulkBuild( Iterator<Node> sortedNodes, int commitInterval )
+	{
+		if ( commitInterval <= 0 )
+		{
+			throw new IllegalArgumentException( "Illegal commit interval " +
+				commitInterval );
+		}
+		BulkBuilder builder = new BulkBuilder( this, commitInterval );
+		builder.deleteInterrupted();
+		boolean empty;
+		Transaction tx = getGraphDb().beginTx();
+		try
+		{
+			empty = treeRoot.getFirstEntry() == null;
+			tx.success();
+		}
+		finally
+		{
+			tx.finish();
+		}
+		if ( !empty )
+		{
+			throw new IllegalStateException( "Tree not empty" );
+		}
+		return builder.build( sortedNodes );
+	}
+
 	int getOrder()
 	{
-		return 25;
+		return order;
 	}
 
 	GraphDatabaseService getGraphDb()
@@ -241,6 +357,14 @@ public class SortedTree implements NodeCollection//Iterable<Relationship>
 		return treeRoot;
 	}
 
+	boolean keepsSortKeys(){
+		return sortKeyComparator != null;
+	}
+
+	Object getSortKey(Node node){
+		return sortKeyComparator.getSortKey(node);
+	}
+
 
     /**
      * @return the {@link Comparator} used for this list.
@@ -341,6 +465,167 @@ public class SortedTree implements NodeCollection//Iterable<Relationship>
 		}
     }
 
+    // iterates the nodes of the entries between two bounds, a null bound is
+    // open, keeping the entries to come back to on the way up on a stack
+    class RangeIterator<T> implements Iterator<Node>{
+
+    	private final T from;
+    	private final boolean fromInclusive;
+    	private final T to;
+    	private final boolean toInclusive;
+    	private final PropertyComparator<T> comp;
+    	private final boolean descending;
+    	private final ArrayList<NodeEntry> stack = new ArrayList<NodeEntry>();
+    	private NodeEntry entry;
+    	private Iterator<Node> nodes;
+
+    	RangeIterator(T from, boolean fromInclusive, T to, boolean toInclusive,
+    			PropertyComparator<T> comp, boolean descending){
+    		this.from = from;
+    		this.fromInclusive = fromInclusive;
+    		this.to = to;
+    		this.toInclusive = toInclusive;
+    		this.comp = comp;
+    		this.descending = descending;
+    		enter(descending ? seekLast(treeRoot, to) : seekFirst(treeRoot, from));
+    	}
+
+    	// the first entry at or below treeNode not under the bound, a null
+    	// bound gives the first entry
+    	private NodeEntry seekFirst(TreeNode treeNode, T bound){
+    		while(true){
+    			NodeEntry first = bound == null ? treeNode.getFirstEntry() :
+    				treeNode.getEntry(treeNode.ceilingIndex(bound, fromInclusive, comp));
+    			if(first != null){
+    				TreeNode beforeTree = first.getBeforeSubTree();
+    				if(beforeTree == null){
+    					return first;
+    				}
+    				stack.add(first);
+    				treeNode = beforeTree;
+    			}else{
+    				NodeEntry last = treeNode.getLastEntry();
+    				TreeNode afterTree = last == null ? null : last.getAfterSubTree();
+    				if(afterTree == null){
+    					return pop();
+    				}
+    				treeNode = afterTree;
+    			}
+    		}
+    	}
+
+    	// the last entry at or below treeNode not over the bound, a null
+    	// bound gives the last entry
+    	private NodeEntry seekLast(TreeNode treeNode, T bound){
+    		while(true){
+    			NodeEntry last;
+    			if(bound == null){
+    				last = treeNode.getLastEntry();
+    			}else{
+    				int index = treeNode.ceilingIndex(bound, !toInclusive, comp) - 1;
+    				last = index < 0 ? null : treeNode.getEntry(index);
+    			}
+    			if(last != null){
+    				TreeNode afterTree = last.getAfterSubTree();
+    				if(afterTree == null){
+    					return last;
+    				}
+    				stack.add(last);
+    				treeNode = afterTree;
+    			}else{
+    				NodeEntry first = treeNode.getFirstEntry();
+    				TreeNode beforeTree = first == null ? null : first.getBeforeSubTree();
+    				if(beforeTree == null){
+    					return pop();
+    				}
+    				treeNode = beforeTree;
+    			}
+    		}
+    	}
+
+    	private NodeEntry following(NodeEntry entry){
+    		TreeNode afterTree = entry.getAfterSubTree();
+    		NodeEntry next = entry.getNextKey();
+    		if(afterTree != null){
+    			// the after tree is the before tree of the next entry
+    			if(next != null){
+    				stack.add(next);
+    			}
+    			return seekFirst(afterTree, null);
+    		}
+    		return next != null ? next : pop();
+    	}
+
+    	private NodeEntry preceding(NodeEntry entry){
+    		TreeNode beforeTree = entry.getBeforeSubTree();
+    		NodeEntry previous = entry.getPreviousKey();
+    		if(beforeTree != null){
+    			if(previous != null){
+    				stack.add(previous);
+    			}
+    			return seekLast(beforeTree, null);
+    		}
+    		return previous != null ? previous : pop();
+    	}
+
+    	private NodeEntry pop(){
+    		return stack.isEmpty() ? null : stack.remove(stack.size() - 1);
+    	}
+
+    	// moves on to the nodes of entry, or ends past the far bound
+    	private void enter(NodeEntry entry){
+    		if(entry != null && isPastEnd(entry)){
+    			entry = null;
+    			stack.clear();
+    		}
+    		this.entry = entry;
+    		nodes = entry == null ? null : entry.getNodes().iterator();
+    	}
+
+    	private boolean isPastEnd(NodeEntry entry){
+    		if(descending){
+    			if(from == null){
+    				return false;
+    			}
+    			int result = compare(from, entry);
+    			return result > 0 || (result == 0 && !fromInclusive);
+    		}
+    		if(to == null){
+    			return false;
+    		}
+    		int result = compare(to, entry);
+    		return result < 0 || (result == 0 && !toInclusive);
+    	}
+
+    	private int compare(T bound, NodeEntry entry){
+    		if(keepsSortKeys()){
+    			return TreeNode.compareSortKeys(bound, entry.getSortKey());
+    		}
+    		return comp.compare(bound, entry.getANode());
+    	}
+
+		@Override
+		public boolean hasNext() {
+			while(nodes != null && !nodes.hasNext()){
+				enter(descending ? preceding(entry) : following(entry));
+			}
+			return nodes != null;
+		}
+
+		@Override
+		public Node next() {
+			if(!hasNext()){
+				throw new NoSuchElementException();
+			}
+			return nodes.next();
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+    }
+
     class RelationshipIterator implements Iterator<Relationship>{
 
     	private TreeNode currentNode;
@@ -428,6 +713,16 @@ public class SortedTree implements NodeCollection//Iterable<Relationship>
     	return new NodeIterator(treeRoot);
     }
 
+    /**
+     * Returns the nodes of this tree from the last to the first, read
+     * lazily after one descent of the tree.
+     *
+     * @return the nodes in descending order.
+     */
+    public Iterator<Node> descendingIterator(){
+    	return new RangeIterator<Object>(null, false, null, false, null, true);
+    }
+
     @Override
     public Iterable<Relationship> getValueRelationships()
     {
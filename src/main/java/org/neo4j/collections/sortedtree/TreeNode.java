@@ -19,9 +19,15 @@
  */
 package org.neo4j.collections.sortedtree;
 
+import java.lang.reflect.Array;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 
+import javax.transaction.SystemException;
 import javax.transaction.Transaction;
 import javax.transaction.TransactionManager;
 
@@ -32,8 +38,20 @@ import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.kernel.AbstractGraphDatabase;
+import org.neo4j.kernel.GraphDatabaseAPI;
 
 class TreeNode {
+	// in a tree keeping sort keys, the sort keys of the entries packed in an
+	// array of their type on the first node
+	static final String SORT_KEYS = "sort_keys";
+
+	// the sort keys written by a transaction, by tree node id. The array can
+	// be set back to the value it had before the transaction and is then read
+	// stale after its next write, see VersionedProperties, so a transaction
+	// reads the sort keys it wrote from here
+	private static final Map<Transaction, Map<Long, Object>> writtenSortKeys =
+			new WeakHashMap<Transaction, Map<Long, Object>>();
+
 	private SortedTree bTree;
 	private Node treeNode;
 
@@ -195,25 +213,15 @@ class TreeNode {
 	}
 
 	Relationship addEntry(Node theNode, boolean ignoreIfExist) {
+		if (bTree.keepsSortKeys()) {
+			return addKeyedEntry(theNode, bTree.getSortKey(theNode), ignoreIfExist);
+		}
 		int entryCount = 0;
 		NodeEntry keyEntry = getFirstEntry();
 		while (keyEntry != null) {
 			Node currentNode = keyEntry.getANode();
 			if (bTree.getComparator().compare(theNode, currentNode) == 0) {
-				if (getBTree().isUniqueIndex()) {
-					throw new RuntimeException(
-							"Attempt to add duplicate entry to unique index");
-				}
-				for (Relationship relationship : keyEntry.getRelationships()) {
-					if (relationship.getEndNode().equals(theNode)) {
-						if (ignoreIfExist) {
-							return relationship;
-						}
-						throw new RuntimeException("Node already exist:"
-								+ theNode);
-					}
-				}
-				return keyEntry.addNode(theNode);
+				return addToEntry(keyEntry, theNode, ignoreIfExist);
 			}
 			entryCount++;
 			if (bTree.getComparator().compare(theNode, currentNode) < 0) {
@@ -272,7 +280,271 @@ class TreeNode {
 		return createEntry(treeNode, blankNode).addNode( theNode );
 	}
 
+	private Relationship addToEntry(NodeEntry keyEntry, Node theNode,
+			boolean ignoreIfExist) {
+		if (getBTree().isUniqueIndex()) {
+			throw new RuntimeException(
+					"Attempt to add duplicate entry to unique index");
+		}
+		for (Relationship relationship : keyEntry.getRelationships()) {
+			if (relationship.getEndNode().equals(theNode)) {
+				if (ignoreIfExist) {
+					return relationship;
+				}
+				throw new RuntimeException("Node already exist:"
+						+ theNode);
+			}
+		}
+		return keyEntry.addNode(theNode);
+	}
+
+	// addEntry in a tree keeping sort keys, the place of the node in this
+	// tree node is found with a binary search of the keys
+	private Relationship addKeyedEntry(Node theNode, Object sortKey,
+			boolean ignoreIfExist) {
+		Object sortKeys = getSortKeys();
+		int entryCount = Array.getLength(sortKeys);
+		if (entryCount == 0) {
+			// ok add first entry in root
+			assert isRoot();
+			Node blankNode = bTree.getGraphDb().createNode();
+			NodeEntry nodeEntry = createKeyedEntry(treeNode, blankNode, sortKey);
+			storeSortKeys();
+			return nodeEntry.addNode(theNode);
+		}
+		int index = searchSortKeys(sortKeys, sortKey);
+		if (index >= 0) {
+			return addToEntry(getEntry(index), theNode, ignoreIfExist);
+		}
+		index = -index - 1;
+		Relationship keyValueRelationship;
+		if (index < entryCount) {
+			NodeEntry keyEntry = getEntry(index);
+			TreeNode subTree = keyEntry.getBeforeSubTree();
+			if (subTree != null) {
+				return subTree.addKeyedEntry(theNode, sortKey, ignoreIfExist);
+			}
+			Node blankNode = bTree.getGraphDb().createNode();
+			keyValueRelationship = createKeyedEntry(keyEntry.getStartNode(),
+					blankNode, sortKey).addNode(theNode);
+			// move previous keyEntry to start at blank node
+			keyEntry.move(this, blankNode, keyEntry.getEndNode());
+		} else {
+			NodeEntry keyEntry = getEntry(entryCount - 1);
+			TreeNode subTree = keyEntry.getAfterSubTree();
+			if (subTree != null) {
+				return subTree.addKeyedEntry(theNode, sortKey, ignoreIfExist);
+			}
+			Node blankNode = bTree.getGraphDb().createNode();
+			keyValueRelationship = createKeyedEntry(keyEntry.getEndNode(),
+					blankNode, sortKey).addNode(theNode);
+		}
+		storeSortKeys(insertSortKey(sortKeys, index, sortKey));
+		entryCount++;
+		assert entryCount <= bTree.getOrder();
+		if (bTree.getOrder() == entryCount) {
+			moveMiddleUp();
+		}
+		return keyValueRelationship;
+	}
+
+	// in a tree keeping sort keys, the entry with sortKey in this tree node
+	// or below it, null if there is none
+	private NodeEntry findSortKey(Object sortKey) {
+		Object sortKeys = getSortKeys();
+		int entryCount = Array.getLength(sortKeys);
+		if (entryCount == 0) {
+			return null;
+		}
+		int index = searchSortKeys(sortKeys, sortKey);
+		if (index >= 0) {
+			return getEntry(index);
+		}
+		index = -index - 1;
+		TreeNode subTree = index < entryCount ? getEntry(index)
+				.getBeforeSubTree() : getEntry(entryCount - 1).getAfterSubTree();
+		return subTree != null ? subTree.findSortKey(sortKey) : null;
+	}
+
+	// the entry at index, null if index is the number of entries. This still
+	// walks the key entry chain, so finding an entry after the binary search
+	// costs up to order relationship hops, only the nodes of the other
+	// entries aren't read
+	NodeEntry getEntry(int index) {
+		NodeEntry entry = getFirstEntry();
+		for (int i = 0; i < index; i++) {
+			entry = entry.getNextKey();
+		}
+		return entry;
+	}
+
+	// the index of the first entry with a key above the bound, or equal to it
+	// if inclusive, the number of entries if there is none
+	<T> int ceilingIndex(T bound, boolean inclusive, PropertyComparator<T> comp) {
+		if (bTree.keepsSortKeys()) {
+			int index = searchSortKeys(getSortKeys(), bound);
+			if (index >= 0) {
+				return inclusive ? index : index + 1;
+			}
+			return -index - 1;
+		}
+		int index = 0;
+		NodeEntry entry = getFirstEntry();
+		while (entry != null) {
+			int result = comp.compare(bound, entry.getANode());
+			if (result < 0 || (result == 0 && inclusive)) {
+				return index;
+			}
+			index++;
+			entry = entry.getNextKey();
+		}
+		return index;
+	}
+
+	// the packed sort keys of this tree node, or if they are missing, as in
+	// a new root, the sort keys of the entries packed the same way
+	private Object getSortKeys() {
+		Map<Long, Object> written = getWrittenSortKeys(false);
+		Object sortKeys = written != null ? written.get(treeNode.getId())
+				: null;
+		if (sortKeys == null) {
+			sortKeys = treeNode.getProperty(SORT_KEYS, null);
+		}
+		if (sortKeys == null) {
+			sortKeys = packSortKeys(collectSortKeys());
+		}
+		return sortKeys;
+	}
+
+	// the sort keys written by the current transaction, null if it has
+	// written none and create is false
+	private Map<Long, Object> getWrittenSortKeys(boolean create) {
+		Transaction tx;
+		try {
+			tx = ((GraphDatabaseAPI) bTree.getGraphDb())
+					.getDependencyResolver()
+					.resolveDependency(TransactionManager.class)
+					.getTransaction();
+		} catch (SystemException e) {
+			throw new RuntimeException("Error accessing current transaction", e);
+		}
+		if (tx == null) {
+			return null;
+		}
+		synchronized (writtenSortKeys) {
+			Map<Long, Object> written = writtenSortKeys.get(tx);
+			if (written == null && create) {
+				written = new HashMap<Long, Object>();
+				writtenSortKeys.put(tx, written);
+			}
+			return written;
+		}
+	}
+
+	private List<Object> collectSortKeys() {
+		List<Object> sortKeys = new ArrayList<Object>();
+		NodeEntry entry = getFirstEntry();
+		while (entry != null) {
+			sortKeys.add(entry.getSortKey());
+			entry = entry.getNextKey();
+		}
+		return sortKeys;
+	}
+
+	// packs the sort keys of the entries after a change of this tree node,
+	// the entries carry their sort keys on the key entry relationships
+	void storeSortKeys() {
+		if (bTree.keepsSortKeys()) {
+			storeSortKeys(packSortKeys(collectSortKeys()));
+		}
+	}
+
+	private void storeSortKeys(Object sortKeys) {
+		treeNode.setProperty(SORT_KEYS, sortKeys);
+		Map<Long, Object> written = getWrittenSortKeys(true);
+		if (written != null) {
+			written.put(treeNode.getId(), sortKeys);
+		}
+	}
+
+	private static Object packSortKeys(List<Object> sortKeys) {
+		Class<?> type = sortKeys.isEmpty() ? long.class : sortKeyType(sortKeys
+				.get(0));
+		Object array = Array.newInstance(type, sortKeys.size());
+		for (int i = 0; i < sortKeys.size(); i++) {
+			Array.set(array, i, sortKeys.get(i));
+		}
+		return array;
+	}
+
+	private static Object insertSortKey(Object sortKeys, int index,
+			Object sortKey) {
+		int length = Array.getLength(sortKeys);
+		if (length == 0) {
+			List<Object> single = new ArrayList<Object>();
+			single.add(sortKey);
+			return packSortKeys(single);
+		}
+		Object array = Array.newInstance(sortKeys.getClass()
+				.getComponentType(), length + 1);
+		System.arraycopy(sortKeys, 0, array, 0, index);
+		Array.set(array, index, sortKey);
+		System.arraycopy(sortKeys, index, array, index + 1, length - index);
+		return array;
+	}
+
+	// a binary search of the packed sort keys, returns the index of the
+	// entry with an equal key, else (-(insertion point) - 1)
+	private static int searchSortKeys(Object sortKeys, Object sortKey) {
+		int low = 0;
+		int high = Array.getLength(sortKeys) - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int result = compareSortKeys(Array.get(sortKeys, middle), sortKey);
+			if (result < 0) {
+				low = middle + 1;
+			} else if (result > 0) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+		}
+		return -(low + 1);
+	}
+
+	@SuppressWarnings("unchecked")
+	static int compareSortKeys(Object sortKey1, Object sortKey2) {
+		return ((Comparable<Object>) sortKey1).compareTo(sortKey2);
+	}
+
+	private static Class<?> sortKeyType(Object sortKey) {
+		if (sortKey instanceof String) {
+			return String.class;
+		} else if (sortKey instanceof Long) {
+			return long.class;
+		} else if (sortKey instanceof Integer) {
+			return int.class;
+		} else if (sortKey instanceof Short) {
+			return short.class;
+		} else if (sortKey instanceof Byte) {
+			return byte.class;
+		} else if (sortKey instanceof Character) {
+			return char.class;
+		} else if (sortKey instanceof Double) {
+			return double.class;
+		} else if (sortKey instanceof Float) {
+			return float.class;
+		}
+		throw new IllegalArgumentException("Sort key " + sortKey
+				+ " can't be kept in an array");
+	}
+
 	<T> Iterable<Node> getWithValue(T val, PropertyComparator<T> comp) {
+		if (bTree.keepsSortKeys()) {
+			// the value is a sort key
+			NodeEntry keyEntry = findSortKey(val);
+			return keyEntry != null ? keyEntry.getNodes() : new EmptyNodeIterable();
+		}
 		int entryCount = 0;
 		NodeEntry keyEntry = getFirstEntry();
 		while (keyEntry != null) {
@@ -332,6 +604,9 @@ class TreeNode {
 	}
 	
 	<T> boolean containsValue(T val, PropertyComparator<T> comp) {
+		if (bTree.keepsSortKeys()) {
+			return findSortKey(val) != null;
+		}
 		int entryCount = 0;
 		NodeEntry keyEntry = getFirstEntry();
 		while (keyEntry != null) {
@@ -365,6 +640,10 @@ class TreeNode {
 	
 	
 	boolean containsEntry(Node theNode) {
+		if (bTree.keepsSortKeys()) {
+			NodeEntry keyEntry = findSortKey(bTree.getSortKey(theNode));
+			return keyEntry != null && keyEntry.containsNode(theNode);
+		}
 		int entryCount = 0;
 		NodeEntry keyEntry = getFirstEntry();
 		while (keyEntry != null) {
@@ -401,9 +680,12 @@ class TreeNode {
 		return false;
 	}
 
-	private NodeEntry createEntry(Node startNode, Node endNode, Node theNode) {
-		NodeEntry newEntry = createEntry( startNode, endNode );
-        newEntry.addNode( theNode );
+	private NodeEntry createEntry(Node startNode, Node endNode,
+			Iterable<Node> theNodes, Object sortKey) {
+		NodeEntry newEntry = createKeyedEntry( startNode, endNode, sortKey );
+		for (Node n : theNodes) {
+			newEntry.addNode( n );
+		}
 		return newEntry;
 	}
 
@@ -411,23 +693,38 @@ class TreeNode {
         return new NodeEntry( this, startNode.createRelationshipTo(endNode, RelTypes.KEY_ENTRY));
 	}
 
+	private NodeEntry createKeyedEntry(Node startNode, Node endNode,
+			Object sortKey) {
+		NodeEntry newEntry = createEntry(startNode, endNode);
+		if (sortKey != null) {
+			newEntry.setSortKey(sortKey);
+		}
+		return newEntry;
+	}
+
 	boolean isRoot() {
 		return treeNode.getSingleRelationship(RelTypes.TREE_ROOT,
 				Direction.INCOMING) != null;
 	}
 
-	private NodeEntry insertEntry(Iterable<Node> theNodes) {
+	private NodeEntry insertEntry(Iterable<Node> theNodes, Object sortKey) {
 		assert theNodes.iterator().hasNext() == true;
 		Node theNode = theNodes.iterator().next();
 		NodeEntry keyEntry = getFirstEntry();
 		while (keyEntry != null) {
-			Node currentNode = keyEntry.getANode();
-			assert !currentNode.equals(theNode);
+			int result;
+			if (sortKey != null) {
+				result = compareSortKeys(sortKey, keyEntry.getSortKey());
+			} else {
+				Node currentNode = keyEntry.getANode();
+				assert !currentNode.equals(theNode);
+				result = bTree.getComparator().compare(theNode, currentNode);
+			}
 
-			if (bTree.getComparator().compare(theNode, currentNode) < 0) {
+			if (result < 0) {
 				// create new blank node for key entry relationship
 				Node blankNode = bTree.getGraphDb().createNode();
-				NodeEntry newEntry = createEntry(keyEntry.getStartNode(), blankNode);
+				NodeEntry newEntry = createKeyedEntry(keyEntry.getStartNode(), blankNode, sortKey);
 				for (Node n : theNodes) {
                     newEntry.addNode(n);
 				}
@@ -439,13 +736,13 @@ class TreeNode {
 			if (keyEntry.getNextKey() == null) {
 				// just append the element
 				Node blankNode = bTree.getGraphDb().createNode();
-				return createEntry(keyEntry.getEndNode(), blankNode, theNode);
+				return createEntry(keyEntry.getEndNode(), blankNode, theNodes, sortKey);
 			}
 			keyEntry = keyEntry.getNextKey();
 		}
 		// ok insert first entry (in new root)
 		Node blankNode = bTree.getGraphDb().createNode();
-        return createEntry( treeNode, blankNode, theNode );
+        return createEntry( treeNode, blankNode, theNodes, sortKey );
 	}
 
 	private void moveMiddleUp() {
@@ -467,7 +764,8 @@ class TreeNode {
 		TreeNode newTreeToTheRight = new TreeNode(bTree,
 				middleEntry.getEndNode());
 		// copy middle entry values to parent then remove it from this tree
-		NodeEntry movedMiddleEntry = parent.insertEntry(middleEntry.getNodes());
+		NodeEntry movedMiddleEntry = parent.insertEntry(middleEntry.getNodes(),
+				middleEntry.getSortKey());
 		Iterable<Relationship> valueRelations = middleEntry.getEndNode()
 				.getRelationships(NodeCollection.RelationshipTypes.VALUE, Direction.OUTGOING);
 		for (Relationship rel : valueRelations) {
@@ -479,6 +777,9 @@ class TreeNode {
 				this.getUnderlyingNode(), RelTypes.SUB_TREE);
 		movedMiddleEntry.getEndNode().createRelationshipTo(
 				newTreeToTheRight.getUnderlyingNode(), RelTypes.SUB_TREE);
+		storeSortKeys();
+		newTreeToTheRight.storeSortKeys();
+		parent.storeSortKeys();
 		int parentEntryCount = parent.getEntryCount();
 		if (parentEntryCount == bTree.getOrder()) {
 			parent.moveMiddleUp();
@@ -487,6 +788,15 @@ class TreeNode {
 	}
 
 	public boolean removeEntry(Node theNode) {
+		if (bTree.keepsSortKeys()) {
+			NodeEntry keyEntry = findSortKey(bTree.getSortKey(theNode));
+			if (keyEntry == null || !keyEntry.containsNode(theNode)) {
+				return false;
+			}
+			TreeNode tree = keyEntry.getTreeNode();
+			return tree.removeEntry(keyEntry, theNode,
+					Array.getLength(tree.getSortKeys()));
+		}
 		NodeEntry entry = null;
 		NodeEntry keyEntry = getFirstEntry();
 		if (keyEntry == null) {
@@ -534,6 +844,12 @@ class TreeNode {
 			keyEntry = keyEntry.getNextKey();
 		}
 		assert entry != null;
+		return removeEntry(entry, theNode, entryCount);
+	}
+
+	// removes theNode from entry of this tree node which has entryCount
+	// entries
+	private boolean removeEntry(NodeEntry entry, Node theNode, int entryCount) {
 		// remove the found key
 		Iterable<Relationship> entryRels = entry.getEndNode().getRelationships(
 				NodeCollection.RelationshipTypes.VALUE, Direction.OUTGOING);
@@ -553,6 +869,7 @@ class TreeNode {
 				// Node value = entry.getTheNode();
 				entry.getUnderlyingRelationship().delete();
 				entry.getEndNode().delete();
+				storeSortKeys();
 				entryCount--;
 				if (entryCount < (bTree.getOrder() / 2) && !isRoot()) {
 					tryBorrowFromSibling();
@@ -571,6 +888,8 @@ class TreeNode {
 				successor.move(this, entry.getStartNode(), entry.getEndNode());
 				// Node value = entry.getTheNode();
 				entry.getUnderlyingRelationship().delete();
+				storeSortKeys();
+				leafTree.storeSortKeys();
 				// verify subTree entryCount
 				entryCount = leafTree.getEntryCount();
 				if (entryCount < (bTree.getOrder() / 2) && !leafTree.isRoot()) {
@@ -599,7 +918,7 @@ class TreeNode {
 		}
 	}
 
-	private void borrowFromLeftSibling(TreeNode leftSibling) {
+	void borrowFromLeftSibling(TreeNode leftSibling) {
 		// get last entry from sibling and set it as new parent, move parent
 		// down to fill up for deleted entry
 		// get after subtree from last entry in sibling and add it as
@@ -649,6 +968,9 @@ class TreeNode {
 		if (subTree != null) {
 			subTree.connectToParent(newStartNode);
 		}
+		parentNode.storeSortKeys();
+		leftSibling.storeSortKeys();
+		storeSortKeys();
 	}
 
 	private void borrowFromRightSibling(TreeNode rightSibling) {
@@ -699,6 +1021,9 @@ class TreeNode {
 		if (subTree != null) {
 			subTree.connectToParent(newLastNode);
 		}
+		parentNode.storeSortKeys();
+		rightSibling.storeSortKeys();
+		storeSortKeys();
 	}
 
 	private void mergeWithLeftSibling(TreeNode leftSibling) {
@@ -731,6 +1056,8 @@ class TreeNode {
 		if (subTree != null) {
 			subTree.connectToParent(blankNode);
 		}
+		parentNode.storeSortKeys();
+		storeSortKeys();
 		// validate parent
 		int entryCount = parentNode.getEntryCount();
 		if (entryCount < bTree.getOrder() / 2 && !parentNode.isRoot()) {
@@ -772,6 +1099,8 @@ class TreeNode {
 		if (subTree != null) {
 			subTree.connectToParent(blankNode);
 		}
+		parentNode.storeSortKeys();
+		storeSortKeys();
 		// validate parent
 		int entryCount = parentNode.getEntryCount();
 		if (entryCount < bTree.getOrder() / 2 && !parentNode.isRoot()) {
@@ -0,0 +1,206 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.collections.timeline;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import org.neo4j.graphdb.Node;
+
+/**
+ * A read only view over several {@link TimelineIndex}es, returning their
+ * nodes as one stream ordered by decreasing timestamp, f.ex. to build a feed
+ * out of the timelines of the users someone follows.
+ * 
+ * The timelines are merged lazily: each timeline is only read as far as
+ * needed for the nodes actually returned. A node added to several of the
+ * timelines is returned once for each of them.
+ * 
+ * As with the other timeline queries the returned {@link Iterable}s must be
+ * used within a transaction.
+ */
+public class MergedTimeline
+{
+    private final List<TimelineIndex> timelines;
+
+    /**
+     * Creates a merged view over {@code timelines}.
+     * 
+     * @param timelines the timelines to merge.
+     */
+    public MergedTimeline( Collection<? extends TimelineIndex> timelines )
+    {
+        if ( timelines == null )
+        {
+            throw new IllegalArgumentException( "Null timelines" );
+        }
+        this.timelines = new ArrayList<TimelineIndex>( timelines );
+    }
+
+    /**
+     * Returns all nodes of the merged timelines ordered by decreasing
+     * timestamp.
+     * 
+     * @return all nodes, newest first.
+     */
+    public Iterable<Node> getAllNodesDescending()
+    {
+        return getAllNodesDescending( null, null, Integer.MAX_VALUE );
+    }
+
+    /**
+     * Returns at most {@code limit} nodes of the merged timelines after
+     * (exclusive) {@code afterTimestampOrNull} and before (exclusive)
+     * {@code beforeTimestampOrNull}, ordered by decreasing timestamp.
+     * 
+     * @param afterTimestampOrNull the start timestamp or {@code null}.
+     * @param beforeTimestampOrNull the end timestamp or {@code null}.
+     * @param limit the maximum number of nodes to return.
+     * @return the nodes in the range, newest first.
+     */
+    public Iterable<Node> getAllNodesDescending( final Long afterTimestampOrNull,
+            final Long beforeTimestampOrNull, final int limit )
+    {
+        if ( limit < 0 )
+        {
+            throw new IllegalArgumentException( "Negative limit " + limit );
+        }
+        return new Iterable<Node>()
+        {
+            public Iterator<Node> iterator()
+            {
+                return new MergingIterator( afterTimestampOrNull,
+                        beforeTimestampOrNull, limit );
+            }
+        };
+    }
+
+    private class MergingIterator implements Iterator<Node>
+    {
+        private final Long afterTimestampOrNull;
+        private final Long beforeTimestampOrNull;
+        private final int limit;
+        private PriorityQueue<Source> heap;
+        // the source of the last returned node, advanced on demand
+        private Source pending;
+        private int returned;
+
+        MergingIterator( Long afterTimestampOrNull, Long beforeTimestampOrNull,
+                int limit )
+        {
+            this.afterTimestampOrNull = afterTimestampOrNull;
+            this.beforeTimestampOrNull = beforeTimestampOrNull;
+            this.limit = limit;
+        }
+
+        public boolean hasNext()
+        {
+            if ( returned >= limit )
+            {
+                return false;
+            }
+            if ( heap == null )
+            {
+                heap = new PriorityQueue<Source>( Math.max( 1, timelines.size() ),
+                        NEWEST_FIRST );
+                for ( int i = 0; i < timelines.size(); i++ )
+                {
+                    Source source = new Source( timelines.get( i ), i,
+                            afterTimestampOrNull, beforeTimestampOrNull );
+                    if ( source.advance() )
+                    {
+                        heap.add( source );
+                    }
+                }
+            }
+            if ( pending != null )
+            {
+                if ( pending.advance() )
+                {
+                    heap.add( pending );
+                }
+                pending = null;
+            }
+            return !heap.isEmpty();
+        }
+
+        public Node next()
+        {
+            if ( !hasNext() )
+            {
+                throw new NoSuchElementException();
+            }
+            pending = heap.poll();
+            returned++;
+            return pending.head;
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static final Comparator<Source> NEWEST_FIRST = new Comparator<Source>()
+    {
+        public int compare( Source source1, Source source2 )
+        {
+            if ( source1.headTimestamp != source2.headTimestamp )
+            {
+                return source1.headTimestamp > source2.headTimestamp ? -1 : 1;
+            }
+            return source1.order - source2.order;
+        }
+    };
+
+    // the not yet returned nodes of one timeline, with the next one as head
+    private static class Source
+    {
+        private final int order;
+        private final TimelineIterator nodes;
+        private Node head;
+        private long headTimestamp;
+
+        Source( TimelineIndex timeline, int order, Long afterTimestampOrNull,
+                Long beforeTimestampOrNull )
+        {
+            this.order = order;
+            this.nodes = timeline.getAllNodesDescending( afterTimestampOrNull,
+                    beforeTimestampOrNull ).iterator();
+        }
+
+        boolean advance()
+        {
+            if ( !nodes.hasNext() )
+            {
+                head = null;
+                return false;
+            }
+            headTimestamp = nodes.getTimestamp();
+            head = nodes.next();
+            return true;
+        }
+    }
+}
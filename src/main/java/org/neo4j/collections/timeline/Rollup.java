@@ -0,0 +1,269 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.collections.timeline;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.neo4j.collections.VersionedProperties;
+import org.neo4j.collections.btree.BTree;
+import org.neo4j.collections.btree.KeyEntry;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+
+/**
+ * The buckets of one granularity of a {@link Timeline} rollup. The rollup
+ * node holds the granularity and the optional property to sum, it has a
+ * {@link BTree} from bucket start to the bucket nodes holding the counts
+ * and sums. All methods but {@link #delete(int)} expect an enclosing
+ * transaction.
+ */
+class Rollup
+{
+    private static final String GRANULARITY = "granularity";
+    private static final String SUM_PROPERTY = "sum_property";
+    private static final String BUCKET_START = "bucket_start";
+    // the count and sum of a bucket, see VersionedProperties
+    private static final String COUNT = "count";
+    private static final String SUM = "sum";
+    // buckets starting before this have been deleted
+    private static final String DELETED_BEFORE = "deleted_before";
+
+    private final GraphDatabaseService graphDb;
+    private final Node rollupNode;
+
+    Rollup( GraphDatabaseService graphDb, Node rollupNode )
+    {
+        this.graphDb = graphDb;
+        this.rollupNode = rollupNode;
+    }
+
+    static Rollup create( GraphDatabaseService graphDb, Node rollupNode,
+            long granularity, String sumPropertyOrNull )
+    {
+        rollupNode.setProperty( GRANULARITY, granularity );
+        if ( sumPropertyOrNull != null )
+        {
+            rollupNode.setProperty( SUM_PROPERTY, sumPropertyOrNull );
+        }
+        Node bTreeNode = graphDb.createNode();
+        rollupNode.createRelationshipTo( bTreeNode, BTree.RelTypes.TREE_ROOT );
+        return new Rollup( graphDb, rollupNode );
+    }
+
+    Node getUnderlyingNode()
+    {
+        return rollupNode;
+    }
+
+    long getGranularity()
+    {
+        return (Long) rollupNode.getProperty( GRANULARITY );
+    }
+
+    void added( long timestamp, Node node )
+    {
+        update( timestamp, node, 1 );
+    }
+
+    void removed( long timestamp, Node node )
+    {
+        update( timestamp, node, -1 );
+    }
+
+    private void update( long timestamp, Node node, int delta )
+    {
+        BTree bTree = getBTree();
+        long bucketStart = getBucketStart( timestamp );
+        Long bucketId = (Long) bTree.getEntry( bucketStart );
+        Node bucket;
+        if ( bucketId == null )
+        {
+            bucket = graphDb.createNode();
+            bucket.setProperty( BUCKET_START, bucketStart );
+            VersionedProperties.setLong( bucket, COUNT, 0 );
+            VersionedProperties.setDouble( bucket, SUM, 0 );
+            bTree.addEntry( bucketStart, bucket.getId() );
+        }
+        else
+        {
+            bucket = graphDb.getNodeById( bucketId );
+        }
+        long count = VersionedProperties.getLong( bucket, COUNT, 0 ) + delta;
+        if ( count <= 0 )
+        {
+            bTree.removeEntry( bucketStart );
+            bucket.delete();
+            return;
+        }
+        VersionedProperties.setLong( bucket, COUNT, count );
+        String sumProperty = (String) rollupNode.getProperty( SUM_PROPERTY, null );
+        if ( sumProperty != null )
+        {
+            Object value = node.getProperty( sumProperty, null );
+            if ( value instanceof Number )
+            {
+                VersionedProperties.addToDouble( bucket, SUM,
+                        delta * ( (Number) value ).doubleValue() );
+            }
+        }
+    }
+
+    List<RollupBucket> getBuckets( long from, long to )
+    {
+        long granularity = getGranularity();
+        BTree bTree = getBTree();
+        List<RollupBucket> buckets = new ArrayList<RollupBucket>();
+        for ( KeyEntry entry : bTree.entries( getBucketStart( from ), to ) )
+        {
+            Node bucket = graphDb.getNodeById( (Long) entry.getValue() );
+            buckets.add( new RollupBucket( entry.getKey(), granularity,
+                    VersionedProperties.getLong( bucket, COUNT, 0 ),
+                    VersionedProperties.getDouble( bucket, SUM, 0 ) ) );
+        }
+        return buckets;
+    }
+
+    void delete()
+    {
+        BTree bTree = getBTree();
+        Long bucketId = (Long) bTree.getClosestHigherEntry( Long.MIN_VALUE );
+        while ( bucketId != null )
+        {
+            Node bucket = graphDb.getNodeById( bucketId );
+            long bucketStart = (Long) bucket.getProperty( BUCKET_START );
+            bucket.delete();
+            bucketId = (Long) bTree.getClosestHigherEntry( bucketStart + 1 );
+        }
+        bTree.delete();
+        for ( Relationship rel : rollupNode.getRelationships() )
+        {
+            rel.delete();
+        }
+        rollupNode.delete();
+    }
+
+    /**
+     * Deletes the rollup in transactions of {@code commitInterval}
+     * operations. The bucket nodes are deleted first, keeping track of how
+     * far that got, then the b-tree and at last the rollup node, so an
+     * interrupted delete continues where it left off when called again.
+     */
+    void delete( int commitInterval )
+    {
+        while ( deleteBuckets( commitInterval ) )
+        {
+            // next batch
+        }
+        Transaction tx = graphDb.beginTx();
+        BTree bTree;
+        try
+        {
+            bTree = rollupNode.hasRelationship( BTree.RelTypes.TREE_ROOT,
+                    Direction.OUTGOING ) ? getBTree() : null;
+            tx.success();
+        }
+        finally
+        {
+            tx.finish();
+        }
+        if ( bTree != null )
+        {
+            bTree.delete( commitInterval );
+        }
+        tx = graphDb.beginTx();
+        try
+        {
+            for ( Relationship rel : rollupNode.getRelationships() )
+            {
+                rel.delete();
+            }
+            rollupNode.delete();
+            tx.success();
+        }
+        finally
+        {
+            tx.finish();
+        }
+    }
+
+    // deletes the next commitInterval bucket nodes, returns true if there
+    // are more left
+    private boolean deleteBuckets( int commitInterval )
+    {
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            if ( !rollupNode.hasRelationship( BTree.RelTypes.TREE_ROOT,
+                    Direction.OUTGOING ) )
+            {
+                tx.success();
+                return false;
+            }
+            BTree bTree = getBTree();
+            long deletedBefore = (Long) rollupNode.getProperty( DELETED_BEFORE,
+                    Long.MIN_VALUE );
+            Long bucketId = (Long) bTree.getClosestHigherEntry( deletedBefore );
+            for ( int i = 0; i < commitInterval && bucketId != null; i++ )
+            {
+                Node bucket = graphDb.getNodeById( bucketId );
+                long bucketStart = (Long) bucket.getProperty( BUCKET_START );
+                bucket.delete();
+                if ( bucketStart == Long.MAX_VALUE )
+                {
+                    bucketId = null;
+                    break;
+                }
+                deletedBefore = bucketStart + 1;
+                bucketId = (Long) bTree.getClosestHigherEntry( deletedBefore );
+            }
+            rollupNode.setProperty( DELETED_BEFORE, bucketId != null ? deletedBefore
+                    : Long.MAX_VALUE );
+            tx.success();
+            return bucketId != null;
+        }
+        finally
+        {
+            tx.finish();
+        }
+    }
+
+    private BTree getBTree()
+    {
+        Relationship bTreeRel = rollupNode.getSingleRelationship(
+                BTree.RelTypes.TREE_ROOT, Direction.OUTGOING );
+        return new BTree( graphDb, bTreeRel.getEndNode() );
+    }
+
+    private long getBucketStart( long timestamp )
+    {
+        long granularity = getGranularity();
+        long bucketStart = timestamp - timestamp % granularity;
+        if ( bucketStart > timestamp )
+        {
+            // negative timestamps round down too
+            bucketStart -= granularity;
+        }
+        return bucketStart;
+    }
+}
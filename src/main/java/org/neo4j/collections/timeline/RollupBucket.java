@@ -0,0 +1,80 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.collections.timeline;
+
+/**
+ * The pre-aggregated entries of a {@link Timeline} in one time bucket of a
+ * rollup, see {@link Timeline#addRollup(long, String)}.
+ */
+public final class RollupBucket
+{
+    private final long start;
+    private final long granularity;
+    private final long count;
+    private final double sum;
+
+    RollupBucket( long start, long granularity, long count, double sum )
+    {
+        this.start = start;
+        this.granularity = granularity;
+        this.count = count;
+        this.sum = sum;
+    }
+
+    /**
+     * @return the first timestamp of this bucket.
+     */
+    public long getStart()
+    {
+        return start;
+    }
+
+    /**
+     * @return the timestamp after (exclusive) this bucket.
+     */
+    public long getEnd()
+    {
+        return start + granularity;
+    }
+
+    /**
+     * @return the number of timeline entries in this bucket.
+     */
+    public long getCount()
+    {
+        return count;
+    }
+
+    /**
+     * @return the sum of the rollup property of the nodes in this bucket, or
+     *         0 if the rollup doesn't sum a property.
+     */
+    public double getSum()
+    {
+        return sum;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "RollupBucket[" + start + ", count=" + count + ", sum=" + sum
+               + "]";
+    }
+}
@@ -22,22 +22,25 @@ package org.neo4j.collections.timeline;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
+import org.neo4j.collections.VersionedProperties;
 import org.neo4j.collections.btree.BTree;
+import org.neo4j.collections.btree.KeyEntry;
+import org.neo4j.collections.rtree.Listener;
+import org.neo4j.collections.rtree.NullListener;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.RelationshipType;
 import org.neo4j.graphdb.ReturnableEvaluator;
 import org.neo4j.graphdb.StopEvaluator;
 import org.neo4j.graphdb.Transaction;
 import org.neo4j.graphdb.TraversalPosition;
-import org.neo4j.graphdb.Traverser;
 import org.neo4j.graphdb.Traverser.Order;
-import org.neo4j.kernel.AbstractGraphDatabase;
-
-import javax.transaction.TransactionManager;
+import org.neo4j.graphdb.index.RelationshipIndex;
 
 
 /**
@@ -55,17 +58,48 @@ public class Timeline implements TimelineIndex
     {
         TIMELINE_INSTANCE,
         TIMELINE_NEXT_ENTRY,
+        TIMELINE_ROLLUP,
     }
 
     private static final String TIMESTAMP = "timestamp";
     private static final String TIMELINE_NAME = "timeline_name";
     private static final String TIMELINE_IS_INDEXED = "timeline_indexed";
     private static final String INDEX_COUNT = "index_count";
-    private static int INDEX_TRIGGER_COUNT = 1000;
+    private static final String TIMELINE_MEMBERSHIP_INDEXED = "timeline_membership_indexed";
+    private static final String INSTANCE_INDEX = "timeline_instances";
+    private static final String INSTANCE_TIMELINE = "timeline";
+    private static final String INDEX_TRIGGER_COUNT = "index_trigger_count";
+    private static final String INDEX_ADAPTIVE = "index_adaptive";
+    private static final String INDEX_BUILDING = "index_building";
+    private static final String MEMBERSHIP_INDEX_BUILDING = "membership_index_building";
+    private static final String TIMELINE_DELETING = "timeline_deleting";
+    // set on an index whose segment counts count timeline entries, missing on
+    // timelines indexed by earlier versions which counted time nodes
+    private static final String INDEX_FORMAT = "index_format";
+    private static final int CURRENT_INDEX_FORMAT = 2;
+    private static final String INDEX_RECOUNTING = "index_recounting";
+    // {granularity} of a rollup being filled in, then {granularity, time
+    // node id, timestamp} of the last time node filled in
+    private static final String ROLLUP_BUILDING = "rollup_building";
+    private static final int ROLLUP_COMMIT_INTERVAL = 10000;
+    // the first of the time nodes cut off by truncateBefore not yet deleted
+    private static final String TRUNCATE_DETACHED = "truncate_detached";
+
+    /**
+     * The number of timeline entries between index entries, unless
+     * configured otherwise for a timeline.
+     */
+    public static final int DEFAULT_INDEX_TRIGGER_COUNT = 1000;
+    static final int MIN_ADAPTIVE_TRIGGER_COUNT = 64;
+    static final int MAX_ADAPTIVE_TRIGGER_COUNT = 64000;
+    // number of added entries between adjustments of an adaptive index
+    static final int ADAPT_INTERVAL = 1000;
 
     private final Node underlyingNode;
-    private final boolean indexed;
+    private boolean indexed;
+    private boolean membershipIndexed;
     private BTree indexBTree;
+    private RelationshipIndex instanceIndex;
     private final String name;
     private final GraphDatabaseService graphDb;
 
@@ -73,6 +107,10 @@ public class Timeline implements TimelineIndex
     private Node firstNode;
     private Node lastNode;
 
+    // usage counters for adaptive index density
+    private int addCount;
+    private int lookupCount;
+
     /**
      * Creates/loads a timeline. The <CODE>underlyingNode</CODE> can either be a
      * new (just created) node or a node that already represents a previously
@@ -98,6 +136,7 @@ public class Timeline implements TimelineIndex
         Transaction tx = graphDb.beginTx();
         try
         {
+            boolean created = !underlyingNode.hasProperty( TIMELINE_IS_INDEXED );
             assertPropertyIsSame( TIMELINE_NAME, name );
             this.name = name;
             assertPropertyIsSame( TIMELINE_IS_INDEXED, indexed );
@@ -106,14 +145,28 @@ public class Timeline implements TimelineIndex
             {
                 Relationship bTreeRel = underlyingNode.getSingleRelationship(
                         BTree.RelTypes.TREE_ROOT, Direction.OUTGOING );
-                if ( bTreeRel == null )
+                if ( bTreeRel == null && !isDeleting() )
                 {
                     Node bTreeNode = graphDb.createNode();
                     bTreeRel = underlyingNode.createRelationshipTo( bTreeNode,
                             BTree.RelTypes.TREE_ROOT );
+                    underlyingNode.setProperty( INDEX_FORMAT, CURRENT_INDEX_FORMAT );
+                }
+                // the index of a timeline being deleted may be gone already
+                if ( bTreeRel != null )
+                {
+                    indexBTree = new BTree( graphDb, bTreeRel.getEndNode() );
                 }
-                indexBTree = new BTree( graphDb, bTreeRel.getEndNode() );
             }
+            // new timelines get their instances in the membership index,
+            // older ones are looked up by scanning the relationships until
+            // buildMembershipIndex has been run on them
+            if ( created )
+            {
+                underlyingNode.setProperty( TIMELINE_MEMBERSHIP_INDEXED, true );
+            }
+            this.membershipIndexed = (Boolean) underlyingNode.getProperty(
+                    TIMELINE_MEMBERSHIP_INDEXED, false );
             tx.success();
         }
         finally
@@ -122,11 +175,145 @@ public class Timeline implements TimelineIndex
         }
     }
     
+    /**
+     * Creates/loads a timeline with the given index density, see
+     * {@link #setIndexTriggerCount(int)}.
+     * 
+     * @param name The unique name of the timeline or <CODE>null</CODE> if
+     *            timeline already exist
+     * @param underlyingNode The underlying node representing the timeline
+     * @param indexed Set to <CODE>true</CODE> if this timeline is indexed
+     * @param indexTriggerCount the number of entries between index entries
+     * @param graphDb the {@link GraphDatabaseService}
+     */
     public Timeline( String name, Node underlyingNode, boolean indexed, int indexTriggerCount,
             GraphDatabaseService graphDb ) 
     {
         this(name, underlyingNode, indexed, graphDb);
-        INDEX_TRIGGER_COUNT = indexTriggerCount;
+        setIndexTriggerCount( indexTriggerCount );
+    }
+
+    /**
+     * Returns the number of entries between index entries of this timeline.
+     * 
+     * @return the index trigger count of this timeline.
+     */
+    public int getIndexTriggerCount()
+    {
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            int indexTriggerCount = (Integer) underlyingNode.getProperty(
+                    INDEX_TRIGGER_COUNT, DEFAULT_INDEX_TRIGGER_COUNT );
+            tx.success();
+            return indexTriggerCount;
+        }
+        finally
+        {
+            tx.finish();
+        }
+    }
+
+    /**
+     * Sets the number of entries between index entries for this timeline,
+     * a lower count makes for faster lookups and a bigger index. The setting
+     * is stored with the timeline and applies to index entries created from
+     * now on.
+     * 
+     * @param indexTriggerCount the number of entries between index entries,
+     *            at least 4.
+     */
+    public void setIndexTriggerCount( int indexTriggerCount )
+    {
+        if ( (int) ( indexTriggerCount * 0.33f ) < 1 )
+        {
+            throw new IllegalArgumentException( "Index trigger count "
+                                                + indexTriggerCount
+                                                + " less than 4" );
+        }
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            underlyingNode.setProperty( INDEX_TRIGGER_COUNT, indexTriggerCount );
+            tx.success();
+        }
+        finally
+        {
+            tx.finish();
+        }
+    }
+
+    /**
+     * Returns {@code true} if the index density of this timeline adapts to
+     * how it is used.
+     * 
+     * @return {@code true} if the index density is adaptive.
+     */
+    public boolean isAdaptiveIndexing()
+    {
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            boolean adaptive = (Boolean) underlyingNode.getProperty(
+                    INDEX_ADAPTIVE, false );
+            tx.success();
+            return adaptive;
+        }
+        finally
+        {
+            tx.finish();
+        }
+    }
+
+    /**
+     * Turns adaptive index density on or off for this timeline. When on, the
+     * index trigger count is halved when there are about as many lookups as
+     * additions, and doubled when entries are just appended without being
+     * looked up, judged every {@value #ADAPT_INTERVAL} added entries by
+     * this instance.
+     * 
+     * @param adaptive {@code true} to adapt the index density.
+     */
+    public void setAdaptiveIndexing( boolean adaptive )
+    {
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            underlyingNode.setProperty( INDEX_ADAPTIVE, adaptive );
+            tx.success();
+        }
+        finally
+        {
+            tx.finish();
+        }
+        addCount = 0;
+        lookupCount = 0;
+    }
+
+    private void adaptIndexTriggerCount()
+    {
+        addCount++;
+        if ( addCount < ADAPT_INTERVAL || !isAdaptiveIndexing() )
+        {
+            return;
+        }
+        int indexTriggerCount = getIndexTriggerCount();
+        if ( lookupCount >= addCount )
+        {
+            indexTriggerCount = Math.max( MIN_ADAPTIVE_TRIGGER_COUNT,
+                    indexTriggerCount / 2 );
+        }
+        else if ( lookupCount < addCount / 100 )
+        {
+            indexTriggerCount = Math.min( MAX_ADAPTIVE_TRIGGER_COUNT,
+                    indexTriggerCount * 2 );
+        }
+        if ( indexTriggerCount != getIndexTriggerCount() )
+        {
+            underlyingNode.setProperty( INDEX_TRIGGER_COUNT, indexTriggerCount );
+        }
+        addCount = 0;
+        lookupCount = 0;
     }
 
     private void assertPropertyIsSame( String key, Object value )
@@ -175,6 +362,90 @@ public class Timeline implements TimelineIndex
         return underlyingNode;
     }
 
+    /**
+     * Returns {@code true} if this timeline is indexed, which includes a
+     * timeline whose index is still being built by
+     * {@link #buildIndex(int, Listener)}.
+     * 
+     * @return {@code true} if this timeline is indexed.
+     */
+    public boolean isIndexed()
+    {
+        return indexed;
+    }
+
+    /**
+     * Returns whether the timeline on {@code underlyingNode} is indexed,
+     * without loading it.
+     * 
+     * @param underlyingNode the underlying node of a timeline.
+     * @return whether the timeline is indexed, or <CODE>null</CODE> if
+     *         there is no timeline on the node yet.
+     */
+    public static Boolean isIndexed( Node underlyingNode )
+    {
+        Transaction tx = underlyingNode.getGraphDatabase().beginTx();
+        try
+        {
+            Boolean indexed = (Boolean) underlyingNode.getProperty(
+                    TIMELINE_IS_INDEXED, null );
+            tx.success();
+            return indexed;
+        }
+        finally
+        {
+            tx.finish();
+        }
+    }
+
+    private boolean isIndexBuilding()
+    {
+        return underlyingNode.hasProperty( INDEX_BUILDING );
+    }
+
+    /**
+     * Returns {@code true} if the nodes in this timeline are found through
+     * the membership index rather than by scanning their relationships,
+     * see {@link #buildMembershipIndex(int, Listener)}.
+     * 
+     * @return {@code true} if this timeline uses the membership index.
+     */
+    public boolean isMembershipIndexed()
+    {
+        return membershipIndexed;
+    }
+
+    // false for an index whose segment counts are from an earlier version,
+    // until recountIndex has been run on it
+    private boolean isIndexCounted()
+    {
+        return underlyingNode.hasProperty( INDEX_FORMAT );
+    }
+
+    private boolean isIndexRecounting()
+    {
+        return underlyingNode.hasProperty( INDEX_RECOUNTING );
+    }
+
+    private boolean isMembershipIndexBuilding()
+    {
+        return underlyingNode.hasProperty( MEMBERSHIP_INDEX_BUILDING );
+    }
+
+    private boolean isDeleting()
+    {
+        return underlyingNode.hasProperty( TIMELINE_DELETING );
+    }
+
+    private void assertNotDeleting()
+    {
+        if ( isDeleting() )
+        {
+            throw new IllegalStateException( "Timeline[" + name
+                                             + "] is being deleted" );
+        }
+    }
+
     public Node getLastNode()
     {
         if ( lastNode != null )
@@ -218,15 +489,14 @@ public class Timeline implements TimelineIndex
         Transaction tx = graphDb.beginTx();
         try
         {
-            for ( Relationship rel : nodeToAdd.getRelationships( RelTypes.TIMELINE_INSTANCE ) )
+            assertNotDeleting();
+            lockForIndexBuild( tx );
+            if ( getInstanceRelationship( nodeToAdd ) != null )
             {
-                if ( rel.getProperty( TIMELINE_NAME, "" ).equals( name ) )
-                {
-                    throw new IllegalArgumentException(
-                            "Node[" + nodeToAdd.getId()
-                                    + "] already connected to Timeline[" + name
-                                    + "]" );
-                }
+                throw new IllegalArgumentException(
+                        "Node[" + nodeToAdd.getId()
+                                + "] already connected to Timeline[" + name
+                                + "]" );
             }
             Relationship rel = underlyingNode.getSingleRelationship(
                     RelTypes.TIMELINE_NEXT_ENTRY, Direction.INCOMING );
@@ -240,7 +510,7 @@ public class Timeline implements TimelineIndex
                         RelTypes.TIMELINE_NEXT_ENTRY );
                 firstNode = nodeToAdd;
                 lastNode = nodeToAdd;
-                updateNodeAdded( timestamp );
+                updateNodeAdded( node );
             }
             else
             {
@@ -256,13 +526,12 @@ public class Timeline implements TimelineIndex
                     node.createRelationshipTo( underlyingNode,
                             RelTypes.TIMELINE_NEXT_ENTRY );
                     lastNode = nodeToAdd;
-                    updateNodeAdded( timestamp );
+                    updateNodeAdded( node );
                 }
                 else if ( timestamp == previousTime )
                 {
-                	Relationship instanceRel = previousLast.createRelationshipTo( nodeToAdd,
-                            RelTypes.TIMELINE_INSTANCE );
-                	instanceRel.setProperty( TIMELINE_NAME, name );
+                	createInstance( previousLast, nodeToAdd );
+                	updateNodeAdded( previousLast );
                 }
                 else
                 {
@@ -282,18 +551,18 @@ public class Timeline implements TimelineIndex
                     if ( previousTimestamp == timestamp )
                     {
                         // just connect previous with node to add
-                    	Relationship instanceRel = previous.createRelationshipTo( nodeToAdd,
-                                RelTypes.TIMELINE_INSTANCE );
-                    	instanceRel.setProperty( TIMELINE_NAME, name );
+                    	createInstance( previous, nodeToAdd );
+                    	updateNodeAdded( previous );
+                    	tx.success();
                         return;
                     }
                     long nextTimestamp = (Long) next.getProperty( TIMESTAMP );
                     if ( nextTimestamp == timestamp )
                     {
                         // just connect next with node to add
-                    	Relationship instanceRel = next.createRelationshipTo( nodeToAdd,
-                                RelTypes.TIMELINE_INSTANCE );
-                    	instanceRel.setProperty( TIMELINE_NAME, name );
+                    	createInstance( next, nodeToAdd );
+                    	updateNodeAdded( next );
+                    	tx.success();
                         return;
                     }
 
@@ -310,7 +579,7 @@ public class Timeline implements TimelineIndex
                     {
                         firstNode = nodeToAdd;
                     }
-                    updateNodeAdded( timestamp );
+                    updateNodeAdded( node );
                 }
             }
             tx.success();
@@ -325,163 +594,558 @@ public class Timeline implements TimelineIndex
     {
         Node node = graphDb.createNode();
         node.setProperty( TIMESTAMP, timestamp );
-        Relationship instanceRel = node.createRelationshipTo( nodeToAdd,
-                RelTypes.TIMELINE_INSTANCE );
-        instanceRel.setProperty( TIMELINE_NAME, name );
+        createInstance( node, nodeToAdd );
         return node;
     }
 
-    public long getTimestampForNode( Node node )
+    private void createInstance( Node timeNode, Node nodeToAdd )
     {
-        Transaction tx = graphDb.beginTx();
-        try
+        Relationship instanceRel = timeNode.createRelationshipTo( nodeToAdd,
+                RelTypes.TIMELINE_INSTANCE );
+        instanceRel.setProperty( TIMELINE_NAME, name );
+        if ( membershipIndexed || isMembershipIndexBuilding() )
         {
-            Traverser traverser = node.traverse( Traverser.Order.DEPTH_FIRST,
-                    StopEvaluator.END_OF_GRAPH, new ReturnableEvaluator()
-                    {
-                        public boolean isReturnableNode(
-                                TraversalPosition position )
-                        {
-                            Node currentNode = position.currentNode();
-                            return currentNode != null
-                                   && !currentNode.hasRelationship(
-                                           RelTypes.TIMELINE_INSTANCE,
-                                           Direction.INCOMING );
-                        }
-                    }, RelTypes.TIMELINE_INSTANCE, Direction.INCOMING );
-
-            Iterator<Node> hits = traverser.iterator();
-            Long result = null;
-            if ( hits.hasNext() )
-            {
-                Node hit = hits.next();
-                result = (Long) hit.getProperty( TIMESTAMP );
-            }
-            else
-            {
-                throw new RuntimeException(
-                        "No timpestamp found for '" + node
-                                + "' maybe it's not in the timeline?" );
-            }
-            tx.success();
-            return result;
+            getInstanceIndex().add( instanceRel, INSTANCE_TIMELINE,
+                    underlyingNode.getId() );
         }
-        finally
+        long timestamp = (Long) timeNode.getProperty( TIMESTAMP );
+        for ( Rollup rollup : getRollups() )
         {
-            tx.finish();
+            if ( isRolledUp( rollup, timestamp ) )
+            {
+                rollup.added( timestamp, nodeToAdd );
+            }
         }
     }
 
-    private synchronized void updateNodeAdded( final long timestamp )
+    private void deleteInstance( Relationship instanceRel )
     {
-        if ( !indexed )
+        if ( membershipIndexed || isMembershipIndexBuilding() )
         {
-            return;
+            getInstanceIndex().remove( instanceRel );
         }
-        Long nodeId = (Long) indexBTree.getClosestHigherEntry( timestamp );
-        if ( nodeId == null )
+        long timestamp = (Long) instanceRel.getStartNode().getProperty( TIMESTAMP );
+        for ( Rollup rollup : getRollups() )
         {
-            // no indexing yet, check if time to add index
-            int indexCount = (Integer) underlyingNode.getProperty( INDEX_COUNT,
-                    0 );
-            indexCount++;
-            if ( indexCount >= INDEX_TRIGGER_COUNT )
+            if ( isRolledUp( rollup, timestamp ) )
             {
-                indexCount = createIndex( underlyingNode, indexCount );
+                rollup.removed( timestamp, instanceRel.getEndNode() );
             }
-            underlyingNode.setProperty( INDEX_COUNT, indexCount );
         }
-        else
+        instanceRel.delete();
+    }
+
+    private List<Rollup> getRollups()
+    {
+        List<Rollup> rollups = new ArrayList<Rollup>();
+        for ( Relationship rel : underlyingNode.getRelationships(
+                RelTypes.TIMELINE_ROLLUP, Direction.OUTGOING ) )
         {
-            Node indexedNode = graphDb.getNodeById( nodeId );
-            int indexCount = (Integer) indexedNode.getProperty( INDEX_COUNT );
-            indexCount++;
-            if ( indexCount >= INDEX_TRIGGER_COUNT )
-            {
-                indexCount = createIndex( indexedNode, indexCount );
-            }
-            indexedNode.setProperty( INDEX_COUNT, indexCount );
+            rollups.add( new Rollup( graphDb, rel.getEndNode() ) );
         }
+        return rollups;
     }
 
-    // returns new count to set on next higher index and
-    // creates the new indexing relationship
-    private int createIndex( Node startIndexNode, int currentCount )
+    // a rollup being filled in leaves the entries after the last time node
+    // it has done to the fill in
+    private boolean isRolledUp( Rollup rollup, long timestamp )
     {
-        assert indexed;
-        int newCount = 0;
-        // use 0.33f beacuse most timelines are not random timestamp
-        // insertion, instead they just grow at the end, so 0.33 (instead of
-        // 0.5) results in less balancing of tree (and tree depth at start)
-        int timesToTraverse = (int) ( INDEX_TRIGGER_COUNT * 0.33f );
-        assert timesToTraverse > 0;
-        Node newIndexedNode = startIndexNode;
-        for ( int i = 0; i < timesToTraverse; i++ )
+        long[] building = (long[]) underlyingNode.getProperty( ROLLUP_BUILDING, null );
+        return building == null || building[0] != rollup.getGranularity()
+               || ( building.length > 1 && timestamp <= building[2] );
+    }
+
+    private Rollup getRollup( long granularity )
+    {
+        for ( Rollup rollup : getRollups() )
         {
-            newIndexedNode = newIndexedNode.getSingleRelationship(
-                    RelTypes.TIMELINE_NEXT_ENTRY, Direction.INCOMING ).getStartNode();
-            
-            newCount++;
-            assert !newIndexedNode.hasProperty( INDEX_COUNT );
+            if ( rollup.getGranularity() == granularity )
+            {
+                return rollup;
+            }
         }
-        long timestamp = (Long) newIndexedNode.getProperty( TIMESTAMP );
-        indexBTree.addEntry( timestamp, newIndexedNode.getId() );
-        newIndexedNode.setProperty( INDEX_COUNT, currentCount - timesToTraverse );
-        return newCount;
+        return null;
     }
-    
-    public void removeNode(Node nodeToRemove, boolean transactional)
+
+    /**
+     * Adds a rollup of this timeline, buckets of {@code granularity} wide
+     * holding the number of entries in them and optionally the sum of a
+     * numeric property of their nodes. The buckets for the entries already
+     * in the timeline are filled in in transactions of 10000 timeline
+     * entries, see {@link #addRollup(long, String, int, Listener)}.
+     * 
+     * @param granularity the width of the buckets, e.g. 60000 for per minute
+     *            buckets of millisecond timestamps.
+     * @param sumPropertyOrNull the property to sum, or <CODE>null</CODE> to
+     *            only count.
+     */
+    public void addRollup( long granularity, String sumPropertyOrNull )
     {
-        if ( nodeToRemove == null )
+        addRollup( granularity, sumPropertyOrNull, ROLLUP_COMMIT_INTERVAL,
+                new NullListener() );
+    }
+
+    /**
+     * Adds a rollup of this timeline, buckets of {@code granularity} wide
+     * holding the number of entries in them and optionally the sum of a
+     * numeric property of their nodes. The buckets are kept up to date as
+     * nodes are added and removed, and are read by
+     * {@link #getRollup(long, long, long)}. Buckets for the entries already
+     * in the timeline are filled in from the start of the timeline onwards,
+     * each transaction covering whole time nodes of at least
+     * {@code commitInterval} timeline entries in all. Additions and removals
+     * through this instance may go on meanwhile, they wait for the batch in
+     * progress.
+     * <p>
+     * Only one rollup of a timeline can be filled in at a time. If it is
+     * interrupted, calling this again with the same granularity continues
+     * where it left off. The rollup shouldn't be read until then.
+     * <p>
+     * The summed property should not change while a node is in the
+     * timeline, or the sum will be off when it is removed.
+     * 
+     * @param granularity the width of the buckets, e.g. 60000 for per minute
+     *            buckets of millisecond timestamps.
+     * @param sumPropertyOrNull the property to sum, or <CODE>null</CODE> to
+     *            only count.
+     * @param commitInterval number of timeline entries per transaction.
+     * @param monitor notified with the number of filled in timeline entries.
+     */
+    public void addRollup( long granularity, String sumPropertyOrNull,
+            int commitInterval, Listener monitor )
+    {
+        if ( granularity <= 0 )
         {
-            throw new IllegalArgumentException( "Null parameter." );
+            throw new IllegalArgumentException( "Illegal granularity "
+                                                + granularity );
         }
-        if ( nodeToRemove.equals( underlyingNode ) )
+        if ( commitInterval <= 0 )
         {
-            throw new IllegalArgumentException( "Cannot remove underlying node" );
+            throw new IllegalArgumentException( "Illegal commit interval "
+                                                + commitInterval );
         }
         Transaction tx = graphDb.beginTx();
         try
         {
-            Relationship instanceRel = null;
-            for ( Relationship rel : nodeToRemove.getRelationships( RelTypes.TIMELINE_INSTANCE ) )
+            tx.acquireWriteLock( underlyingNode );
+            assertNotDeleting();
+            long[] building = (long[]) underlyingNode.getProperty( ROLLUP_BUILDING, null );
+            if ( building != null && building[0] != granularity )
             {
-                if ( rel.getProperty( TIMELINE_NAME, "" ).equals( name ) )
+                throw new IllegalStateException( "Timeline[" + name
+                                                 + "] is filling in the rollup of "
+                                                 + building[0] );
+            }
+            if ( building == null )
+            {
+                if ( getRollup( granularity ) != null )
                 {
-                    assert instanceRel == null;
-                    instanceRel = rel;
+                    throw new IllegalArgumentException( "Timeline[" + name
+                                                        + "] already has a rollup of "
+                                                        + granularity );
                 }
+                Node rollupNode = graphDb.createNode();
+                Rollup.create( graphDb, rollupNode, granularity,
+                        sumPropertyOrNull );
+                underlyingNode.setProperty( ROLLUP_BUILDING, new long[] { granularity } );
+                underlyingNode.createRelationshipTo( rollupNode,
+                        RelTypes.TIMELINE_ROLLUP );
             }
-            if ( instanceRel == null )
+            tx.success();
+        }
+        finally
+        {
+            tx.finish();
+        }
+        // the number of entries is not known up front
+        monitor.begin( 0 );
+        try
+        {
+            while ( !fillInRollup( granularity, commitInterval, monitor ) )
             {
-                throw new IllegalArgumentException(
-                        "Node[" + nodeToRemove.getId()
-                                + "] not added to Timeline[" + name + "]" );
+                // next batch
             }
-            Node node = instanceRel.getStartNode();
-            instanceRel.delete();
-            if ( firstNode != null && firstNode.equals( nodeToRemove ) )
+        }
+        finally
+        {
+            monitor.done();
+        }
+    }
+
+    // adds the time nodes after the last one filled in to the rollup until
+    // at least commitInterval timeline entries have been covered, returns
+    // true when the end of the timeline has been reached
+    private boolean fillInRollup( long granularity, int commitInterval,
+            Listener monitor )
+    {
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            // keeps out additions and removals, see lockForIndexBuild
+            tx.acquireWriteLock( underlyingNode );
+            Rollup rollup = getExistingRollup( granularity );
+            long[] building = (long[]) underlyingNode.getProperty( ROLLUP_BUILDING );
+            Node timeNode;
+            if ( building.length == 1 )
             {
-                firstNode = null;
+                timeNode = getNextTimeNode( underlyingNode );
             }
-            if ( lastNode != null && lastNode.equals( nodeToRemove ) )
+            else
             {
-                lastNode = null;
+                timeNode = getTimeNode( new TimelineCursor( building[2],
+                        building[1], 0 ) );
+                if ( timeNode != null )
+                {
+                    timeNode = getNextTimeNode( timeNode );
+                }
+                else
+                {
+                    // removed since, continue after its timestamp
+                    Iterator<Node> itr = getAllTimeNodesAfter( building[2] ).iterator();
+                    timeNode = itr.hasNext() ? itr.next() : underlyingNode;
+                }
             }
-            if ( node.getRelationships( RelTypes.TIMELINE_INSTANCE ).iterator().hasNext() )
+            int covered = 0;
+            Node lastDone = null;
+            while ( !timeNode.equals( underlyingNode ) && covered < commitInterval )
             {
-                // still have instances connected to this time
-                return;
+                long timestamp = (Long) timeNode.getProperty( TIMESTAMP );
+                int count = 0;
+                for ( Relationship rel : timeNode.getRelationships(
+                        RelTypes.TIMELINE_INSTANCE, Direction.OUTGOING ) )
+                {
+                    rollup.added( timestamp, rel.getEndNode() );
+                    count++;
+                }
+                covered += count;
+                monitor.worked( count );
+                lastDone = timeNode;
+                timeNode = getNextTimeNode( timeNode );
             }
-            Relationship incoming = node.getSingleRelationship(
-                    RelTypes.TIMELINE_NEXT_ENTRY, Direction.INCOMING );
-            if ( incoming == null )
+            boolean done = timeNode.equals( underlyingNode );
+            if ( done )
             {
-                throw new RuntimeException( "No incoming relationship of "
-                                            + RelTypes.TIMELINE_NEXT_ENTRY
-                                            + " found" );
+                underlyingNode.removeProperty( ROLLUP_BUILDING );
             }
-            Relationship outgoing = node.getSingleRelationship(
+            else if ( lastDone != null )
+            {
+                underlyingNode.setProperty( ROLLUP_BUILDING, new long[] { granularity,
+                        lastDone.getId(), (Long) lastDone.getProperty( TIMESTAMP ) } );
+            }
+            tx.success();
+            return done;
+        }
+        finally
+        {
+            tx.finish();
+        }
+    }
+
+    /**
+     * Removes the rollup of the given granularity from this timeline.
+     * 
+     * @param granularity the width of the buckets of the rollup.
+     */
+    public void removeRollup( long granularity )
+    {
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            Rollup rollup = getExistingRollup( granularity );
+            long[] building = (long[]) underlyingNode.getProperty( ROLLUP_BUILDING, null );
+            if ( building != null && building[0] == granularity )
+            {
+                underlyingNode.removeProperty( ROLLUP_BUILDING );
+            }
+            rollup.delete();
+            tx.success();
+        }
+        finally
+        {
+            tx.finish();
+        }
+    }
+
+    /**
+     * Returns the non-empty buckets of a rollup which overlap the range from
+     * {@code from} (inclusive) to {@code to} (exclusive), ordered by time.
+     * The first bucket is the one {@code from} falls in, so it can hold
+     * entries before {@code from}.
+     * 
+     * @param from the start of the range.
+     * @param to the end of the range.
+     * @param granularity the width of the buckets of the rollup, see
+     *            {@link #addRollup(long, String)}.
+     * @return the buckets in the range.
+     */
+    public List<RollupBucket> getRollup( long from, long to, long granularity )
+    {
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            List<RollupBucket> buckets = getExistingRollup( granularity ).getBuckets(
+                    from, to );
+            tx.success();
+            return buckets;
+        }
+        finally
+        {
+            tx.finish();
+        }
+    }
+
+    private Rollup getExistingRollup( long granularity )
+    {
+        Rollup rollup = getRollup( granularity );
+        if ( rollup == null )
+        {
+            throw new IllegalArgumentException( "Timeline[" + name
+                                                + "] has no rollup of "
+                                                + granularity );
+        }
+        return rollup;
+    }
+
+    private RelationshipIndex getInstanceIndex()
+    {
+        if ( instanceIndex == null )
+        {
+            instanceIndex = graphDb.index().forRelationships( INSTANCE_INDEX );
+        }
+        return instanceIndex;
+    }
+
+    // returns the relationship connecting the node to this timeline or null
+    // if the node isn't added to this timeline
+    private Relationship getInstanceRelationship( Node node )
+    {
+        if ( membershipIndexed )
+        {
+            return getInstanceIndex().get( INSTANCE_TIMELINE,
+                    underlyingNode.getId(), null, node ).getSingle();
+        }
+        Relationship instanceRel = null;
+        for ( Relationship rel : node.getRelationships( RelTypes.TIMELINE_INSTANCE ) )
+        {
+            if ( rel.getProperty( TIMELINE_NAME, "" ).equals( name ) )
+            {
+                assert instanceRel == null;
+                instanceRel = rel;
+            }
+        }
+        return instanceRel;
+    }
+
+    public long getTimestampForNode( Node node )
+    {
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            Relationship instanceRel = getInstanceRelationship( node );
+            if ( instanceRel == null )
+            {
+                throw new RuntimeException(
+                        "No timpestamp found for '" + node
+                                + "' maybe it's not in the timeline?" );
+            }
+            Long result = (Long) instanceRel.getStartNode().getProperty( TIMESTAMP );
+            tx.success();
+            return result;
+        }
+        finally
+        {
+            tx.finish();
+        }
+    }
+
+    // INDEX_COUNT on an indexed time node holds the number of timeline
+    // entries from the previous indexed time node (inclusive) up to itself
+    // (exclusive). The underlying node holds the count for the entries from
+    // the last indexed time node to the end of the timeline.
+    private synchronized void updateNodeAdded( Node timeNode )
+    {
+        if ( !indexed )
+        {
+            return;
+        }
+        adaptIndexTriggerCount();
+        Node indexNode = getIndexNodeFor( timeNode );
+        int indexCount = getIndexCount( indexNode );
+        indexCount++;
+        int indexTriggerCount = getIndexTriggerCount();
+        // the last segment is left to the index builder while it runs
+        if ( indexCount >= indexTriggerCount
+             && !( indexNode.equals( underlyingNode ) && isIndexBuilding() ) )
+        {
+            indexCount = createIndex( indexNode, indexCount, indexTriggerCount );
+        }
+        setIndexCount( indexNode, indexCount );
+    }
+
+    // the segment count of an indexed time node or the underlying node, see
+    // VersionedProperties. Timelines indexed by earlier versions keep it as
+    // an Integer until it is written.
+    private static int getIndexCount( Node node )
+    {
+        Object count = node.getProperty( INDEX_COUNT, null );
+        if ( count instanceof Integer )
+        {
+            return (Integer) count;
+        }
+        return (int) VersionedProperties.getLong( node, INDEX_COUNT, 0 );
+    }
+
+    private static void setIndexCount( Node node, int count )
+    {
+        if ( node.getProperty( INDEX_COUNT, null ) instanceof Integer )
+        {
+            node.setProperty( INDEX_COUNT, new long[] { count, 0 } );
+        }
+        else
+        {
+            VersionedProperties.setLong( node, INDEX_COUNT, count );
+        }
+    }
+
+    // returns the indexed time node (or the underlying node) which keeps
+    // the count of the index segment the time node belongs to
+    private Node getIndexNodeFor( Node timeNode )
+    {
+        long timestamp = (Long) timeNode.getProperty( TIMESTAMP );
+        Long nodeId = null;
+        if ( !timeNode.hasProperty( INDEX_COUNT ) )
+        {
+            nodeId = (Long) indexBTree.getClosestHigherEntry( timestamp );
+        }
+        else if ( timestamp < Long.MAX_VALUE )
+        {
+            // an indexed time node belongs to the segment after it
+            nodeId = (Long) indexBTree.getClosestHigherEntry( timestamp + 1 );
+        }
+        if ( nodeId == null )
+        {
+            return underlyingNode;
+        }
+        return graphDb.getNodeById( nodeId );
+    }
+
+    // while the index is being built the segment counts are only looked up
+    // and updated with the lock on the underlying node held, which every
+    // batch of the build holds too, so that a batch committing a new indexed
+    // time node in between can't count the segment without the entries of
+    // this transaction and then have them added to the wrong segment. The
+    // lock is taken before anything else to lock in the same order as the
+    // build does.
+    // A rollup being filled in is locked for in the same way, so that the
+    // additions and removals go either before or after a batch of it.
+    private void lockForIndexBuild( Transaction tx )
+    {
+        if ( ( indexed && ( isIndexBuilding() || isIndexRecounting() ) )
+             || underlyingNode.hasProperty( ROLLUP_BUILDING ) )
+        {
+            tx.acquireWriteLock( underlyingNode );
+        }
+    }
+
+    private int getInstanceCount( Node timeNode )
+    {
+        int count = 0;
+        for ( Relationship rel : timeNode.getRelationships(
+                RelTypes.TIMELINE_INSTANCE, Direction.OUTGOING ) )
+        {
+            count++;
+        }
+        return count;
+    }
+
+    // returns new count to set on next higher index and
+    // creates the new indexing relationship
+    private int createIndex( Node startIndexNode, int currentCount,
+            int indexTriggerCount )
+    {
+        assert indexed;
+        int newCount = 0;
+        // use 0.33f beacuse most timelines are not random timestamp
+        // insertion, instead they just grow at the end, so 0.33 (instead of
+        // 0.5) results in less balancing of tree (and tree depth at start)
+        int timesToTraverse = (int) ( indexTriggerCount * 0.33f );
+        assert timesToTraverse > 0;
+        Node newIndexedNode = startIndexNode;
+        while ( newCount < timesToTraverse )
+        {
+            Node previous = newIndexedNode.getSingleRelationship(
+                    RelTypes.TIMELINE_NEXT_ENTRY, Direction.INCOMING ).getStartNode();
+            if ( previous.equals( underlyingNode )
+                 || previous.hasProperty( INDEX_COUNT ) )
+            {
+                // reached the start of this segment
+                break;
+            }
+            newIndexedNode = previous;
+            newCount += getInstanceCount( newIndexedNode );
+        }
+        if ( newIndexedNode.equals( startIndexNode ) )
+        {
+            return currentCount;
+        }
+        long timestamp = (Long) newIndexedNode.getProperty( TIMESTAMP );
+        indexBTree.addEntry( timestamp, newIndexedNode.getId() );
+        setIndexCount( newIndexedNode, currentCount - newCount );
+        return newCount;
+    }
+    
+    public void removeNode(Node nodeToRemove, boolean transactional)
+    {
+        if ( nodeToRemove == null )
+        {
+            throw new IllegalArgumentException( "Null parameter." );
+        }
+        if ( nodeToRemove.equals( underlyingNode ) )
+        {
+            throw new IllegalArgumentException( "Cannot remove underlying node" );
+        }
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            assertNotDeleting();
+            lockForIndexBuild( tx );
+            Relationship instanceRel = getInstanceRelationship( nodeToRemove );
+            if ( instanceRel == null )
+            {
+                throw new IllegalArgumentException(
+                        "Node[" + nodeToRemove.getId()
+                                + "] not added to Timeline[" + name + "]" );
+            }
+            Node node = instanceRel.getStartNode();
+            deleteInstance( instanceRel );
+            if ( firstNode != null && firstNode.equals( nodeToRemove ) )
+            {
+                firstNode = null;
+            }
+            if ( lastNode != null && lastNode.equals( nodeToRemove ) )
+            {
+                lastNode = null;
+            }
+            if ( node.getRelationships( RelTypes.TIMELINE_INSTANCE ).iterator().hasNext() )
+            {
+                // still have instances connected to this time
+                if ( indexed )
+                {
+                    Node indexNode = getIndexNodeFor( node );
+                    setIndexCount( indexNode, getIndexCount( indexNode ) - 1 );
+                }
+                tx.success();
+                return;
+            }
+            Relationship incoming = node.getSingleRelationship(
+                    RelTypes.TIMELINE_NEXT_ENTRY, Direction.INCOMING );
+            if ( incoming == null )
+            {
+                throw new RuntimeException( "No incoming relationship of "
+                                            + RelTypes.TIMELINE_NEXT_ENTRY
+                                            + " found" );
+            }
+            Relationship outgoing = node.getSingleRelationship(
                     RelTypes.TIMELINE_NEXT_ENTRY, Direction.OUTGOING );
             if ( outgoing == null )
             {
@@ -494,44 +1158,33 @@ public class Timeline implements TimelineIndex
             incoming.delete();
             outgoing.delete();
             // TODO: this needs proper synchronization
-            if ( node.hasProperty( INDEX_COUNT ) )
-            {
-                long nodeId = (Long) indexBTree.removeEntry( (Long) node.getProperty( TIMESTAMP ) );
-                assert nodeId == node.getId();
-                int count = (Integer) node.getProperty( INDEX_COUNT );
-                count--;
-                if ( !previous.equals( underlyingNode )
-                     && !previous.hasProperty( INDEX_COUNT ) )
-                {
-                    previous.setProperty( INDEX_COUNT, count );
-                    indexBTree.addEntry(
-                            (Long) previous.getProperty( TIMESTAMP ),
-                            previous.getId() );
-                }
-            }
-            else
+            if ( indexed )
             {
-                long timestamp = (Long) node.getProperty( TIMESTAMP );
-                if ( indexed )
+                Node indexNode = getIndexNodeFor( node );
+                int indexCount = getIndexCount( indexNode ) - 1;
+                if ( node.hasProperty( INDEX_COUNT ) )
                 {
-                    Long nodeId = (Long) indexBTree.getClosestHigherEntry( timestamp );
-                    if ( nodeId != null )
+                    long nodeId = (Long) indexBTree.removeEntry( (Long) node.getProperty( TIMESTAMP ) );
+                    assert nodeId == node.getId();
+                    int count = getIndexCount( node );
+                    if ( !previous.equals( underlyingNode )
+                         && !previous.hasProperty( INDEX_COUNT ) )
                     {
-                        Node indexedNode = graphDb.getNodeById( nodeId );
-                        int count = (Integer) indexedNode.getProperty( INDEX_COUNT );
-                        count--;
-                        indexedNode.setProperty( INDEX_COUNT, count );
+                        // previous takes over as index for the segment
+                        int previousCount = getInstanceCount( previous );
+                        setIndexCount( previous, count - previousCount );
+                        indexBTree.addEntry(
+                                (Long) previous.getProperty( TIMESTAMP ),
+                                previous.getId() );
+                        indexCount += previousCount;
                     }
                     else
                     {
-                        if ( underlyingNode.hasProperty( INDEX_COUNT ) )
-                        {
-                            int count = (Integer) underlyingNode.getProperty( INDEX_COUNT );
-                            count--;
-                            underlyingNode.setProperty( INDEX_COUNT, count );
-                        }
+                        // merge the segment with the next one
+                        indexCount += count;
                     }
                 }
+                setIndexCount( indexNode, indexCount );
             }
             node.delete();
             if ( !previous.equals( next ) )
@@ -618,6 +1271,7 @@ public class Timeline implements TimelineIndex
     {
         if ( indexed )
         {
+            lookupCount++;
             Node startNode = underlyingNode;
             Long nodeId = (Long) indexBTree.getClosestLowerEntry( timestamp );
             if ( nodeId != null )
@@ -840,70 +1494,1166 @@ public class Timeline implements TimelineIndex
                 RelTypes.TIMELINE_INSTANCE, Direction.OUTGOING );
     }
 
-    public void delete()
+    public TimelineIterable getAllNodesDescending( final Long afterTimestampOrNull,
+            final Long beforeTimestampOrNull )
     {
-        if ( indexed )
-        {
-            indexBTree.delete();
-        }
-        Relationship rel = underlyingNode.getSingleRelationship(
-                RelTypes.TIMELINE_NEXT_ENTRY, Direction.OUTGOING );
-        while ( rel != null )
+        return new TimelineIterable()
         {
-            Node node = rel.getEndNode();
-            if ( !node.equals( underlyingNode ) )
-            {
-                for ( Relationship instance : node.getRelationships( RelTypes.TIMELINE_INSTANCE ) )
-                {
-                    instance.delete();
-                }
-                rel.delete();
-                rel = node.getSingleRelationship( RelTypes.TIMELINE_NEXT_ENTRY,
-                        Direction.OUTGOING );
-                node.delete();
-            }
-            else
+            public TimelineIterator iterator()
             {
-                rel.delete();
-                rel = null;
+                return new DescendingIterator( afterTimestampOrNull,
+                        beforeTimestampOrNull );
             }
-        }
+        };
     }
-    
-    public void delete(int commitInterval)
+
+    // returns the last time node with a lesser timestamp, or the
+    // underlying node if there is none
+    private Node getLastTimeNodeBefore( Long timestampOrNull )
     {
-        int count = 0;
-        while(this.getLastNode()!=null) {
-            
-            this.removeNode( this.getLastNode() );
-            count++;
-            if ( count > commitInterval )
+        Node timeNode = underlyingNode;
+        if ( timestampOrNull != null && indexed )
+        {
+            lookupCount++;
+            Long nodeId = (Long) indexBTree.getClosestHigherEntry( timestampOrNull );
+            if ( nodeId != null )
             {
-                System.out.print(".");
-                restartTx();
-                count = 0;
+                timeNode = graphDb.getNodeById( nodeId );
             }
         }
-        if ( indexed )
+        do
         {
-            indexBTree.delete(commitInterval);
+            Relationship rel = timeNode.getSingleRelationship(
+                    RelTypes.TIMELINE_NEXT_ENTRY, Direction.INCOMING );
+            if ( rel == null )
+            {
+                return underlyingNode;
+            }
+            timeNode = rel.getStartNode();
         }
+        while ( timestampOrNull != null && !timeNode.equals( underlyingNode )
+                && (Long) timeNode.getProperty( TIMESTAMP ) >= timestampOrNull );
+        return timeNode;
     }
-    
-    private void restartTx() {
-            try
+
+    /**
+     * Iterates the nodes of a timeline by decreasing timestamp, only moving
+     * to the previous time node when the nodes of the current one have been
+     * returned.
+     */
+    private class DescendingIterator implements TimelineIterator
+    {
+        private final Long afterTimestampOrNull;
+        private Node timeNode;
+        private Iterator<Relationship> instances;
+        private long timestamp;
+
+        DescendingIterator( Long afterTimestampOrNull, Long beforeTimestampOrNull )
+        {
+            this.afterTimestampOrNull = afterTimestampOrNull;
+            setTimeNode( getLastTimeNodeBefore( beforeTimestampOrNull ) );
+        }
+
+        private void setTimeNode( Node node )
+        {
+            timeNode = null;
+            instances = null;
+            if ( node.equals( underlyingNode ) )
             {
-                TransactionManager transactionManager = ((AbstractGraphDatabase) graphDb).getDependencyResolver().resolveDependency(TransactionManager.class);
-                javax.transaction.Transaction tx = transactionManager.getTransaction();
-                if ( tx != null )
-                {
-                    tx.commit();
-                }
+                return;
             }
-            catch ( Exception e )
+            long currentTime = (Long) node.getProperty( TIMESTAMP );
+            if ( afterTimestampOrNull != null && currentTime <= afterTimestampOrNull )
             {
-                throw new RuntimeException( e );
+                return;
             }
-            graphDb.beginTx();
+            timeNode = node;
+            timestamp = currentTime;
+            instances = node.getRelationships( RelTypes.TIMELINE_INSTANCE,
+                    Direction.OUTGOING ).iterator();
         }
+
+        public boolean hasNext()
+        {
+            while ( instances != null && !instances.hasNext() )
+            {
+                setTimeNode( timeNode.getSingleRelationship(
+                        RelTypes.TIMELINE_NEXT_ENTRY, Direction.INCOMING ).getStartNode() );
+            }
+            return instances != null;
+        }
+
+        public Node next()
+        {
+            if ( !hasNext() )
+            {
+                throw new NoSuchElementException();
+            }
+            return instances.next().getEndNode();
+        }
+
+        public long getTimestamp()
+        {
+            return timestamp;
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Returns a page of at most {@code pageSize} nodes after (exclusive)
+     * {@code afterTimestampOrNull} and before (exclusive)
+     * {@code beforeTimestampOrNull}, ordered by increasing timestamp. Pass in
+     * the cursor of the previous page to get the next one, resuming from a
+     * cursor doesn't traverse the timeline from the start again.
+     * 
+     * If the time node of the cursor has been removed since, the query is
+     * resumed after the timestamp of the cursor instead.
+     * 
+     * @param afterTimestampOrNull the start timestamp or {@code null}.
+     * @param beforeTimestampOrNull the end timestamp or {@code null}.
+     * @param cursorOrNull the cursor of the previous page or {@code null} to
+     *            get the first page.
+     * @param pageSize the maximum number of nodes in the page.
+     * @return the page of nodes with the cursor for the next page.
+     */
+    public TimelinePage getPage( Long afterTimestampOrNull,
+            Long beforeTimestampOrNull, TimelineCursor cursorOrNull, int pageSize )
+    {
+        if ( pageSize <= 0 )
+        {
+            throw new IllegalArgumentException( "Illegal page size " + pageSize );
+        }
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            Node timeNode = null;
+            int offset = 0;
+            if ( cursorOrNull != null )
+            {
+                timeNode = getTimeNode( cursorOrNull );
+                offset = cursorOrNull.getOffset();
+                if ( timeNode == null )
+                {
+                    timeNode = getFirstTimeNodeAfter( cursorOrNull.getTimestamp() );
+                    offset = 0;
+                }
+            }
+            else if ( afterTimestampOrNull != null )
+            {
+                timeNode = getFirstTimeNodeAfter( afterTimestampOrNull );
+            }
+            else
+            {
+                timeNode = getNextTimeNode( underlyingNode );
+            }
+            List<Node> nodes = new ArrayList<Node>();
+            while ( !timeNode.equals( underlyingNode ) && nodes.size() < pageSize )
+            {
+                if ( beforeTimestampOrNull != null
+                     && (Long) timeNode.getProperty( TIMESTAMP ) >= beforeTimestampOrNull )
+                {
+                    timeNode = underlyingNode;
+                    break;
+                }
+                Iterator<Relationship> instances = timeNode.getRelationships(
+                        RelTypes.TIMELINE_INSTANCE, Direction.OUTGOING ).iterator();
+                for ( int i = 0; i < offset && instances.hasNext(); i++ )
+                {
+                    instances.next();
+                }
+                while ( instances.hasNext() && nodes.size() < pageSize )
+                {
+                    nodes.add( instances.next().getEndNode() );
+                    offset++;
+                }
+                if ( !instances.hasNext() )
+                {
+                    timeNode = getNextTimeNode( timeNode );
+                    offset = 0;
+                }
+            }
+            TimelineCursor nextCursor = null;
+            if ( !timeNode.equals( underlyingNode ) )
+            {
+                long timestamp = (Long) timeNode.getProperty( TIMESTAMP );
+                if ( beforeTimestampOrNull == null || timestamp < beforeTimestampOrNull )
+                {
+                    nextCursor = new TimelineCursor( timestamp, timeNode.getId(), offset );
+                }
+            }
+            tx.success();
+            return new TimelinePage( nodes, nextCursor );
+        }
+        finally
+        {
+            tx.finish();
+        }
+    }
+
+    // returns the time node of a cursor or null if it isn't in the timeline
+    private Node getTimeNode( TimelineCursor cursor )
+    {
+        try
+        {
+            Node timeNode = graphDb.getNodeById( cursor.getTimeNodeId() );
+            if ( timeNode.hasRelationship( RelTypes.TIMELINE_NEXT_ENTRY,
+                    Direction.INCOMING )
+                 && Long.valueOf( cursor.getTimestamp() ).equals(
+                         timeNode.getProperty( TIMESTAMP, null ) ) )
+            {
+                return timeNode;
+            }
+        }
+        catch ( NotFoundException e )
+        {
+            // removed since, fall through
+        }
+        return null;
+    }
+
+    // returns the next time node, or the underlying node if at the end
+    private Node getNextTimeNode( Node timeNode )
+    {
+        Relationship rel = timeNode.getSingleRelationship(
+                RelTypes.TIMELINE_NEXT_ENTRY, Direction.OUTGOING );
+        if ( rel == null )
+        {
+            return underlyingNode;
+        }
+        return rel.getEndNode();
+    }
+
+    // returns the first time node with a greater timestamp, or the
+    // underlying node if there is none
+    private Node getFirstTimeNodeAfter( long timestamp )
+    {
+        Node timeNode = getIndexedStartNode( timestamp );
+        if ( timeNode.equals( underlyingNode ) )
+        {
+            timeNode = getNextTimeNode( timeNode );
+        }
+        while ( !timeNode.equals( underlyingNode )
+                && (Long) timeNode.getProperty( TIMESTAMP ) <= timestamp )
+        {
+            timeNode = getNextTimeNode( timeNode );
+        }
+        return timeNode;
+    }
+
+    public long countBetween( long startTime, long endTime )
+    {
+        if ( startTime >= endTime )
+        {
+            throw new IllegalArgumentException(
+                    "Start time greater or equal to end time" );
+        }
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            long count = 0;
+            Node currentNode = getIndexedStartNode( startTime );
+            // the counts of an index from an earlier version are not used
+            if ( indexed && isIndexCounted() )
+            {
+                Long nodeId = (Long) indexBTree.getClosestHigherEntry( startTime + 1 );
+                Node indexedNode = null;
+                if ( nodeId != null )
+                {
+                    indexedNode = graphDb.getNodeById( nodeId );
+                }
+                if ( indexedNode != null
+                     && (Long) indexedNode.getProperty( TIMESTAMP ) <= endTime )
+                {
+                    // partial segment at the start of the range
+                    count += countInstancesBetween( currentNode, indexedNode,
+                            startTime, endTime );
+                    // whole segments inside the range, use the index counts
+                    long timestamp = (Long) indexedNode.getProperty( TIMESTAMP );
+                    if ( timestamp < endTime )
+                    {
+                        for ( KeyEntry entry : indexBTree.entries( timestamp + 1, endTime ) )
+                        {
+                            indexedNode = graphDb.getNodeById( (Long) entry.getValue() );
+                            count += getIndexCount( indexedNode );
+                        }
+                    }
+                    currentNode = indexedNode;
+                }
+            }
+            // partial segment at the end of the range
+            count += countInstancesBetween( currentNode, underlyingNode,
+                    startTime, endTime );
+            tx.success();
+            return count;
+        }
+        finally
+        {
+            tx.finish();
+        }
+    }
+
+    // counts the instances of the time nodes from startNode (inclusive) to
+    // stopNode (exclusive) with a timestamp between (exclusive) the given ones
+    private long countInstancesBetween( Node startNode, Node stopNode,
+            long startTime, long endTime )
+    {
+        long count = 0;
+        Node currentNode = startNode;
+        if ( currentNode.equals( underlyingNode ) )
+        {
+            Relationship rel = underlyingNode.getSingleRelationship(
+                    RelTypes.TIMELINE_NEXT_ENTRY, Direction.OUTGOING );
+            if ( rel == null )
+            {
+                // empty timeline
+                return 0;
+            }
+            currentNode = rel.getEndNode();
+        }
+        while ( !currentNode.equals( underlyingNode )
+                && !currentNode.equals( stopNode ) )
+        {
+            long currentTime = (Long) currentNode.getProperty( TIMESTAMP );
+            if ( currentTime >= endTime )
+            {
+                break;
+            }
+            if ( currentTime > startTime )
+            {
+                count += getInstanceCount( currentNode );
+            }
+            currentNode = currentNode.getSingleRelationship(
+                    RelTypes.TIMELINE_NEXT_ENTRY, Direction.OUTGOING ).getEndNode();
+        }
+        return count;
+    }
+
+    public void delete()
+    {
+        if ( indexed )
+        {
+            indexBTree.delete();
+        }
+        for ( Rollup rollup : getRollups() )
+        {
+            rollup.delete();
+        }
+        Relationship rel = underlyingNode.getSingleRelationship(
+                RelTypes.TIMELINE_NEXT_ENTRY, Direction.OUTGOING );
+        while ( rel != null )
+        {
+            Node node = rel.getEndNode();
+            if ( !node.equals( underlyingNode ) )
+            {
+                for ( Relationship instance : node.getRelationships( RelTypes.TIMELINE_INSTANCE ) )
+                {
+                    deleteInstance( instance );
+                }
+                rel.delete();
+                rel = node.getSingleRelationship( RelTypes.TIMELINE_NEXT_ENTRY,
+                        Direction.OUTGOING );
+                node.delete();
+            }
+            else
+            {
+                rel.delete();
+                rel = null;
+            }
+        }
+    }
+    
+    /**
+     * Removes all nodes with a timestamp before (exclusive) {@code timestamp}
+     * from this timeline. The nodes themselves are not deleted, they are just
+     * disconnected from this timeline.
+     * <p>
+     * The timeline chain is cut at the boundary in a single transaction, the
+     * index entries below the boundary are dropped and the old time nodes are
+     * deleted afterwards, each in transactions of {@code commitInterval}
+     * operations. No enclosing transaction is needed, so this can be run
+     * periodically from a background task to expire old entries. The old
+     * time nodes still to be deleted are kept track of on the underlying
+     * node, an interrupted truncation is finished by the next call, on this
+     * or a reloaded instance, or by {@link #delete(int, Listener)}. Until
+     * then the nodes they connect to can't be added to this timeline again.
+     * 
+     * @param timestamp nodes with a lesser timestamp value will be removed.
+     * @param commitInterval number of operations per transaction.
+     * @param monitor notified with the number of removed timeline entries.
+     */
+    public void truncateBefore( long timestamp, int commitInterval,
+            Listener monitor )
+    {
+        if ( commitInterval <= 0 )
+        {
+            throw new IllegalArgumentException( "Illegal commit interval "
+                                                + commitInterval );
+        }
+        if ( indexed && timestamp > Long.MIN_VALUE )
+        {
+            mergeIndexSegmentsBefore( timestamp, commitInterval );
+        }
+        boolean detached = false;
+        int removedCount = 0;
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            tx.acquireWriteLock( underlyingNode );
+            assertNotDeleting();
+            Relationship firstRel = underlyingNode.getSingleRelationship(
+                    RelTypes.TIMELINE_NEXT_ENTRY, Direction.OUTGOING );
+            if ( firstRel != null && timestamp > Long.MIN_VALUE )
+            {
+                Node indexedNode = null;
+                if ( indexed )
+                {
+                    Long nodeId = (Long) indexBTree.getClosestLowerEntry( timestamp - 1 );
+                    if ( nodeId != null )
+                    {
+                        indexedNode = graphDb.getNodeById( nodeId );
+                        removedCount = getIndexCount( indexedNode );
+                    }
+                }
+                // find the first time node to keep
+                int segmentCount = 0;
+                Node boundary = indexedNode != null ? indexedNode : firstRel.getEndNode();
+                while ( !boundary.equals( underlyingNode )
+                        && (Long) boundary.getProperty( TIMESTAMP ) < timestamp )
+                {
+                    segmentCount += getInstanceCount( boundary );
+                    boundary = boundary.getSingleRelationship(
+                            RelTypes.TIMELINE_NEXT_ENTRY, Direction.OUTGOING ).getEndNode();
+                }
+                removedCount += segmentCount;
+                if ( !boundary.equals( firstRel.getEndNode() ) )
+                {
+                    // cut off everything before the boundary
+                    Node detachedNode = firstRel.getEndNode();
+                    firstRel.delete();
+                    Relationship boundaryRel = boundary.getSingleRelationship(
+                            RelTypes.TIMELINE_NEXT_ENTRY, Direction.INCOMING );
+                    Node detachedTail = boundaryRel.getStartNode();
+                    boundaryRel.delete();
+                    if ( !boundary.equals( underlyingNode ) )
+                    {
+                        underlyingNode.createRelationshipTo( boundary,
+                                RelTypes.TIMELINE_NEXT_ENTRY );
+                    }
+                    if ( indexed )
+                    {
+                        if ( indexedNode != null )
+                        {
+                            indexBTree.removeEntry( (Long) indexedNode.getProperty( TIMESTAMP ) );
+                        }
+                        // the segment the cut off time nodes were counted in
+                        Node indexNode = underlyingNode;
+                        Long nodeId = (Long) indexBTree.getClosestHigherEntry( timestamp );
+                        if ( nodeId != null )
+                        {
+                            indexNode = graphDb.getNodeById( nodeId );
+                        }
+                        setIndexCount( indexNode, getIndexCount( indexNode )
+                                - segmentCount );
+                    }
+                    Long pendingId = (Long) underlyingNode.getProperty(
+                            TRUNCATE_DETACHED, null );
+                    if ( pendingId != null )
+                    {
+                        // left over by an interrupted truncation, deleted
+                        // after the ones cut off now
+                        detachedTail.createRelationshipTo( graphDb.getNodeById( pendingId ),
+                                RelTypes.TIMELINE_NEXT_ENTRY );
+                    }
+                    underlyingNode.setProperty( TRUNCATE_DETACHED, detachedNode.getId() );
+                    detached = true;
+                    firstNode = null;
+                    lastNode = null;
+                }
+            }
+            if ( underlyingNode.hasProperty( TRUNCATE_DETACHED ) && !detached )
+            {
+                // only the ones left over by an interrupted truncation
+                removedCount = 0;
+                detached = true;
+            }
+            tx.success();
+        }
+        finally
+        {
+            tx.finish();
+        }
+        monitor.begin( detached ? removedCount : 0 );
+        try
+        {
+            while ( detached )
+            {
+                detached = deleteDetachedTimeNodes( commitInterval, monitor );
+            }
+        }
+        finally
+        {
+            monitor.done();
+        }
+    }
+
+    // removes the index entries below timestamp, except for the last one,
+    // merging their counts into the segment after them
+    private void mergeIndexSegmentsBefore( long timestamp, int commitInterval )
+    {
+        boolean done = false;
+        while ( !done )
+        {
+            Transaction tx = graphDb.beginTx();
+            try
+            {
+                tx.acquireWriteLock( underlyingNode );
+                assertNotDeleting();
+                for ( int i = 0; i < commitInterval && !done; i++ )
+                {
+                    Long nodeId = (Long) indexBTree.getClosestHigherEntry( Long.MIN_VALUE );
+                    if ( nodeId == null )
+                    {
+                        done = true;
+                        break;
+                    }
+                    Node indexedNode = graphDb.getNodeById( nodeId );
+                    long indexedTime = (Long) indexedNode.getProperty( TIMESTAMP );
+                    Long nextNodeId = null;
+                    if ( indexedTime < timestamp )
+                    {
+                        nextNodeId = (Long) indexBTree.getClosestHigherEntry( indexedTime + 1 );
+                    }
+                    Node nextIndexedNode = nextNodeId != null ? graphDb.getNodeById( nextNodeId ) : null;
+                    if ( nextIndexedNode == null
+                         || (Long) nextIndexedNode.getProperty( TIMESTAMP ) >= timestamp )
+                    {
+                        done = true;
+                        break;
+                    }
+                    indexBTree.removeEntry( indexedTime );
+                    setIndexCount( nextIndexedNode, getIndexCount( nextIndexedNode )
+                            + getIndexCount( indexedNode ) );
+                    indexedNode.removeProperty( INDEX_COUNT );
+                }
+                tx.success();
+            }
+            finally
+            {
+                tx.finish();
+            }
+        }
+    }
+
+    // deletes the next commitInterval operations worth of the time nodes cut
+    // off from the timeline, returns true if there are more to delete
+    private boolean deleteDetachedTimeNodes( int commitInterval,
+            Listener monitor )
+    {
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            tx.acquireWriteLock( underlyingNode );
+            Long nodeId = (Long) underlyingNode.getProperty( TRUNCATE_DETACHED, null );
+            if ( nodeId == null )
+            {
+                tx.success();
+                return false;
+            }
+            Node timeNode = graphDb.getNodeById( nodeId );
+            int count = 0;
+            while ( timeNode != null && count < commitInterval )
+            {
+                for ( Relationship instance : timeNode.getRelationships(
+                        RelTypes.TIMELINE_INSTANCE, Direction.OUTGOING ) )
+                {
+                    deleteInstance( instance );
+                    count++;
+                    monitor.worked( 1 );
+                }
+                Relationship rel = timeNode.getSingleRelationship(
+                        RelTypes.TIMELINE_NEXT_ENTRY, Direction.OUTGOING );
+                Node nextNode = null;
+                if ( rel != null )
+                {
+                    nextNode = rel.getEndNode();
+                    rel.delete();
+                }
+                timeNode.delete();
+                count++;
+                timeNode = nextNode;
+            }
+            if ( timeNode != null )
+            {
+                underlyingNode.setProperty( TRUNCATE_DETACHED, timeNode.getId() );
+            }
+            else
+            {
+                underlyingNode.removeProperty( TRUNCATE_DETACHED );
+            }
+            tx.success();
+            return timeNode != null;
+        }
+        finally
+        {
+            tx.finish();
+        }
+    }
+
+    /**
+     * Adds an index to this timeline if it was created without one. The
+     * timeline is switched to indexed right away and index entries are then
+     * added from the start of the timeline onwards, each transaction covering
+     * about {@code commitInterval} timeline entries. Additions and removals
+     * through this instance may go on meanwhile. They wait for the batch in
+     * progress, taking the lock on the underlying node that each batch
+     * holds, so they are counted in the segment they end up in.
+     * <p>
+     * Other {@link Timeline} instances on the same underlying node will still
+     * consider the timeline to be non-indexed and must not be written to
+     * during the build, nor until they are reloaded, since their additions
+     * and removals are not counted in the index. If the build is interrupted
+     * it continues where it left off when called again.
+     * 
+     * @param commitInterval number of timeline entries per transaction.
+     * @param monitor notified with the number of indexed timeline entries.
+     */
+    public void buildIndex( int commitInterval, Listener monitor )
+    {
+        if ( commitInterval <= 0 )
+        {
+            throw new IllegalArgumentException( "Illegal commit interval "
+                                                + commitInterval );
+        }
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            tx.acquireWriteLock( underlyingNode );
+            if ( indexed && !isIndexBuilding() )
+            {
+                tx.success();
+                return;
+            }
+            if ( !indexed )
+            {
+                Node bTreeNode = graphDb.createNode();
+                underlyingNode.createRelationshipTo( bTreeNode,
+                        BTree.RelTypes.TREE_ROOT );
+                indexBTree = new BTree( graphDb, bTreeNode );
+                underlyingNode.setProperty( TIMELINE_IS_INDEXED, true );
+                underlyingNode.setProperty( INDEX_BUILDING, true );
+                underlyingNode.setProperty( INDEX_FORMAT, CURRENT_INDEX_FORMAT );
+                setIndexCount( underlyingNode, 0 );
+                indexed = true;
+            }
+            tx.success();
+        }
+        finally
+        {
+            tx.finish();
+        }
+        // the number of entries is not known up front
+        monitor.begin( 0 );
+        try
+        {
+            while ( !buildIndexSegments( commitInterval, monitor ) )
+            {
+                // next batch
+            }
+        }
+        finally
+        {
+            monitor.done();
+        }
+    }
+
+    // adds index entries after the last one until at least commitInterval
+    // timeline entries have been covered, returns true when the end of the
+    // timeline has been reached and the index is complete
+    private boolean buildIndexSegments( int commitInterval, Listener monitor )
+    {
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            // keeps out writes to the segment owned by the underlying node
+            tx.acquireWriteLock( underlyingNode );
+            int segmentSize = Math.max( 1, getIndexTriggerCount() / 2 );
+            Node current;
+            Long nodeId = (Long) indexBTree.getClosestLowerEntry( Long.MAX_VALUE );
+            if ( nodeId != null )
+            {
+                current = graphDb.getNodeById( nodeId );
+            }
+            else
+            {
+                current = getNextTimeNode( underlyingNode );
+            }
+            boolean done = false;
+            int covered = 0;
+            while ( !done && covered < commitInterval )
+            {
+                int count = 0;
+                Node node = current;
+                while ( !node.equals( underlyingNode ) && count < segmentSize )
+                {
+                    count += getInstanceCount( node );
+                    node = getNextTimeNode( node );
+                }
+                if ( node.equals( underlyingNode ) )
+                {
+                    // the rest of the timeline is the last segment
+                    setIndexCount( underlyingNode, count );
+                    underlyingNode.removeProperty( INDEX_BUILDING );
+                    done = true;
+                }
+                else
+                {
+                    indexBTree.addEntry( (Long) node.getProperty( TIMESTAMP ),
+                            node.getId() );
+                    setIndexCount( node, count );
+                    current = node;
+                }
+                covered += count;
+                monitor.worked( count );
+            }
+            tx.success();
+            return done;
+        }
+        finally
+        {
+            tx.finish();
+        }
+    }
+
+    /**
+     * Recounts the index of a timeline indexed by an earlier version, whose
+     * segment counts counted time nodes rather than timeline entries. Until
+     * this has been run {@link #countBetween(long, long)} walks the timeline
+     * instead of using the index counts. The segments are recounted from the
+     * start of the timeline onwards, each transaction covering whole
+     * segments of at least {@code commitInterval} timeline entries in all.
+     * Additions and removals through this instance may go on meanwhile, they
+     * wait for the batch in progress.
+     * <p>
+     * Other {@link Timeline} instances on the same underlying node must not
+     * be written to until the recount is done. If the recount is interrupted
+     * it continues where it left off when called again.
+     * 
+     * @param commitInterval number of timeline entries per transaction.
+     * @param monitor notified with the number of counted timeline entries.
+     */
+    public void recountIndex( int commitInterval, Listener monitor )
+    {
+        if ( commitInterval <= 0 )
+        {
+            throw new IllegalArgumentException( "Illegal commit interval "
+                                                + commitInterval );
+        }
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            tx.acquireWriteLock( underlyingNode );
+            assertNotDeleting();
+            if ( !indexed || isIndexCounted() )
+            {
+                tx.success();
+                return;
+            }
+            if ( !isIndexRecounting() )
+            {
+                // no segment done yet
+                underlyingNode.setProperty( INDEX_RECOUNTING,
+                        new long[] { underlyingNode.getId(), Long.MIN_VALUE } );
+            }
+            tx.success();
+        }
+        finally
+        {
+            tx.finish();
+        }
+        // the number of entries is not known up front
+        monitor.begin( 0 );
+        try
+        {
+            while ( !recountIndexSegments( commitInterval, monitor ) )
+            {
+                // next batch
+            }
+        }
+        finally
+        {
+            monitor.done();
+        }
+    }
+
+    // recounts the segments after the last one done until at least
+    // commitInterval timeline entries have been covered, returns true when
+    // the last segment has been recounted
+    private boolean recountIndexSegments( int commitInterval, Listener monitor )
+    {
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            tx.acquireWriteLock( underlyingNode );
+            // {indexed time node id, timestamp} at the start of the next
+            // segment, the underlying node for the first one
+            long[] lastDone = (long[]) underlyingNode.getProperty( INDEX_RECOUNTING );
+            Node segmentStart = underlyingNode;
+            if ( lastDone[0] != underlyingNode.getId() )
+            {
+                segmentStart = getTimeNode( new TimelineCursor( lastDone[1],
+                        lastDone[0], 0 ) );
+                if ( segmentStart == null || !segmentStart.hasProperty( INDEX_COUNT ) )
+                {
+                    // start over if it is no longer indexed, counting again
+                    // gives the same counts
+                    segmentStart = underlyingNode;
+                }
+            }
+            boolean done = false;
+            int covered = 0;
+            while ( !done && covered < commitInterval )
+            {
+                int count = 0;
+                Node node = segmentStart.equals( underlyingNode ) ?
+                        getNextTimeNode( underlyingNode ) : segmentStart;
+                while ( !node.equals( underlyingNode )
+                        && ( node.equals( segmentStart ) || !node.hasProperty( INDEX_COUNT ) ) )
+                {
+                    count += getInstanceCount( node );
+                    node = getNextTimeNode( node );
+                }
+                // the segment is counted on the indexed time node ending it
+                setIndexCount( node, count );
+                if ( node.equals( underlyingNode ) )
+                {
+                    underlyingNode.removeProperty( INDEX_RECOUNTING );
+                    underlyingNode.setProperty( INDEX_FORMAT, CURRENT_INDEX_FORMAT );
+                    done = true;
+                }
+                else
+                {
+                    underlyingNode.setProperty( INDEX_RECOUNTING, new long[] {
+                            node.getId(), (Long) node.getProperty( TIMESTAMP ) } );
+                    segmentStart = node;
+                }
+                covered += count;
+                monitor.worked( count );
+            }
+            tx.success();
+            return done;
+        }
+        finally
+        {
+            tx.finish();
+        }
+    }
+
+    /**
+     * Adds the nodes of a timeline created before the membership index
+     * existed to that index, so that looking up a node in this timeline no
+     * longer scans all the timeline relationships of the node. The nodes are
+     * added from the start of the timeline onwards, each transaction
+     * covering about {@code commitInterval} timeline entries, and the
+     * timeline is switched over to the index once all are in. Additions and
+     * removals through this instance may go on meanwhile and keep the index
+     * up to date.
+     * <p>
+     * Other {@link Timeline} instances on the same underlying node must not
+     * be written to until the build is done. If the build is interrupted it
+     * continues where it left off when called again.
+     * 
+     * @param commitInterval number of timeline entries per transaction.
+     * @param monitor notified with the number of indexed timeline entries.
+     */
+    public void buildMembershipIndex( int commitInterval, Listener monitor )
+    {
+        if ( commitInterval <= 0 )
+        {
+            throw new IllegalArgumentException( "Illegal commit interval "
+                                                + commitInterval );
+        }
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            tx.acquireWriteLock( underlyingNode );
+            membershipIndexed = (Boolean) underlyingNode.getProperty(
+                    TIMELINE_MEMBERSHIP_INDEXED, false );
+            if ( !membershipIndexed && !isMembershipIndexBuilding() )
+            {
+                // no time node done yet
+                underlyingNode.setProperty( MEMBERSHIP_INDEX_BUILDING,
+                        new long[] { underlyingNode.getId(), Long.MIN_VALUE } );
+            }
+            tx.success();
+        }
+        finally
+        {
+            tx.finish();
+        }
+        if ( membershipIndexed )
+        {
+            return;
+        }
+        // the number of entries is not known up front
+        monitor.begin( 0 );
+        try
+        {
+            while ( !buildMembershipIndexBatch( commitInterval, monitor ) )
+            {
+                // next batch
+            }
+        }
+        finally
+        {
+            monitor.done();
+        }
+    }
+
+    // adds the instances of the time nodes after the last one done until
+    // at least commitInterval timeline entries have been covered, returns
+    // true when the end of the timeline has been reached
+    private boolean buildMembershipIndexBatch( int commitInterval,
+            Listener monitor )
+    {
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            tx.acquireWriteLock( underlyingNode );
+            // {time node id, timestamp} of the last time node done
+            long[] lastDone = (long[]) underlyingNode.getProperty(
+                    MEMBERSHIP_INDEX_BUILDING );
+            Node timeNode = getTimeNode( new TimelineCursor( lastDone[1],
+                    lastDone[0], 0 ) );
+            if ( timeNode == null )
+            {
+                // start over if it has been removed since, instances added
+                // already are skipped
+                timeNode = underlyingNode;
+            }
+            timeNode = getNextTimeNode( timeNode );
+            int covered = 0;
+            while ( !timeNode.equals( underlyingNode ) && covered < commitInterval )
+            {
+                int count = 0;
+                for ( Relationship instanceRel : timeNode.getRelationships(
+                        RelTypes.TIMELINE_INSTANCE, Direction.OUTGOING ) )
+                {
+                    if ( getInstanceIndex().get( INSTANCE_TIMELINE,
+                            underlyingNode.getId(), timeNode,
+                            instanceRel.getEndNode() ).getSingle() == null )
+                    {
+                        getInstanceIndex().add( instanceRel, INSTANCE_TIMELINE,
+                                underlyingNode.getId() );
+                    }
+                    count++;
+                }
+                covered += count;
+                monitor.worked( count );
+                underlyingNode.setProperty( MEMBERSHIP_INDEX_BUILDING,
+                        new long[] { timeNode.getId(),
+                                (Long) timeNode.getProperty( TIMESTAMP ) } );
+                timeNode = getNextTimeNode( timeNode );
+            }
+            boolean done = timeNode.equals( underlyingNode );
+            if ( done )
+            {
+                underlyingNode.removeProperty( MEMBERSHIP_INDEX_BUILDING );
+                underlyingNode.setProperty( TIMELINE_MEMBERSHIP_INDEXED, true );
+                membershipIndexed = true;
+            }
+            tx.success();
+            return done;
+        }
+        finally
+        {
+            tx.finish();
+        }
+    }
+
+    /**
+     * Deletes this timeline using a commit interval, see
+     * {@link #delete(int, Listener)}.
+     * 
+     * @param commitInterval number of operations per transaction.
+     */
+    public void delete( int commitInterval )
+    {
+        delete( commitInterval, new NullListener() );
+    }
+
+    /**
+     * Deletes this timeline in transactions of {@code commitInterval}
+     * operations. The timeline is first marked as being deleted, after which
+     * it can't be added to or removed from any more. Then the index and the
+     * rollups are dropped, and the time nodes are unlinked and deleted from
+     * the start of the timeline onwards without any index bookkeeping. The
+     * nodes in the timeline are not deleted, they are just disconnected from
+     * it. No enclosing transaction is needed. An interrupted delete leaves
+     * the timeline marked as being deleted, calling this again, on this or a
+     * reloaded instance, continues where it left off.
+     * 
+     * @param commitInterval number of operations per transaction.
+     * @param monitor notified with the number of removed timeline entries.
+     */
+    public void delete( int commitInterval, Listener monitor )
+    {
+        if ( commitInterval <= 0 )
+        {
+            throw new IllegalArgumentException( "Illegal commit interval "
+                                                + commitInterval );
+        }
+        int totalCount = 0;
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            tx.acquireWriteLock( underlyingNode );
+            // the total isn't known when resuming an interrupted delete
+            if ( indexed && !isIndexBuilding() && !isDeleting() )
+            {
+                totalCount = getIndexCount( underlyingNode );
+                Long nodeId = (Long) indexBTree.getClosestHigherEntry( Long.MIN_VALUE );
+                while ( nodeId != null )
+                {
+                    Node indexedNode = graphDb.getNodeById( nodeId );
+                    totalCount += getIndexCount( indexedNode );
+                    long timestamp = (Long) indexedNode.getProperty( TIMESTAMP );
+                    nodeId = timestamp < Long.MAX_VALUE ? (Long) indexBTree.getClosestHigherEntry(
+                            timestamp + 1 ) : null;
+                }
+            }
+            underlyingNode.setProperty( TIMELINE_DELETING, true );
+            tx.success();
+        }
+        finally
+        {
+            tx.finish();
+        }
+        monitor.begin( totalCount );
+        try
+        {
+            if ( indexed && hasIndexTree() )
+            {
+                // the tree root relationship is deleted last, in batches of
+                // its own
+                indexBTree.delete( commitInterval );
+            }
+            for ( Rollup rollup : getRollupsToDelete() )
+            {
+                rollup.delete( commitInterval );
+            }
+            while ( deleteFirstTimeNodes( commitInterval, monitor ) )
+            {
+                // next batch
+            }
+            // left over by an interrupted truncation
+            while ( deleteDetachedTimeNodes( commitInterval, monitor ) )
+            {
+                // next batch
+            }
+            tx = graphDb.beginTx();
+            try
+            {
+                underlyingNode.removeProperty( INDEX_COUNT );
+                underlyingNode.removeProperty( INDEX_BUILDING );
+                underlyingNode.removeProperty( INDEX_RECOUNTING );
+                underlyingNode.removeProperty( ROLLUP_BUILDING );
+                underlyingNode.removeProperty( INDEX_FORMAT );
+                underlyingNode.removeProperty( TIMELINE_DELETING );
+                tx.success();
+            }
+            finally
+            {
+                tx.finish();
+            }
+        }
+        finally
+        {
+            monitor.done();
+        }
+    }
+
+    private boolean hasIndexTree()
+    {
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            boolean hasIndexTree = indexBTree != null && underlyingNode.hasRelationship(
+                    BTree.RelTypes.TREE_ROOT, Direction.OUTGOING );
+            tx.success();
+            return hasIndexTree;
+        }
+        finally
+        {
+            tx.finish();
+        }
+    }
+
+    private List<Rollup> getRollupsToDelete()
+    {
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            List<Rollup> rollups = getRollups();
+            tx.success();
+            return rollups;
+        }
+        finally
+        {
+            tx.finish();
+        }
+    }
+
+    // deletes time nodes from the start of the timeline, returns true if
+    // there are more left
+    private boolean deleteFirstTimeNodes( int commitInterval, Listener monitor )
+    {
+        Transaction tx = graphDb.beginTx();
+        try
+        {
+            Relationship firstRel = underlyingNode.getSingleRelationship(
+                    RelTypes.TIMELINE_NEXT_ENTRY, Direction.OUTGOING );
+            if ( firstRel == null )
+            {
+                tx.success();
+                return false;
+            }
+            Node timeNode = firstRel.getEndNode();
+            firstRel.delete();
+            int count = 0;
+            while ( !timeNode.equals( underlyingNode ) && count < commitInterval )
+            {
+                for ( Relationship instance : timeNode.getRelationships(
+                        RelTypes.TIMELINE_INSTANCE, Direction.OUTGOING ) )
+                {
+                    deleteInstance( instance );
+                    count++;
+                    monitor.worked( 1 );
+                }
+                Relationship rel = timeNode.getSingleRelationship(
+                        RelTypes.TIMELINE_NEXT_ENTRY, Direction.OUTGOING );
+                Node nextNode = rel.getEndNode();
+                rel.delete();
+                timeNode.delete();
+                count++;
+                timeNode = nextNode;
+            }
+            if ( !timeNode.equals( underlyingNode ) )
+            {
+                underlyingNode.createRelationshipTo( timeNode,
+                        RelTypes.TIMELINE_NEXT_ENTRY );
+            }
+            firstNode = null;
+            lastNode = null;
+            tx.success();
+            return !timeNode.equals( underlyingNode );
+        }
+        finally
+        {
+            tx.finish();
+        }
+    }
 }
@@ -0,0 +1,120 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.collections.timeline;
+
+/**
+ * A position in a {@link Timeline} from where a paged query can be resumed,
+ * see {@link Timeline#getPage(Long, Long, TimelineCursor, int)}. It points to
+ * a time node and an offset among the nodes added with that timestamp.
+ * 
+ * A cursor can be turned into a token with {@link #toString()} and read back
+ * with {@link #parse(String)}, so it can be handed to clients between
+ * requests.
+ */
+public final class TimelineCursor
+{
+    private final long timestamp;
+    private final long timeNodeId;
+    private final int offset;
+
+    public TimelineCursor( long timestamp, long timeNodeId, int offset )
+    {
+        if ( offset < 0 )
+        {
+            throw new IllegalArgumentException( "Negative offset " + offset );
+        }
+        this.timestamp = timestamp;
+        this.timeNodeId = timeNodeId;
+        this.offset = offset;
+    }
+
+    /**
+     * Reads a cursor from a token created by {@link #toString()}.
+     * 
+     * @param token the token to parse.
+     * @return the cursor represented by {@code token}.
+     * @throws IllegalArgumentException if {@code token} isn't a valid token.
+     */
+    public static TimelineCursor parse( String token )
+    {
+        String[] parts = token == null ? new String[0] : token.split( ":" );
+        if ( parts.length != 3 )
+        {
+            throw new IllegalArgumentException( "Invalid cursor '" + token + "'" );
+        }
+        try
+        {
+            return new TimelineCursor( Long.parseLong( parts[0] ),
+                    Long.parseLong( parts[1] ), Integer.parseInt( parts[2] ) );
+        }
+        catch ( NumberFormatException e )
+        {
+            throw new IllegalArgumentException( "Invalid cursor '" + token + "'", e );
+        }
+    }
+
+    /**
+     * @return the timestamp of the time node to resume from.
+     */
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    /**
+     * @return the id of the time node to resume from.
+     */
+    public long getTimeNodeId()
+    {
+        return timeNodeId;
+    }
+
+    /**
+     * @return the number of nodes with this timestamp already returned.
+     */
+    public int getOffset()
+    {
+        return offset;
+    }
+
+    @Override
+    public boolean equals( Object obj )
+    {
+        if ( !( obj instanceof TimelineCursor ) )
+        {
+            return false;
+        }
+        TimelineCursor other = (TimelineCursor) obj;
+        return timestamp == other.timestamp && timeNodeId == other.timeNodeId
+               && offset == other.offset;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return (int) ( timeNodeId ^ ( timeNodeId >>> 32 ) ) * 31 + offset;
+    }
+
+    @Override
+    public String toString()
+    {
+        return timestamp + ":" + timeNodeId + ":" + offset;
+    }
+}
@@ -121,6 +121,21 @@ public interface TimelineIndex
      */
     Iterable<Node> getAllNodesBetween( long startTimestamp, long endTimestamp );
 
+    /**
+     * Returns the number of nodes after (exclusive) {@code startTimestamp} and
+     * before (exclusive) {@code endTimestamp}, the same nodes as returned by
+     * {@link #getAllNodesBetween(long, long)}. Indexed implementations can
+     * answer this without visiting every node in the range.
+     * 
+     * @param startTimestamp the start timestamp, nodes with greater timestamp
+     *            value will be counted.
+     * @param endTimestamp the end timestamp, nodes with lesser timestamp value
+     *            will be counted.
+     * @return the number of nodes between (exclusive) the specified
+     *         timestamps.
+     */
+    long countBetween( long startTimestamp, long endTimestamp );
+
     /**
      * Convenience method which you can use {@link #getAllNodes()},
      * {@link #getAllNodesAfter(long)}, {@link #getAllNodesBefore(long)} and
@@ -138,6 +153,24 @@ public interface TimelineIndex
     Iterable<Node> getAllNodes( Long startTimestampOrNull,
             Long endTimestampOrNull );
 
+    /**
+     * Returns the nodes after (exclusive) {@code afterTimestampOrNull} and
+     * before (exclusive) {@code beforeTimestampOrNull} ordered by decreasing
+     * timestamp, that is the newest node first. The nodes are read lazily
+     * while iterating.
+     * 
+     * @param afterTimestampOrNull the start timestamp, nodes with greater
+     *            timestamp value will be returned. Will be ignored if {@code
+     *            null}.
+     * @param beforeTimestampOrNull the end timestamp, nodes with lesser
+     *            timestamp value will be returned. Will be ignored if {@code
+     *            null}.
+     * @return the nodes in the range ordered by decreasing timestamp, their
+     *         iterator tells the timestamp of the next node.
+     */
+    TimelineIterable getAllNodesDescending( Long afterTimestampOrNull,
+            Long beforeTimestampOrNull );
+
     /**
      * Will return the timestamp for {@code node} if it has been added to this
      * timeline. If {@code node} hasn't been added to this timeline a runtime
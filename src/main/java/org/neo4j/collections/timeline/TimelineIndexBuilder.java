@@ -0,0 +1,64 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.collections.timeline;
+
+import org.neo4j.collections.rtree.Listener;
+import org.neo4j.collections.rtree.NullListener;
+
+/**
+ * Adds an index to a non-indexed {@link Timeline}, to be run in the
+ * background, see {@link Timeline#buildIndex(int, Listener)}.
+ */
+public class TimelineIndexBuilder implements Runnable
+{
+    private final Timeline timeline;
+    private final int commitInterval;
+    private final Listener monitor;
+
+    public TimelineIndexBuilder( Timeline timeline, int commitInterval )
+    {
+        this( timeline, commitInterval, new NullListener() );
+    }
+
+    public TimelineIndexBuilder( Timeline timeline, int commitInterval,
+            Listener monitor )
+    {
+        if ( timeline == null || monitor == null )
+        {
+            throw new IllegalArgumentException( "Null parameter timeline="
+                                                + timeline + " monitor="
+                                                + monitor );
+        }
+        this.timeline = timeline;
+        this.commitInterval = commitInterval;
+        this.monitor = monitor;
+    }
+
+    public Timeline getTimeline()
+    {
+        return timeline;
+    }
+
+    @Override
+    public void run()
+    {
+        timeline.buildIndex( commitInterval, monitor );
+    }
+}
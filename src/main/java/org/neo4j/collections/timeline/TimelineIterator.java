@@ -0,0 +1,41 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.collections.timeline;
+
+import java.util.Iterator;
+
+import org.neo4j.graphdb.Node;
+
+/**
+ * Iterates the nodes of a timeline in timestamp order, telling the
+ * timestamp of the next node without looking it up, see
+ * {@link TimelineIndex#getAllNodesDescending(Long, Long)}.
+ */
+public interface TimelineIterator extends Iterator<Node>
+{
+    /**
+     * Returns the timestamp of the node which will be returned by the next
+     * call to {@link #next()}, only valid after {@link #hasNext()} has
+     * returned {@code true}.
+     * 
+     * @return the timestamp of the next node.
+     */
+    long getTimestamp();
+}
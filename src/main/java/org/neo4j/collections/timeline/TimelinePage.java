@@ -0,0 +1,65 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.collections.timeline;
+
+import java.util.List;
+
+import org.neo4j.graphdb.Node;
+
+/**
+ * One page of a paged {@link Timeline} query, the nodes of the page and the
+ * cursor to pass in to get the next page.
+ */
+public final class TimelinePage
+{
+    private final List<Node> nodes;
+    private final TimelineCursor nextCursor;
+
+    TimelinePage( List<Node> nodes, TimelineCursor nextCursor )
+    {
+        this.nodes = nodes;
+        this.nextCursor = nextCursor;
+    }
+
+    /**
+     * @return the nodes of this page ordered by increasing timestamp.
+     */
+    public List<Node> getNodes()
+    {
+        return nodes;
+    }
+
+    /**
+     * @return the cursor to get the next page with or {@code null} if this
+     *         is the last page.
+     */
+    public TimelineCursor getNextCursor()
+    {
+        return nextCursor;
+    }
+
+    /**
+     * @return {@code true} if there are more nodes after this page.
+     */
+    public boolean hasMore()
+    {
+        return nextCursor != null;
+    }
+}
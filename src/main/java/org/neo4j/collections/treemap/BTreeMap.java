@@ -19,10 +19,21 @@
  */
 package org.neo4j.collections.treemap;
 
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
+import org.neo4j.collections.VersionedProperties;
 import org.neo4j.collections.btree.BTree;
 import org.neo4j.collections.btree.KeyEntry;
 import org.neo4j.graphdb.Direction;
@@ -31,10 +42,24 @@ import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.RelationshipType;
 import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
 
 /**
  * A map implementation using {@link org.neo4j.index.impl.btree.BTree BTree}
  * <p>
+ * The number of entries is kept on the underlying node so {@link #size()}
+ * is a single property read. The {@link #keySet()}, {@link #values()} and
+ * {@link #entrySet()} views are read lazily from the b-tree and its 
+ * collision buckets, in hash code order, and must be iterated within a 
+ * transaction. They can't be modified.
+ * <p>
+ * By default the b-tree is keyed on {@link Object#hashCode()} and keys 
+ * with the same hash code are moved to a bucket node with a node for each 
+ * key. A map created with 64 bit hashing has few such collisions and keeps
+ * them in arrays of keys and values on the b-tree entry, it only falls back
+ * to a bucket when the colliding keys or values have different types.
+ * <p>
  * Note: this implementation is not thread safe (yet).
  * @param <K> The key type
  * @param <V> The value type
@@ -54,12 +79,18 @@ public class BTreeMap<K,V> implements Map<K,V>
 	private static final String MAP_NAME = "map_name";
 	private static final String MAP_KEY = "map_key";
 	private static final String MAP_VALUE = "map_value";
+	// the size, see VersionedProperties
+	static final String MAP_SIZE = "map_size";
+	private static final String MAP_LONG_HASH = "map_long_hash";
+	
+	private static final long HASH_SEED = 0x5bd1e9955bd1e995L;
 	// private static final String GOTO_NODE = "goto_node";
 	
 	private final Node underlyingNode;
 	private BTree bTree;
 	private String name;
 	private GraphDatabaseService graphDb;
+	private boolean longHash;
 	
 	
 	/**
@@ -78,6 +109,49 @@ public class BTreeMap<K,V> implements Map<K,V>
 	 */
 	public BTreeMap( String name, Node underlyingNode,
 	    GraphDatabaseService graphDb )
+	{
+		this( name, underlyingNode, graphDb, false );
+	}
+	
+	/**
+	 * Creates/loads a persistent map based on a b-tree, optionally in 
+	 * concurrent mode where transactions in different threads can put and 
+	 * remove entries at the same time, see {@link BTree}.
+	 *
+	 * @param name The unique name of the map or null if map already
+	 * created (using specified underlying node).
+	 * @param underlyingNode The underlying node representing the map
+	 * @param graphDb The {@link GraphDatabaseService} instante.
+	 * @param concurrent {@code true} to lock for concurrent writers.
+	 * @throws IllegalArgumentException if the underlying node is a map with
+	 * a different name set.
+	 */
+	public BTreeMap( String name, Node underlyingNode,
+	    GraphDatabaseService graphDb, boolean concurrent )
+	{
+		this( name, underlyingNode, graphDb, concurrent, false );
+	}
+	
+	/**
+	 * Creates/loads a persistent map based on a b-tree, optionally keyed on
+	 * a 64 bit hash of the keys instead of their {@link Object#hashCode()}.
+	 * The hashing is chosen when the map is created, a loaded map keeps the
+	 * hashing it was created with. With 64 bit hashing the keys must be 
+	 * strings or boxed primitives, and the rare keys with the same hash are
+	 * kept together in arrays on their b-tree entry rather than in a bucket
+	 * of nodes.
+	 *
+	 * @param name The unique name of the map or null if map already
+	 * created (using specified underlying node).
+	 * @param underlyingNode The underlying node representing the map
+	 * @param graphDb The {@link GraphDatabaseService} instante.
+	 * @param concurrent {@code true} to lock for concurrent writers.
+	 * @param longHash {@code true} to key a new map on 64 bit hashes.
+	 * @throws IllegalArgumentException if the underlying node is a map with
+	 * a different name set.
+	 */
+	public BTreeMap( String name, Node underlyingNode,
+	    GraphDatabaseService graphDb, boolean concurrent, boolean longHash )
 	{
 		if ( underlyingNode == null || graphDb == null )
 		{
@@ -115,20 +189,27 @@ public class BTreeMap<K,V> implements Map<K,V>
 			{
 				underlyingNode.setProperty( MAP_NAME, name );
 				this.name = name;
+				if ( longHash )
+				{
+					underlyingNode.setProperty( MAP_LONG_HASH, true );
+				}
 			}
+			this.longHash = underlyingNode.hasProperty( MAP_LONG_HASH );
 			Relationship bTreeRel = underlyingNode.getSingleRelationship( 
 				BTree.RelTypes.TREE_ROOT, 
 				Direction.OUTGOING );
 			if ( bTreeRel != null )
 			{
-				bTree = new BTree( graphDb, bTreeRel.getEndNode() );
+				bTree = new BTree( graphDb, bTreeRel.getEndNode(), 
+					concurrent );
 			}
 			else
 			{
 				Node bTreeNode = graphDb.createNode();
 				underlyingNode.createRelationshipTo( bTreeNode, 
 					BTree.RelTypes.TREE_ROOT );
-				bTree = new BTree( graphDb, bTreeNode );
+				bTree = new BTree( graphDb, bTreeNode, concurrent );
+				setSize( 0 );
 			}
 			tx.success();
 		}
@@ -157,6 +238,7 @@ public class BTreeMap<K,V> implements Map<K,V>
 	 * If key or value is {@code null} {@link IllegalArgumentException} is 
 	 * thrown. Key and value must be valid neo4j properties.
 	 */
+	@SuppressWarnings( "unchecked" )
 	public V put( K key, V value )
 	{
 		if ( key == null || value == null )
@@ -166,7 +248,8 @@ public class BTreeMap<K,V> implements Map<K,V>
 		Transaction tx = graphDb.beginTx();
 		try
 		{
-			int hashCode = key.hashCode();
+			ensureSized();
+			long hashCode = hash( key );
 			KeyEntry entry = bTree.addIfAbsent( hashCode, value );
 			if ( entry != null )
 			{
@@ -177,7 +260,60 @@ public class BTreeMap<K,V> implements Map<K,V>
 				entry = bTree.getAsKeyEntry( hashCode );
 				Object goOtherNode = entry.getKeyValue();
 				Node bucketNode = null;
-				if ( !goOtherNode.equals( GOTO_NODE ) )
+				if ( goOtherNode.getClass().isArray() )
+				{
+					Object keys = goOtherNode;
+					Object values = entry.getValue();
+					int index = indexOf( keys, key );
+					if ( index >= 0 )
+					{
+						Object oldValue = Array.get( values, index );
+						Object newValues = toArray( values, -1, index, 
+							value );
+						if ( newValues != null )
+						{
+							entry.setValue( newValues );
+							tx.success();
+							return (V) oldValue;
+						}
+					}
+					else
+					{
+						Object newKeys = toArray( keys, -1, -1, key );
+						Object newValues = toArray( values, -1, -1, value );
+						if ( newKeys != null && newValues != null )
+						{
+							entry.setKeyValue( newKeys );
+							entry.setValue( newValues );
+							addToSize( 1 );
+							tx.success();
+							return null;
+						}
+					}
+					// key or value of another type, move all to a bucket
+					bucketNode = graphDb.createNode();
+					entry.setKeyValue( GOTO_NODE );
+					entry.setValue( bucketNode.getId() );
+					Object oldValue = null;
+					for ( int i = 0; i < Array.getLength( keys ); i++ )
+					{
+						if ( i == index )
+						{
+							oldValue = Array.get( values, i );
+							continue;
+						}
+						addToBucket( bucketNode, Array.get( keys, i ), 
+							Array.get( values, i ) );
+					}
+					addToBucket( bucketNode, key, value );
+					if ( index < 0 )
+					{
+						addToSize( 1 );
+					}
+					tx.success();
+					return (V) oldValue;
+				}
+				else if ( !goOtherNode.equals( GOTO_NODE ) )
 				{
 					Object prevValue = entry.getValue();
 					Object prevKey = entry.getKeyValue();
@@ -188,19 +324,22 @@ public class BTreeMap<K,V> implements Map<K,V>
 						tx.success();
 						return (V) oldValue;
 					}
-					entry.setKeyValue( GOTO_NODE );
-					bucketNode = graphDb.createNode();
-					entry.setValue( bucketNode.getId() );
-					Node prevEntry = graphDb.createNode();
-					bucketNode.createRelationshipTo( prevEntry, 
-						RelTypes.MAP_ENTRY );
-					prevEntry.setProperty( MAP_KEY, prevKey );
-					prevEntry.setProperty( MAP_VALUE, prevValue );
-					Node newEntry = graphDb.createNode();
-					bucketNode.createRelationshipTo( newEntry, 
-						RelTypes.MAP_ENTRY );
-					newEntry.setProperty( MAP_KEY, key );
-					newEntry.setProperty( MAP_VALUE, value );
+					Object keys = longHash ? toArray( prevKey, key ) : null;
+					Object values = longHash ? 
+						toArray( prevValue, value ) : null;
+					if ( keys != null && values != null )
+					{
+						entry.setKeyValue( keys );
+						entry.setValue( values );
+					}
+					else
+					{
+						entry.setKeyValue( GOTO_NODE );
+						bucketNode = graphDb.createNode();
+						entry.setValue( bucketNode.getId() );
+						addToBucket( bucketNode, prevKey, prevValue );
+						addToBucket( bucketNode, key, value );
+					}
 				}
 				else
 				{
@@ -211,18 +350,17 @@ public class BTreeMap<K,V> implements Map<K,V>
 						Node entryNode = rel.getEndNode();
 						if ( entryNode.getProperty( MAP_KEY ).equals( key ) )
 						{
+							Object oldValue = entryNode.getProperty( 
+								MAP_VALUE );
 							entryNode.setProperty( MAP_VALUE, value );
 							tx.success();
-							return null;
+							return (V) oldValue;
 						}
 					}
-					Node newEntry = graphDb.createNode();
-					bucketNode.createRelationshipTo( newEntry, 
-						RelTypes.MAP_ENTRY );
-					newEntry.setProperty( MAP_KEY, key );
-					newEntry.setProperty( MAP_VALUE, value );
+					addToBucket( bucketNode, key, value );
 				}
 			}
+			addToSize( 1 );
 			tx.success();
 			return null;
 		}
@@ -232,22 +370,59 @@ public class BTreeMap<K,V> implements Map<K,V>
 		}
 	}
 	
+	private void addToBucket( Node bucketNode, Object key, Object value )
+	{
+		Node entryNode = graphDb.createNode();
+		bucketNode.createRelationshipTo( entryNode, RelTypes.MAP_ENTRY );
+		entryNode.setProperty( MAP_KEY, key );
+		entryNode.setProperty( MAP_VALUE, value );
+	}
+	
+	@SuppressWarnings( "unchecked" )
 	public V remove( Object key )
 	{
 		Transaction tx = graphDb.beginTx();
 		try
 		{
-			int hashCode = key.hashCode();
+			ensureSized();
+			long hashCode = hash( key );
 			KeyEntry entry = bTree.getAsKeyEntry( hashCode );
 			if ( entry != null )
 			{
 				Object goOtherNode = entry.getKeyValue();
-				if ( !goOtherNode.equals( GOTO_NODE ) )
+				if ( goOtherNode.getClass().isArray() )
+				{
+					int index = indexOf( goOtherNode, key );
+					if ( index >= 0 )
+					{
+						Object values = entry.getValue();
+						Object value = Array.get( values, index );
+						if ( Array.getLength( values ) == 2 )
+						{
+							// back to a single key
+							entry.setKeyValue( Array.get( goOtherNode, 
+								1 - index ) );
+							entry.setValue( Array.get( values, 1 - index ) );
+						}
+						else
+						{
+							entry.setKeyValue( toArray( goOtherNode, index, 
+								-1, null ) );
+							entry.setValue( toArray( values, index, -1, 
+								null ) );
+						}
+						addToSize( -1 );
+						tx.success();
+						return (V) value;
+					}
+				}
+				else if ( !goOtherNode.equals( GOTO_NODE ) )
 				{
 					if ( goOtherNode.equals( key ) )
 					{
 						Object value = entry.getValue();
 						entry.remove();
+						addToSize( -1 );
 						tx.success();
 						return (V) value;
 					}
@@ -265,6 +440,13 @@ public class BTreeMap<K,V> implements Map<K,V>
 							Object value = entryNode.getProperty( MAP_VALUE );
 							rel.delete();
 							entryNode.delete();
+							if ( !bucketNode.hasRelationship( 
+								RelTypes.MAP_ENTRY, Direction.OUTGOING ) )
+							{
+								bucketNode.delete();
+								entry.remove();
+							}
+							addToSize( -1 );
 							tx.success();
 							return (V) value;
 						}
@@ -285,17 +467,27 @@ public class BTreeMap<K,V> implements Map<K,V>
 		bTree.validateTree();
 	}
 	
+	@SuppressWarnings( "unchecked" )
 	public V get( Object key )
 	{
 		Transaction tx = graphDb.beginTx();
 		try
 		{
-			int hashCode = key.hashCode();
+			long hashCode = hash( key );
 			KeyEntry entry = bTree.getAsKeyEntry( hashCode );
 			if ( entry != null )
 			{
 				Object goOtherNode = entry.getKeyValue();
-				if ( !goOtherNode.equals( GOTO_NODE ) )
+				if ( goOtherNode.getClass().isArray() )
+				{
+					int index = indexOf( goOtherNode, key );
+					if ( index >= 0 )
+					{
+						tx.success();
+						return (V) Array.get( entry.getValue(), index );
+					}
+				}
+				else if ( !goOtherNode.equals( GOTO_NODE ) )
 				{
 					if ( goOtherNode.equals( key ) )
 					{
@@ -328,6 +520,257 @@ public class BTreeMap<K,V> implements Map<K,V>
 		}
 	}
 	
+	// the b-tree key of a map key
+	long hash( Object key )
+	{
+		return longHash ? hash64( key ) : key.hashCode();
+	}
+	
+	// a 64 bit hash of the type and value of a key, the same in every jvm
+	static long hash64( Object key )
+	{
+		ByteBuffer buffer;
+		if ( key instanceof String )
+		{
+			String string = (String) key;
+			buffer = ByteBuffer.allocate( 1 + string.length() * 2 );
+			buffer.put( (byte) 1 );
+			for ( int i = 0; i < string.length(); i++ )
+			{
+				buffer.putChar( string.charAt( i ) );
+			}
+		}
+		else if ( key instanceof Long )
+		{
+			buffer = ByteBuffer.allocate( 9 ).put( (byte) 2 ).putLong( 
+				(Long) key );
+		}
+		else if ( key instanceof Integer )
+		{
+			buffer = ByteBuffer.allocate( 5 ).put( (byte) 3 ).putInt( 
+				(Integer) key );
+		}
+		else if ( key instanceof Short )
+		{
+			buffer = ByteBuffer.allocate( 3 ).put( (byte) 4 ).putShort( 
+				(Short) key );
+		}
+		else if ( key instanceof Byte )
+		{
+			buffer = ByteBuffer.allocate( 2 ).put( (byte) 5 ).put( 
+				(Byte) key );
+		}
+		else if ( key instanceof Character )
+		{
+			buffer = ByteBuffer.allocate( 3 ).put( (byte) 6 ).putChar( 
+				(Character) key );
+		}
+		else if ( key instanceof Boolean )
+		{
+			buffer = ByteBuffer.allocate( 2 ).put( (byte) 7 ).put( 
+				(byte) ( (Boolean) key ? 1 : 0 ) );
+		}
+		else if ( key instanceof Double )
+		{
+			buffer = ByteBuffer.allocate( 9 ).put( (byte) 8 ).putLong( 
+				Double.doubleToLongBits( (Double) key ) );
+		}
+		else if ( key instanceof Float )
+		{
+			buffer = ByteBuffer.allocate( 5 ).put( (byte) 9 ).putInt( 
+				Float.floatToIntBits( (Float) key ) );
+		}
+		else
+		{
+			throw new IllegalArgumentException( "Key " + key + " of " + 
+				key.getClass() + " can't be hashed to 64 bits" );
+		}
+		return murmurHash64( buffer.array() );
+	}
+	
+	// MurmurHash64A by Austin Appleby
+	private static long murmurHash64( byte[] data )
+	{
+		final long m = 0xc6a4a7935bd1e995L;
+		final int r = 47;
+		long h = HASH_SEED ^ ( data.length * m );
+		ByteBuffer buffer = ByteBuffer.wrap( data ).order( 
+			ByteOrder.LITTLE_ENDIAN );
+		int blocks = data.length / 8;
+		for ( int i = 0; i < blocks; i++ )
+		{
+			long k = buffer.getLong( i * 8 );
+			k *= m;
+			k ^= k >>> r;
+			k *= m;
+			h ^= k;
+			h *= m;
+		}
+		int tail = blocks * 8;
+		int remaining = data.length - tail;
+		if ( remaining > 0 )
+		{
+			for ( int i = remaining - 1; i >= 0; i-- )
+			{
+				h ^= (long) ( data[tail + i] & 0xff ) << ( 8 * i );
+			}
+			h *= m;
+		}
+		h ^= h >>> r;
+		h *= m;
+		h ^= h >>> r;
+		return h;
+	}
+	
+	private static int indexOf( Object array, Object item )
+	{
+		for ( int i = 0; i < Array.getLength( array ); i++ )
+		{
+			if ( Array.get( array, i ).equals( item ) )
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	// an array of two items, null if they can't be kept in one property 
+	// array, that is if they are of different types or arrays themselves
+	private static Object toArray( Object first, Object second )
+	{
+		Class<?> type = componentType( first );
+		if ( type == null || !first.getClass().equals( second.getClass() ) )
+		{
+			return null;
+		}
+		Object array = Array.newInstance( type, 2 );
+		Array.set( array, 0, first );
+		Array.set( array, 1, second );
+		return array;
+	}
+	
+	// a copy of array without the item at removeIndex, with item at 
+	// setIndex or, if both are -1, with item last, null if item doesn't fit
+	// in the array
+	private static Object toArray( Object array, int removeIndex, 
+		int setIndex, Object item )
+	{
+		Class<?> type = array.getClass().getComponentType();
+		if ( item != null && !type.equals( componentType( item ) ) )
+		{
+			return null;
+		}
+		int length = Array.getLength( array );
+		Object result = Array.newInstance( type, removeIndex >= 0 ? 
+			length - 1 : ( setIndex >= 0 ? length : length + 1 ) );
+		for ( int i = 0, j = 0; i < length; i++ )
+		{
+			if ( i != removeIndex )
+			{
+				Array.set( result, j++, i == setIndex ? item : 
+					Array.get( array, i ) );
+			}
+		}
+		if ( removeIndex < 0 && setIndex < 0 )
+		{
+			Array.set( result, length, item );
+		}
+		return result;
+	}
+	
+	// the primitive type or String a property value is kept as in an array
+	private static Class<?> componentType( Object item )
+	{
+		if ( item instanceof String )
+		{
+			return String.class;
+		}
+		Class<?>[] boxes = { Long.class, Integer.class, Short.class, 
+			Byte.class, Character.class, Boolean.class, Double.class, 
+			Float.class };
+		Class<?>[] primitives = { long.class, int.class, short.class, 
+			byte.class, char.class, boolean.class, double.class, 
+			float.class };
+		for ( int i = 0; i < boxes.length; i++ )
+		{
+			if ( boxes[i].equals( item.getClass() ) )
+			{
+				return primitives[i];
+			}
+		}
+		return null;
+	}
+	
+	// adds the keys of the map entries a transaction changed, in any map,
+	// to keys: the key values of changed entries in the b-tree and the keys
+	// of changed bucket entries
+	static void addChangedKeys( TransactionData data, Set<Object> keys )
+	{
+		for ( PropertyEntry<Relationship> entry : 
+			data.assignedRelationshipProperties() )
+		{
+			if ( entry.key().equals( KeyEntry.KEY_VALUE ) )
+			{
+				addKeys( entry.value(), keys );
+				addKeys( entry.previouslyCommitedValue(), keys );
+			}
+			else if ( entry.key().equals( KeyEntry.VALUE ) && 
+				!data.isDeleted( entry.entity() ) )
+			{
+				addKeys( entry.entity().getProperty( KeyEntry.KEY_VALUE, 
+					null ), keys );
+			}
+		}
+		for ( PropertyEntry<Relationship> entry : 
+			data.removedRelationshipProperties() )
+		{
+			if ( entry.key().equals( KeyEntry.KEY_VALUE ) )
+			{
+				addKeys( entry.previouslyCommitedValue(), keys );
+			}
+		}
+		for ( PropertyEntry<Node> entry : data.assignedNodeProperties() )
+		{
+			if ( entry.key().equals( MAP_KEY ) )
+			{
+				addKeys( entry.value(), keys );
+				addKeys( entry.previouslyCommitedValue(), keys );
+			}
+			else if ( entry.key().equals( MAP_VALUE ) && 
+				!data.isDeleted( entry.entity() ) )
+			{
+				addKeys( entry.entity().getProperty( MAP_KEY, null ), keys );
+			}
+		}
+		for ( PropertyEntry<Node> entry : data.removedNodeProperties() )
+		{
+			if ( entry.key().equals( MAP_KEY ) )
+			{
+				addKeys( entry.previouslyCommitedValue(), keys );
+			}
+		}
+	}
+	
+	// a key value is a key, or an array of keys colliding in one entry
+	private static void addKeys( Object keyValue, Set<Object> keys )
+	{
+		if ( keyValue == null )
+		{
+			return;
+		}
+		if ( keyValue.getClass().isArray() )
+		{
+			for ( int i = 0; i < Array.getLength( keyValue ); i++ )
+			{
+				keys.add( Array.get( keyValue, i ) );
+			}
+		}
+		else
+		{
+			keys.add( keyValue );
+		}
+	}
+	
 	public void clear()
 	{
 		deleteBuckets();
@@ -335,7 +778,8 @@ public class BTreeMap<K,V> implements Map<K,V>
 		Node bTreeNode = graphDb.createNode();
 		underlyingNode.createRelationshipTo( bTreeNode, 
 			BTree.RelTypes.TREE_ROOT );
-		bTree = new BTree( graphDb, bTreeNode );
+		bTree = new BTree( graphDb, bTreeNode, bTree.isConcurrent() );
+		setSize( 0 );
 	}
 	
 	/**
@@ -381,44 +825,282 @@ public class BTreeMap<K,V> implements Map<K,V>
 		underlyingNode.delete();
 	}
 	
+	// maps created before the size was kept get counted once
+	private void ensureSized()
+	{
+		if ( !underlyingNode.hasProperty( MAP_SIZE ) )
+		{
+			long size = 0;
+			for ( Iterator<Map.Entry<K,V>> itr = new EntryIterator(); 
+				itr.hasNext(); itr.next() )
+			{
+				size++;
+			}
+			setSize( size );
+		}
+	}
+	
+	private void addToSize( long delta )
+	{
+		VersionedProperties.addToLong( underlyingNode, MAP_SIZE, delta );
+	}
+	
+	private void setSize( long size )
+	{
+		VersionedProperties.setLong( underlyingNode, MAP_SIZE, size );
+	}
+	
+	/**
+	 * Returns the values of this map, read lazily, see {@link BTreeMap}.
+	 */
 	public Collection<V> values()
-    {
-	    throw new UnsupportedOperationException();
-    }
-
+	{
+		return new AbstractCollection<V>()
+		{
+			@Override
+			public Iterator<V> iterator()
+			{
+				final Iterator<Map.Entry<K,V>> entries = new EntryIterator();
+				return new Iterator<V>()
+				{
+					public boolean hasNext()
+					{
+						return entries.hasNext();
+					}
+					
+					public V next()
+					{
+						return entries.next().getValue();
+					}
+					
+					public void remove()
+					{
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+			
+			@Override
+			public int size()
+			{
+				return BTreeMap.this.size();
+			}
+		};
+	}
+	
+	/**
+	 * Returns the keys of this map, read lazily, see {@link BTreeMap}.
+	 */
 	public Set<K> keySet()
-    {
-	    throw new UnsupportedOperationException();
-    }
-
+	{
+		return new AbstractSet<K>()
+		{
+			@Override
+			public Iterator<K> iterator()
+			{
+				final Iterator<Map.Entry<K,V>> entries = new EntryIterator();
+				return new Iterator<K>()
+				{
+					public boolean hasNext()
+					{
+						return entries.hasNext();
+					}
+					
+					public K next()
+					{
+						return entries.next().getKey();
+					}
+					
+					public void remove()
+					{
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+			
+			@Override
+			public boolean contains( Object key )
+			{
+				return containsKey( key );
+			}
+			
+			@Override
+			public int size()
+			{
+				return BTreeMap.this.size();
+			}
+		};
+	}
+	
 	public boolean containsKey( Object key )
-    {
-		throw new UnsupportedOperationException();
-    }
-
+	{
+		return get( key ) != null;
+	}
+	
+	/**
+	 * Looks through all the values of this map.
+	 */
 	public boolean containsValue( Object value )
-    {
-		throw new UnsupportedOperationException();
-    }
-
-	public Set<java.util.Map.Entry<K, V>> entrySet()
-    {
-		throw new UnsupportedOperationException();
-    }
-
+	{
+		Transaction tx = graphDb.beginTx();
+		try
+		{
+			boolean found = values().contains( value );
+			tx.success();
+			return found;
+		}
+		finally
+		{
+			tx.finish();
+		}
+	}
+	
+	/**
+	 * Returns the entries of this map, read lazily, see {@link BTreeMap}.
+	 */
+	public Set<Map.Entry<K,V>> entrySet()
+	{
+		return new AbstractSet<Map.Entry<K,V>>()
+		{
+			@Override
+			public Iterator<Map.Entry<K,V>> iterator()
+			{
+				return new EntryIterator();
+			}
+			
+			@Override
+			public int size()
+			{
+				return BTreeMap.this.size();
+			}
+		};
+	}
+	
 	public boolean isEmpty()
-    {
-	    // TODO Auto-generated method stub
-		throw new UnsupportedOperationException();
-    }
-
+	{
+		return size() == 0;
+	}
+	
+	/**
+	 * Puts all the entries in one transaction.
+	 */
 	public void putAll( Map<? extends K, ? extends V> t )
-    {
-		throw new UnsupportedOperationException();
-    }
-
+	{
+		Transaction tx = graphDb.beginTx();
+		try
+		{
+			for ( Map.Entry<? extends K, ? extends V> entry : t.entrySet() )
+			{
+				put( entry.getKey(), entry.getValue() );
+			}
+			tx.success();
+		}
+		finally
+		{
+			tx.finish();
+		}
+	}
+	
+	/**
+	 * Returns the number of entries, kept on the underlying node. A map 
+	 * created before the size was kept is counted the first time.
+	 */
 	public int size()
-    {
-		throw new UnsupportedOperationException();
-    }
+	{
+		Transaction tx = graphDb.beginTx();
+		try
+		{
+			ensureSized();
+			long size = VersionedProperties.getLong( underlyingNode, MAP_SIZE, 
+				0 );
+			tx.success();
+			return (int) Math.min( Integer.MAX_VALUE, size );
+		}
+		finally
+		{
+			tx.finish();
+		}
+	}
+	
+	/**
+	 * Walks the entries of the b-tree and the entries of the collision 
+	 * buckets they point to.
+	 */
+	private class EntryIterator implements Iterator<Map.Entry<K,V>>
+	{
+		private final Iterator<KeyEntry> treeEntries = 
+			bTree.entries().iterator();
+		private Iterator<Relationship> bucket = 
+			Collections.<Relationship>emptyList().iterator();
+		// entries kept in arrays on one b-tree entry
+		private final LinkedList<Map.Entry<K,V>> inline = 
+			new LinkedList<Map.Entry<K,V>>();
+		private Map.Entry<K,V> next = fetch();
+		
+		@SuppressWarnings( "unchecked" )
+		private Map.Entry<K,V> fetch()
+		{
+			if ( !inline.isEmpty() )
+			{
+				return inline.removeFirst();
+			}
+			if ( bucket.hasNext() )
+			{
+				Node entryNode = bucket.next().getEndNode();
+				return new AbstractMap.SimpleImmutableEntry<K,V>( 
+					(K) entryNode.getProperty( MAP_KEY ), 
+					(V) entryNode.getProperty( MAP_VALUE ) );
+			}
+			while ( treeEntries.hasNext() )
+			{
+				KeyEntry entry = treeEntries.next();
+				Object keyValue = entry.getKeyValue();
+				if ( keyValue.getClass().isArray() )
+				{
+					Object values = entry.getValue();
+					for ( int i = 0; i < Array.getLength( keyValue ); i++ )
+					{
+						inline.add( new AbstractMap.SimpleImmutableEntry<K,V>( 
+							(K) Array.get( keyValue, i ), 
+							(V) Array.get( values, i ) ) );
+					}
+					return inline.removeFirst();
+				}
+				if ( !keyValue.equals( GOTO_NODE ) )
+				{
+					return new AbstractMap.SimpleImmutableEntry<K,V>( 
+						(K) keyValue, (V) entry.getValue() );
+				}
+				bucket = graphDb.getNodeById( (Long) entry.getValue() ).
+					getRelationships( RelTypes.MAP_ENTRY, 
+						Direction.OUTGOING ).iterator();
+				if ( bucket.hasNext() )
+				{
+					return fetch();
+				}
+			}
+			return null;
+		}
+		
+		public boolean hasNext()
+		{
+			return next != null;
+		}
+		
+		public Map.Entry<K,V> next()
+		{
+			if ( next == null )
+			{
+				throw new NoSuchElementException();
+			}
+			Map.Entry<K,V> result = next;
+			next = fetch();
+			return result;
+		}
+		
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+	}
 }
@@ -0,0 +1,302 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.collections.treemap;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+/**
+ * A bounded, least recently used cache of committed values in front of a
+ * {@link BTreeMap}, so a {@link #get(Object)} of a hot key doesn't descend
+ * the b-tree. Absent keys are cached too.
+ * <p>
+ * Puts and removes go through to the map. The keys written in a
+ * transaction are read from the map by that transaction, so it sees its
+ * own writes, and are evicted from the cache by a transaction event handler
+ * once the transaction commits. Keys changed without going through the
+ * cache, through another {@code BTreeMap} instance, are read from the
+ * entries the transaction changed and evicted as well. Equal keys changed
+ * in other maps are evicted too, which only costs a read.
+ * <p>
+ * The cache can be used from many threads. {@link #close()} unregisters
+ * the event handler.
+ */
+public class BTreeMapCache<K,V> implements Map<K,V>
+{
+	// cached for keys not in the map
+	private static final Object ABSENT = new Object();
+	// written instead of keys when the whole map was cleared
+	private static final Object ALL = new Object();
+	
+	private final BTreeMap<K,V> map;
+	private final GraphDatabaseService graphDb;
+	private final LinkedHashMap<Object,Object> cache;
+	// keys written by the transaction of a thread
+	private final ThreadLocal<Set<Object>> written =
+		new ThreadLocal<Set<Object>>();
+	private final TransactionEventHandler<Set<Object>> invalidator =
+		new Invalidator();
+	// bumped on every invalidation, a value read before it isn't cached
+	private long generation;
+	
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	
+	/**
+	 * Creates a cache of at most {@code capacity} keys in front of
+	 * {@code map} and registers its transaction event handler.
+	 *
+	 * @param graphDb the {@link GraphDatabaseService} of the map.
+	 * @param map the map to cache.
+	 * @param capacity the maximum number of cached keys.
+	 */
+	public BTreeMapCache( GraphDatabaseService graphDb, BTreeMap<K,V> map,
+		final int capacity )
+	{
+		if ( capacity <= 0 )
+		{
+			throw new IllegalArgumentException( "Illegal capacity " +
+				capacity );
+		}
+		this.map = map;
+		this.graphDb = graphDb;
+		this.cache = new LinkedHashMap<Object,Object>( 16, 0.75f, true )
+		{
+			@Override
+			protected boolean removeEldestEntry( Map.Entry<Object,Object> eldest )
+			{
+				if ( size() > capacity )
+				{
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+		graphDb.registerTransactionEventHandler( invalidator );
+	}
+	
+	/**
+	 * Unregisters the transaction event handler and empties the cache.
+	 */
+	public void close()
+	{
+		graphDb.unregisterTransactionEventHandler( invalidator );
+		synchronized ( cache )
+		{
+			cache.clear();
+			generation++;
+		}
+	}
+	
+	/**
+	 * Returns the value from the cache, or from the map if it isn't cached
+	 * or was written by the current transaction.
+	 */
+	@SuppressWarnings( "unchecked" )
+	public V get( Object key )
+	{
+		Set<Object> keys = written.get();
+		if ( keys != null && ( keys.contains( key ) || keys.contains( ALL ) ) )
+		{
+			return map.get( key );
+		}
+		long readGeneration;
+		synchronized ( cache )
+		{
+			Object value = cache.get( key );
+			if ( value != null )
+			{
+				hits.incrementAndGet();
+				return value == ABSENT ? null : (V) value;
+			}
+			readGeneration = generation;
+		}
+		misses.incrementAndGet();
+		V value = map.get( key );
+		synchronized ( cache )
+		{
+			if ( generation == readGeneration )
+			{
+				cache.put( key, value != null ? value : ABSENT );
+			}
+		}
+		return value;
+	}
+	
+	public V put( K key, V value )
+	{
+		written( key );
+		return map.put( key, value );
+	}
+	
+	public V remove( Object key )
+	{
+		written( key );
+		return map.remove( key );
+	}
+	
+	public void putAll( Map<? extends K, ? extends V> t )
+	{
+		for ( K key : t.keySet() )
+		{
+			written( key );
+		}
+		map.putAll( t );
+	}
+	
+	public void clear()
+	{
+		written( ALL );
+		map.clear();
+	}
+	
+	private void written( Object key )
+	{
+		Set<Object> keys = written.get();
+		if ( keys == null )
+		{
+			keys = new HashSet<Object>();
+			written.set( keys );
+		}
+		keys.add( key );
+	}
+	
+	public boolean containsKey( Object key )
+	{
+		return get( key ) != null;
+	}
+	
+	public boolean containsValue( Object value )
+	{
+		return map.containsValue( value );
+	}
+	
+	public boolean isEmpty()
+	{
+		return map.isEmpty();
+	}
+	
+	public int size()
+	{
+		return map.size();
+	}
+	
+	public Set<K> keySet()
+	{
+		return map.keySet();
+	}
+	
+	public Collection<V> values()
+	{
+		return map.values();
+	}
+	
+	public Set<Map.Entry<K,V>> entrySet()
+	{
+		return map.entrySet();
+	}
+	
+	/**
+	 * Returns the number of gets answered by the cache.
+	 *
+	 * @return the number of cache hits.
+	 */
+	public long getHitCount()
+	{
+		return hits.get();
+	}
+	
+	/**
+	 * Returns the number of gets read from the map, not counting gets of
+	 * keys written by the current transaction.
+	 *
+	 * @return the number of cache misses.
+	 */
+	public long getMissCount()
+	{
+		return misses.get();
+	}
+	
+	/**
+	 * Returns the number of keys evicted to keep the cache within its
+	 * capacity.
+	 *
+	 * @return the number of evictions.
+	 */
+	public long getEvictionCount()
+	{
+		return evictions.get();
+	}
+	
+	/**
+	 * Hands the keys written by a transaction from its thread, and the keys
+	 * of the entries it changed, to the commit and evicts them once it is
+	 * done.
+	 */
+	private class Invalidator implements TransactionEventHandler<Set<Object>>
+	{
+		public Set<Object> beforeCommit( TransactionData data )
+		{
+			Set<Object> keys = written.get();
+			written.remove();
+			if ( keys == null )
+			{
+				keys = new HashSet<Object>();
+			}
+			BTreeMap.addChangedKeys( data, keys );
+			return keys.isEmpty() ? null : keys;
+		}
+		
+		public void afterCommit( TransactionData data, Set<Object> keys )
+		{
+			if ( keys == null )
+			{
+				return;
+			}
+			synchronized ( cache )
+			{
+				if ( keys.contains( ALL ) )
+				{
+					cache.clear();
+				}
+				else
+				{
+					cache.keySet().removeAll( keys );
+				}
+				generation++;
+			}
+		}
+		
+		public void afterRollback( TransactionData data, Set<Object> keys )
+		{
+			written.remove();
+		}
+	}
+}
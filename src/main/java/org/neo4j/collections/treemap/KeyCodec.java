@@ -0,0 +1,135 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.collections.treemap;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Turns the keys of a {@link SortedBTreeMap} into the {@code byte[]} keys
+ * of its {@link org.neo4j.collections.btree.ByteArrayBTree ByteArrayBTree}
+ * and back. The encoding must keep the natural order of the keys, compared
+ * as by {@link org.neo4j.collections.btree.ByteArrayBTree#compare(byte[],
+ * byte[])}, and two keys must only get the same bytes if they are equal.
+ *
+ * @param <K> the key type
+ */
+public interface KeyCodec<K>
+{
+	/**
+	 * Strings as their chars, two bytes each, which sorts them as
+	 * {@link String#compareTo(String)} does.
+	 */
+	KeyCodec<String> STRING = new KeyCodec<String>()
+	{
+		public byte[] encode( String key )
+		{
+			byte[] bytes = new byte[key.length() * 2];
+			for ( int i = 0; i < key.length(); i++ )
+			{
+				char c = key.charAt( i );
+				bytes[i * 2] = (byte) ( c >>> 8 );
+				bytes[i * 2 + 1] = (byte) c;
+			}
+			return bytes;
+		}
+		
+		public String decode( byte[] bytes )
+		{
+			char[] chars = new char[bytes.length / 2];
+			for ( int i = 0; i < chars.length; i++ )
+			{
+				chars[i] = (char) ( ( ( bytes[i * 2] & 0xff ) << 8 ) |
+					( bytes[i * 2 + 1] & 0xff ) );
+			}
+			return new String( chars );
+		}
+	};
+	
+	/**
+	 * Longs big endian with the sign bit flipped.
+	 */
+	KeyCodec<Long> LONG = new KeyCodec<Long>()
+	{
+		public byte[] encode( Long key )
+		{
+			return ByteBuffer.allocate( 8 ).putLong(
+				key ^ Long.MIN_VALUE ).array();
+		}
+		
+		public Long decode( byte[] bytes )
+		{
+			return ByteBuffer.wrap( bytes ).getLong() ^ Long.MIN_VALUE;
+		}
+	};
+	
+	/**
+	 * Integers big endian with the sign bit flipped.
+	 */
+	KeyCodec<Integer> INTEGER = new KeyCodec<Integer>()
+	{
+		public byte[] encode( Integer key )
+		{
+			return ByteBuffer.allocate( 4 ).putInt(
+				key ^ Integer.MIN_VALUE ).array();
+		}
+		
+		public Integer decode( byte[] bytes )
+		{
+			return ByteBuffer.wrap( bytes ).getInt() ^ Integer.MIN_VALUE;
+		}
+	};
+	
+	/**
+	 * Doubles as their bits big endian, with the sign bit flipped for
+	 * positive numbers and all bits flipped for negative ones.
+	 */
+	KeyCodec<Double> DOUBLE = new KeyCodec<Double>()
+	{
+		public byte[] encode( Double key )
+		{
+			long bits = Double.doubleToLongBits( key );
+			bits ^= bits < 0 ? -1L : Long.MIN_VALUE;
+			return ByteBuffer.allocate( 8 ).putLong( bits ).array();
+		}
+		
+		public Double decode( byte[] bytes )
+		{
+			long bits = ByteBuffer.wrap( bytes ).getLong();
+			bits ^= bits < 0 ? Long.MIN_VALUE : -1L;
+			return Double.longBitsToDouble( bits );
+		}
+	};
+	
+	/**
+	 * Returns the bytes of a key.
+	 *
+	 * @param key the key, not {@code null}.
+	 * @return the bytes of the key.
+	 */
+	byte[] encode( K key );
+	
+	/**
+	 * Returns the key of bytes from {@link #encode(Object)}.
+	 *
+	 * @param bytes the bytes of a key.
+	 * @return the key.
+	 */
+	K decode( byte[] bytes );
+}
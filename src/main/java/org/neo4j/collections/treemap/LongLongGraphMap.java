@@ -0,0 +1,283 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.collections.treemap;
+
+import org.neo4j.collections.VersionedProperties;
+import org.neo4j.collections.btree.PagedBTree;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+
+/**
+ * A map of {@code long} keys to {@code long} values, typically node ids to
+ * node ids, kept in a {@link PagedBTree} on the underlying node. The keys
+ * and values are stored in the {@code long[]} pages of the tree, there is no
+ * hashing, no boxing and no node or relationship per entry, and a lookup
+ * reads one node per level of the tree.
+ * <p>
+ * A missing key is told by the no entry value, {@code -1} unless given
+ * otherwise, so a map holding that value has to check with
+ * {@link #containsKey(long)}. The number of entries is kept on the
+ * underlying node.
+ * <p>
+ * All methods expect an enclosing transaction. The implementation isn't
+ * thread safe.
+ */
+public class LongLongGraphMap
+{
+	/**
+	 * The no entry value unless given otherwise.
+	 */
+	public static final long DEFAULT_NO_ENTRY_VALUE = -1;
+	
+	// the size, see VersionedProperties
+	static final String MAP_SIZE = "long_map_size";
+	
+	private final Node underlyingNode;
+	private final PagedBTree bTree;
+	private final long noEntryValue;
+	
+	/**
+	 * Creates/loads a map on {@code underlyingNode} with the default order of
+	 * the tree and no entry value.
+	 *
+	 * @param graphDb The {@link GraphDatabaseService} instance.
+	 * @param underlyingNode The underlying node representing the map
+	 */
+	public LongLongGraphMap( GraphDatabaseService graphDb,
+		Node underlyingNode )
+	{
+		this( graphDb, underlyingNode, PagedBTree.DEFAULT_ORDER,
+			DEFAULT_NO_ENTRY_VALUE );
+	}
+	
+	/**
+	 * Creates/loads a map on {@code underlyingNode}. The order is only used
+	 * when the map is created, see {@link PagedBTree}.
+	 *
+	 * @param graphDb The {@link GraphDatabaseService} instance.
+	 * @param underlyingNode The underlying node representing the map
+	 * @param order the maximum number of keys in a page.
+	 * @param noEntryValue the value returned for missing keys.
+	 */
+	public LongLongGraphMap( GraphDatabaseService graphDb,
+		Node underlyingNode, int order, long noEntryValue )
+	{
+		this.underlyingNode = underlyingNode;
+		this.bTree = new PagedBTree( graphDb, underlyingNode, order );
+		this.noEntryValue = noEntryValue;
+		if ( !underlyingNode.hasProperty( MAP_SIZE ) )
+		{
+			VersionedProperties.setLong( underlyingNode, MAP_SIZE, 0 );
+		}
+	}
+	
+	/**
+	 * Returns the node of this map.
+	 *
+	 * @return the underlying node.
+	 */
+	public Node getUnderlyingNode()
+	{
+		return underlyingNode;
+	}
+	
+	/**
+	 * Returns the value {@link #get(long)}, {@link #put(long, long)} and
+	 * {@link #remove(long)} return for a missing key.
+	 *
+	 * @return the no entry value.
+	 */
+	public long getNoEntryValue()
+	{
+		return noEntryValue;
+	}
+	
+	/**
+	 * Returns the value of {@code key}.
+	 *
+	 * @param key the key
+	 * @return the value or the no entry value if the key isn't in the map.
+	 */
+	public long get( long key )
+	{
+		return bTree.getEntry( key, noEntryValue );
+	}
+	
+	/**
+	 * Returns {@code true} if the map has an entry for {@code key}.
+	 *
+	 * @param key the key
+	 * @return {@code true} if the key is in the map.
+	 */
+	public boolean containsKey( long key )
+	{
+		return bTree.getEntry( key ) != null;
+	}
+	
+	/**
+	 * Puts an entry in the map, with one descent of the tree.
+	 *
+	 * @param key the key
+	 * @param value the value
+	 * @return the previous value or the no entry value if the key wasn't in
+	 * the map.
+	 */
+	public long put( long key, long value )
+	{
+		Long previous = bTree.put( key, value );
+		if ( previous == null )
+		{
+			addToSize( 1 );
+			return noEntryValue;
+		}
+		return previous;
+	}
+	
+	/**
+	 * Puts the entries of {@code keys} and {@code values}, in any order,
+	 * with one descent of the tree for each leaf page written rather than
+	 * for each entry. Of entries with the same key the last one is kept.
+	 *
+	 * @param keys the keys
+	 * @param values the values, one for each key
+	 */
+	public void putAll( long[] keys, long[] values )
+	{
+		if ( keys.length != values.length )
+		{
+			throw new IllegalArgumentException( keys.length + " keys but " +
+				values.length + " values" );
+		}
+		if ( !isSorted( keys ) )
+		{
+			keys = keys.clone();
+			values = values.clone();
+			sort( keys, values, keys.clone(), values.clone(), 0, keys.length );
+		}
+		int added = bTree.putAll( keys, values );
+		if ( added > 0 )
+		{
+			addToSize( added );
+		}
+	}
+	
+	/**
+	 * Removes the entry of {@code key}.
+	 *
+	 * @param key the key
+	 * @return the removed value or the no entry value if the key wasn't in
+	 * the map.
+	 */
+	public long remove( long key )
+	{
+		Long value = bTree.removeEntry( key );
+		if ( value == null )
+		{
+			return noEntryValue;
+		}
+		addToSize( -1 );
+		return value;
+	}
+	
+	/**
+	 * Returns the number of entries, read from the underlying node.
+	 *
+	 * @return the number of entries.
+	 */
+	public long size()
+	{
+		return VersionedProperties.getLong( underlyingNode, MAP_SIZE, 0 );
+	}
+	
+	/**
+	 * Returns {@code true} if the map has no entries.
+	 *
+	 * @return {@code true} if the map is empty.
+	 */
+	public boolean isEmpty()
+	{
+		return size() == 0;
+	}
+	
+	/**
+	 * Deletes this map and all its entries, even the underlying node.
+	 */
+	public void delete()
+	{
+		bTree.delete();
+		underlyingNode.delete();
+	}
+	
+	/**
+	 * Public for testing purpose. Validates the tree of this map.
+	 */
+	public void validate()
+	{
+		bTree.validateTree();
+	}
+	
+	private void addToSize( long delta )
+	{
+		VersionedProperties.addToLong( underlyingNode, MAP_SIZE, delta );
+	}
+	
+	private static boolean isSorted( long[] keys )
+	{
+		for ( int i = 1; i < keys.length; i++ )
+		{
+			if ( keys[i] < keys[i - 1] )
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	// a stable merge sort of keys and their values from the source arrays
+	// into the destination arrays, which start out as copies of each other
+	private static void sort( long[] keys, long[] values, long[] sourceKeys,
+		long[] sourceValues, int from, int to )
+	{
+		if ( to - from < 2 )
+		{
+			return;
+		}
+		int middle = ( from + to ) >>> 1;
+		// each half sorted into the source arrays, then merged back
+		sort( sourceKeys, sourceValues, keys, values, from, middle );
+		sort( sourceKeys, sourceValues, keys, values, middle, to );
+		int left = from;
+		int right = middle;
+		for ( int i = from; i < to; i++ )
+		{
+			if ( right >= to || ( left < middle &&
+				sourceKeys[left] <= sourceKeys[right] ) )
+			{
+				keys[i] = sourceKeys[left];
+				values[i] = sourceValues[left++];
+			}
+			else
+			{
+				keys[i] = sourceKeys[right];
+				values[i] = sourceValues[right++];
+			}
+		}
+	}
+}
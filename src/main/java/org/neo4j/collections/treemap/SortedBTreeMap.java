@@ -0,0 +1,1097 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.collections.treemap;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.neo4j.collections.VersionedProperties;
+import org.neo4j.collections.btree.ByteArrayBTree;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+
+/**
+ * A map ordered by its keys, persisted in a
+ * {@link ByteArrayBTree} on the underlying node. The keys are stored as
+ * bytes from a {@link KeyCodec} which keeps their natural order. A value is
+ * kept in the b-tree entry itself if it fits in the 59 bits left next to a
+ * type tag: booleans, bytes, shorts, chars, ints and floats, longs within
+ * 59 bits, doubles with the low 5 bits of their mantissa unset and strings
+ * of at most 7 chars below 256. Other values are each kept in a node of
+ * their own which the b-tree entry points to.
+ * <p>
+ * Lookups and the navigation methods, {@link #floorEntry(Object)},
+ * {@link #ceilingEntry(Object)} and the like, take one descent of the
+ * b-tree. The {@link #subMap(Object, boolean, Object, boolean)},
+ * {@link #headMap(Object, boolean)}, {@link #tailMap(Object, boolean)} and
+ * {@link #descendingMap()} views are bounds on the same b-tree, nothing is
+ * read until they are used and their iterators read the leaf pages as they
+ * get to them, starting with one descent. The number of entries is kept on
+ * the underlying node, the size of a bounded view is counted.
+ * <p>
+ * Single operations run in a transaction of their own, or the enclosing
+ * one. Iterating the views needs an enclosing transaction and they can't
+ * be modified through their iterators. Keys and values can't be
+ * {@code null} and the values have to be valid neo4j properties.
+ * <p>
+ * The implementation isn't thread safe.
+ *
+ * @param <K> The key type
+ * @param <V> The value type
+ */
+public class SortedBTreeMap<K extends Comparable<? super K>,V>
+	extends AbstractMap<K,V> implements NavigableMap<K,V>
+{
+	// the size, see VersionedProperties
+	static final String MAP_SIZE = "sorted_map_size";
+	private static final String VALUE = "sorted_map_value";
+	
+	// the b-tree value of an inline value has the sign bit set, node ids
+	// never do, then a tag of its type and the value in the remaining bits
+	private static final int TAG_SHIFT = 59;
+	private static final long PAYLOAD_MASK = ( 1L << TAG_SHIFT ) - 1;
+	private static final Class<?>[] INLINE_TYPES = { Boolean.class,
+		Byte.class, Short.class, Character.class, Integer.class, Float.class,
+		Long.class, Double.class, String.class };
+	private static final int MAX_INLINE_STRING = 7;
+	
+	private final GraphDatabaseService graphDb;
+	private final Node underlyingNode;
+	private final ByteArrayBTree bTree;
+	private final KeyCodec<K> codec;
+	
+	// the bounds of a view, null where it has none
+	private final K lo;
+	private final boolean loInclusive;
+	private final K hi;
+	private final boolean hiInclusive;
+	private final boolean descending;
+	// the bounds as b-tree keys, lowest inclusive and highest exclusive
+	private final byte[] loBytes;
+	private final byte[] hiBytes;
+	
+	/**
+	 * Creates/loads a sorted map on {@code underlyingNode} with the default
+	 * order of the b-tree.
+	 *
+	 * @param graphDb The {@link GraphDatabaseService} instance.
+	 * @param underlyingNode The underlying node representing the map
+	 * @param codec the codec of the keys, the same every time the map is
+	 * loaded.
+	 */
+	public SortedBTreeMap( GraphDatabaseService graphDb, Node underlyingNode,
+		KeyCodec<K> codec )
+	{
+		this( graphDb, underlyingNode, codec, ByteArrayBTree.DEFAULT_ORDER );
+	}
+	
+	/**
+	 * Creates/loads a sorted map on {@code underlyingNode}. The order is
+	 * only used when the map is created, see {@link ByteArrayBTree}.
+	 *
+	 * @param graphDb The {@link GraphDatabaseService} instance.
+	 * @param underlyingNode The underlying node representing the map
+	 * @param codec the codec of the keys, the same every time the map is
+	 * loaded.
+	 * @param order the maximum number of keys in a b-tree page.
+	 */
+	public SortedBTreeMap( GraphDatabaseService graphDb, Node underlyingNode,
+		KeyCodec<K> codec, int order )
+	{
+		this.graphDb = graphDb;
+		this.underlyingNode = underlyingNode;
+		this.codec = codec;
+		Transaction tx = graphDb.beginTx();
+		try
+		{
+			this.bTree = new ByteArrayBTree( graphDb, underlyingNode, order,
+				true );
+			if ( !underlyingNode.hasProperty( MAP_SIZE ) )
+			{
+				VersionedProperties.setLong( underlyingNode, MAP_SIZE, 0 );
+			}
+			tx.success();
+		}
+		finally
+		{
+			tx.finish();
+		}
+		this.lo = null;
+		this.loInclusive = false;
+		this.hi = null;
+		this.hiInclusive = false;
+		this.descending = false;
+		this.loBytes = null;
+		this.hiBytes = null;
+	}
+	
+	private SortedBTreeMap( SortedBTreeMap<K,V> map, K lo,
+		boolean loInclusive, K hi, boolean hiInclusive, boolean descending )
+	{
+		this.graphDb = map.graphDb;
+		this.underlyingNode = map.underlyingNode;
+		this.bTree = map.bTree;
+		this.codec = map.codec;
+		this.lo = lo;
+		this.loInclusive = loInclusive;
+		this.hi = hi;
+		this.hiInclusive = hiInclusive;
+		this.descending = descending;
+		this.loBytes = lo == null ? null : loInclusive ? codec.encode( lo ) :
+			successor( codec.encode( lo ) );
+		this.hiBytes = hi == null ? null : hiInclusive ?
+			successor( codec.encode( hi ) ) : codec.encode( hi );
+	}
+	
+	/**
+	 * Returns the node of this map.
+	 *
+	 * @return the underlying node.
+	 */
+	public Node getUnderlyingNode()
+	{
+		return underlyingNode;
+	}
+	
+	// the lowest key greater than key, keys are compared byte by byte and
+	// a key is less than the keys it is a prefix of
+	private static byte[] successor( byte[] key )
+	{
+		byte[] result = new byte[key.length + 1];
+		System.arraycopy( key, 0, result, 0, key.length );
+		return result;
+	}
+	
+	private static byte[] max( byte[] key1, byte[] key2 )
+	{
+		if ( key1 == null || key2 == null )
+		{
+			return key1 == null ? key2 : key1;
+		}
+		return ByteArrayBTree.compare( key1, key2 ) >= 0 ? key1 : key2;
+	}
+	
+	private static byte[] min( byte[] key1, byte[] key2 )
+	{
+		if ( key1 == null || key2 == null )
+		{
+			return key1 == null ? key2 : key1;
+		}
+		return ByteArrayBTree.compare( key1, key2 ) <= 0 ? key1 : key2;
+	}
+	
+	private boolean isBounded()
+	{
+		return lo != null || hi != null;
+	}
+	
+	private boolean tooLow( K key )
+	{
+		if ( lo == null )
+		{
+			return false;
+		}
+		int diff = key.compareTo( lo );
+		return diff < 0 || ( diff == 0 && !loInclusive );
+	}
+	
+	private boolean tooHigh( K key )
+	{
+		if ( hi == null )
+		{
+			return false;
+		}
+		int diff = key.compareTo( hi );
+		return diff > 0 || ( diff == 0 && !hiInclusive );
+	}
+	
+	private boolean inRange( K key )
+	{
+		return !tooLow( key ) && !tooHigh( key );
+	}
+	
+	// a bound of a view of this view can be an exclusive bound of this view
+	private boolean inRange( K key, boolean inclusive )
+	{
+		if ( inclusive )
+		{
+			return inRange( key );
+		}
+		return ( lo == null || key.compareTo( lo ) >= 0 ) &&
+			( hi == null || key.compareTo( hi ) <= 0 );
+	}
+	
+	@SuppressWarnings( "unchecked" )
+	private K toKey( Object key )
+	{
+		if ( key == null )
+		{
+			throw new NullPointerException( "Null key" );
+		}
+		return (K) key;
+	}
+	
+	// the value of a b-tree entry, read from its node unless it is inline
+	@SuppressWarnings( "unchecked" )
+	private V getValue( long entryValue )
+	{
+		if ( entryValue < 0 )
+		{
+			return (V) fromInline( entryValue );
+		}
+		return (V) graphDb.getNodeById( entryValue ).getProperty( VALUE );
+	}
+	
+	// the b-tree value of value, a new node holding it if it isn't inline
+	private long toEntryValue( Object value )
+	{
+		Long inline = toInline( value );
+		if ( inline != null )
+		{
+			return inline;
+		}
+		Node valueNode = graphDb.createNode();
+		valueNode.setProperty( VALUE, value );
+		return valueNode.getId();
+	}
+	
+	private void deleteValue( long entryValue )
+	{
+		if ( entryValue >= 0 )
+		{
+			graphDb.getNodeById( entryValue ).delete();
+		}
+	}
+	
+	// the inline b-tree value of value, null if it doesn't fit
+	private static Long toInline( Object value )
+	{
+		long payload;
+		if ( value instanceof Boolean )
+		{
+			payload = (Boolean) value ? 1 : 0;
+		}
+		else if ( value instanceof Byte || value instanceof Short ||
+			value instanceof Integer )
+		{
+			payload = ( (Number) value ).intValue();
+		}
+		else if ( value instanceof Character )
+		{
+			payload = (Character) value;
+		}
+		else if ( value instanceof Float )
+		{
+			payload = Float.floatToRawIntBits( (Float) value );
+		}
+		else if ( value instanceof Long )
+		{
+			payload = (Long) value;
+			if ( ( ( payload << 64 - TAG_SHIFT ) >> 64 - TAG_SHIFT ) != payload )
+			{
+				return null;
+			}
+		}
+		else if ( value instanceof Double )
+		{
+			long bits = Double.doubleToRawLongBits( (Double) value );
+			if ( ( bits & ( 1L << 64 - TAG_SHIFT ) - 1 ) != 0 )
+			{
+				return null;
+			}
+			payload = bits >>> 64 - TAG_SHIFT;
+		}
+		else if ( value instanceof String )
+		{
+			String string = (String) value;
+			if ( string.length() > MAX_INLINE_STRING )
+			{
+				return null;
+			}
+			payload = string.length();
+			for ( int i = 0; i < string.length(); i++ )
+			{
+				if ( string.charAt( i ) > 0xff )
+				{
+					return null;
+				}
+				payload = payload << 8 | string.charAt( i );
+			}
+			payload <<= 8 * ( MAX_INLINE_STRING - string.length() );
+		}
+		else
+		{
+			return null;
+		}
+		int tag = Arrays.asList( INLINE_TYPES ).indexOf( value.getClass() );
+		return Long.MIN_VALUE | (long) tag << TAG_SHIFT |
+			( payload & PAYLOAD_MASK );
+	}
+	
+	private static Object fromInline( long entryValue )
+	{
+		Class<?> type = INLINE_TYPES[(int) ( entryValue >>> TAG_SHIFT & 0xf )];
+		long payload = entryValue & PAYLOAD_MASK;
+		// sign extended
+		long number = payload << 64 - TAG_SHIFT >> 64 - TAG_SHIFT;
+		if ( type == Boolean.class )
+		{
+			return payload != 0;
+		}
+		else if ( type == Byte.class )
+		{
+			return (byte) number;
+		}
+		else if ( type == Short.class )
+		{
+			return (short) number;
+		}
+		else if ( type == Character.class )
+		{
+			return (char) payload;
+		}
+		else if ( type == Integer.class )
+		{
+			return (int) number;
+		}
+		else if ( type == Float.class )
+		{
+			return Float.intBitsToFloat( (int) payload );
+		}
+		else if ( type == Long.class )
+		{
+			return number;
+		}
+		else if ( type == Double.class )
+		{
+			return Double.longBitsToDouble( payload << 64 - TAG_SHIFT );
+		}
+		int length = (int) ( payload >>> 8 * MAX_INLINE_STRING );
+		char[] chars = new char[length];
+		for ( int i = 0; i < length; i++ )
+		{
+			chars[i] = (char) ( payload >>> 8 * ( MAX_INLINE_STRING - 1 - i ) &
+				0xff );
+		}
+		return new String( chars );
+	}
+	
+	private void addToSize( long delta )
+	{
+		VersionedProperties.addToLong( underlyingNode, MAP_SIZE, delta );
+	}
+	
+	public V get( Object key )
+	{
+		K k = toKey( key );
+		if ( !inRange( k ) )
+		{
+			return null;
+		}
+		Transaction tx = graphDb.beginTx();
+		try
+		{
+			Long entryValue = bTree.getEntry( codec.encode( k ) );
+			V value = entryValue != null ? getValue( entryValue ) : null;
+			tx.success();
+			return value;
+		}
+		finally
+		{
+			tx.finish();
+		}
+	}
+	
+	public boolean containsKey( Object key )
+	{
+		return get( key ) != null;
+	}
+	
+	/**
+	 * Puts an entry in the map with one descent of the b-tree. An inline
+	 * value, see {@link SortedBTreeMap}, is written to the b-tree page, which
+	 * is versioned. Other values are written to a new node and the node of
+	 * the value they replace is deleted, so a value node never gets back a
+	 * value it had earlier in the same transaction.
+	 *
+	 * @throws IllegalArgumentException if the key is outside the bounds of
+	 * this view.
+	 */
+	public V put( K key, V value )
+	{
+		if ( value == null )
+		{
+			throw new IllegalArgumentException( "Null value" );
+		}
+		if ( !inRange( toKey( key ) ) )
+		{
+			throw new IllegalArgumentException( "Key out of range" );
+		}
+		Transaction tx = graphDb.beginTx();
+		try
+		{
+			Long previous = bTree.put( codec.encode( key ),
+				toEntryValue( value ) );
+			V oldValue = null;
+			if ( previous != null )
+			{
+				oldValue = getValue( previous );
+				deleteValue( previous );
+			}
+			else
+			{
+				addToSize( 1 );
+			}
+			tx.success();
+			return oldValue;
+		}
+		finally
+		{
+			tx.finish();
+		}
+	}
+	
+	public V remove( Object key )
+	{
+		K k = toKey( key );
+		if ( !inRange( k ) )
+		{
+			return null;
+		}
+		Transaction tx = graphDb.beginTx();
+		try
+		{
+			Long entryValue = bTree.removeEntry( codec.encode( k ) );
+			V oldValue = null;
+			if ( entryValue != null )
+			{
+				oldValue = getValue( entryValue );
+				deleteValue( entryValue );
+				addToSize( -1 );
+			}
+			tx.success();
+			return oldValue;
+		}
+		finally
+		{
+			tx.finish();
+		}
+	}
+	
+	public void putAll( Map<? extends K, ? extends V> map )
+	{
+		Transaction tx = graphDb.beginTx();
+		try
+		{
+			for ( Map.Entry<? extends K, ? extends V> entry : map.entrySet() )
+			{
+				put( entry.getKey(), entry.getValue() );
+			}
+			tx.success();
+		}
+		finally
+		{
+			tx.finish();
+		}
+	}
+	
+	/**
+	 * Returns the number of entries, read from the underlying node for the
+	 * map and counted for a bounded view.
+	 */
+	public int size()
+	{
+		Transaction tx = graphDb.beginTx();
+		try
+		{
+			long size = 0;
+			if ( isBounded() )
+			{
+				for ( Iterator<?> itr = entryIterator( null, null, false );
+					itr.hasNext(); itr.next() )
+				{
+					size++;
+				}
+			}
+			else
+			{
+				size = VersionedProperties.getLong( underlyingNode, MAP_SIZE, 
+					0 );
+			}
+			tx.success();
+			return (int) Math.min( Integer.MAX_VALUE, size );
+		}
+		finally
+		{
+			tx.finish();
+		}
+	}
+	
+	public boolean isEmpty()
+	{
+		return isBounded() ? firstEntry() == null : size() == 0;
+	}
+	
+	public boolean containsValue( Object value )
+	{
+		Transaction tx = graphDb.beginTx();
+		try
+		{
+			boolean found = values().contains( value );
+			tx.success();
+			return found;
+		}
+		finally
+		{
+			tx.finish();
+		}
+	}
+	
+	/**
+	 * Removes the entries of this map, or of this view.
+	 */
+	public void clear()
+	{
+		Transaction tx = graphDb.beginTx();
+		try
+		{
+			if ( isBounded() )
+			{
+				List<K> keys = new ArrayList<K>();
+				for ( Iterator<Map.Entry<K,V>> itr = entryIterator( null, null,
+					false ); itr.hasNext(); )
+				{
+					keys.add( itr.next().getKey() );
+				}
+				for ( K key : keys )
+				{
+					remove( key );
+				}
+			}
+			else
+			{
+				deleteValues();
+				int order = bTree.getOrder();
+				bTree.delete();
+				// creates the empty tree again, on the same node
+				new ByteArrayBTree( graphDb, underlyingNode, order, true );
+				VersionedProperties.setLong( underlyingNode, MAP_SIZE, 0 );
+			}
+			tx.success();
+		}
+		finally
+		{
+			tx.finish();
+		}
+	}
+	
+	/**
+	 * Deletes this map and all its entries, even the underlying node.
+	 */
+	public void delete()
+	{
+		Transaction tx = graphDb.beginTx();
+		try
+		{
+			deleteValues();
+			bTree.delete();
+			underlyingNode.delete();
+			tx.success();
+		}
+		finally
+		{
+			tx.finish();
+		}
+	}
+	
+	private void deleteValues()
+	{
+		for ( Map.Entry<byte[],Long> entry : bTree.entries( null, null ) )
+		{
+			deleteValue( entry.getValue() );
+		}
+	}
+	
+	// the entries of this view within fromInclusive and toExclusive, given
+	// as b-tree keys or null for the bounds of the view
+	private Iterator<Map.Entry<K,V>> entryIterator( byte[] fromInclusive,
+		byte[] toExclusive, boolean descending )
+	{
+		byte[] from = max( fromInclusive, loBytes );
+		byte[] to = min( toExclusive, hiBytes );
+		final Iterator<Map.Entry<byte[],Long>> itr = ( descending ?
+			bTree.entriesDescending( from, to ) :
+			bTree.entries( from, to ) ).iterator();
+		return new Iterator<Map.Entry<K,V>>()
+		{
+			public boolean hasNext()
+			{
+				return itr.hasNext();
+			}
+			
+			public Map.Entry<K,V> next()
+			{
+				Map.Entry<byte[],Long> entry = itr.next();
+				return new AbstractMap.SimpleImmutableEntry<K,V>(
+					codec.decode( entry.getKey() ),
+					getValue( entry.getValue() ) );
+			}
+			
+			public void remove()
+			{
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+	
+	// the first entry of entryIterator, one descent
+	private Map.Entry<K,V> firstOf( byte[] fromInclusive, byte[] toExclusive,
+		boolean descending )
+	{
+		Transaction tx = graphDb.beginTx();
+		try
+		{
+			Iterator<Map.Entry<K,V>> itr = entryIterator( fromInclusive,
+				toExclusive, descending );
+			Map.Entry<K,V> entry = itr.hasNext() ? itr.next() : null;
+			tx.success();
+			return entry;
+		}
+		finally
+		{
+			tx.finish();
+		}
+	}
+	
+	// the navigation in key order, regardless of the direction of the view
+	
+	private Map.Entry<K,V> lowest()
+	{
+		return firstOf( null, null, false );
+	}
+	
+	private Map.Entry<K,V> highest()
+	{
+		return firstOf( null, null, true );
+	}
+	
+	private Map.Entry<K,V> ceiling( K key )
+	{
+		return firstOf( codec.encode( toKey( key ) ), null, false );
+	}
+	
+	private Map.Entry<K,V> higher( K key )
+	{
+		return firstOf( successor( codec.encode( toKey( key ) ) ), null,
+			false );
+	}
+	
+	private Map.Entry<K,V> floor( K key )
+	{
+		return firstOf( null, successor( codec.encode( toKey( key ) ) ),
+			true );
+	}
+	
+	private Map.Entry<K,V> lower( K key )
+	{
+		return firstOf( null, codec.encode( toKey( key ) ), true );
+	}
+	
+	private static <K> K keyOf( Map.Entry<K,?> entry )
+	{
+		return entry != null ? entry.getKey() : null;
+	}
+	
+	private static <K> K existingKeyOf( Map.Entry<K,?> entry )
+	{
+		if ( entry == null )
+		{
+			throw new NoSuchElementException();
+		}
+		return entry.getKey();
+	}
+	
+	public Map.Entry<K,V> lowerEntry( K key )
+	{
+		return descending ? higher( key ) : lower( key );
+	}
+	
+	public K lowerKey( K key )
+	{
+		return keyOf( lowerEntry( key ) );
+	}
+	
+	public Map.Entry<K,V> floorEntry( K key )
+	{
+		return descending ? ceiling( key ) : floor( key );
+	}
+	
+	public K floorKey( K key )
+	{
+		return keyOf( floorEntry( key ) );
+	}
+	
+	public Map.Entry<K,V> ceilingEntry( K key )
+	{
+		return descending ? floor( key ) : ceiling( key );
+	}
+	
+	public K ceilingKey( K key )
+	{
+		return keyOf( ceilingEntry( key ) );
+	}
+	
+	public Map.Entry<K,V> higherEntry( K key )
+	{
+		return descending ? lower( key ) : higher( key );
+	}
+	
+	public K higherKey( K key )
+	{
+		return keyOf( higherEntry( key ) );
+	}
+	
+	public Map.Entry<K,V> firstEntry()
+	{
+		return descending ? highest() : lowest();
+	}
+	
+	public Map.Entry<K,V> lastEntry()
+	{
+		return descending ? lowest() : highest();
+	}
+	
+	public K firstKey()
+	{
+		return existingKeyOf( firstEntry() );
+	}
+	
+	public K lastKey()
+	{
+		return existingKeyOf( lastEntry() );
+	}
+	
+	public Map.Entry<K,V> pollFirstEntry()
+	{
+		return poll( firstEntry() );
+	}
+	
+	public Map.Entry<K,V> pollLastEntry()
+	{
+		return poll( lastEntry() );
+	}
+	
+	private Map.Entry<K,V> poll( Map.Entry<K,V> entry )
+	{
+		if ( entry != null )
+		{
+			remove( entry.getKey() );
+		}
+		return entry;
+	}
+	
+	/**
+	 * Returns {@code null} for the natural ordering of the keys, or the
+	 * reverse of it for a descending view.
+	 */
+	public Comparator<? super K> comparator()
+	{
+		return descending ? Collections.<K>reverseOrder() : null;
+	}
+	
+	// a view of the b-tree within new bounds, null for the ones of this view
+	private SortedBTreeMap<K,V> view( K newLo, boolean newLoInclusive,
+		K newHi, boolean newHiInclusive, boolean newDescending )
+	{
+		if ( newLo != null && newHi != null && newLo.compareTo( newHi ) > 0 )
+		{
+			throw new IllegalArgumentException( "fromKey > toKey" );
+		}
+		if ( newLo == null )
+		{
+			newLo = lo;
+			newLoInclusive = loInclusive;
+		}
+		else if ( !inRange( newLo, newLoInclusive ) )
+		{
+			throw new IllegalArgumentException( "Key out of range" );
+		}
+		if ( newHi == null )
+		{
+			newHi = hi;
+			newHiInclusive = hiInclusive;
+		}
+		else if ( !inRange( newHi, newHiInclusive ) )
+		{
+			throw new IllegalArgumentException( "Key out of range" );
+		}
+		return new SortedBTreeMap<K,V>( this, newLo, newLoInclusive, newHi,
+			newHiInclusive, newDescending );
+	}
+	
+	public SortedBTreeMap<K,V> subMap( K fromKey, boolean fromInclusive,
+		K toKey, boolean toInclusive )
+	{
+		toKey( fromKey );
+		toKey( toKey );
+		return descending ?
+			view( toKey, toInclusive, fromKey, fromInclusive, true ) :
+			view( fromKey, fromInclusive, toKey, toInclusive, false );
+	}
+	
+	public SortedBTreeMap<K,V> headMap( K toKey, boolean inclusive )
+	{
+		toKey( toKey );
+		return descending ? view( toKey, inclusive, null, false, true ) :
+			view( null, false, toKey, inclusive, false );
+	}
+	
+	public SortedBTreeMap<K,V> tailMap( K fromKey, boolean inclusive )
+	{
+		toKey( fromKey );
+		return descending ? view( null, false, fromKey, inclusive, true ) :
+			view( fromKey, inclusive, null, false, false );
+	}
+	
+	public SortedBTreeMap<K,V> subMap( K fromKey, K toKey )
+	{
+		return subMap( fromKey, true, toKey, false );
+	}
+	
+	public SortedBTreeMap<K,V> headMap( K toKey )
+	{
+		return headMap( toKey, false );
+	}
+	
+	public SortedBTreeMap<K,V> tailMap( K fromKey )
+	{
+		return tailMap( fromKey, true );
+	}
+	
+	public SortedBTreeMap<K,V> descendingMap()
+	{
+		return new SortedBTreeMap<K,V>( this, lo, loInclusive, hi,
+			hiInclusive, !descending );
+	}
+	
+	public NavigableSet<K> navigableKeySet()
+	{
+		return new KeySet<K>( this );
+	}
+	
+	public NavigableSet<K> descendingKeySet()
+	{
+		return descendingMap().navigableKeySet();
+	}
+	
+	public Set<K> keySet()
+	{
+		return navigableKeySet();
+	}
+	
+	/**
+	 * Returns the entries of this map in key order, read lazily, see
+	 * {@link SortedBTreeMap}.
+	 */
+	public Set<Map.Entry<K,V>> entrySet()
+	{
+		return new AbstractSet<Map.Entry<K,V>>()
+		{
+			@Override
+			public Iterator<Map.Entry<K,V>> iterator()
+			{
+				return entryIterator( null, null, descending );
+			}
+			
+			@Override
+			public int size()
+			{
+				return SortedBTreeMap.this.size();
+			}
+		};
+	}
+	
+	/**
+	 * The keys of a {@link SortedBTreeMap}, or of a view of it.
+	 */
+	private static class KeySet<E extends Comparable<? super E>>
+		extends AbstractSet<E> implements NavigableSet<E>
+	{
+		private final SortedBTreeMap<E,?> map;
+		
+		KeySet( SortedBTreeMap<E,?> map )
+		{
+			this.map = map;
+		}
+		
+		@Override
+		public Iterator<E> iterator()
+		{
+			final Iterator<? extends Map.Entry<E,?>> itr =
+				map.entrySet().iterator();
+			return new Iterator<E>()
+			{
+				public boolean hasNext()
+				{
+					return itr.hasNext();
+				}
+				
+				public E next()
+				{
+					return itr.next().getKey();
+				}
+				
+				public void remove()
+				{
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+		
+		@Override
+		public int size()
+		{
+			return map.size();
+		}
+		
+		@Override
+		public boolean isEmpty()
+		{
+			return map.isEmpty();
+		}
+		
+		@Override
+		public boolean contains( Object o )
+		{
+			return map.containsKey( o );
+		}
+		
+		@Override
+		public boolean remove( Object o )
+		{
+			return map.remove( o ) != null;
+		}
+		
+		@Override
+		public void clear()
+		{
+			map.clear();
+		}
+		
+		public E lower( E e )
+		{
+			return map.lowerKey( e );
+		}
+		
+		public E floor( E e )
+		{
+			return map.floorKey( e );
+		}
+		
+		public E ceiling( E e )
+		{
+			return map.ceilingKey( e );
+		}
+		
+		public E higher( E e )
+		{
+			return map.higherKey( e );
+		}
+		
+		public E first()
+		{
+			return map.firstKey();
+		}
+		
+		public E last()
+		{
+			return map.lastKey();
+		}
+		
+		public E pollFirst()
+		{
+			return keyOf( map.pollFirstEntry() );
+		}
+		
+		public E pollLast()
+		{
+			return keyOf( map.pollLastEntry() );
+		}
+		
+		public Comparator<? super E> comparator()
+		{
+			return map.comparator();
+		}
+		
+		public NavigableSet<E> descendingSet()
+		{
+			return new KeySet<E>( map.descendingMap() );
+		}
+		
+		public Iterator<E> descendingIterator()
+		{
+			return descendingSet().iterator();
+		}
+		
+		public NavigableSet<E> subSet( E fromElement, boolean fromInclusive,
+			E toElement, boolean toInclusive )
+		{
+			return new KeySet<E>( map.subMap( fromElement, fromInclusive,
+				toElement, toInclusive ) );
+		}
+		
+		public NavigableSet<E> headSet( E toElement, boolean inclusive )
+		{
+			return new KeySet<E>( map.headMap( toElement, inclusive ) );
+		}
+		
+		public NavigableSet<E> tailSet( E fromElement, boolean inclusive )
+		{
+			return new KeySet<E>( map.tailMap( fromElement, inclusive ) );
+		}
+		
+		public NavigableSet<E> subSet( E fromElement, E toElement )
+		{
+			return subSet( fromElement, true, toElement, false );
+		}
+		
+		public NavigableSet<E> headSet( E toElement )
+		{
+			return headSet( toElement, false );
+		}
+		
+		public NavigableSet<E> tailSet( E fromElement )
+		{
+			return tailSet( fromElement, true );
+		}
+	}
+}
@@ -38,4 +38,13 @@ public abstract class Locker {
     }
 
     public abstract void acquireLock(LockType lockType, PropertyContainer element);
+
+    // a lock the caller releases with releaseShortLock, instead of one held
+    // until the transaction ends like the ones of acquireLock
+    public abstract void acquireShortLock(LockType lockType, PropertyContainer element);
+
+    // false instead of waiting if another transaction holds the element
+    public abstract boolean tryShortLock(LockType lockType, PropertyContainer element);
+
+    public abstract void releaseShortLock(LockType lockType, PropertyContainer element);
 }
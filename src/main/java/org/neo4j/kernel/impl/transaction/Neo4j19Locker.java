@@ -30,11 +30,13 @@ import javax.transaction.TransactionManager;
 class Neo4j19Locker extends Locker {
 
     private final TransactionManager txManager;
+    private final LockManager lockManager;
 
     public Neo4j19Locker(GraphDatabaseService graphDatabaseService) {
         if (!(graphDatabaseService instanceof GraphDatabaseAPI)) throw new RuntimeException("Error accessing transaction management, not a GraphDatabaseAPI " + graphDatabaseService);
         GraphDatabaseAPI graphDatabaseAPI = (GraphDatabaseAPI) graphDatabaseService;
         txManager = graphDatabaseAPI.getDependencyResolver().resolveDependency(TransactionManager.class);
+        lockManager = graphDatabaseAPI.getDependencyResolver().resolveDependency(LockManager.class);
     }
 
     @Override
@@ -52,6 +54,50 @@ class Neo4j19Locker extends Locker {
             default: throw new IllegalStateException("Unknown lock type "+lockType);
         }
     }
+
+    @Override
+    public void acquireShortLock(LockType lockType, PropertyContainer element) {
+        TransactionImpl tx = getCurrentTransaction();
+        if (tx==null) return; // no lock taken without external tx
+        switch (lockType) {
+            case READ:
+                lockManager.getReadLock(element, tx);
+                break;
+            case WRITE:
+                lockManager.getWriteLock(element, tx);
+                break;
+            default: throw new IllegalStateException("Unknown lock type "+lockType);
+        }
+    }
+
+    @Override
+    public boolean tryShortLock(LockType lockType, PropertyContainer element) {
+        TransactionImpl tx = getCurrentTransaction();
+        if (tx==null) return true;
+        switch (lockType) {
+            case READ:
+                return lockManager.tryReadLock(element, tx);
+            case WRITE:
+                return lockManager.tryWriteLock(element, tx);
+            default: throw new IllegalStateException("Unknown lock type "+lockType);
+        }
+    }
+
+    @Override
+    public void releaseShortLock(LockType lockType, PropertyContainer element) {
+        TransactionImpl tx = getCurrentTransaction();
+        if (tx==null) return;
+        switch (lockType) {
+            case READ:
+                lockManager.releaseReadLock(element, tx);
+                break;
+            case WRITE:
+                lockManager.releaseWriteLock(element, tx);
+                break;
+            default: throw new IllegalStateException("Unknown lock type "+lockType);
+        }
+    }
+
     private TransactionImpl getCurrentTransaction() {
         try {
             return (TransactionImpl) txManager.getTransaction();
@@ -0,0 +1,673 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.collections.btree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+import org.neo4j.collections.Neo4jTestCase;
+import org.neo4j.collections.rtree.NullListener;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Transaction;
+
+public class TestBTree extends Neo4jTestCase
+{
+	private BTree createTree()
+	{
+		Node bTreeNode = graphDb().createNode();
+		graphDb().createNode().createRelationshipTo( bTreeNode, 
+			AbstractBTree.RelTypes.TREE_ROOT );
+		return new BTree( graphDb(), bTreeNode );
+	}
+	
+	@Test
+	public void testEntriesRange()
+	{
+		BTree bTree = createTree();
+		assertFalse( bTree.entries( Long.MIN_VALUE, Long.MAX_VALUE ).
+			iterator().hasNext() );
+		TreeSet<Long> keys = new TreeSet<Long>();
+		Random random = new Random( 4321 );
+		while ( keys.size() < 500 )
+		{
+			long key = random.nextInt( 2000 ) - 500;
+			if ( keys.add( key ) )
+			{
+				bTree.addEntry( key, key * 10 );
+			}
+		}
+		bTree.validateTree();
+		for ( int i = 0; i < 50; i++ )
+		{
+			long from = random.nextInt( 2200 ) - 600;
+			long to = from + random.nextInt( 400 );
+			List<Long> expected = new ArrayList<Long>( 
+				keys.subSet( from, to ) );
+			List<Long> ascending = new ArrayList<Long>();
+			for ( KeyEntry entry : bTree.entries( from, to ) )
+			{
+				assertEquals( entry.getKey() * 10, entry.getValue() );
+				ascending.add( entry.getKey() );
+			}
+			assertEquals( expected, ascending );
+			List<Long> descending = new ArrayList<Long>();
+			for ( KeyEntry entry : bTree.entriesDescending( from, to ) )
+			{
+				descending.add( entry.getKey() );
+			}
+			Collections.reverse( expected );
+			assertEquals( expected, descending );
+		}
+		List<Long> all = new ArrayList<Long>();
+		for ( KeyEntry entry : bTree.entries( Long.MIN_VALUE, Long.MAX_VALUE ) )
+		{
+			all.add( entry.getKey() );
+		}
+		assertEquals( new ArrayList<Long>( keys ), all );
+		bTree.delete();
+	}
+	
+	@Test
+	public void testBulkLoad()
+	{
+		for ( float fillFactor : new float[] { 1f, 0.5f } )
+		{
+			for ( int size : new int[] { 0, 1, 8, 9, 100, 2345 } )
+			{
+				BTree bTree = createTree();
+				TreeMap<Long, Object> expected = new TreeMap<Long, Object>();
+				for ( long i = 0; i < size; i++ )
+				{
+					expected.put( i * 3, "v" + i );
+				}
+				assertEquals( size, bTree.bulkLoad( 
+					expected.entrySet().iterator(), fillFactor, 100 ) );
+				bTree.validateTree();
+				List<Long> keys = new ArrayList<Long>();
+				for ( KeyEntry entry : bTree.entries( Long.MIN_VALUE, 
+					Long.MAX_VALUE ) )
+				{
+					assertEquals( expected.get( entry.getKey() ), 
+						entry.getValue() );
+					keys.add( entry.getKey() );
+				}
+				assertEquals( new ArrayList<Long>( expected.keySet() ), keys );
+				bTree.addEntry( -1, "first" );
+				bTree.removeEntry( 0 );
+				bTree.validateTree();
+				bTree.delete();
+			}
+		}
+	}
+	
+	@Test
+	public void testBulkLoadOutOfOrder()
+	{
+		BTree bTree = createTree();
+		TreeMap<Long, Object> first = new TreeMap<Long, Object>();
+		for ( long i = 0; i < 50; i++ )
+		{
+			first.put( i, i );
+		}
+		List<Map.Entry<Long, Object>> entries = 
+			new ArrayList<Map.Entry<Long, Object>>( first.entrySet() );
+		entries.add( first.firstEntry() );
+		try
+		{
+			bTree.bulkLoad( entries.iterator(), 1f, 10 );
+			fail( "Out of order key" );
+		}
+		catch ( IllegalArgumentException e )
+		{ // good
+		}
+		bTree.validateTree();
+		assertEquals( 49L, bTree.getClosestLowerEntry( Long.MAX_VALUE ) );
+		try
+		{
+			bTree.bulkLoad( first.entrySet().iterator(), 1f, 10 );
+			fail( "Tree not empty" );
+		}
+		catch ( IllegalStateException e )
+		{ // good
+		}
+		bTree.delete();
+	}
+	
+	@Test
+	public void testBulkLoadInterrupted()
+	{
+		BTree bTree = createTree();
+		Node rootNode = bTree.getTreeRoot().getUnderlyingNode();
+		final TreeMap<Long, Object> entries = new TreeMap<Long, Object>();
+		for ( long i = 0; i < 500; i++ )
+		{
+			entries.put( i, "v" + i );
+		}
+		finishTx( true );
+		try
+		{
+			bTree.bulkLoad( new Iterator<Map.Entry<Long, Object>>()
+			{
+				private final Iterator<Map.Entry<Long, Object>> itr = 
+					entries.entrySet().iterator();
+				
+				public boolean hasNext()
+				{
+					return true;
+				}
+				
+				public Map.Entry<Long, Object> next()
+				{
+					if ( !itr.hasNext() )
+					{
+						throw new IllegalStateException( "interrupted" );
+					}
+					return itr.next();
+				}
+				
+				public void remove()
+				{
+					throw new UnsupportedOperationException();
+				}
+			}, 1f, 64 );
+			fail( "Should have been interrupted" );
+		}
+		catch ( IllegalStateException e )
+		{ // good
+		}
+		beginTx();
+		// the tree is still empty, the loaded tree nodes are kept track of
+		assertEquals( rootNode, bTree.getTreeRoot().getUnderlyingNode() );
+		assertTrue( bTree.getTreeRoot().getFirstEntry() == null );
+		long topId = (Long) rootNode.getProperty( BulkLoader.BULK_LOADING );
+		finishTx( true );
+		assertEquals( 500, bTree.bulkLoad( entries.entrySet().iterator(), 
+			1f, 64 ) );
+		beginTx();
+		try
+		{
+			graphDb().getNodeById( topId );
+			fail( "Interrupted load not deleted" );
+		}
+		catch ( NotFoundException e )
+		{ // good
+		}
+		bTree.validateTree();
+		assertEquals( 500, bTree.size() );
+		assertFalse( bTree.getTreeRoot().getUnderlyingNode().hasProperty( 
+			BulkLoader.BULK_LOADING ) );
+		bTree.delete();
+	}
+	
+	@Test
+	public void testRankAndSelect()
+	{
+		BTree bTree = createTree();
+		assertEquals( 0, bTree.size() );
+		assertEquals( 0, bTree.rank( 10 ) );
+		TreeSet<Long> keys = new TreeSet<Long>();
+		Random random = new Random( 2468 );
+		for ( int i = 0; i < 3000; i++ )
+		{
+			long key = random.nextInt( 1000 );
+			if ( random.nextInt( 3 ) > 0 )
+			{
+				if ( keys.add( key ) )
+				{
+					bTree.addEntry( key, key );
+				}
+			}
+			else if ( keys.remove( key ) )
+			{
+				assertEquals( key, bTree.removeEntry( key ) );
+			}
+			if ( i % 100 == 0 )
+			{
+				bTree.validateTree();
+				restartTx();
+			}
+		}
+		bTree.validateTree();
+		assertEquals( keys.size(), bTree.size() );
+		List<Long> ordered = new ArrayList<Long>( keys );
+		for ( int i = 0; i < ordered.size(); i++ )
+		{
+			assertEquals( (long) ordered.get( i ), 
+				bTree.select( i ).getKey() );
+			assertEquals( i, bTree.rank( ordered.get( i ) ) );
+		}
+		for ( long key = -1; key <= 1000; key += 7 )
+		{
+			assertEquals( keys.headSet( key ).size(), bTree.rank( key ) );
+		}
+		try
+		{
+			bTree.select( keys.size() );
+			fail( "Index out of bounds" );
+		}
+		catch ( IndexOutOfBoundsException e )
+		{ // good
+		}
+		bTree.delete();
+		
+		bTree = createTree();
+		TreeMap<Long, Object> entries = new TreeMap<Long, Object>();
+		for ( long i = 0; i < 500; i++ )
+		{
+			entries.put( i * 2, i );
+		}
+		bTree.bulkLoad( entries.entrySet().iterator(), 0.8f, 64 );
+		bTree.validateTree();
+		assertEquals( 500, bTree.size() );
+		assertEquals( 100, bTree.rank( 199 ) );
+		assertEquals( 398L, bTree.select( 199 ).getKey() );
+		bTree.delete();
+	}
+	
+	@Test
+	public void testCountSubTrees()
+	{
+		BTree bTree = createTree();
+		TreeSet<Long> keys = new TreeSet<Long>();
+		for ( long i = 0; i < 300; i++ )
+		{
+			bTree.addEntry( i * 2, i );
+			keys.add( i * 2 );
+		}
+		bTree.addEntry( Long.MAX_VALUE, -1L );
+		keys.add( Long.MAX_VALUE );
+		// like a tree from before the sub tree counts were added
+		removeSubTreeCounts( bTree.getTreeRoot() );
+		restartTx();
+		assertFalse( bTree.isCounted() );
+		assertEquals( keys.size(), bTree.size() );
+		assertEquals( 50, bTree.rank( 99 ) );
+		assertEquals( 198L, bTree.select( 99 ).getKey() );
+		assertEquals( Long.MAX_VALUE, bTree.select( keys.size() - 1 ).getKey() );
+		for ( long i = 0; i < 100; i++ )
+		{
+			bTree.addEntry( i * 2 + 1, i );
+			keys.add( i * 2 + 1 );
+			bTree.removeEntry( i * 4 );
+			keys.remove( i * 4 );
+		}
+		restartTx();
+		// reads and writes didn't count the tree
+		assertFalse( bTree.isCounted() );
+		assertFalse( bTree.getTreeRoot().getUnderlyingNode().hasProperty( 
+			TreeNode.SUBTREE_COUNT ) );
+		assertEquals( keys.size(), bTree.size() );
+
+		assertEquals( keys.size(), bTree.countSubTrees( 3 ) );
+		restartTx();
+		assertTrue( bTree.isCounted() );
+		bTree.validateTree();
+		List<Long> ordered = new ArrayList<Long>( keys );
+		for ( int i = 0; i < ordered.size(); i += 7 )
+		{
+			assertEquals( (long) ordered.get( i ), bTree.select( i ).getKey() );
+			assertEquals( i, bTree.rank( ordered.get( i ) ) );
+		}
+		bTree.addEntry( -1, -1L );
+		assertEquals( keys.size() + 1, bTree.size() );
+		bTree.validateTree();
+		bTree.delete();
+	}
+	
+	private void removeSubTreeCounts( TreeNode treeNode )
+	{
+		treeNode.getUnderlyingNode().removeProperty( TreeNode.SUBTREE_COUNT );
+		for ( int i = 0; treeNode.getSubTree( i ) != null; i++ )
+		{
+			removeSubTreeCounts( treeNode.getSubTree( i ) );
+		}
+	}
+	
+	@Test
+	public void testConcurrentWriters() throws Exception
+	{
+		Node bTreeNode = graphDb().createNode();
+		graphDb().createNode().createRelationshipTo( bTreeNode, 
+			AbstractBTree.RelTypes.TREE_ROOT );
+		final BTree bTree = new BTree( graphDb(), bTreeNode, true );
+		restartTx();
+		final int threadCount = 4;
+		final int keysPerThread = 300;
+		final List<Throwable> failures = 
+			Collections.synchronizedList( new ArrayList<Throwable>() );
+		List<Thread> threads = new ArrayList<Thread>();
+		for ( int t = 0; t < threadCount; t++ )
+		{
+			final int offset = t;
+			threads.add( new Thread()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						for ( int batch = 0; batch < keysPerThread; batch += 10 )
+						{
+							writeBatch( bTree, batch, offset, threadCount );
+						}
+					}
+					catch ( Throwable e )
+					{
+						failures.add( e );
+					}
+				}
+			} );
+		}
+		for ( Thread thread : threads )
+		{
+			thread.start();
+		}
+		for ( Thread thread : threads )
+		{
+			thread.join();
+		}
+		assertEquals( Collections.<Throwable>emptyList(), failures );
+		bTree.validateTree();
+		// every third key of a batch was removed again by its writer
+		TreeSet<Long> expected = new TreeSet<Long>();
+		for ( long i = 0; i < keysPerThread * threadCount; i++ )
+		{
+			if ( ( i / threadCount ) % 10 % 3 != 0 )
+			{
+				expected.add( i );
+			}
+		}
+		assertFalse( bTree.isCounted() );
+		assertEquals( expected.size(), bTree.size() );
+		List<Long> keys = new ArrayList<Long>();
+		for ( KeyEntry entry : bTree.entries( Long.MIN_VALUE, Long.MAX_VALUE ) )
+		{
+			keys.add( entry.getKey() );
+		}
+		assertEquals( new ArrayList<Long>( expected ), keys );
+		bTree.delete();
+	}
+	
+	@Test
+	public void testConcurrentReadersAndWriters() throws Exception
+	{
+		Node bTreeNode = graphDb().createNode();
+		graphDb().createNode().createRelationshipTo( bTreeNode, 
+			AbstractBTree.RelTypes.TREE_ROOT );
+		final BTree bTree = new BTree( graphDb(), bTreeNode, true );
+		// keys below zero stay in the tree while the writers split and 
+		// merge the tree nodes around them
+		final int stableCount = 200;
+		for ( int i = 1; i <= stableCount; i++ )
+		{
+			bTree.addEntry( -i, (long) -i );
+		}
+		restartTx();
+		final int threadCount = 4;
+		final int keysPerThread = 300;
+		final List<Throwable> failures = 
+			Collections.synchronizedList( new ArrayList<Throwable>() );
+		final AtomicBoolean writing = new AtomicBoolean( true );
+		List<Thread> writers = new ArrayList<Thread>();
+		for ( int t = 0; t < threadCount; t++ )
+		{
+			final int offset = t;
+			writers.add( new Thread()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						for ( int batch = 0; batch < keysPerThread; batch += 10 )
+						{
+							writeBatch( bTree, batch, offset, threadCount );
+						}
+					}
+					catch ( Throwable e )
+					{
+						failures.add( e );
+					}
+				}
+			} );
+		}
+		List<Thread> readers = new ArrayList<Thread>();
+		for ( int t = 0; t < 2; t++ )
+		{
+			final long seed = t;
+			readers.add( new Thread()
+			{
+				@Override
+				public void run()
+				{
+					Random random = new Random( seed );
+					try
+					{
+						do
+						{
+							readTree( bTree, random, stableCount, 
+								threadCount * keysPerThread, threadCount );
+						}
+						while ( writing.get() );
+					}
+					catch ( Throwable e )
+					{
+						failures.add( e );
+					}
+				}
+			} );
+		}
+		for ( Thread thread : readers )
+		{
+			thread.start();
+		}
+		for ( Thread thread : writers )
+		{
+			thread.start();
+		}
+		for ( Thread thread : writers )
+		{
+			thread.join();
+		}
+		writing.set( false );
+		for ( Thread thread : readers )
+		{
+			thread.join();
+		}
+		assertEquals( Collections.<Throwable>emptyList(), failures );
+		bTree.validateTree();
+		int stableLeft = 0;
+		for ( KeyEntry entry : bTree.entries( Long.MIN_VALUE, 0 ) )
+		{
+			assertTrue( entry.getKey() < 0 );
+			stableLeft++;
+		}
+		assertEquals( stableCount, stableLeft );
+		bTree.delete();
+	}
+	
+	// checks that a reader sees the keys in order, all of the stable ones 
+	// and only keys the writers add, with the values they add them with
+	private void readTree( BTree bTree, Random random, int stableCount, 
+		int writtenCount, int threadCount )
+	{
+		Transaction tx = graphDb().beginTx();
+		try
+		{
+			Long previous = null;
+			int stableSeen = 0;
+			for ( KeyEntry entry : bTree.entries() )
+			{
+				long key = entry.getKey();
+				assertTrue( "Key " + key + " after " + previous, 
+					previous == null || key > previous );
+				if ( key < 0 )
+				{
+					assertTrue( key >= -stableCount );
+					assertEquals( key, entry.getValue() );
+					stableSeen++;
+				}
+				else
+				{
+					assertTrue( "Key " + key + " never written", key < writtenCount );
+					assertEquals( (int) ( key / threadCount ), entry.getValue() );
+				}
+				previous = key;
+			}
+			assertEquals( stableCount, stableSeen );
+			for ( int i = 0; i < 20; i++ )
+			{
+				long key = random.nextInt( writtenCount );
+				Object value = bTree.getEntry( key );
+				assertTrue( value == null 
+					|| value.equals( (int) ( key / threadCount ) ) );
+				long stableKey = -1 - random.nextInt( stableCount );
+				assertEquals( stableKey, bTree.getEntry( stableKey ) );
+			}
+			tx.success();
+		}
+		finally
+		{
+			tx.finish();
+		}
+	}
+	
+	// adds ten keys of one writer and removes every third, one change per
+	// transaction so the writers never deadlock
+	private void writeBatch( BTree bTree, int batch, int offset, 
+		int threadCount )
+	{
+		for ( int i = batch; i < batch + 10; i++ )
+		{
+			Transaction tx = graphDb().beginTx();
+			try
+			{
+				bTree.addEntry( (long) i * threadCount + offset, i );
+				tx.success();
+			}
+			finally
+			{
+				tx.finish();
+			}
+		}
+		for ( int i = batch; i < batch + 10; i += 3 )
+		{
+			Transaction tx = graphDb().beginTx();
+			try
+			{
+				bTree.removeEntry( (long) i * threadCount + offset );
+				tx.success();
+			}
+			finally
+			{
+				tx.finish();
+			}
+		}
+	}
+	
+	@Test
+	public void testChecker()
+	{
+		BTree bTree = createTree();
+		for ( long i = 0; i < 2000; i++ )
+		{
+			bTree.addEntry( i * 3, i );
+		}
+		restartTx();
+		BTreeChecker.Report report = new BTreeChecker( bTree ).check( 4 );
+		assertEquals( Collections.<String>emptyList(), report.getViolations() );
+		assertEquals( 2000, report.getEntryCount() );
+		assertTrue( report.getDepth() > 2 );
+		long treeNodes = 0;
+		for ( long count : report.getFillHistogram() )
+		{
+			treeNodes += count;
+		}
+		assertEquals( report.getTreeNodeCount(), treeNodes );
+		
+		// two independent faults, both reported
+		bTree.getAsKeyEntry( 300 ).setKey( 100000L );
+		KeyEntry first = bTree.getTreeRoot().getFirstEntry();
+		first.getBeforeSubTree().setSubTreeCount( 7 );
+		restartTx();
+		report = new BTreeChecker( bTree ).check( 2 );
+		assertFalse( report.isConsistent() );
+		assertTrue( report.getViolations().size() >= 2 );
+		bTree.delete();
+	}
+	
+	@Test
+	public void testDeleteInBatches()
+	{
+		Node holder = graphDb().createNode();
+		Node bTreeNode = graphDb().createNode();
+		holder.createRelationshipTo( bTreeNode, 
+			AbstractBTree.RelTypes.TREE_ROOT );
+		BTree bTree = new BTree( graphDb(), bTreeNode );
+		for ( long i = 0; i < 1000; i++ )
+		{
+			bTree.addEntry( i, i );
+		}
+		// no enclosing transaction so the batches commit
+		finishTx( true );
+		final long[] progress = new long[2];
+		bTree.delete( 50, new NullListener()
+		{
+			@Override
+			public void begin( int unitsOfWork )
+			{
+				progress[0] = unitsOfWork;
+			}
+			
+			@Override
+			public void worked( int workedSinceLastNotification )
+			{
+				progress[1] += workedSinceLastNotification;
+			}
+		} );
+		beginTx();
+		assertEquals( 1000, progress[0] );
+		assertEquals( 1000, progress[1] );
+		assertFalse( holder.hasRelationship() );
+		try
+		{
+			graphDb().getNodeById( bTreeNode.getId() );
+			fail( "Tree root not deleted" );
+		}
+		catch ( NotFoundException e )
+		{ // good
+		}
+		holder.delete();
+	}
+}
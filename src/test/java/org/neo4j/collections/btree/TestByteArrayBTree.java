@@ -0,0 +1,253 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.collections.btree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+import org.neo4j.collections.Neo4jTestCase;
+import org.neo4j.graphdb.Node;
+
+public class TestByteArrayBTree extends Neo4jTestCase
+{
+	private static final Charset UTF8 = Charset.forName( "UTF-8" );
+	
+	private static byte[] bytes( String key )
+	{
+		return key.getBytes( UTF8 );
+	}
+	
+	private static String string( byte[] key )
+	{
+		return new String( key, UTF8 );
+	}
+	
+	@Test
+	public void testAddAndRemove()
+	{
+		Node treeNode = graphDb().createNode();
+		ByteArrayBTree bTree = new ByteArrayBTree( graphDb(), treeNode, 4,
+			true );
+		// ascii strings sort the same as their utf-8 bytes
+		TreeMap<String, Long> expected = new TreeMap<String, Long>();
+		Random random = new Random( 1234 );
+		for ( int i = 0; i < 2000; i++ )
+		{
+			long number = random.nextInt( 500 );
+			String key = "user/" + number;
+			if ( random.nextInt( 3 ) > 0 )
+			{
+				assertEquals( !expected.containsKey( key ),
+					bTree.addIfAbsent( bytes( key ), number ) );
+				if ( !expected.containsKey( key ) )
+				{
+					expected.put( key, number );
+				}
+			}
+			else
+			{
+				assertEquals( expected.remove( key ),
+					bTree.removeEntry( bytes( key ) ) );
+			}
+			if ( i % 100 == 0 )
+			{
+				bTree.validateTree();
+				restartTx();
+			}
+		}
+		bTree.validateTree();
+		assertEntries( expected, bTree );
+		
+		bTree = new ByteArrayBTree( graphDb(), treeNode );
+		assertEquals( 4, bTree.getOrder() );
+		assertTrue( bTree.isPrefixCompressed() );
+		String first = expected.firstKey();
+		assertEquals( expected.get( first ), bTree.put( bytes( first ), -1 ) );
+		assertEquals( (Long) (-1L), bTree.getEntry( bytes( first ) ) );
+		assertNull( bTree.put( bytes( "user/x" ), 1 ) );
+		expected.put( first, -1L );
+		expected.put( "user/x", 1L );
+		for ( String key : expected.keySet() )
+		{
+			assertEquals( expected.get( key ), bTree.removeEntry( bytes( key ) ) );
+			bTree.validateTree();
+		}
+		assertNull( bTree.getClosestHigherEntry( new byte[0] ) );
+		bTree.delete();
+		assertFalse( treeNode.hasProperty( ByteArrayBTree.ROOT_PAGE ) );
+		treeNode.delete();
+	}
+	
+	@Test
+	public void testRangeAndPrefix()
+	{
+		Node treeNode = graphDb().createNode();
+		ByteArrayBTree bTree = new ByteArrayBTree( graphDb(), treeNode, 8,
+			false );
+		for ( int i = 0; i < 300; i++ )
+		{
+			bTree.addEntry( bytes( String.format( "%c/%03d", 'a' + i % 3, i ) ),
+				i );
+		}
+		bTree.addEntry( new byte[] { (byte) 0xff, (byte) 0xff }, 1000 );
+		bTree.addEntry( new byte[] { (byte) 0xff, (byte) 0xff, 1 }, 1001 );
+		bTree.validateTree();
+		try
+		{
+			bTree.addEntry( bytes( "b/001" ), 0 );
+			assertTrue( "Key already exist", false );
+		}
+		catch ( RuntimeException e )
+		{ // good
+		}
+		
+		List<Long> values = new ArrayList<Long>();
+		String previous = "";
+		for ( Map.Entry<byte[],Long> entry : bTree.entriesWithPrefix(
+			bytes( "b/" ) ) )
+		{
+			assertTrue( string( entry.getKey() ).compareTo( previous ) > 0 );
+			previous = string( entry.getKey() );
+			values.add( entry.getValue() );
+		}
+		assertEquals( 100, values.size() );
+		assertEquals( (Long) 1L, values.get( 0 ) );
+		assertEquals( (Long) 298L, values.get( 99 ) );
+		
+		values.clear();
+		for ( Map.Entry<byte[],Long> entry : bTree.entries( bytes( "a/150" ),
+			bytes( "a/200" ) ) )
+		{
+			values.add( entry.getValue() );
+		}
+		assertEquals( 17, values.size() );
+		assertEquals( (Long) 150L, values.get( 0 ) );
+		
+		values.clear();
+		for ( Map.Entry<byte[],Long> entry : bTree.entriesWithPrefix(
+			new byte[] { (byte) 0xff } ) )
+		{
+			values.add( entry.getValue() );
+		}
+		assertEquals( 2, values.size() );
+		assertEquals( (Long) 1001L, values.get( 1 ) );
+		
+		int count = 0;
+		for ( Map.Entry<byte[],Long> entry : bTree.entries( null, null ) )
+		{
+			count++;
+		}
+		assertEquals( 302, count );
+		bTree.delete();
+		treeNode.delete();
+	}
+	
+	@Test
+	public void testPrefixCompression()
+	{
+		Node plainNode = graphDb().createNode();
+		Node compressedNode = graphDb().createNode();
+		ByteArrayBTree plain = new ByteArrayBTree( graphDb(), plainNode, 64,
+			false );
+		ByteArrayBTree compressed = new ByteArrayBTree( graphDb(),
+			compressedNode, 64, true );
+		for ( int i = 0; i < 50; i++ )
+		{
+			byte[] key = bytes( "http://example.org/some/long/path/" + i );
+			plain.addEntry( key, i );
+			compressed.addEntry( key, i );
+		}
+		Node plainRoot = graphDb().getNodeById(
+			(Long) plainNode.getProperty( ByteArrayBTree.ROOT_PAGE ) );
+		Node compressedRoot = graphDb().getNodeById(
+			(Long) compressedNode.getProperty( ByteArrayBTree.ROOT_PAGE ) );
+		int plainSize = ( (byte[]) plainRoot.getProperty(
+			ByteArrayBTree.PAGE ) ).length;
+		int compressedSize = ( (byte[]) compressedRoot.getProperty(
+			ByteArrayBTree.PAGE ) ).length;
+		assertTrue( compressedSize * 3 < plainSize );
+		restartTx();
+		for ( int i = 0; i < 50; i++ )
+		{
+			byte[] key = bytes( "http://example.org/some/long/path/" + i );
+			assertEquals( (Long) (long) i, compressed.getEntry( key ) );
+		}
+		plain.delete();
+		compressed.delete();
+		plainNode.delete();
+		compressedNode.delete();
+	}
+	
+	private void assertEntries( TreeMap<String, Long> expected,
+		ByteArrayBTree bTree )
+	{
+		for ( Map.Entry<String, Long> entry : expected.entrySet() )
+		{
+			assertEquals( entry.getValue(),
+				bTree.getEntry( bytes( entry.getKey() ) ) );
+		}
+		for ( int number = -10; number < 520; number += 7 )
+		{
+			String key = "user/" + number;
+			if ( !expected.containsKey( key ) )
+			{
+				assertNull( bTree.getEntry( bytes( key ) ) );
+			}
+			Map.Entry<String, Long> floor = expected.floorEntry( key );
+			assertEquals( floor != null ? floor.getValue() : null,
+				bTree.getClosestLowerEntry( bytes( key ) ) );
+			Map.Entry<String, Long> ceiling = expected.ceilingEntry( key );
+			assertEquals( ceiling != null ? ceiling.getValue() : null,
+				bTree.getClosestHigherEntry( bytes( key ) ) );
+		}
+		List<String> keys = new ArrayList<String>();
+		for ( Map.Entry<byte[],Long> entry : bTree.entries( null, null ) )
+		{
+			keys.add( string( entry.getKey() ) );
+		}
+		assertEquals( new ArrayList<String>( expected.keySet() ), keys );
+		keys.clear();
+		for ( Map.Entry<byte[],Long> entry : bTree.entriesDescending( null,
+			null ) )
+		{
+			keys.add( string( entry.getKey() ) );
+		}
+		assertEquals( new ArrayList<String>(
+			expected.descendingKeySet() ), keys );
+		keys.clear();
+		for ( Map.Entry<byte[],Long> entry : bTree.entriesDescending(
+			bytes( "user/2" ), bytes( "user/3" ) ) )
+		{
+			keys.add( string( entry.getKey() ) );
+		}
+		assertEquals( new ArrayList<String>( expected.subMap( "user/2", true,
+			"user/3", false ).descendingKeySet() ), keys );
+	}
+}
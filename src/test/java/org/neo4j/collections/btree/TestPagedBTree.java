@@ -0,0 +1,129 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.collections.btree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+import org.neo4j.collections.Neo4jTestCase;
+import org.neo4j.graphdb.Node;
+
+public class TestPagedBTree extends Neo4jTestCase
+{
+	@Test
+	public void testAddAndRemove()
+	{
+		Node treeNode = graphDb().createNode();
+		PagedBTree bTree = new PagedBTree( graphDb(), treeNode, 4 );
+		TreeMap<Long, Long> expected = new TreeMap<Long, Long>();
+		Random random = new Random( 1234 );
+		for ( int i = 0; i < 2000; i++ )
+		{
+			long key = random.nextInt( 500 ) - 100;
+			if ( random.nextInt( 3 ) > 0 )
+			{
+				assertEquals( !expected.containsKey( key ), 
+					bTree.addIfAbsent( key, key * 10 ) );
+				if ( !expected.containsKey( key ) )
+				{
+					expected.put( key, key * 10 );
+				}
+			}
+			else
+			{
+				assertEquals( expected.remove( key ), bTree.removeEntry( key ) );
+			}
+			if ( i % 100 == 0 )
+			{
+				bTree.validateTree();
+				restartTx();
+			}
+		}
+		bTree.validateTree();
+		assertEntries( expected, bTree );
+		
+		bTree = new PagedBTree( graphDb(), treeNode );
+		assertEquals( 4, bTree.getOrder() );
+		for ( Long key : expected.keySet() )
+		{
+			assertEquals( (Long) ( key * 10 ), bTree.removeEntry( key ) );
+			bTree.validateTree();
+		}
+		bTree.validateTree();
+		assertNull( bTree.getClosestHigherEntry( Long.MIN_VALUE ) );
+		bTree.delete();
+		assertFalse( treeNode.hasProperty( PagedBTree.ROOT_PAGE ) );
+		treeNode.delete();
+	}
+	
+	@Test
+	public void testLargeOrder()
+	{
+		Node treeNode = graphDb().createNode();
+		PagedBTree bTree = new PagedBTree( graphDb(), treeNode, 128 );
+		TreeMap<Long, Long> expected = new TreeMap<Long, Long>();
+		for ( long i = 0; i < 5000; i++ )
+		{
+			bTree.addEntry( i * 2, i );
+			expected.put( i * 2, i );
+		}
+		bTree.validateTree();
+		assertEntries( expected, bTree );
+		try
+		{
+			bTree.addEntry( 10, 0 );
+			assertTrue( "Key already exist", false );
+		}
+		catch ( RuntimeException e )
+		{ // good
+		}
+		bTree.delete();
+		treeNode.delete();
+	}
+	
+	private void assertEntries( TreeMap<Long, Long> expected, PagedBTree bTree )
+	{
+		for ( Map.Entry<Long, Long> entry : expected.entrySet() )
+		{
+			assertEquals( entry.getValue(), bTree.getEntry( entry.getKey() ) );
+		}
+		for ( long key = -150; key < 10050; key += 7 )
+		{
+			Long value = expected.get( key );
+			if ( value == null )
+			{
+				assertNull( bTree.getEntry( key ) );
+			}
+			Map.Entry<Long, Long> floor = expected.floorEntry( key );
+			assertEquals( floor != null ? floor.getValue() : null, 
+				bTree.getClosestLowerEntry( key ) );
+			Map.Entry<Long, Long> ceiling = expected.ceilingEntry( key );
+			assertEquals( ceiling != null ? ceiling.getValue() : null, 
+				bTree.getClosestHigherEntry( key ) );
+		}
+	}
+}
@@ -42,6 +42,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.neo4j.collections.graphdb.ReferenceNodes;
 import org.neo4j.collections.timeline.Timeline;
+import org.neo4j.collections.timeline.TimelinePage;
 import org.neo4j.cypher.javacompat.ExecutionEngine;
 import org.neo4j.cypher.javacompat.ExecutionResult;
 import org.neo4j.graphdb.Node;
@@ -57,7 +58,9 @@ import java.util.HashMap;
 import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 public class TimelineIndexProviderTest {
 
@@ -93,6 +96,69 @@ public class TimelineIndexProviderTest {
 
     }
 
+    @Test
+    public void testIndexedTimelineFromConfig() throws Exception {
+        Transaction tx = db.beginTx();
+        Map<String, String> config = new HashMap<String, String>(TimelineNodeIndex.CONFIG);
+        config.put(TimelineNodeIndex.START_NODE_ID, String.valueOf(db.createNode().getId()));
+        config.put(TimelineNodeIndex.INDEXED, "true");
+        config.put(TimelineNodeIndex.INDEX_TRIGGER_COUNT, "10");
+        TimelineNodeIndex index = (TimelineNodeIndex) db.index().forNodes("timeline1", config);
+        assertTrue(index.getTimeline().isIndexed());
+        assertEquals(10, index.getTimeline().getIndexTriggerCount());
+
+        config = new HashMap<String, String>(TimelineNodeIndex.CONFIG);
+        config.put(TimelineNodeIndex.START_NODE_ID, String.valueOf(db.createNode().getId()));
+        index = (TimelineNodeIndex) db.index().forNodes("timeline2", config);
+        assertFalse(index.getTimeline().isIndexed());
+        for (long i = 0; i < 100; i++) {
+            index.add(db.createNode(), "timestamp", i);
+        }
+        tx.success();
+        tx.finish();
+
+        index.getTimeline().setIndexTriggerCount(10);
+        index.buildIndexInBackground(20).join();
+        tx = db.beginTx();
+        assertTrue(index.getTimeline().isIndexed());
+        assertEquals(30, index.getTimeline().countBetween(9, 40));
+        assertEquals(30, index.query("[9 TO 40]").size());
+        tx.success();
+        tx.finish();
+    }
+
+    @Test
+    public void testWritesDuringIndexBuild() throws Exception {
+        Transaction tx = db.beginTx();
+        Map<String, String> config = new HashMap<String, String>(TimelineNodeIndex.CONFIG);
+        config.put(TimelineNodeIndex.START_NODE_ID, String.valueOf(db.createNode().getId()));
+        config.put(TimelineNodeIndex.INDEX_TRIGGER_COUNT, "10");
+        TimelineNodeIndex index = (TimelineNodeIndex) db.index().forNodes("timeline1", config);
+        for (long i = 0; i < 2000; i += 2) {
+            index.add(db.createNode(), "timestamp", i);
+        }
+        tx.success();
+        tx.finish();
+
+        Thread builder = index.buildIndexInBackground(5);
+        for (long i = 1; i < 2000; i += 10) {
+            tx = db.beginTx();
+            index.add(db.createNode(), "timestamp", i);
+            tx.success();
+            tx.finish();
+        }
+        builder.join();
+        tx = db.beginTx();
+        Timeline timeline = index.getTimeline();
+        assertEquals(1200, timeline.countBetween(-1, 2000));
+        for (long from = -1; from < 2000; from += 97) {
+            assertEquals(index.query("[" + from + " TO 2000]").size(),
+                    timeline.countBetween(from, 2000));
+        }
+        tx.success();
+        tx.finish();
+    }
+
     @Test
     public void testAddToIndex() throws Exception {
         Transaction tx = db.beginTx();
@@ -119,6 +185,11 @@ public class TimelineIndexProviderTest {
         assertEquals(2, hits.size());
         hits = index.query("[122 TO 125]");
         assertEquals(3, hits.size());
+        TimelinePage page = ((TimelineNodeIndex) index).queryPage("[122 TO 125]", null, 2);
+        assertEquals(2, page.getNodes().size());
+        page = ((TimelineNodeIndex) index).queryPage("[122 TO 125]", page.getNextCursor().toString(), 2);
+        assertEquals(n3, page.getNodes().get(0));
+        assertFalse(page.hasMore());
 
         ExecutionEngine engine = new ExecutionEngine(db);
         ExecutionResult result = engine.execute("start n=node:timeline1('[100 TO 200]') return n");
@@ -19,13 +19,30 @@
  */
 package org.neo4j.collections.sortedtree;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.neo4j.collections.Neo4jTestCase;
+import org.neo4j.collections.NodeCollection;
+import org.neo4j.collections.graphdb.PropertyComparator;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
 
 public class TestSortedTree extends Neo4jTestCase
 {
@@ -50,6 +67,28 @@ public class TestSortedTree extends Neo4jTestCase
 		}
 	}
 	
+	// sorts on the "key" property, never compares nodes as the tree only
+	// compares the sort keys
+	public static class KeyComparator implements SortKeyComparator<Long>{
+		public int compare(Node n1, Node n2){
+			throw new UnsupportedOperationException();
+		}
+		
+		public Long getSortKey(Node node){
+			return (Long)node.getProperty("key");
+		}
+	}
+	
+	public static class KeyNodeComparator implements java.util.Comparator<Node>, PropertyComparator<Long>{
+		public int compare(Node n1, Node n2){
+			return ((Long)n1.getProperty("key")).compareTo((Long)n2.getProperty("key"));
+		}
+		
+		public int compare(Long key, Node node){
+			return key.compareTo((Long)node.getProperty("key"));
+		}
+	}
+	
 	@Before
 	public void setUpSortedTree() throws Exception
 	{
@@ -309,5 +348,338 @@ public class TestSortedTree extends Neo4jTestCase
 		
 	}
 	
+	@Test
+	public void testSortKeys()
+	{
+		SortedTree tree = new SortedTree(graphDb(), new KeyComparator(), false, "Sort key test");
+		TreeMap<Long, Set<Node>> expected = new TreeMap<Long, Set<Node>>();
+		List<Node> nodes = new ArrayList<Node>();
+		Random random = new Random(1234);
+		for(int i = 0; i < 2000; i++){
+			if(nodes.isEmpty() || random.nextInt(3) > 0){
+				Node node = graphDb().createNode();
+				long key = random.nextInt(500);
+				node.setProperty("key", key);
+				tree.addNode(node);
+				nodes.add(node);
+				if(!expected.containsKey(key)){
+					expected.put(key, new HashSet<Node>());
+				}
+				expected.get(key).add(node);
+			}else{
+				Node node = nodes.remove(random.nextInt(nodes.size()));
+				long key = (Long)node.getProperty("key");
+				assertTrue(tree.remove(node));
+				assertTrue(!tree.remove(node));
+				expected.get(key).remove(node);
+				if(expected.get(key).isEmpty()){
+					expected.remove(key);
+				}
+			}
+			if(i % 300 == 0){
+				restartTx();
+			}
+		}
+		restartTx();
+		tree = new SortedTree(tree.getBaseNode());
+		List<Long> keys = new ArrayList<Long>();
+		for(Node node: tree){
+			keys.add((Long)node.getProperty("key"));
+		}
+		List<Long> expectedKeys = new ArrayList<Long>();
+		for(Map.Entry<Long, Set<Node>> entry: expected.entrySet()){
+			for(int i = 0; i < entry.getValue().size(); i++){
+				expectedKeys.add(entry.getKey());
+			}
+		}
+		assertEquals(expectedKeys, keys);
+		for(Node node: nodes){
+			assertTrue(tree.containsNode(node));
+		}
+		for(long key = 0; key < 500; key++){
+			Set<Node> withKey = new HashSet<Node>();
+			for(Node node: tree.getWithValue(key, null)){
+				withKey.add(node);
+			}
+			Set<Node> expectedWithKey = expected.get(key);
+			assertEquals(expectedWithKey != null ? expectedWithKey : new HashSet<Node>(), withKey);
+			assertEquals(expectedWithKey != null, tree.containsValue(key, null));
+		}
+		for(Node node: nodes){
+			assertTrue(tree.remove(node));
+		}
+		assertTrue(!tree.iterator().hasNext());
+		tree.delete();
+	}
+	
+	@Test
+	public void testSortKeysSetBackInOneTx()
+	{
+		SortedTree tree = new SortedTree(graphDb(), new KeyComparator(), false, "Set back test");
+		List<Node> nodes = new ArrayList<Node>();
+		for(long key = 0; key < 3; key++){
+			nodes.add(keyNode(key * 10));
+			tree.addNode(nodes.get(nodes.size() - 1));
+		}
+		restartTx();
+		// the packed sort keys go back to their committed value and change
+		// again in the same transaction
+		Node removed = keyNode(15);
+		tree.addNode(removed);
+		assertTrue(tree.remove(removed));
+		Node added = keyNode(5);
+		tree.addNode(added);
+		assertTrue(tree.containsNode(added));
+		assertTrue(tree.containsValue(5L, null));
+		assertTrue(!tree.containsValue(15L, null));
+		restartTx();
+		assertTrue(tree.containsNode(added));
+		for(Node node: nodes){
+			assertTrue(tree.containsNode(node));
+		}
+		tree.delete();
+	}
+	
+	@Test
+	public void testSortKeysSetBackWithCollidingHashes()
+	{
+		SortedTree tree = new SortedTree(graphDb(), new KeyComparator(), false, "Colliding test");
+		Node zero = keyNode(0);
+		tree.addNode(zero);
+		restartTx();
+		// [0] and [0, 4294966366] have the same Arrays.hashCode
+		Node removed = keyNode(15);
+		tree.addNode(removed);
+		assertTrue(tree.remove(removed));
+		Node added = keyNode(4294966366L);
+		tree.addNode(added);
+		assertTrue(tree.containsNode(added));
+		assertTrue(tree.containsValue(4294966366L, null));
+		Node sameKey = keyNode(4294966366L);
+		tree.addNode(sameKey);
+		assertTrue(tree.containsNode(sameKey));
+		restartTx();
+		Set<Node> withKey = new HashSet<Node>();
+		for(Node node: tree.getWithValue(4294966366L, null)){
+			withKey.add(node);
+		}
+		assertEquals(new HashSet<Node>(Arrays.asList(added, sameKey)), withKey);
+		assertTrue(tree.containsNode(zero));
+		tree.delete();
+	}
+	
+	private Node keyNode(long key)
+	{
+		Node node = graphDb().createNode();
+		node.setProperty("key", key);
+		return node;
+	}
+	
+	@Test
+	public void testRanges()
+	{
+		// with sort keys and with comparators
+		assertRanges(new SortedTree(graphDb(), new KeyComparator(), false, "Range test"));
+		assertRanges(new SortedTree(graphDb(), new KeyNodeComparator(), false, "Range test"));
+	}
+	
+	private void assertRanges(SortedTree tree)
+	{
+		PropertyComparator<Long> comp = new KeyNodeComparator();
+		List<Long> keys = new ArrayList<Long>();
+		Random random = new Random(4321);
+		for(int i = 0; i < 400; i++){
+			long key = random.nextInt(1000);
+			Node node = graphDb().createNode();
+			node.setProperty("key", key);
+			tree.addNode(node);
+			keys.add(key);
+		}
+		restartTx();
+		Collections.sort(keys);
+		List<Long> reversed = new ArrayList<Long>(keys);
+		Collections.reverse(reversed);
+		assertEquals(keys, keysOf(tree.getRange(null, false, null, false, comp, false)));
+		assertEquals(reversed, keysOf(tree.getRange(null, false, null, false, comp, true)));
+		for(int i = 0; i < 200; i++){
+			Long from = random.nextInt(10) == 0 ? null : (long) random.nextInt(1100) - 50;
+			Long to = random.nextInt(10) == 0 ? null : (long) random.nextInt(1100) - 50;
+			boolean fromInclusive = random.nextBoolean();
+			boolean toInclusive = random.nextBoolean();
+			List<Long> expected = new ArrayList<Long>();
+			for(long key: keys){
+				if((from == null || key > from || (fromInclusive && key == from)) &&
+						(to == null || key < to || (toInclusive && key == to))){
+					expected.add(key);
+				}
+			}
+			assertEquals(expected, keysOf(tree.getRange(from, fromInclusive, to, toInclusive, comp, false)));
+			Collections.reverse(expected);
+			assertEquals(expected, keysOf(tree.getRange(from, fromInclusive, to, toInclusive, comp, true)));
+		}
+		tree.delete();
+	}
+	
+	@Test
+	public void testDescendingIterator()
+	{
+		assertTrue(!longTree.descendingIterator().hasNext());
+		List<Long> ids = new ArrayList<Long>();
+		for(int i = 0; i < 200; i++){
+			Node node = graphDb().createNode();
+			longTree.addNode(node);
+			ids.add(node.getId());
+		}
+		Collections.reverse(ids);
+		List<Long> descending = new ArrayList<Long>();
+		Iterator<Node> nodes = longTree.descendingIterator();
+		while(nodes.hasNext()){
+			descending.add(nodes.next().getId());
+		}
+		assertEquals(ids, descending);
+	}
+	
+	@Test
+	public void testBulkBuild()
+	{
+		int[] orders = {5, 6, 9};
+		int[] sizes = {0, 1, 2, 10, 300};
+		for(int order: orders){
+			for(int size: sizes){
+				assertBulkBuild(new SortedTree(graphDb(), new KeyComparator(), false, "Bulk test", order), order, size);
+				assertBulkBuild(new SortedTree(graphDb(), new KeyNodeComparator(), false, "Bulk test", order), order, size);
+			}
+		}
+		
+		SortedTree tree = new SortedTree(graphDb(), new KeyComparator(), true, "Bulk test", 5);
+		List<Node> nodes = new ArrayList<Node>();
+		for(long key: new long[] {1, 2, 2}){
+			Node node = graphDb().createNode();
+			node.setProperty("key", key);
+			nodes.add(node);
+		}
+		try{
+			tree.bulkBuild(nodes.iterator(), 10);
+			fail("duplicate in a unique index");
+		}catch(IllegalArgumentException e){
+			// good
+		}
+		assertEquals(2, keysOf(tree.getRange(null, false, null, false, null, false)).size());
+		tree.delete();
+	}
+	
+	@Test
+	public void testBulkBuildInterrupted()
+	{
+		SortedTree tree = new SortedTree(graphDb(), new KeyComparator(), false, "Bulk test", 5);
+		Node rootNode = tree.getTreeRoot().getUnderlyingNode();
+		final List<Node> nodes = new ArrayList<Node>();
+		for(int i = 0; i < 300; i++){
+			Node node = graphDb().createNode();
+			node.setProperty("key", (long) i);
+			nodes.add(node);
+		}
+		finishTx(true);
+		try{
+			tree.bulkBuild(new Iterator<Node>(){
+				private final Iterator<Node> itr = nodes.iterator();
+
+				public boolean hasNext(){
+					return true;
+				}
+
+				public Node next(){
+					if(!itr.hasNext()){
+						throw new IllegalStateException("interrupted");
+					}
+					return itr.next();
+				}
+
+				public void remove(){
+					throw new UnsupportedOperationException();
+				}
+			}, 64);
+			fail("Should have been interrupted");
+		}catch(IllegalStateException e){
+			// good
+		}
+		beginTx();
+		// the tree is still empty, the built tree nodes are kept track of
+		assertEquals(rootNode, tree.getTreeRoot().getUnderlyingNode());
+		assertTrue(tree.getTreeRoot().getFirstEntry() == null);
+		long topId = (Long) rootNode.getProperty(BulkBuilder.BULK_BUILDING);
+		finishTx(true);
+		assertEquals(300, tree.bulkBuild(nodes.iterator(), 64));
+		beginTx();
+		try{
+			graphDb().getNodeById(topId);
+			fail("Interrupted build not deleted");
+		}catch(NotFoundException e){
+			// good
+		}
+		assertFalse(tree.getTreeRoot().getUnderlyingNode().hasProperty(BulkBuilder.BULK_BUILDING));
+		for(Node node: nodes){
+			// only the interrupted build's relationships are gone
+			assertEquals(1, countIterable(node.getRelationships(NodeCollection.RelationshipTypes.VALUE)));
+			assertTrue(tree.containsNode(node));
+		}
+		tree.delete();
+	}
+	
+	private void assertBulkBuild(SortedTree tree, int order, int size)
+	{
+		List<Node> nodes = new ArrayList<Node>();
+		List<Long> keys = new ArrayList<Long>();
+		for(int i = 0; i < size; i++){
+			// every third key twice
+			long key = i - i / 3;
+			Node node = graphDb().createNode();
+			node.setProperty("key", key);
+			nodes.add(node);
+			keys.add(key);
+		}
+		assertEquals(size, tree.bulkBuild(nodes.iterator(), 7));
+		restartTx();
+		tree = new SortedTree(tree.getBaseNode());
+		assertEquals(order, tree.getOrder());
+		// the left most leaf of a packed tree is full unless it lent to the
+		// right most leaf
+		NodeEntry entry = tree.getTreeRoot().getFirstEntry();
+		if(entry != null && entry.getBeforeSubTree() != null && entry.getNextKey() != null){
+			while(entry.getBeforeSubTree() != null){
+				entry = entry.getBeforeSubTree().getFirstEntry();
+			}
+			int entryCount = 0;
+			for(; entry != null; entry = entry.getNextKey()){
+				entryCount++;
+			}
+			assertEquals(tree.getOrder() - 1, entryCount);
+		}
+		assertEquals(keys, keysOf(tree.getRange(null, false, null, false, new KeyNodeComparator(), false)));
+		for(Node node: nodes){
+			assertTrue(tree.containsNode(node));
+		}
+		// the packed tree takes additions and removals
+		for(int i = 0; i < 20; i++){
+			Node node = graphDb().createNode();
+			node.setProperty("key", (long) i * 7);
+			tree.addNode(node);
+			nodes.add(node);
+		}
+		Collections.shuffle(nodes, new Random(size));
+		for(Node node: nodes){
+			assertTrue(tree.remove(node));
+		}
+		assertTrue(!tree.iterator().hasNext());
+		tree.delete();
+	}
+	
+	private List<Long> keysOf(Iterable<Node> nodes){
+		List<Long> keys = new ArrayList<Long>();
+		for(Node node: nodes){
+			keys.add((Long)node.getProperty("key"));
+		}
+		return keys;
+	}
 
-}
\ No newline at end of file
+}
@@ -24,14 +24,21 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.neo4j.collections.Neo4jTestCase;
+import org.neo4j.collections.btree.BTree;
+import org.neo4j.collections.rtree.Listener;
+import org.neo4j.collections.rtree.NullListener;
+import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.TransactionFailureException;
 
@@ -522,6 +529,734 @@ public class TestTimeline extends Neo4jTestCase
         }
     }
 	
+	@Test
+    public void testCountBetween()
+    {
+        Node tlNode = graphDb().createNode();
+        Timeline indexedTimeline = new Timeline( "test", tlNode, true, 10, graphDb() );
+        LinkedList<Node> nodes = new LinkedList<Node>();
+        for ( int i = 0; i < 200; i++ )
+        {
+            Node node = graphDb().createNode();
+            // every fifth timestamp is used twice
+            indexedTimeline.addNode( node, i - ( i % 5 == 1 ? 1 : 0 ) );
+            nodes.add( node );
+        }
+        assertCounts( indexedTimeline );
+        for ( int i = 0; i < 200; i += 3 )
+        {
+            indexedTimeline.removeNode( nodes.get( i ) );
+        }
+        assertCounts( indexedTimeline );
+        assertCounts( timeline );
+        indexedTimeline.delete();
+        for ( Node node : nodes )
+        {
+            node.delete();
+        }
+    }
+
+    @Test
+    public void testTruncateBefore()
+    {
+        Node tlNode = graphDb().createNode();
+        Timeline indexedTimeline = new Timeline( "test", tlNode, true, 10, graphDb() );
+        LinkedList<Node> nodes = new LinkedList<Node>();
+        for ( int i = 0; i < 200; i++ )
+        {
+            Node node = graphDb().createNode();
+            indexedTimeline.addNode( node, i - ( i % 5 == 1 ? 1 : 0 ) );
+            timeline.addNode( node, i );
+            nodes.add( node );
+        }
+        final int[] worked = new int[2];
+        Listener monitor = new NullListener()
+        {
+            @Override
+            public void begin( int unitsOfWork )
+            {
+                worked[0] = unitsOfWork;
+            }
+
+            @Override
+            public void worked( int workedSinceLastNotification )
+            {
+                worked[1] += workedSinceLastNotification;
+            }
+        };
+        indexedTimeline.truncateBefore( 120, 7, monitor );
+        assertEquals( 120, worked[0] );
+        assertEquals( 120, worked[1] );
+        assertEquals( nodes.subList( 120, 200 ),
+                asCollection( indexedTimeline.getAllNodes() ) );
+        assertEquals( nodes.get( 120 ), indexedTimeline.getFirstNode() );
+        assertCounts( indexedTimeline );
+        indexedTimeline.truncateBefore( 120, 7, new NullListener() );
+        assertEquals( 80, countIterable( indexedTimeline.getAllNodes() ) );
+
+        timeline.truncateBefore( 50, 7, new NullListener() );
+        assertEquals( nodes.subList( 50, 200 ),
+                asCollection( timeline.getAllNodes() ) );
+        timeline.truncateBefore( 1000, 7, new NullListener() );
+        assertTrue( timeline.getFirstNode() == null );
+        assertTrue( timeline.getLastNode() == null );
+        assertFalse( timeline.getAllNodes().iterator().hasNext() );
+
+        indexedTimeline.delete();
+        for ( Node node : nodes )
+        {
+            node.delete();
+        }
+    }
+
+    @Test
+    public void testTruncateBeforeInterrupted()
+    {
+        Node tlNode = graphDb().createNode();
+        Timeline indexedTimeline = new Timeline( "test", tlNode, true, 10, graphDb() );
+        List<Node> nodes = new ArrayList<Node>();
+        for ( int i = 0; i < 100; i++ )
+        {
+            Node node = graphDb().createNode();
+            indexedTimeline.addNode( node, i );
+            nodes.add( node );
+        }
+        finishTx( true );
+        try
+        {
+            indexedTimeline.truncateBefore( 50, 7, new NullListener()
+            {
+                @Override
+                public void worked( int workedSinceLastNotification )
+                {
+                    throw new IllegalStateException( "interrupted" );
+                }
+            } );
+            fail( "Should have been interrupted" );
+        }
+        catch ( IllegalStateException e )
+        {
+            // the chain is cut, the old time nodes are left to delete
+        }
+        beginTx();
+        assertEquals( nodes.subList( 50, 100 ),
+                asCollection( indexedTimeline.getAllNodes() ) );
+        assertTrue( tlNode.hasProperty( "truncate_detached" ) );
+        assertTrue( nodes.get( 0 ).hasRelationship( Timeline.RelTypes.TIMELINE_INSTANCE ) );
+        Timeline loadedTimeline = new Timeline( "test", tlNode, true, 10, graphDb() );
+        finishTx( true );
+        final int[] worked = new int[1];
+        loadedTimeline.truncateBefore( 70, 7, new NullListener()
+        {
+            @Override
+            public void worked( int workedSinceLastNotification )
+            {
+                worked[0] += workedSinceLastNotification;
+            }
+        } );
+        assertEquals( 70, worked[0] );
+        beginTx();
+        assertFalse( tlNode.hasProperty( "truncate_detached" ) );
+        assertEquals( nodes.subList( 70, 100 ),
+                asCollection( loadedTimeline.getAllNodes() ) );
+        for ( Node node : nodes.subList( 0, 70 ) )
+        {
+            assertFalse( node.hasRelationship() );
+        }
+        loadedTimeline.addNode( nodes.get( 0 ), 200 );
+        assertCounts( loadedTimeline );
+        loadedTimeline.delete();
+        for ( Node node : nodes )
+        {
+            node.delete();
+        }
+    }
+
+    @Test
+    public void testBuildIndex()
+    {
+        Node tlNode = graphDb().createNode();
+        Timeline builtTimeline = new Timeline( "test", tlNode, false, 10, graphDb() );
+        LinkedList<Node> nodes = new LinkedList<Node>();
+        for ( int i = 0; i < 200; i++ )
+        {
+            Node node = graphDb().createNode();
+            builtTimeline.addNode( node, i - ( i % 5 == 1 ? 1 : 0 ) );
+            nodes.add( node );
+        }
+        final int[] worked = new int[1];
+        builtTimeline.buildIndex( 30, new NullListener()
+        {
+            @Override
+            public void worked( int workedSinceLastNotification )
+            {
+                worked[0] += workedSinceLastNotification;
+            }
+        } );
+        assertEquals( 200, worked[0] );
+        assertTrue( builtTimeline.isIndexed() );
+        assertEquals( Boolean.TRUE, Timeline.isIndexed( tlNode ) );
+        assertCounts( builtTimeline );
+        assertEquals( nodes, asCollection( builtTimeline.getAllNodes() ) );
+
+        // keeps the index up to date afterwards
+        for ( int i = 200; i < 230; i++ )
+        {
+            Node node = graphDb().createNode();
+            builtTimeline.addNode( node, i );
+            nodes.add( node );
+        }
+        builtTimeline.removeNode( nodes.remove( 50 ) );
+        builtTimeline.removeNode( nodes.remove( 120 ) );
+        assertCounts( builtTimeline );
+        builtTimeline.buildIndex( 30, new NullListener() );
+        assertCounts( builtTimeline );
+
+        Timeline loadedTimeline = new Timeline( "test", tlNode, true, graphDb() );
+        assertEquals( nodes, asCollection( loadedTimeline.getAllNodes() ) );
+        assertCounts( loadedTimeline );
+
+        loadedTimeline.delete();
+        for ( Node node : nodes )
+        {
+            node.delete();
+        }
+    }
+
+    @Test
+    public void testRollup()
+    {
+        List<Node> nodes = new ArrayList<Node>();
+        for ( int i = 0; i < 50; i++ )
+        {
+            Node node = graphDb().createNode();
+            node.setProperty( "size", i );
+            timeline.addNode( node, i * 3 - 20 );
+            nodes.add( node );
+        }
+        timeline.addRollup( 10, "size" );
+        timeline.addRollup( 100, null );
+        for ( int i = 50; i < 60; i++ )
+        {
+            Node node = graphDb().createNode();
+            node.setProperty( "size", i );
+            timeline.addNode( node, i * 3 - 20 );
+            nodes.add( node );
+        }
+        timeline.removeNode( nodes.get( 0 ) );
+        timeline.removeNode( nodes.get( 30 ) );
+
+        List<RollupBucket> buckets = timeline.getRollup( -15, 25, 10 );
+        assertEquals( 5, buckets.size() );
+        assertEquals( -20, buckets.get( 0 ).getStart() );
+        assertEquals( -10, buckets.get( 0 ).getEnd() );
+        // -20 removed, -17, -14 and -11 left
+        assertEquals( 3, buckets.get( 0 ).getCount() );
+        assertEquals( 1 + 2 + 3, buckets.get( 0 ).getSum(), 0 );
+        assertEquals( 20, buckets.get( 4 ).getStart() );
+        assertEquals( 3, buckets.get( 4 ).getCount() );
+        assertEquals( 14 + 15 + 16, buckets.get( 4 ).getSum(), 0 );
+        // 70 removed, 73, 76 and 79 left
+        assertEquals( 3, timeline.getRollup( 75, 80, 10 ).get( 0 ).getCount() );
+
+        long total = 0;
+        for ( RollupBucket bucket : timeline.getRollup( -1000, 1000, 100 ) )
+        {
+            total += bucket.getCount();
+            assertEquals( 0, bucket.getSum(), 0 );
+        }
+        assertEquals( 58, total );
+        assertEquals( 3, timeline.getRollup( -1000, 1000, 100 ).size() );
+
+        timeline.truncateBefore( 100, 10, new NullListener() );
+        assertEquals( 20, timeline.getRollup( -1000, 1000, 100 ).get( 0 ).getCount() );
+        assertTrue( timeline.getRollup( -1000, 100, 10 ).isEmpty() );
+
+        timeline.removeRollup( 10 );
+        for ( Node node : nodes )
+        {
+            if ( node.hasRelationship() )
+            {
+                timeline.removeNode( node );
+            }
+        }
+        assertTrue( timeline.getRollup( -1000, 1000, 100 ).isEmpty() );
+        for ( Node node : nodes )
+        {
+            node.delete();
+        }
+    }
+
+    @Test
+    public void testRollupSetBackInOneTx()
+    {
+        timeline.addRollup( 10, "size" );
+        List<Node> nodes = new ArrayList<Node>();
+        for ( int i = 1; i <= 6; i++ )
+        {
+            Node node = graphDb().createNode();
+            node.setProperty( "size", i );
+            nodes.add( node );
+        }
+        for ( int i = 0; i < 3; i++ )
+        {
+            timeline.addNode( nodes.get( i ), i + 1 );
+        }
+        restartTx();
+        // the bucket goes back to its committed count and sum, then changes
+        timeline.addNode( nodes.get( 3 ), 4 );
+        timeline.removeNode( nodes.get( 3 ) );
+        timeline.addNode( nodes.get( 4 ), 5 );
+        timeline.addNode( nodes.get( 5 ), 6 );
+        RollupBucket bucket = timeline.getRollup( 0, 10, 10 ).get( 0 );
+        assertEquals( 5, bucket.getCount() );
+        assertEquals( 1 + 2 + 3 + 5 + 6, bucket.getSum(), 0 );
+        restartTx();
+        bucket = timeline.getRollup( 0, 10, 10 ).get( 0 );
+        assertEquals( 5, bucket.getCount() );
+        assertEquals( 1 + 2 + 3 + 5 + 6, bucket.getSum(), 0 );
+        for ( Node node : nodes )
+        {
+            if ( node.hasRelationship() )
+            {
+                timeline.removeNode( node );
+            }
+            node.delete();
+        }
+    }
+
+    @Test
+    public void testAddRollupInterrupted()
+    {
+        List<Node> nodes = new ArrayList<Node>();
+        for ( int i = 0; i < 50; i++ )
+        {
+            Node node = graphDb().createNode();
+            node.setProperty( "size", i );
+            timeline.addNode( node, i / 2 * 3 );
+            nodes.add( node );
+        }
+        finishTx( true );
+        final int[] worked = new int[1];
+        try
+        {
+            timeline.addRollup( 10, "size", 7, new NullListener()
+            {
+                @Override
+                public void worked( int workedSinceLastNotification )
+                {
+                    worked[0] += workedSinceLastNotification;
+                    if ( worked[0] > 20 )
+                    {
+                        throw new IllegalStateException( "interrupted" );
+                    }
+                }
+            } );
+            fail( "Should have been interrupted" );
+        }
+        catch ( IllegalStateException e )
+        {
+            // the first batches are filled in
+        }
+        try
+        {
+            timeline.addRollup( 100, null );
+            fail( "Only one rollup is filled in at a time" );
+        }
+        catch ( IllegalStateException e )
+        {
+            // good
+        }
+        beginTx();
+        // before and after the time nodes filled in so far
+        for ( int i = 50; i < 54; i++ )
+        {
+            Node node = graphDb().createNode();
+            node.setProperty( "size", i );
+            timeline.addNode( node, i % 2 == 0 ? 1 : 70 );
+            nodes.add( node );
+        }
+        timeline.removeNode( nodes.get( 2 ) );
+        timeline.removeNode( nodes.get( 40 ) );
+        finishTx( true );
+        worked[0] = 0;
+        timeline.addRollup( 10, "size", 7, new NullListener()
+        {
+            @Override
+            public void worked( int workedSinceLastNotification )
+            {
+                worked[0] += workedSinceLastNotification;
+            }
+        } );
+        assertTrue( worked[0] < 50 );
+        beginTx();
+        long total = 0;
+        for ( RollupBucket bucket : timeline.getRollup( -1000, 1000, 10 ) )
+        {
+            long count = 0;
+            double sum = 0;
+            for ( Node node : timeline.getAllNodesBetween( bucket.getStart() - 1,
+                    bucket.getEnd() ) )
+            {
+                count++;
+                sum += (Integer) node.getProperty( "size" );
+            }
+            assertEquals( count, bucket.getCount() );
+            assertEquals( sum, bucket.getSum(), 0 );
+            total += count;
+        }
+        assertEquals( 52, total );
+        timeline.removeRollup( 10 );
+        for ( Node node : nodes )
+        {
+            if ( node.hasRelationship() )
+            {
+                timeline.removeNode( node );
+            }
+            node.delete();
+        }
+    }
+
+    @Test
+    public void testPagedQuery()
+    {
+        Node tlNode = graphDb().createNode();
+        Timeline indexedTimeline = new Timeline( "test", tlNode, true, 10, graphDb() );
+        LinkedList<Node> nodes = new LinkedList<Node>();
+        for ( int i = 0; i < 100; i++ )
+        {
+            Node node = graphDb().createNode();
+            // three nodes per timestamp
+            indexedTimeline.addNode( node, i / 3 );
+            nodes.add( node );
+        }
+        LinkedList<Node> result = new LinkedList<Node>();
+        TimelineCursor cursor = null;
+        int pages = 0;
+        do
+        {
+            TimelinePage page = indexedTimeline.getPage( 4L, 30L, cursor, 7 );
+            result.addAll( page.getNodes() );
+            cursor = page.getNextCursor();
+            if ( cursor != null )
+            {
+                assertEquals( 7, page.getNodes().size() );
+                cursor = TimelineCursor.parse( cursor.toString() );
+            }
+            pages++;
+        }
+        while ( cursor != null );
+        assertEquals( asCollection( indexedTimeline.getAllNodesBetween( 4, 30 ) ),
+                result );
+        assertEquals( 75, result.size() );
+        assertEquals( 11, pages );
+
+        TimelinePage page = indexedTimeline.getPage( null, null, null, 50 );
+        assertEquals( 50, page.getNodes().size() );
+        // remove the time node the cursor points to
+        long timestamp = page.getNextCursor().getTimestamp();
+        for ( Node node : indexedTimeline.getNodes( timestamp ) )
+        {
+            indexedTimeline.removeNode( node );
+        }
+        page = indexedTimeline.getPage( null, null, page.getNextCursor(), 100 );
+        assertEquals( nodes.get( (int) timestamp * 3 + 3 ), page.getNodes().get( 0 ) );
+        assertFalse( page.hasMore() );
+        assertEquals( nodes.getLast(), page.getNodes().get( page.getNodes().size() - 1 ) );
+
+        indexedTimeline.delete();
+        for ( Node node : nodes )
+        {
+            node.delete();
+        }
+    }
+
+    @Test
+    public void testNodeInManyTimelines()
+    {
+        Node hubNode = graphDb().createNode();
+        Timeline[] timelines = new Timeline[50];
+        for ( int i = 0; i < timelines.length; i++ )
+        {
+            timelines[i] = new Timeline( "test" + i, graphDb().createNode(),
+                    i % 2 == 0, graphDb() );
+            timelines[i].addNode( hubNode, i );
+        }
+        for ( int i = 0; i < timelines.length; i++ )
+        {
+            assertEquals( i, timelines[i].getTimestampForNode( hubNode ) );
+        }
+        timelines[7].removeNode( hubNode );
+        timelines[7].addNode( hubNode, 100 );
+        assertEquals( 100, timelines[7].getTimestampForNode( hubNode ) );
+        for ( Timeline timeline : timelines )
+        {
+            timeline.removeNode( hubNode );
+            assertFalse( timeline.getAllNodes().iterator().hasNext() );
+            timeline.delete();
+        }
+        hubNode.delete();
+    }
+
+    @Test
+    public void testBuildMembershipIndex()
+    {
+        Node tlNode = graphDb().createNode();
+        Timeline oldTimeline = new Timeline( "test", tlNode, true, graphDb() );
+        assertTrue( oldTimeline.isMembershipIndexed() );
+        // a timeline from before the membership index
+        tlNode.removeProperty( "timeline_membership_indexed" );
+        oldTimeline = new Timeline( "test", tlNode, true, graphDb() );
+        assertFalse( oldTimeline.isMembershipIndexed() );
+        assertFalse( tlNode.hasProperty( "timeline_membership_indexed" ) );
+        List<Node> nodes = new ArrayList<Node>();
+        for ( int i = 0; i < 50; i++ )
+        {
+            Node node = graphDb().createNode();
+            oldTimeline.addNode( node, i / 2 );
+            nodes.add( node );
+        }
+        final int[] worked = new int[1];
+        oldTimeline.buildMembershipIndex( 7, new NullListener()
+        {
+            @Override
+            public void worked( int workedSinceLastNotification )
+            {
+                worked[0] += workedSinceLastNotification;
+            }
+        } );
+        assertEquals( 50, worked[0] );
+        assertTrue( oldTimeline.isMembershipIndexed() );
+        Timeline loadedTimeline = new Timeline( "test", tlNode, true, graphDb() );
+        assertTrue( loadedTimeline.isMembershipIndexed() );
+        for ( int i = 0; i < nodes.size(); i++ )
+        {
+            assertEquals( i / 2, loadedTimeline.getTimestampForNode( nodes.get( i ) ) );
+        }
+        loadedTimeline.removeNode( nodes.get( 10 ) );
+        loadedTimeline.addNode( nodes.get( 10 ), 100 );
+        assertEquals( 100, loadedTimeline.getTimestampForNode( nodes.get( 10 ) ) );
+        loadedTimeline.delete();
+        for ( Node node : nodes )
+        {
+            node.delete();
+        }
+    }
+
+    @Test
+    public void testMergedTimeline()
+    {
+        List<Timeline> timelines = new ArrayList<Timeline>();
+        Node[] nodes = new Node[90];
+        for ( int i = 0; i < 3; i++ )
+        {
+            timelines.add( new Timeline( "test" + i, graphDb().createNode(),
+                    i != 1, 10, graphDb() ) );
+        }
+        for ( int i = 0; i < nodes.length; i++ )
+        {
+            nodes[i] = graphDb().createNode();
+            timelines.get( i % 3 ).addNode( nodes[i], i );
+        }
+        assertEquals( asCollection( timelines.get( 0 ).getAllNodes() ),
+                reverse( asCollection( timelines.get( 0 ).getAllNodesDescending( null, null ) ) ) );
+        TimelineIterator descending = timelines.get( 1 ).getAllNodesDescending( null, 50L ).iterator();
+        while ( descending.hasNext() )
+        {
+            long timestamp = descending.getTimestamp();
+            assertEquals( timestamp, timelines.get( 1 ).getTimestampForNode( descending.next() ) );
+        }
+        MergedTimeline merged = new MergedTimeline( timelines );
+        Iterator<Node> itr = merged.getAllNodesDescending().iterator();
+        for ( int i = nodes.length - 1; i >= 0; i-- )
+        {
+            assertEquals( nodes[i], itr.next() );
+        }
+        assertFalse( itr.hasNext() );
+        itr = merged.getAllNodesDescending( 20L, 70L, 10 ).iterator();
+        for ( int i = 69; i >= 60; i-- )
+        {
+            assertEquals( nodes[i], itr.next() );
+        }
+        assertFalse( itr.hasNext() );
+        assertEquals( 49, countIterable( merged.getAllNodesDescending( 20L, 70L, 100 ) ) );
+        for ( Timeline timeline : timelines )
+        {
+            timeline.delete();
+        }
+        for ( Node node : nodes )
+        {
+            node.delete();
+        }
+    }
+
+    private static <T> List<T> reverse( Collection<T> items )
+    {
+        LinkedList<T> result = new LinkedList<T>();
+        for ( T item : items )
+        {
+            result.addFirst( item );
+        }
+        return result;
+    }
+
+    @Test
+    public void testIndexDensityPerTimeline()
+    {
+        Timeline sparse = new Timeline( "test1", graphDb().createNode(), true, graphDb() );
+        Timeline dense = new Timeline( "test2", graphDb().createNode(), true, 10, graphDb() );
+        assertEquals( Timeline.DEFAULT_INDEX_TRIGGER_COUNT, sparse.getIndexTriggerCount() );
+        assertEquals( 10, dense.getIndexTriggerCount() );
+        assertEquals( 10, new Timeline( "test2", dense.getUnderlyingNode(), true,
+                graphDb() ).getIndexTriggerCount() );
+        sparse.delete();
+        dense.delete();
+    }
+
+    @Test
+    public void testAdaptiveIndexDensity()
+    {
+        Node tlNode = graphDb().createNode();
+        Timeline indexedTimeline = new Timeline( "test", tlNode, true, 1000, graphDb() );
+        indexedTimeline.setAdaptiveIndexing( true );
+        assertTrue( indexedTimeline.isAdaptiveIndexing() );
+        LinkedList<Node> nodes = new LinkedList<Node>();
+        // append only
+        for ( int i = 0; i <= Timeline.ADAPT_INTERVAL; i++ )
+        {
+            Node node = graphDb().createNode();
+            indexedTimeline.addNode( node, i );
+            nodes.add( node );
+        }
+        assertEquals( 2000, indexedTimeline.getIndexTriggerCount() );
+        // lookup heavy
+        for ( int i = 0; i < Timeline.ADAPT_INTERVAL; i++ )
+        {
+            Node node = graphDb().createNode();
+            indexedTimeline.addNode( node, Timeline.ADAPT_INTERVAL + 1 + i );
+            indexedTimeline.getNodes( 0 );
+            indexedTimeline.getNodes( 1 );
+            nodes.add( node );
+        }
+        assertEquals( 1000, indexedTimeline.getIndexTriggerCount() );
+        assertCounts( indexedTimeline );
+        indexedTimeline.delete();
+        for ( Node node : nodes )
+        {
+            node.delete();
+        }
+    }
+
+    @Test
+    public void testCountSetBackInOneTx()
+    {
+        Node tlNode = graphDb().createNode();
+        Timeline indexedTimeline = new Timeline( "test", tlNode, true, 100, graphDb() );
+        LinkedList<Node> nodes = new LinkedList<Node>();
+        for ( int i = 0; i < 250; i++ )
+        {
+            Node node = graphDb().createNode();
+            indexedTimeline.addNode( node, i );
+            nodes.add( node );
+        }
+        restartTx();
+        // the segment counts go back to their committed values, then change
+        Node removed = graphDb().createNode();
+        Node removedLast = graphDb().createNode();
+        indexedTimeline.addNode( removed, 100 );
+        indexedTimeline.addNode( removedLast, 249 );
+        indexedTimeline.removeNode( removed );
+        indexedTimeline.removeNode( removedLast );
+        for ( long timestamp : new long[] { 100, 101, 249, 250 } )
+        {
+            Node node = graphDb().createNode();
+            indexedTimeline.addNode( node, timestamp );
+            nodes.add( node );
+        }
+        assertEquals( 254, indexedTimeline.countBetween( -1, 1000 ) );
+        assertCounts( indexedTimeline );
+        restartTx();
+        assertEquals( 254, indexedTimeline.countBetween( -1, 1000 ) );
+        assertCounts( indexedTimeline );
+        removed.delete();
+        removedLast.delete();
+        indexedTimeline.delete();
+        for ( Node node : nodes )
+        {
+            node.delete();
+        }
+    }
+
+    @Test
+    public void testRecountIndex()
+    {
+        Node tlNode = graphDb().createNode();
+        Timeline indexedTimeline = new Timeline( "test", tlNode, true, 20, graphDb() );
+        List<Node> nodes = new ArrayList<Node>();
+        for ( int i = 0; i < 250; i++ )
+        {
+            Node node = graphDb().createNode();
+            indexedTimeline.addNode( node, i / 3 );
+            nodes.add( node );
+        }
+        restartTx();
+        // a timeline indexed before the segment counts counted entries
+        tlNode.removeProperty( "index_format" );
+        Node timeNode = tlNode;
+        do
+        {
+            if ( timeNode.hasProperty( "index_count" ) )
+            {
+                timeNode.setProperty( "index_count", 1 );
+            }
+            timeNode = timeNode.getSingleRelationship(
+                    Timeline.RelTypes.TIMELINE_NEXT_ENTRY, Direction.OUTGOING ).getEndNode();
+        }
+        while ( !timeNode.equals( tlNode ) );
+        restartTx();
+        Timeline oldTimeline = new Timeline( "test", tlNode, true, 20, graphDb() );
+        assertEquals( 250, oldTimeline.countBetween( -1, 1000 ) );
+        assertCounts( oldTimeline );
+        final int[] worked = new int[1];
+        oldTimeline.recountIndex( 7, new NullListener()
+        {
+            @Override
+            public void worked( int workedSinceLastNotification )
+            {
+                worked[0] += workedSinceLastNotification;
+            }
+        } );
+        assertEquals( 250, worked[0] );
+        assertTrue( tlNode.hasProperty( "index_format" ) );
+        assertFalse( tlNode.hasProperty( "index_recounting" ) );
+        assertEquals( 250, oldTimeline.countBetween( -1, 1000 ) );
+        assertCounts( oldTimeline );
+        Node added = graphDb().createNode();
+        oldTimeline.addNode( added, 40 );
+        nodes.add( added );
+        assertCounts( oldTimeline );
+        restartTx();
+        assertCounts( new Timeline( "test", tlNode, true, 20, graphDb() ) );
+        oldTimeline.delete();
+        for ( Node node : nodes )
+        {
+            node.delete();
+        }
+    }
+
+    private void assertCounts( Timeline timeline )
+    {
+        long[][] ranges = { { -10, 300 }, { 0, 1 }, { 0, 2 }, { 5, 6 },
+                { 17, 143 }, { 42, 43 }, { 60, 120 }, { 150, 1000 },
+                { 198, 199 }, { 500, 600 } };
+        for ( long[] range : ranges )
+        {
+            assertEquals( countIterable( timeline.getAllNodesBetween(
+                    range[0], range[1] ) ), timeline.countBetween(
+                    range[0], range[1] ) );
+        }
+    }
+
 	@Test
     @Ignore("crashes the VM")
     public void shouldNotDegradePerformanceWhenAddingMoreStuff()
@@ -552,6 +1287,76 @@ public class TestTimeline extends Neo4jTestCase
         restartTx();
         indexedTimeline.delete(1);
     }
+
+    @Test
+    public void testBulkDelete()
+    {
+        Node tlNode = graphDb().createNode();
+        Timeline indexedTimeline = new Timeline( "test", tlNode, true, 10, graphDb() );
+        indexedTimeline.addRollup( 3, null );
+        List<Node> nodes = new ArrayList<Node>();
+        for ( int i = 0; i < 100; i++ )
+        {
+            Node node = graphDb().createNode();
+            indexedTimeline.addNode( node, i / 2 );
+            nodes.add( node );
+        }
+        final int[] worked = new int[2];
+        indexedTimeline.delete( 7, new NullListener()
+        {
+            @Override
+            public void begin( int unitsOfWork )
+            {
+                worked[0] = unitsOfWork;
+            }
+
+            @Override
+            public void worked( int workedSinceLastNotification )
+            {
+                worked[1] += workedSinceLastNotification;
+            }
+        } );
+        assertEquals( 100, worked[0] );
+        assertEquals( 100, worked[1] );
+        assertFalse( tlNode.hasRelationship() );
+        assertFalse( tlNode.hasProperty( "timeline_deleting" ) );
+        for ( Node node : nodes )
+        {
+            assertFalse( node.hasRelationship() );
+            node.delete();
+        }
+    }
+
+    @Test
+    public void testResumeBulkDelete()
+    {
+        Node tlNode = graphDb().createNode();
+        Timeline indexedTimeline = new Timeline( "test", tlNode, true, 10, graphDb() );
+        indexedTimeline.addRollup( 3, null );
+        List<Node> nodes = new ArrayList<Node>();
+        for ( int i = 0; i < 100; i++ )
+        {
+            Node node = graphDb().createNode();
+            indexedTimeline.addNode( node, i / 2 );
+            nodes.add( node );
+        }
+        // a delete interrupted after dropping the index
+        tlNode.setProperty( "timeline_deleting", true );
+        new BTree( graphDb(), tlNode.getSingleRelationship(
+                BTree.RelTypes.TREE_ROOT, Direction.OUTGOING ).getEndNode() ).delete( 5 );
+        assertFalse( tlNode.hasRelationship( BTree.RelTypes.TREE_ROOT ) );
+
+        Timeline loadedTimeline = new Timeline( "test", tlNode, true, graphDb() );
+        assertFalse( tlNode.hasRelationship( BTree.RelTypes.TREE_ROOT ) );
+        loadedTimeline.delete( 7 );
+        assertFalse( tlNode.hasRelationship() );
+        assertFalse( tlNode.hasProperty( "timeline_deleting" ) );
+        for ( Node node : nodes )
+        {
+            assertFalse( node.hasRelationship() );
+            node.delete();
+        }
+    }
 	
 	
 }
\ No newline at end of file
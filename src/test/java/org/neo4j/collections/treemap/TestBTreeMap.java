@@ -0,0 +1,262 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.collections.treemap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+import org.neo4j.collections.Neo4jTestCase;
+import org.neo4j.graphdb.Transaction;
+
+public class TestBTreeMap extends Neo4jTestCase
+{
+	@Test
+	public void testMapOperations()
+	{
+		BTreeMap<String, Integer> map = new BTreeMap<String, Integer>(
+			"test", graphDb().createNode(), graphDb() );
+		assertTrue( map.isEmpty() );
+		// "Aa" and "BB" have the same hash code and share a bucket
+		assertNull( map.put( "Aa", 1 ) );
+		assertNull( map.put( "BB", 2 ) );
+		assertNull( map.put( "C", 3 ) );
+		assertEquals( (Integer) 2, map.put( "BB", 20 ) );
+		assertEquals( (Integer) 3, map.put( "C", 30 ) );
+		assertEquals( 3, map.size() );
+		assertTrue( map.containsKey( "Aa" ) );
+		assertTrue( map.containsKey( "BB" ) );
+		assertFalse( map.containsKey( "D" ) );
+		assertTrue( map.containsValue( 20 ) );
+		assertFalse( map.containsValue( 2 ) );
+		
+		Map<String, Integer> expected = new HashMap<String, Integer>();
+		expected.put( "Aa", 1 );
+		expected.put( "BB", 20 );
+		expected.put( "C", 30 );
+		assertEquals( expected, new HashMap<String, Integer>( map ) );
+		assertEquals( expected.keySet(), new HashSet<String>( map.keySet() ) );
+		assertEquals( new HashSet<Integer>( expected.values() ),
+			new HashSet<Integer>( map.values() ) );
+		
+		assertEquals( (Integer) 1, map.remove( "Aa" ) );
+		assertEquals( (Integer) 20, map.remove( "BB" ) );
+		assertNull( map.remove( "BB" ) );
+		assertEquals( 1, map.size() );
+		map.validate();
+		map.clear();
+		assertTrue( map.isEmpty() );
+		map.delete();
+	}
+	
+	@Test
+	public void testSizeAcrossTransactions()
+	{
+		BTreeMap<Integer, Long> map = new BTreeMap<Integer, Long>(
+			"numbers", graphDb().createNode(), graphDb() );
+		Map<Integer, Long> expected = new HashMap<Integer, Long>();
+		Random random = new Random( 4321 );
+		for ( int i = 0; i < 1000; i++ )
+		{
+			int key = random.nextInt( 300 );
+			if ( random.nextInt( 3 ) > 0 )
+			{
+				assertEquals( expected.put( key, (long) i ),
+					map.put( key, (long) i ) );
+			}
+			else
+			{
+				assertEquals( expected.remove( key ), map.remove( key ) );
+			}
+			assertEquals( expected.size(), map.size() );
+			if ( i % 100 == 0 )
+			{
+				restartTx();
+			}
+		}
+		Map<Integer, Long> more = new HashMap<Integer, Long>();
+		for ( int i = 1000; i < 1100; i++ )
+		{
+			more.put( i, (long) i );
+		}
+		map.putAll( more );
+		expected.putAll( more );
+		restartTx();
+		assertEquals( expected.size(), map.size() );
+		assertEquals( expected, new HashMap<Integer, Long>( map ) );
+		map.validate();
+		map.delete();
+	}
+	
+	@Test
+	public void testLongHash()
+	{
+		BTreeMap<String, Integer> map = new BTreeMap<String, Integer>(
+			"long", graphDb().createNode(), graphDb(), false, true );
+		for ( int i = 0; i < 500; i++ )
+		{
+			map.put( "key" + i, i );
+		}
+		restartTx();
+		map = new BTreeMap<String, Integer>( null, map.getUnderlyingNode(), 
+			graphDb() );
+		assertEquals( 500, map.size() );
+		for ( int i = 0; i < 500; i++ )
+		{
+			assertEquals( (Integer) i, map.get( "key" + i ) );
+		}
+		assertEquals( BTreeMap.hash64( "key1" ), map.hash( "key1" ) );
+		assertFalse( BTreeMap.hash64( 1 ) == BTreeMap.hash64( 1L ) );
+		assertEquals( (Integer) 7, map.remove( "key7" ) );
+		assertNull( map.get( "key7" ) );
+		map.validate();
+		map.delete();
+	}
+	
+	@Test
+	public void testInlineCollisions()
+	{
+		// every key of one character collides
+		BTreeMap<Object, Object> map = new BTreeMap<Object, Object>(
+			"collisions", graphDb().createNode(), graphDb(), false, true )
+		{
+			@Override
+			long hash( Object key )
+			{
+				return key.toString().length();
+			}
+		};
+		map.put( "a", 1 );
+		map.put( "b", 2 );
+		map.put( "c", 3 );
+		map.put( "dd", 4 );
+		restartTx();
+		assertEquals( 2, map.put( "b", 20 ) );
+		assertEquals( 1, map.remove( "a" ) );
+		restartTx();
+		assertEquals( 3, map.size() );
+		assertEquals( 20, map.get( "b" ) );
+		assertEquals( 3, map.get( "c" ) );
+		assertNull( map.get( "a" ) );
+		Map<Object, Object> expected = new HashMap<Object, Object>();
+		expected.put( "b", 20 );
+		expected.put( "c", 3 );
+		expected.put( "dd", 4 );
+		assertEquals( expected, new HashMap<Object, Object>( map ) );
+		
+		// a key of another type doesn't fit the array, all move to a bucket
+		map.put( 7, 70 );
+		restartTx();
+		expected.put( 7, 70 );
+		assertEquals( expected, new HashMap<Object, Object>( map ) );
+		assertEquals( 70, map.remove( 7 ) );
+		assertEquals( 20, map.remove( "b" ) );
+		assertEquals( 3, map.remove( "c" ) );
+		assertEquals( 1, map.size() );
+		map.validate();
+		map.delete();
+	}
+	
+	@Test
+	public void testNearCache() throws Exception
+	{
+		BTreeMap<String, Integer> map = new BTreeMap<String, Integer>(
+			"cached", graphDb().createNode(), graphDb() );
+		map.put( "a", 1 );
+		map.put( "b", 2 );
+		map.put( "c", 3 );
+		restartTx();
+		final BTreeMapCache<String, Integer> cache =
+			new BTreeMapCache<String, Integer>( graphDb(), map, 2 );
+		try
+		{
+			assertEquals( (Integer) 1, cache.get( "a" ) );
+			assertEquals( (Integer) 1, cache.get( "a" ) );
+			assertNull( cache.get( "x" ) );
+			assertNull( cache.get( "x" ) );
+			assertEquals( 2, cache.getHitCount() );
+			assertEquals( 2, cache.getMissCount() );
+			assertEquals( (Integer) 2, cache.get( "b" ) );
+			assertEquals( 1, cache.getEvictionCount() );
+			
+			// the writing transaction sees its own write, others don't
+			// until it commits
+			cache.put( "b", 20 );
+			assertEquals( (Integer) 20, cache.get( "b" ) );
+			assertEquals( (Integer) 2, getInOtherThread( cache, "b" ) );
+			restartTx();
+			assertEquals( (Integer) 20, getInOtherThread( cache, "b" ) );
+			assertEquals( (Integer) 20, cache.get( "b" ) );
+			
+			// writes through another instance evict the keys they changed on
+			// commit, also when they keep the size
+			BTreeMap<String, Integer> other = new BTreeMap<String, Integer>(
+				null, map.getUnderlyingNode(), graphDb() );
+			other.put( "x", 9 );
+			restartTx();
+			assertEquals( (Integer) 9, cache.get( "x" ) );
+			assertEquals( (Integer) 9, cache.get( "x" ) );
+			other.put( "x", 10 );
+			restartTx();
+			assertEquals( (Integer) 10, cache.get( "x" ) );
+			other.remove( "x" );
+			restartTx();
+			assertNull( cache.get( "x" ) );
+		}
+		finally
+		{
+			cache.close();
+		}
+		map.delete();
+	}
+	
+	private Integer getInOtherThread( final BTreeMapCache<String, Integer> cache,
+		final String key ) throws InterruptedException
+	{
+		final Integer[] result = new Integer[1];
+		Thread thread = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				Transaction tx = graphDb().beginTx();
+				try
+				{
+					result[0] = cache.get( key );
+					tx.success();
+				}
+				finally
+				{
+					tx.finish();
+				}
+			}
+		};
+		thread.start();
+		thread.join();
+		return result[0];
+	}
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.collections.treemap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+import org.neo4j.collections.Neo4jTestCase;
+import org.neo4j.graphdb.Node;
+
+public class TestLongLongGraphMap extends Neo4jTestCase
+{
+	@Test
+	public void testPutGetRemove()
+	{
+		Node node = graphDb().createNode();
+		LongLongGraphMap map = new LongLongGraphMap( graphDb(), node, 4, -1 );
+		Map<Long, Long> expected = new HashMap<Long, Long>();
+		Random random = new Random( 2468 );
+		for ( int i = 0; i < 2000; i++ )
+		{
+			long key = random.nextInt( 400 ) - 100;
+			if ( random.nextInt( 3 ) > 0 )
+			{
+				Long previous = expected.put( key, (long) i );
+				assertEquals( previous != null ? previous : -1,
+					map.put( key, i ) );
+			}
+			else
+			{
+				Long previous = expected.remove( key );
+				assertEquals( previous != null ? previous : -1,
+					map.remove( key ) );
+			}
+			if ( i % 200 == 0 )
+			{
+				map.validate();
+				restartTx();
+			}
+		}
+		map.validate();
+		map = new LongLongGraphMap( graphDb(), node );
+		assertEquals( expected.size(), map.size() );
+		for ( long key = -110; key < 310; key++ )
+		{
+			Long value = expected.get( key );
+			assertEquals( value != null ? value : -1, map.get( key ) );
+			assertEquals( value != null, map.containsKey( key ) );
+		}
+		map.delete();
+	}
+	
+	@Test
+	public void testPutAll()
+	{
+		LongLongGraphMap map = new LongLongGraphMap( graphDb(),
+			graphDb().createNode(), 8, Long.MIN_VALUE );
+		Map<Long, Long> expected = new HashMap<Long, Long>();
+		map.put( 5, 50 );
+		expected.put( 5L, 50L );
+		
+		// sorted keys, put a leaf page at a time
+		long[] keys = new long[1000];
+		long[] values = new long[keys.length];
+		for ( int i = 0; i < keys.length; i++ )
+		{
+			keys[i] = i * 2;
+			values[i] = i;
+			expected.put( keys[i], values[i] );
+		}
+		map.putAll( keys, values );
+		map.validate();
+		assertEquals( expected.size(), map.size() );
+		
+		// unsorted keys with duplicates, the last value of a key is kept
+		Random random = new Random( 97531 );
+		keys = new long[3000];
+		values = new long[keys.length];
+		for ( int i = 0; i < keys.length; i++ )
+		{
+			keys[i] = random.nextInt( 5000 ) - 1000;
+			values[i] = random.nextLong();
+			expected.put( keys[i], values[i] );
+		}
+		long[] keysCopy = keys.clone();
+		map.putAll( keys, values );
+		assertTrue( Arrays.equals( keysCopy, keys ) );
+		restartTx();
+		map.validate();
+		assertEquals( expected.size(), map.size() );
+		for ( Map.Entry<Long, Long> entry : expected.entrySet() )
+		{
+			assertEquals( (long) entry.getValue(), map.get( entry.getKey() ) );
+		}
+		assertEquals( Long.MIN_VALUE, map.get( 5001 ) );
+		assertFalse( map.isEmpty() );
+		
+		try
+		{
+			map.putAll( new long[2], new long[1] );
+			assertTrue( "Different lengths", false );
+		}
+		catch ( IllegalArgumentException e )
+		{ // good
+		}
+		map.delete();
+	}
+}
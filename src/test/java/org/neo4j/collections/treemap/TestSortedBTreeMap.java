@@ -0,0 +1,215 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.collections.treemap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+import org.neo4j.collections.Neo4jTestCase;
+
+public class TestSortedBTreeMap extends Neo4jTestCase
+{
+	@Test
+	public void testAgainstTreeMap()
+	{
+		SortedBTreeMap<String, Integer> map = new SortedBTreeMap<String, Integer>(
+			graphDb(), graphDb().createNode(), KeyCodec.STRING, 4 );
+		TreeMap<String, Integer> expected = new TreeMap<String, Integer>();
+		Random random = new Random( 1357 );
+		for ( int i = 0; i < 600; i++ )
+		{
+			String key = "k" + random.nextInt( 200 );
+			if ( random.nextInt( 4 ) > 0 )
+			{
+				assertEquals( expected.put( key, i ), map.put( key, i ) );
+			}
+			else
+			{
+				assertEquals( expected.remove( key ), map.remove( key ) );
+			}
+			if ( i % 100 == 0 )
+			{
+				restartTx();
+			}
+		}
+		assertEquals( expected.size(), map.size() );
+		assertMapEquals( expected, map );
+		assertMapEquals( expected.descendingMap(), map.descendingMap() );
+		assertMapEquals( expected.subMap( "k13", true, "k5", false ),
+			map.subMap( "k13", true, "k5", false ) );
+		assertMapEquals( expected.headMap( "k42", true ),
+			map.headMap( "k42", true ) );
+		assertMapEquals( expected.tailMap( "k7", false ),
+			map.tailMap( "k7", false ) );
+		assertMapEquals( expected.descendingMap().subMap( "k8", false, "k2",
+			true ).tailMap( "k3", true ), map.descendingMap().subMap( "k8",
+			false, "k2", true ).tailMap( "k3", true ) );
+		assertEquals( new ArrayList<String>(
+			expected.descendingKeySet().headSet( "k5" ) ),
+			new ArrayList<String>( map.descendingKeySet().headSet( "k5" ) ) );
+		
+		try
+		{
+			map.headMap( "k5" ).put( "k6", 1 );
+			assertTrue( "Key out of range", false );
+		}
+		catch ( IllegalArgumentException e )
+		{ // good
+		}
+		try
+		{
+			map.headMap( "k5" ).tailMap( "k6" );
+			assertTrue( "Key out of range", false );
+		}
+		catch ( IllegalArgumentException e )
+		{ // good
+		}
+		
+		NavigableMap<String, Integer> view = map.subMap( "k3", "k4" );
+		view.clear();
+		expected.subMap( "k3", "k4" ).clear();
+		assertTrue( view.isEmpty() );
+		assertEquals( expected.size(), map.size() );
+		assertEquals( expected.firstEntry(), map.pollFirstEntry() );
+		expected.pollFirstEntry();
+		assertMapEquals( expected, map );
+		
+		map.clear();
+		assertTrue( map.isEmpty() );
+		assertNull( map.firstEntry() );
+		map.put( "again", 1 );
+		assertEquals( 1, map.size() );
+		map.delete();
+	}
+	
+	@Test
+	public void testNumberCodecs()
+	{
+		SortedBTreeMap<Long, String> longs = new SortedBTreeMap<Long, String>(
+			graphDb(), graphDb().createNode(), KeyCodec.LONG );
+		List<Long> longKeys = Arrays.asList( Long.MIN_VALUE, -300L, -1L, 0L,
+			1L, 255L, 256L, Long.MAX_VALUE );
+		for ( Long key : longKeys )
+		{
+			longs.put( key, "v" + key );
+		}
+		assertEquals( longKeys, new ArrayList<Long>( longs.keySet() ) );
+		assertEquals( (Long) (-1L), longs.floorKey( -1L ) );
+		assertEquals( (Long) 255L, longs.ceilingKey( 2L ) );
+		assertEquals( (Long) 0L, longs.lowerKey( 1L ) );
+		assertEquals( "v1", longs.get( 1L ) );
+		longs.delete();
+		
+		SortedBTreeMap<Double, Integer> doubles =
+			new SortedBTreeMap<Double, Integer>( graphDb(),
+				graphDb().createNode(), KeyCodec.DOUBLE );
+		List<Double> doubleKeys = Arrays.asList( Double.NEGATIVE_INFINITY,
+			-2.5, -0.0, 0.0, 1e-9, 3.0, Double.POSITIVE_INFINITY );
+		for ( int i = doubleKeys.size() - 1; i >= 0; i-- )
+		{
+			doubles.put( doubleKeys.get( i ), i );
+		}
+		assertEquals( doubleKeys, new ArrayList<Double>( doubles.keySet() ) );
+		assertEquals( (Double) 3.0, doubles.higherKey( 1.0 ) );
+		assertFalse( doubles.containsKey( 1.0 ) );
+		doubles.delete();
+	}
+	
+	@Test
+	public void testInlineValues()
+	{
+		SortedBTreeMap<Integer, Object> map = new SortedBTreeMap<Integer, Object>(
+			graphDb(), graphDb().createNode(), KeyCodec.INTEGER );
+		// inline values and the ones next to them which need a node
+		List<Object> values = Arrays.<Object>asList( true, false,
+			(byte) -7, (short) -300, 'x', (char) 0xffff, -1, Integer.MIN_VALUE,
+			-1.5f, Float.NaN, 0L, -1L, ( 1L << 58 ) - 1, -( 1L << 58 ),
+			1L << 58, Long.MAX_VALUE, 3.0, -0.0, 0.1, Double.MAX_VALUE, "",
+			"abcdefg", "abcdefgh", "\u00e5\u00e4\u00f6", "\u20ac", new int[] { 1, 2 } );
+		for ( int i = 0; i < values.size(); i++ )
+		{
+			map.put( i, values.get( i ) );
+		}
+		restartTx();
+		for ( int i = 0; i < values.size(); i++ )
+		{
+			assertValueEquals( values.get( i ), map.get( i ) );
+		}
+		// replaced in the same transaction, inline by node and back
+		for ( int i = 0; i < values.size(); i++ )
+		{
+			Object other = values.get( values.size() - 1 - i );
+			assertValueEquals( values.get( i ), map.put( i, other ) );
+			assertValueEquals( other, map.put( i, values.get( i ) ) );
+			assertValueEquals( values.get( i ), map.get( i ) );
+		}
+		restartTx();
+		for ( int i = 0; i < values.size(); i++ )
+		{
+			assertValueEquals( values.get( i ), map.remove( i ) );
+		}
+		assertTrue( map.isEmpty() );
+		map.delete();
+	}
+	
+	private void assertValueEquals( Object expected, Object value )
+	{
+		if ( expected instanceof int[] )
+		{
+			assertTrue( Arrays.equals( (int[]) expected, (int[]) value ) );
+		}
+		else
+		{
+			assertEquals( expected, value );
+		}
+	}
+	
+	private void assertMapEquals( NavigableMap<String, Integer> expected,
+		NavigableMap<String, Integer> map )
+	{
+		assertEquals( new ArrayList<Map.Entry<String, Integer>>(
+			expected.entrySet() ), new ArrayList<Map.Entry<String, Integer>>(
+			map.entrySet() ) );
+		assertEquals( expected.size(), map.size() );
+		for ( int i = -5; i < 205; i += 3 )
+		{
+			String key = "k" + i;
+			assertEquals( expected.get( key ), map.get( key ) );
+			assertEquals( expected.floorEntry( key ), map.floorEntry( key ) );
+			assertEquals( expected.ceilingEntry( key ),
+				map.ceilingEntry( key ) );
+			assertEquals( expected.lowerKey( key ), map.lowerKey( key ) );
+			assertEquals( expected.higherKey( key ), map.higherKey( key ) );
+		}
+		assertEquals( expected.firstEntry(), map.firstEntry() );
+		assertEquals( expected.lastEntry(), map.lastEntry() );
+	}
+}